@@ -13,11 +13,43 @@ package org.oclc.mobile.authentication.android;
  *
  ******************************************************************************/
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
 import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.oclc.mobile.authentication.core.AssetCache;
+import org.oclc.mobile.authentication.core.AuthorizationException;
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.FlowMetrics;
+import org.oclc.mobile.authentication.core.FlowTrace;
+import org.oclc.mobile.authentication.core.HostSet;
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.PageProgress;
+import org.oclc.mobile.authentication.core.Pkce;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+import org.oclc.mobile.authentication.core.RedirectUriParser;
+import org.oclc.mobile.authentication.core.ResourceFilter;
+import org.oclc.mobile.authentication.core.SilentSignInMetrics;
+import org.oclc.mobile.authentication.core.SingleFlight;
+import org.oclc.mobile.authentication.core.TokenExchange;
+import org.oclc.mobile.authentication.core.TokenKey;
+import org.oclc.mobile.authentication.core.TokenRegistry;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
 import android.view.View;
+import android.view.ViewGroup;
+import android.webkit.WebResourceResponse;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 import android.webkit.WebViewClient;
@@ -25,26 +57,214 @@ import android.webkit.WebViewClient;
 /**
  * Extends a generic webView to execute an Oauth2 authentication. Returns a token and its associated parameters for use
  * in calling OCLC web services.
+ * <p>
+ * This class only drives the WebView. Building the request, recognizing the redirect URI, parsing it and keeping
+ * tokens are done by the Android-free classes in org.oclc.mobile.authentication.core.
+ * <p>
+ * The WebView can be released once a token has been received, see {@link #setReleaseAfterSignIn(boolean)}. It is then
+ * removed from the layout and destroyed, and a new one is put in its place when the next authentication starts.
+ * <p>
+ * An authentication can be made silently, see {@link #makeSilentRequest(AuthorizationRequest, long, long)}. The
+ * WebView then stays hidden while the authentication server's session cookie takes it straight to the redirect URI, and
+ * is only shown if a login form turns up or the redirect does not arrive in time.
+ * <p>
+ * In the authorization code flow, see {@link #setTokenExchange(TokenExchange, Executor)}, the WebView only collects the
+ * code, which is exchanged for the token natively on a background thread.
  *
  * @see android.webkit.WebView
  */
 public class AuthenticatingWebView {
 
     /**
-     * Parameters returned by a successful authentication.
+     * Tag for log messages.
+     */
+    private static final String TAG = "AuthenticatingWebView";
+
+    /**
+     * Key of the PKCE code verifier in the saved state of an authentication in progress.
+     */
+    private static final String PKCE_VERIFIER_KEY = "org.oclc.mobile.authentication.pkceVerifier";
+
+    /**
+     * Key of the url of the page being loaded in the saved state of an authentication in progress.
+     */
+    private static final String PAGE_URL_KEY = "org.oclc.mobile.authentication.pageUrl";
+
+    /**
+     * Decides which urls are loaded, blocked or captured as the redirect URI carrying the authentication results.
+     * Until one is set, any url is loaded and the redirect URI is ncipapp://user_agent_flow.
+     */
+    private NavigationPolicy navigationPolicy = new NavigationPolicy(new RedirectMatcher("ncipapp://user_agent_flow"), null);
+
+    /**
+     * Parser for the redirect URI, reused across authentications.
+     */
+    private final RedirectUriParser redirectUriParser = new RedirectUriParser();
+
+    /**
+     * Delay after releasing the WebView before the memory footprint is logged again, giving the garbage collector and
+     * the renderer time to give the memory back.
+     */
+    private static final long RELEASE_SETTLE_MILLISECONDS = 5000L;
+
+    /**
+     * Time a page must stay loaded without navigating on before a silent authentication takes it for a login form. Some
+     * single sign on pages post themselves on from script as soon as they have loaded.
+     */
+    private static final long SILENT_SETTLE_MILLISECONDS = 1000L;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
      */
-    private final HashMap<String, String> authorizationReturnParameters = new HashMap<String, String>();
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
 
     /**
-     * Browser Window that hosts the authentication process.
+     * Browser Window that hosts the authentication process, or null while it is released.
      */
-    private final WebView webView;
+    private WebView webView;
+
+    /**
+     * Context the WebView was created with, used to create a new one after it has been released.
+     */
+    private final Context webViewContext;
+
+    /**
+     * Layout that held the WebView before it was released, or null if it has not been released.
+     */
+    private ViewGroup releasedParent;
+
+    /**
+     * Position of the released WebView in its layout.
+     */
+    private int releasedIndex;
+
+    /**
+     * Layout parameters of the released WebView.
+     */
+    private ViewGroup.LayoutParams releasedLayoutParams;
+
+    /**
+     * Id of the released WebView.
+     */
+    private int releasedId;
+
+    /**
+     * Whether the WebView is released after each successful authentication.
+     */
+    private boolean releaseAfterSignIn;
+
+    /**
+     * Whether an authentication has been started and has not yet reached the redirect URI or been cancelled.
+     */
+    private boolean authenticating;
+
+    /**
+     * Runs work on the UI thread whether or not the WebView exists.
+     */
+    private final Handler uiHandler = new Handler(Looper.getMainLooper());
 
     /**
      * Listener for callbacks from webView.
      */
     private final AuthenticatingWebViewCallbackMethods listener;
 
+    /**
+     * Tokens already received, consulted before starting an authentication. May be null.
+     */
+    private final TokenRegistry tokenRegistry;
+
+    /**
+     * Joins concurrent requests for the same token into the authentication in progress.
+     */
+    private final SingleFlight<TokenKey, AuthorizationResult> flights = new SingleFlight<TokenKey, AuthorizationResult>();
+
+    /**
+     * The token being requested by the authentication in progress, or null if it was not requested by key. Only used
+     * on the UI thread.
+     */
+    private TokenKey pendingTokenKey;
+
+    /**
+     * Keeps unneeded sub-resources of the login pages from loading, or null to load them all.
+     */
+    private volatile ResourceFilter resourceFilter;
+
+    /**
+     * Serves the static assets of the login pages from disk, or null to let the WebView fetch them.
+     */
+    private volatile AssetCache assetCache;
+
+    /**
+     * Aggregates the timing of completed authentications, or null if they are not measured.
+     */
+    private FlowMetrics flowMetrics;
+
+    /**
+     * Timing of the authentication in progress, or null if none is being measured.
+     */
+    private FlowTrace flowTrace;
+
+    /**
+     * Whether the authentication in progress is silent, so the WebView stays hidden. Only used on the UI thread.
+     */
+    private boolean silent;
+
+    /**
+     * Decides when the progress dialog is shown and hidden. Only used on the UI thread.
+     */
+    private final PageProgress pageProgress = new PageProgress();
+
+    /**
+     * Time at which the silent authentication in progress started.
+     */
+    private long silentStartNanos;
+
+    /**
+     * Counts how silent authentications end.
+     */
+    private final SilentSignInMetrics silentSignInMetrics = new SilentSignInMetrics();
+
+    /**
+     * Exchanges authorization codes for tokens, or null in the implicit flow.
+     */
+    private TokenExchange tokenExchange;
+
+    /**
+     * Runs the authorization code exchanges.
+     */
+    private Executor tokenExchangeExecutor;
+
+    /**
+     * The PKCE pair of the authentication in progress in the authorization code flow. Only used on the UI thread.
+     */
+    private Pkce pendingPkce;
+
+    /**
+     * The url of the authentication in progress that was last loaded, whether its page is on display or it is still
+     * being redirected. Only used on the UI thread.
+     */
+    private String pageUrl;
+
+    /**
+     * Shows the WebView of a silent authentication whose redirect URI has not arrived in time.
+     */
+    private final Runnable silentTimeout = new Runnable() {
+        @Override
+        public void run() {
+            escalate(SilentSignInMetrics.Escalation.TIMEOUT);
+        }
+    };
+
+    /**
+     * Shows the WebView of a silent authentication whose last page has stayed loaded, and so needs the user.
+     */
+    private final Runnable silentLoginFormCheck = new Runnable() {
+        @Override
+        public void run() {
+            escalate(SilentSignInMetrics.Escalation.LOGIN_FORM);
+        }
+    };
+
     /**
      * Stores the webview and call back listener into class instance variables for later use.
      *
@@ -52,8 +272,394 @@ public class AuthenticatingWebView {
      * @param listener handle to the callback methods to MainActivity.java.
      */
     public AuthenticatingWebView(final WebView webView, final AuthenticatingWebViewCallbackMethods listener) {
+        this(webView, listener, null);
+    }
+
+    /**
+     * Stores the webview, call back listener and token registry into class instance variables for later use.
+     *
+     * @param webView the WebView that is handling the authentication interaction with the user.
+     * @param listener handle to the callback methods to MainActivity.java.
+     * @param tokenRegistry tokens that are reused instead of authenticating again
+     */
+    public AuthenticatingWebView(final WebView webView, final AuthenticatingWebViewCallbackMethods listener,
+        final TokenRegistry tokenRegistry) {
         this.webView = webView;
+        this.webViewContext = webView.getContext();
         this.listener = listener;
+        this.tokenRegistry = tokenRegistry;
+    }
+
+    /**
+     * Sets whether the WebView is released after each successful authentication. The renderer behind a WebView keeps
+     * tens of megabytes, which a long running session would otherwise hold on to for nothing. The cost is that the
+     * next sign in has to create and lay out a new WebView.
+     *
+     * @param release true to release the WebView once a token has been received
+     */
+    public final void setReleaseAfterSignIn(final boolean release) {
+        this.releaseAfterSignIn = release;
+    }
+
+    /**
+     * Sets the policy that decides which urls the WebView loads and which url is the redirect URI.
+     *
+     * @param policy the navigation policy
+     */
+    public final void setNavigationPolicy(final NavigationPolicy policy) {
+        this.navigationPolicy = policy;
+    }
+
+    /**
+     * Sets the filter that keeps sub-resources of the login pages, such as images, fonts or third-party scripts, from
+     * loading. Filtering needs Android 3.0 or later; older versions load everything.
+     *
+     * @param filter the resource filter, or null to load every resource
+     */
+    public final void setResourceFilter(final ResourceFilter filter) {
+        this.resourceFilter = filter;
+    }
+
+    /**
+     * Sets the cache that serves the static assets of the authentication host across sign ins. Caching needs Android
+     * 3.0 or later.
+     *
+     * @param cache the asset cache, or null to let the WebView fetch every asset
+     */
+    public final void setAssetCache(final AssetCache cache) {
+        this.assetCache = cache;
+    }
+
+    /**
+     * Switches to the authorization code flow with PKCE. Each authentication then sends a new code challenge, and the
+     * code the redirect URI carries is exchanged for the token natively, so the WebView never sees the token. The
+     * request must have been built with response type "code".
+     *
+     * @param exchange redeems the codes at the token endpoint, or null for the implicit flow
+     * @param executor runs the exchanges in the background, for example the thread that also redeems refresh tokens
+     */
+    public final void setTokenExchange(final TokenExchange exchange, final Executor executor) {
+        this.tokenExchange = exchange;
+        this.tokenExchangeExecutor = executor;
+    }
+
+    /**
+     * Measures each authentication from now on: page load times, the number of pages in the redirect chain, the time
+     * to the login form, the user's think time and the time from submitting the credentials to the redirect URI.
+     *
+     * @param metrics receives the timing of each completed authentication
+     */
+    public final void setFlowMetrics(final FlowMetrics metrics) {
+        this.flowMetrics = metrics;
+    }
+
+    /**
+     * Returns a registered token for the request if there is one that remains valid for at least the given time,
+     * otherwise makes the request. Either way the token is delivered to the listener's displayResults. A token
+     * received by the request is registered under the request's key.
+     *
+     * @param request the token request
+     * @param minimumRemainingMillis how long a registered token must still be valid for
+     */
+    public final void makeRequest(final AuthorizationRequest request, final long minimumRemainingMillis) {
+        makeRequest(request, minimumRemainingMillis, 0);
+    }
+
+    /**
+     * Makes the request like {@link #makeRequest(AuthorizationRequest, long)}, but in a hidden WebView, so that a user
+     * who is still signed in to the authentication server gets a new token without seeing the login pages. The WebView
+     * is shown only when the user is needed: when a page stays loaded without navigating on, which is taken to be a
+     * login form, or when the redirect URI has not arrived within the timeout. Must be called on the UI thread.
+     *
+     * @param request the token request
+     * @param minimumRemainingMillis how long a registered token must still be valid for
+     * @param timeoutMillis time after which the WebView is shown if the redirect URI has not arrived
+     */
+    public final void makeSilentRequest(final AuthorizationRequest request, final long minimumRemainingMillis,
+        final long timeoutMillis) {
+        makeRequest(request, minimumRemainingMillis, timeoutMillis);
+    }
+
+    /**
+     * @return how silent authentications have ended so far
+     */
+    public final SilentSignInMetrics getSilentSignInMetrics() {
+        return silentSignInMetrics;
+    }
+
+    /**
+     * Returns a registered token or makes the request, visibly or silently.
+     *
+     * @param request the token request
+     * @param minimumRemainingMillis how long a registered token must still be valid for
+     * @param silentTimeoutMillis time after which a silent authentication is shown, or 0 to show it from the start
+     */
+    private void makeRequest(final AuthorizationRequest request, final long minimumRemainingMillis,
+        final long silentTimeoutMillis) {
+
+        if (tokenRegistry != null) {
+            AuthorizationResult registeredToken = tokenRegistry.get(request.getTokenKey(), minimumRemainingMillis);
+            if (registeredToken != null) {
+                listener.displayResults(registeredToken);
+                return;
+            }
+        }
+
+        /*
+         * Restart the authentication. Callers waiting for the same token keep waiting for the restarted one.
+         */
+        if (flights.isInFlight(request.getTokenKey())) {
+            startAuthentication(request, silentTimeoutMillis);
+        } else {
+            flights.join(request.getTokenKey(), null, new Runnable() {
+                @Override
+                public void run() {
+                    startAuthentication(request, silentTimeoutMillis);
+                }
+            });
+        }
+    }
+
+    /**
+     * Requests a token, typically from a background thread. A registered token that remains valid for at least the
+     * given time is returned straight away. Otherwise the request joins the authentication in progress for the same
+     * token, or starts one on the UI thread. Concurrent requests for the same token therefore share one
+     * authentication, which also delivers the token to the displayResults callback.
+     * <p>
+     * The authentication ends in one of three ways: the listener's completed method receives the token, its failed
+     * method receives an {@link AuthorizationException} if the server returned an error instead, or its cancelled
+     * method is called if the authentication or this caller's ticket is cancelled.
+     *
+     * @param request the token request
+     * @param minimumRemainingMillis how long a registered token must still be valid for
+     * @param tokenListener notified of the outcome on the UI thread, or on the calling thread for a registered token,
+     *            may be null
+     * @param timeoutMillis time after which the returned ticket is cancelled if no token has arrived, or 0 to wait
+     *            until the authentication ends
+     * @return a future of the token, which can be cancelled without affecting other callers
+     */
+    public final SingleFlight<TokenKey, AuthorizationResult>.Ticket requestToken(final AuthorizationRequest request,
+        final long minimumRemainingMillis, final SingleFlight.Listener<AuthorizationResult> tokenListener,
+        final long timeoutMillis) {
+        return requestToken(request, minimumRemainingMillis, tokenListener, null, timeoutMillis);
+    }
+
+    /**
+     * Requests a token like {@link #requestToken(AuthorizationRequest, long, SingleFlight.Listener, long)}, but
+     * notifies the listener on the given executor, so that a background consumer never waits on the UI thread.
+     *
+     * @param request the token request
+     * @param minimumRemainingMillis how long a registered token must still be valid for
+     * @param tokenListener notified of the outcome, may be null
+     * @param callbackExecutor runs the notifications, or null to notify on the thread that ends the authentication
+     * @param timeoutMillis time after which the returned ticket is cancelled if no token has arrived, or 0 to wait
+     *            until the authentication ends
+     * @return a future of the token, which can be cancelled without affecting other callers
+     */
+    public final SingleFlight<TokenKey, AuthorizationResult>.Ticket requestToken(final AuthorizationRequest request,
+        final long minimumRemainingMillis, final SingleFlight.Listener<AuthorizationResult> tokenListener,
+        final Executor callbackExecutor, final long timeoutMillis) {
+
+        final SingleFlight.Listener<AuthorizationResult> notifiedListener;
+        if (tokenListener != null && callbackExecutor != null) {
+            notifiedListener = SingleFlight.notifyingOn(callbackExecutor, tokenListener);
+        } else {
+            notifiedListener = tokenListener;
+        }
+
+        if (tokenRegistry != null) {
+            AuthorizationResult registeredToken = tokenRegistry.get(request.getTokenKey(), minimumRemainingMillis);
+            if (registeredToken != null) {
+                return flights.completed(registeredToken, notifiedListener);
+            }
+        }
+
+        final SingleFlight<TokenKey, AuthorizationResult>.Ticket ticket = flights.join(request.getTokenKey(),
+            notifiedListener, new Runnable() {
+                @Override
+                public void run() {
+                    uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            startAuthentication(request, 0);
+                        }
+                    });
+                }
+            });
+
+        if (timeoutMillis > 0) {
+            uiHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    ticket.cancel(false);
+                }
+            }, timeoutMillis);
+        }
+        return ticket;
+    }
+
+    /**
+     * Cancels the authentication in progress for all the callers waiting on it and stops loading the WebView. Must be
+     * called on the UI thread.
+     */
+    public final void cancelRequest() {
+        if (pendingTokenKey != null) {
+            flights.cancel(pendingTokenKey);
+            pendingTokenKey = null;
+        }
+        if (webView != null) {
+            webView.stopLoading();
+        }
+        endSilence();
+        authenticating = false;
+    }
+
+    /**
+     * @return true if an authentication has been started and has neither received a token nor been cancelled
+     */
+    public final boolean isAuthenticating() {
+        return authenticating;
+    }
+
+    /**
+     * Saves the state of the authentication in progress, so that it can be resumed by another instance, for example
+     * after the activity has been recreated for a rotation. The state includes the url being loaded, and in the
+     * authorization code flow the PKCE code verifier, without which the code could not be exchanged.
+     *
+     * @return the saved state, or null if no authentication is in progress
+     */
+    public final Bundle saveState() {
+        if (!authenticating || webView == null) {
+            return null;
+        }
+        Bundle state = new Bundle();
+        if (webView.saveState(state) == null && pageUrl == null) {
+            return null;
+        }
+        state.putString(PAGE_URL_KEY, pageUrl);
+        if (pendingPkce != null) {
+            state.putString(PKCE_VERIFIER_KEY, pendingPkce.getVerifier());
+        }
+        return state;
+    }
+
+    /**
+     * Resumes an authentication saved by {@link #saveState()} where it left off, rather than loading the request url
+     * again. The page on display is reloaded, or the url being loaded if the WebView was saved while it was being
+     * redirected, and the user's session with the authentication server carries on through its cookies.
+     *
+     * @param request the token request of the saved authentication
+     * @param state the saved state
+     * @return true if the authentication was resumed, false if the state could not be restored and the request must be
+     *         made again
+     */
+    public final boolean resumeRequest(final AuthorizationRequest request, final Bundle state) {
+        if (webView == null) {
+            rehydrateWebView();
+        }
+        prepareWebView();
+        String savedPageUrl = state.getString(PAGE_URL_KEY);
+        if (webView.restoreState(state) == null && savedPageUrl == null) {
+            return false;
+        }
+
+        /*
+         * The resumed authentication delivers its token to callers asking for the same key, as if it had been started
+         * here.
+         */
+        flights.join(request.getTokenKey(), null, new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        pendingTokenKey = request.getTokenKey();
+        String verifier = state.getString(PKCE_VERIFIER_KEY);
+        pendingPkce = verifier == null ? null : Pkce.fromVerifier(verifier);
+        authenticating = true;
+
+        /*
+         * Redirects leave no history, so a WebView saved in the middle of a chain of them brings back the page before
+         * it, a blank one, rather than the url it was loading. Load that url instead of asking for authorization again.
+         */
+        pageUrl = savedPageUrl;
+        if (savedPageUrl != null && !savedPageUrl.equals(webView.getUrl())) {
+            webView.loadUrl(savedPageUrl);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the WebView from its layout and destroys it, logging the memory footprint before and after. A new
+     * WebView is put in the same place by the next authentication. Must be called on the UI thread.
+     */
+    public final void releaseWebView() {
+        if (webView == null) {
+            return;
+        }
+
+        final MemorySnapshot before = MemorySnapshot.take();
+
+        /*
+         * Remember where the WebView sits in the layout so that a new one can take its place.
+         */
+        if (webView.getParent() instanceof ViewGroup) {
+            releasedParent = (ViewGroup) webView.getParent();
+            releasedIndex = releasedParent.indexOfChild(webView);
+            releasedLayoutParams = webView.getLayoutParams();
+            releasedId = webView.getId();
+            releasedParent.removeView(webView);
+        }
+
+        /*
+         * A WebView must be out of the layout before it is destroyed.
+         */
+        webView.stopLoading();
+        webView.destroy();
+        webView = null;
+
+        Log.i(TAG, "Released WebView: " + MemorySnapshot.take().since(before));
+        uiHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                Log.i(TAG, "Memory " + RELEASE_SETTLE_MILLISECONDS + " ms after releasing WebView: "
+                    + MemorySnapshot.take().since(before));
+            }
+        }, RELEASE_SETTLE_MILLISECONDS);
+    }
+
+    /**
+     * Creates a new WebView in place of the released one.
+     */
+    private void rehydrateWebView() {
+        MemorySnapshot before = MemorySnapshot.take();
+        webView = new WebView(webViewContext);
+        if (releasedParent != null) {
+            webView.setId(releasedId);
+            releasedParent.addView(webView, releasedIndex, releasedLayoutParams);
+            releasedParent = null;
+            releasedLayoutParams = null;
+        }
+        Log.i(TAG, "Created WebView: " + MemorySnapshot.take().since(before));
+    }
+
+    /**
+     * Starts the authentication for a request, cancelling the callers of any authentication in progress for another
+     * token, since loading the new request throws it away.
+     *
+     * @param request the token request
+     * @param silentTimeoutMillis time after which a silent authentication is shown, or 0 to show it from the start
+     */
+    private void startAuthentication(final AuthorizationRequest request, final long silentTimeoutMillis) {
+        if (pendingTokenKey != null && !pendingTokenKey.equals(request.getTokenKey())) {
+            flights.cancel(pendingTokenKey);
+        }
+        if (tokenExchange != null) {
+            pendingPkce = Pkce.generate();
+            loadRequest(request.getUrl(pendingPkce), silentTimeoutMillis);
+        } else {
+            loadRequest(request.getUrl(), silentTimeoutMillis);
+        }
+        pendingTokenKey = request.getTokenKey();
     }
 
     /**
@@ -66,15 +672,91 @@ public class AuthenticatingWebView {
      *
      * @param requestUrl the request URL that initiates the token request
      */
-    @SuppressLint("SetJavaScriptEnabled")
     public final void makeRequest(final String requestUrl) {
+        if (pendingTokenKey != null) {
+            flights.cancel(pendingTokenKey);
+            pendingTokenKey = null;
+        }
+        pendingPkce = null;
+        loadRequest(requestUrl, 0);
+    }
+
+    /**
+     * Sets up the WebView and loads the request URL.
+     *
+     * @param requestUrl the request URL that initiates the token request
+     * @param silentTimeoutMillis time after which a silent authentication is shown, or 0 to show it from the start
+     */
+    private void loadRequest(final String requestUrl, final long silentTimeoutMillis) {
+
+        if (webView == null) {
+            rehydrateWebView();
+        }
 
         /*
-         * Clear the webView, in case it is showing a previous authentication error. Make the webView visible, in case
-         * the last attempt succeeded and it is hidden.
+         * Clear the webView, in case it is showing a previous authentication error.
          */
+        endSilence();
         webView.loadUrl("about:blank");
-        webView.setVisibility(View.VISIBLE);
+        silent = silentTimeoutMillis > 0;
+        prepareWebView();
+        if (silent) {
+            silentStartNanos = System.nanoTime();
+            uiHandler.postDelayed(silentTimeout, silentTimeoutMillis);
+        }
+
+        /*
+         * Start timing the authentication.
+         */
+        if (flowMetrics != null) {
+            flowTrace = new FlowTrace(System.nanoTime());
+        }
+        if (resourceFilter != null) {
+            resourceFilter.takeBlockedCount();
+        }
+
+        /*
+         * Execute the token request
+         */
+        authenticating = true;
+        pageUrl = requestUrl;
+        webView.loadUrl(requestUrl);
+    }
+
+    /**
+     * Shows the WebView of a silent authentication, which from now on carries on as a visible one.
+     *
+     * @param reason why the user is needed
+     */
+    private void escalate(final SilentSignInMetrics.Escalation reason) {
+        if (!silent) {
+            return;
+        }
+        endSilence();
+        silentSignInMetrics.escalated(reason, (System.nanoTime() - silentStartNanos) / NANOSECONDS_TO_MILLISECONDS);
+        Log.i(TAG, "Silent sign in escalated for " + reason + ": " + silentSignInMetrics.getSummary());
+        if (webView != null) {
+            webView.setVisibility(View.VISIBLE);
+        }
+    }
+
+    /**
+     * Ends the silence of the authentication in progress, if it is silent, without showing the WebView.
+     */
+    private void endSilence() {
+        silent = false;
+        uiHandler.removeCallbacks(silentTimeout);
+        uiHandler.removeCallbacks(silentLoginFormCheck);
+    }
+
+    /**
+     * Makes the WebView visible, unless the authentication is silent, in case the last attempt succeeded and it is
+     * hidden, and sets it up for the authentication pages.
+     */
+    @SuppressLint("SetJavaScriptEnabled")
+    private void prepareWebView() {
+
+        webView.setVisibility(silent ? View.INVISIBLE : View.VISIBLE);
 
         /*
          * Enable javascript in the WebView (off by default). The annotation
@@ -87,11 +769,6 @@ public class AuthenticatingWebView {
          * loads.
          */
         webView.setWebViewClient(new MyCustomWebViewClient());
-
-        /*
-         * Execute the token request
-         */
-        webView.loadUrl(requestUrl);
     }
 
     /**
@@ -107,47 +784,140 @@ public class AuthenticatingWebView {
          *
          * @param view the WebView that executed the callback
          * @param url the URL that the WebView is about to load
-         * @return returns true to permit the url to be loaded into the webview
+         * @return returns false to let the WebView carry on loading the url, true if the url is handled here
          */
         @Override
         public boolean shouldOverrideUrlLoading(final WebView view, final String url) {
 
+            NavigationPolicy.Decision decision = navigationPolicy.decide(url);
+
             /*
-             * Is this the "redirect URI" that we are about to load? If so, parse it and don't load it. Parsing is based
-             * on the # and the & characters, so make sure they are present before accepting this as a valid redirect
-             * URI.
+             * Is this the "redirect URI" that we are about to load? If so, parse it and don't load it. The policy
+             * accepts the redirect URI followed by "#" or "?", whatever comes after, so that an error redirect with a
+             * single parameter is parsed and reported rather than loaded into a blank WebView.
              */
-            if (url.indexOf("ncipapp://user_agent_flow#") == 0 && url.indexOf("&") != -1) {
+            if (decision == NavigationPolicy.Decision.REDIRECT) {
 
-                parseRedirectURI(url);
+                authenticating = false;
+                AuthorizationResult result = parseRedirectURI(url);
 
                 /*
-                 * Clear the webView and hide it
+                 * A silent authentication that gets here without being shown is what silent sign in is for.
                  */
-                view.loadUrl("about:blank");
-                webView.setVisibility(View.INVISIBLE);
+                if (silent) {
+                    if (result.isSuccessful() || result.getParameter("code") != null) {
+                        silentSignInMetrics.succeeded((System.nanoTime() - silentStartNanos)
+                            / NANOSECONDS_TO_MILLISECONDS);
+                        Log.i(TAG, "Silent sign in succeeded: " + silentSignInMetrics.getSummary());
+                    }
+                    endSilence();
+                }
 
                 /*
-                 * Display all the parameters returned with the token
+                 * Report the timing of the authentication.
                  */
-                listener.displayResults(authorizationReturnParameters);
+                if (flowTrace != null) {
+                    flowTrace.redirectReceived(System.nanoTime());
+                    if (resourceFilter != null) {
+                        flowTrace.setBlockedRequests(resourceFilter.takeBlockedCount());
+                    }
+                    if (assetCache != null) {
+                        Log.i(TAG, "Asset cache " + assetCache.getStats());
+                    }
+                    flowMetrics.record(flowTrace);
+                    flowTrace = null;
+                }
+
+                TokenKey completedTokenKey = pendingTokenKey;
+                pendingTokenKey = null;
+                Pkce pkce = pendingPkce;
+                pendingPkce = null;
+
+                /*
+                 * Clear the webView and hide it, or let it go altogether once this callback has returned.
+                 */
+                view.setVisibility(View.INVISIBLE);
+                if (releaseAfterSignIn) {
+                    uiHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (pendingTokenKey == null && webView != null && webView.getVisibility() != View.VISIBLE) {
+                                releaseWebView();
+                            }
+                        }
+                    });
+                } else {
+                    view.loadUrl("about:blank");
+                }
+
+                /*
+                 * In the authorization code flow the redirect carries a code, which is exchanged for the token off the
+                 * UI thread. Otherwise it carries the token itself.
+                 */
+                String code = result.getParameter("code");
+                if (tokenExchange != null && pkce != null && code != null && !result.isSuccessful()) {
+                    exchangeCode(tokenExchange, code, pkce, completedTokenKey);
+                } else {
+                    deliverResult(result, completedTokenKey);
+                }
 
                 return true;
 
-            } else {
+            } else if (decision == NavigationPolicy.Decision.BLOCK) {
 
                 /*
-                 * The url we are about to load is not the "redirect URI", so load it. Note that if anything goes wrong
-                 * with the authentication, the last message in the webview, and
-                 * listener.displayResults(authorizationReturnParameters) will never be called.
+                 * The url leaves the hosts allowed to take part in the sign in, so don't load it.
                  */
-                view.loadUrl(url);
+                Log.w(TAG, "Blocked navigation outside the allowed hosts");
                 return true;
+
+            } else {
+
+                /*
+                 * The url we are about to load is not the "redirect URI", so let the WebView carry on loading it rather
+                 * than cancelling the navigation and starting it again. Note that if anything goes wrong with the
+                 * authentication, the last message in the webview, and listener.displayResults(result) will never be
+                 * called.
+                 */
+                pageUrl = url;
+                return false;
+            }
+        }
+
+        /**
+         * Callback executes on a background thread before the WebView requests a sub-resource. Resources rejected by
+         * the resource filter are answered with an empty response instead of being fetched, and static assets of the
+         * authentication host are answered by the asset cache. An asset the server refused is handed over as the
+         * server answered, rather than fetched again; WebResourceResponse cannot carry its status before Android 5.0.
+         *
+         * @param view the WebView that executed the callback
+         * @param url the URL of the sub-resource
+         * @return an empty response for a blocked resource, the asset cache's answer, or null to let the WebView fetch
+         *         it
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        @Override
+        public WebResourceResponse shouldInterceptRequest(final WebView view, final String url) {
+            ResourceFilter filter = resourceFilter;
+            if (filter != null && filter.shouldBlock(url)) {
+                String mimeType = ResourceFilter.guessMimeType(HostSet.pathOf(url));
+                return new WebResourceResponse(mimeType == null ? "text/plain" : mimeType, "UTF-8",
+                    new ByteArrayInputStream(new byte[0]));
             }
+
+            AssetCache cache = assetCache;
+            if (cache != null && cache.isCacheable(url)) {
+                AssetCache.Asset asset = cache.fetch(url);
+                if (asset != null) {
+                    return new WebResourceResponse(asset.getMimeType(), asset.getEncoding(), asset.getData());
+                }
+            }
+            return null;
         }
 
         /**
-         * Callback fires when page starts to load. Used to start the Progress Dialog.
+         * Callback fires when page starts to load. Used to start the Progress Dialog, unless the authentication is
+         * silent, in which case the page has not turned out to be a login form after all.
          *
          * @param view the webView referred to by this callback
          * @param url the URL that the webView started to load
@@ -155,37 +925,138 @@ public class AuthenticatingWebView {
          */
         @Override
         public void onPageStarted(final WebView view, final String url, final Bitmap favicon) {
-            listener.startProgressDialog();
+            if (flowTrace != null && !"about:blank".equals(url)) {
+                flowTrace.pageStarted(url, System.nanoTime());
+            }
+            if (silent) {
+                uiHandler.removeCallbacks(silentLoginFormCheck);
+            }
+            if (pageProgress.pageStarted(silent)) {
+                listener.startProgressDialog();
+            }
         }
 
         /**
-         * Callback fires when page finishes loading. We use it to turn off the Progress Dialog.
+         * Callback fires when page finishes loading. We use it to turn off the Progress Dialog, if a visible page
+         * turned it on. During a silent authentication, a page that stays loaded for a while is taken to be a login
+         * form.
          *
          * @param view the webView referred to by this callback
          * @param url the URL that this page is loading
          */
         @Override
         public void onPageFinished(final WebView view, final String url) {
-            listener.stopProgressDialog();
+            if (flowTrace != null && !"about:blank".equals(url)) {
+                flowTrace.pageFinished(System.nanoTime());
+            }
+            if (silent && !"about:blank".equals(url)) {
+                uiHandler.postDelayed(silentLoginFormCheck, SILENT_SETTLE_MILLISECONDS);
+            }
+            if (pageProgress.pageFinished()) {
+                listener.stopProgressDialog();
+            }
         }
     }
 
     /**
-     * Parse a redirect url into its parameters. The string has the form
-     * [redirectURI]#[param1]=[val1]&[param2]=[val2]...
+     * Exchanges an authorization code for the token on the token exchange executor, then delivers the token, or the
+     * error that took its place, on the UI thread.
      *
-     * @param redirectUrl the redirect url to be parsed
+     * @param exchange redeems the code
+     * @param code the code the redirect URI carried
+     * @param pkce the pair whose challenge was sent with the request
+     * @param tokenKey the key of the token being requested, or null if it was not requested by key
      */
-    private void parseRedirectURI(final String redirectUrl) {
+    private void exchangeCode(final TokenExchange exchange, final String code, final Pkce pkce,
+        final TokenKey tokenKey) {
+        Runnable exchangeTask = new Runnable() {
+            @Override
+            public void run() {
+                long start = System.nanoTime();
+                AuthorizationResult exchanged;
+                try {
+                    exchanged = exchange.exchangeCode(code, pkce);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not exchange the authorization code", e);
+                    exchanged = errorResult("server_error", e.getMessage());
+                } catch (AuthorizationException e) {
+                    exchanged = errorResult(e.getError(), e.getMessage());
+                }
+                Log.i(TAG, "Authorization code exchanged in " + (System.nanoTime() - start)
+                    / NANOSECONDS_TO_MILLISECONDS + " ms");
 
-        String[] params = redirectUrl.split("#")[1].split("&");
+                final AuthorizationResult result = exchanged;
+                uiHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliverResult(result, tokenKey);
+                    }
+                });
+            }
+        };
+        try {
+            tokenExchangeExecutor.execute(exchangeTask);
+        } catch (RejectedExecutionException e) {
+            /*
+             * The executor was shut down with the activity, so the callers are told the sign in failed.
+             */
+            deliverResult(errorResult("server_error", "The token exchange has been shut down"), tokenKey);
+        }
+    }
 
-        for (String parameter : params) {
-            if (parameter.contains("=")) {
-                authorizationReturnParameters.put(parameter.split("=")[0], parameter.split("=")[1]);
+    /**
+     * Registers a token so that later requests for the same key can reuse it, hands it to every caller waiting for it
+     * and displays it. If the server returned an error instead, the callers are told that.
+     *
+     * @param result the token, or the error that took its place
+     * @param tokenKey the key of the token being requested, or null if it was not requested by key
+     */
+    private void deliverResult(final AuthorizationResult result, final TokenKey tokenKey) {
+        if (tokenKey != null) {
+            if (result.isSuccessful()) {
+                if (tokenRegistry != null) {
+                    tokenRegistry.put(tokenKey, result);
+                }
+                flights.complete(tokenKey, result);
             } else {
-                authorizationReturnParameters.put(parameter, "");
+                flights.fail(tokenKey, new AuthorizationException(result.getError(), result.getErrorDescription()));
             }
         }
+
+        /*
+         * Display the token and the parameters returned with it
+         */
+        listener.displayResults(result);
+    }
+
+    /**
+     * Creates a result that carries an error in place of a token.
+     *
+     * @param error the OAuth2 error code
+     * @param errorDescription the description of the error
+     * @return the result
+     */
+    private static AuthorizationResult errorResult(final String error, final String errorDescription) {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        parameters.put("error", error);
+        if (errorDescription != null) {
+            parameters.put("error_description", errorDescription);
+        }
+        return AuthorizationResult.received(parameters, System.currentTimeMillis());
+    }
+
+    /**
+     * Parse a redirect url into its parameters. The string has the form
+     * [redirectURI]#[param1]=[val1]&[param2]=[val2]...
+     * <p>
+     * Each redirect is parsed into a map of its own, so no parameter of an earlier authentication carries over.
+     *
+     * @param redirectUrl the redirect url to be parsed
+     * @return the token and the parameters returned with it
+     */
+    private AuthorizationResult parseRedirectURI(final String redirectUrl) {
+        HashMap<String, String> authorizationReturnParameters = new HashMap<String, String>();
+        redirectUriParser.parse(redirectUrl, authorizationReturnParameters);
+        return AuthorizationResult.received(authorizationReturnParameters, System.currentTimeMillis());
     }
 }
@@ -13,7 +13,7 @@ package org.oclc.mobile.authentication.android;
  *
  ******************************************************************************/
 
-import java.util.HashMap;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
 
 /**
  * This interface defines the callback functions that AuthenticatingWebView.java will execute in MainActivity.java,
@@ -34,7 +34,7 @@ public interface AuthenticatingWebViewCallbackMethods {
     /**
      * Method is called when authentication is complete
      *
-     * @param authorizationReturnParameters The params returned with the token
+     * @param result the token and the params returned with it, or the error if the authentication failed
      */
-    void displayResults(HashMap<String, String> authorizationReturnParameters);
+    void displayResults(AuthorizationResult result);
 }
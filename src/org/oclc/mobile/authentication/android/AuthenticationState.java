@@ -0,0 +1,102 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import org.oclc.mobile.authentication.core.OperationQueue;
+import org.oclc.mobile.authentication.core.TokenLifecycle;
+import org.oclc.mobile.authentication.core.TokenRegistry;
+
+import android.os.Bundle;
+
+/**
+ * The authentication state that outlives an activity when it is recreated for a configuration change, such as a
+ * rotation: the tokens received, the token on display with its expiry time, the queue of operations waiting for a
+ * token, and the sign in in progress, if any.
+ * <p>
+ * MainActivity hands an instance over from onRetainNonConfigurationInstance to its next incarnation. Nothing in here
+ * refers to a view or an activity, so the old activity can be collected.
+ */
+public class AuthenticationState {
+
+    /**
+     * Tokens received for each institution context.
+     */
+    private final TokenRegistry tokenRegistry;
+
+    /**
+     * The token on display and its expiry time.
+     */
+    private final TokenLifecycle tokenLifecycle;
+
+    /**
+     * Operations waiting for a new token; one queue owns the log file at a time.
+     */
+    private final OperationQueue operationQueue;
+
+    /**
+     * Saved state of the WebView of the sign in in progress, or null if no sign in was in progress.
+     */
+    private Bundle signInState;
+
+    /**
+     * Creates a holder for the given registry, lifecycle and queue.
+     *
+     * @param tokenRegistry tokens received for each institution context
+     * @param tokenLifecycle the token on display
+     * @param operationQueue operations waiting for a new token
+     */
+    public AuthenticationState(final TokenRegistry tokenRegistry, final TokenLifecycle tokenLifecycle,
+        final OperationQueue operationQueue) {
+        this.tokenRegistry = tokenRegistry;
+        this.tokenLifecycle = tokenLifecycle;
+        this.operationQueue = operationQueue;
+    }
+
+    /**
+     * @return tokens received for each institution context
+     */
+    public final TokenRegistry getTokenRegistry() {
+        return tokenRegistry;
+    }
+
+    /**
+     * @return the token on display
+     */
+    public final TokenLifecycle getTokenLifecycle() {
+        return tokenLifecycle;
+    }
+
+    /**
+     * @return operations waiting for a new token
+     */
+    public final OperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    /**
+     * @return saved state of the WebView of the sign in in progress, or null if no sign in was in progress
+     */
+    public final Bundle getSignInState() {
+        return signInState;
+    }
+
+    /**
+     * Records the sign in in progress.
+     *
+     * @param signInState saved state of its WebView, or null if no sign in is in progress
+     */
+    public final void setSignInState(final Bundle signInState) {
+        this.signInState = signInState;
+    }
+}
@@ -0,0 +1,39 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import org.oclc.mobile.authentication.core.FlowTrace;
+import org.oclc.mobile.authentication.core.TraceSink;
+
+import android.util.Log;
+
+/**
+ * Writes authentication traces and summaries to the Android log, under the tag "AuthenticationTrace".
+ */
+public class LogTraceSink implements TraceSink {
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "AuthenticationTrace";
+
+    @Override
+    public final void flowCompleted(final FlowTrace trace) {
+        Log.i(TAG, "trace " + trace);
+    }
+
+    @Override
+    public final void summary(final String summary) {
+        Log.i(TAG, "summary " + summary);
+    }
+}
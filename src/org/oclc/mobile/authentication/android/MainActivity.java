@@ -13,13 +13,44 @@ package org.oclc.mobile.authentication.android;
  *
  ******************************************************************************/
 
-import java.util.HashMap;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.oclc.mobile.authentication.core.AssetCache;
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.DiskLruCache;
+import org.oclc.mobile.authentication.core.EncryptedTokenFile;
+import org.oclc.mobile.authentication.core.FlowMetrics;
+import org.oclc.mobile.authentication.core.NcipBatch;
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.NcipOperation;
+import org.oclc.mobile.authentication.core.OperationQueue;
+import org.oclc.mobile.authentication.core.PrincipalResponseCache;
+import org.oclc.mobile.authentication.core.RecordCipher;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+import org.oclc.mobile.authentication.core.ResourceFilter;
+import org.oclc.mobile.authentication.core.ServiceClient;
+import org.oclc.mobile.authentication.core.TokenDeadlines;
+import org.oclc.mobile.authentication.core.TokenExchange;
+import org.oclc.mobile.authentication.core.TokenKey;
+import org.oclc.mobile.authentication.core.TokenLifecycle;
+import org.oclc.mobile.authentication.core.TokenRegistry;
 
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.CountDownTimer;
+import android.util.Log;
 import android.view.Menu;
 import android.view.View;
 import android.webkit.CookieManager;
@@ -34,6 +65,7 @@ import android.widget.TextView;
  * <li>res/layout/activity_main.xml - the view objects and their layout</li>
  * <li>/res/values/strings.xml - any strings that are displayed</li>
  * <li>/res/values/authentication.xml - list of strings containing authentication parameters</li>
+ * <li>/res/values/config.xml - switches for optional behaviour</li>
  * </ul>
  * <p>
  * This class calls an instance of AuthenticatingWebView to handle the actual sign in process with the OCLC
@@ -52,8 +84,11 @@ import android.widget.TextView;
  * <li>redirect_uri</li>
  * <li>response_type</li>
  * <li>scope</li>
+ * <li>allowedHosts</li>
+ * <li>blockedResources</li>
+ * <li>ncipServiceUrl</li>
  * </ul>
- * Returned Parameters - stored in HashMap authorizationReturnParameters:
+ * Returned Parameters - parsed once into an immutable AuthorizationResult:
  * <ul>
  * <li>accessToken</li>
  * <li>principalID</li>
@@ -66,16 +101,101 @@ import android.widget.TextView;
  * <p>
  * The Cookie Manager, myCookieManager, gives access to this app's cookies so that we can clear them when restarting the
  * sign-in activity from scratch.
+ * <p>
+ * The Token Store, tokenStore, keeps the last token on disk so that a token that is still valid is displayed at startup
+ * without signing in again.
+ * <p>
+ * The Token Registry, tokenRegistry, holds the tokens of each institution context so that the AuthenticatingWebView
+ * can hand back a valid token instead of signing in again. One TokenDeadlines wheel tells when each of those tokens
+ * is due for refresh and when it expires, and expired tokens are dropped from the registry.
+ * <p>
+ * The Token Refresher, tokenRefresher, redeems a token's refresh token (if "refresh_token" is one of the scopes) when
+ * the wheel says the token is due for refresh, on the same background thread that exchanges authorization codes.
+ * <p>
+ * When the displayed token expires, or the user signs in again, the sign in runs silently in the hidden WebView if
+ * res/values/config.xml asks for that, and the WebView is only shown if the user has to enter credentials.
+ * <p>
+ * The registry is also published to the TokenBrokerProvider, so that other processes and companion apps can use its
+ * tokens instead of signing in themselves. They are notified whenever the tokens change.
+ * <p>
+ * NCIP operations submitted through submitOperations that cannot be sent, because the device is offline or no token
+ * could be had, are kept in an OperationQueue on disk, and sent in batches when the next token is displayed.
+ * <p>
+ * The registry, the token on display, the operation queue and any sign in in progress are handed over in an AuthenticationState when the
+ * activity is recreated for a configuration change such as a rotation, so that the new activity only has to display
+ * them again.
  *
  * @see android.app.Activity
  */
-public class MainActivity extends Activity implements AuthenticatingWebViewCallbackMethods {
+public class MainActivity extends Activity implements AuthenticatingWebViewCallbackMethods, TokenRefresher.Listener,
+    TokenDeadlines.Listener, OperationQueue.Listener {
 
     /**
      * Multiplier to convert seconds to milliseconds
      */
     private static final int SECONDS_TO_MILLISECONDS = 1000;
 
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * A stored token is only displayed at startup if it is valid for at least this long, otherwise the user signs in
+     * again.
+     */
+    private static final long TOKEN_EXPIRY_MARGIN_MILLISECONDS = 60000L;
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "MainActivity";
+
+    /**
+     * Maximum number of institution contexts whose tokens are kept in the token registry.
+     */
+    private static final int TOKEN_REGISTRY_CAPACITY = 32;
+
+    /**
+     * Fraction of a token's lifetime after which it is due for refresh.
+     */
+    private static final double TOKEN_REFRESH_FRACTION = 0.75;
+
+    /**
+     * Granularity of the token deadlines. Deadlines that fall within the same tick are fired together.
+     */
+    private static final long TOKEN_DEADLINE_TICK_MILLISECONDS = 1000L;
+
+    /**
+     * How long a web service call waits for the user to sign in when there is no valid token.
+     */
+    private static final long SERVICE_TOKEN_TIMEOUT_MILLISECONDS = 300000L;
+
+    /**
+     * How long a silent sign in waits for the redirect URI before showing the WebView.
+     */
+    private static final long SILENT_SIGN_IN_TIMEOUT_MILLISECONDS = 10000L;
+
+    /**
+     * Maximum size of the login page asset cache, in bytes.
+     */
+    private static final long ASSET_CACHE_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Maximum size of the patron response cache on disk, in bytes.
+     */
+    private static final long RESPONSE_CACHE_BYTES = 2L * 1024 * 1024;
+
+    /**
+     * Maximum number of patron responses kept in memory.
+     */
+    private static final int RESPONSE_CACHE_MEMORY_ENTRIES = 32;
+
+    /**
+     * How long a patron response is used without asking the service again, unless the service sets a max-age.
+     */
+    private static final long RESPONSE_CACHE_TTL_MILLISECONDS = 60000L;
+
     /**
      * An extension that is passed a webview and uses it to handle authentication
      */
@@ -98,10 +218,95 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
     private CookieManager myCookieManager;
 
     /**
-     * Timer activated when authentication token is received to decrement the seconds remaining until the authentication
-     * token expires.
+     * Persists the last token so that it survives the app being unloaded from memory
+     */
+    private TokenStore tokenStore;
+
+    /**
+     * Single background thread that encrypts and writes the stored token, off the UI thread
+     */
+    private ExecutorService tokenStoreExecutor;
+
+    /**
+     * Single background thread that redeems authorization codes and refresh tokens at the token endpoint
+     */
+    private ExecutorService tokenExchangeExecutor;
+
+    /**
+     * Refreshes the registered tokens in the background when they are due for refresh
+     */
+    private TokenRefresher tokenRefresher;
+
+    /**
+     * Calls OCLC web services with the token, from background threads
+     */
+    private ServiceClient serviceClient;
+
+    /**
+     * Caches the service client's GET responses for the signed in user
+     */
+    private PrincipalResponseCache responseCache;
+
+    /**
+     * Runs NCIP operations, such as renewals, in batches, or null if no NCIP service is configured
+     */
+    private NcipBatch ncipBatch;
+
+    /**
+     * NCIP operations waiting for a new token, kept on disk
+     */
+    private OperationQueue operationQueue;
+
+    /**
+     * Time at which onCreate started, used to log how long it took to show the login form and the first token.
+     */
+    private long createdAtNanos;
+
+    /**
+     * Whether the startup warm-up ran, for the startup timing log.
+     */
+    private boolean warmedUp;
+
+    /**
+     * Whether the time to the first page has been logged.
+     */
+    private boolean firstPageLogged;
+
+    /**
+     * Whether the time to the first token has been logged.
+     */
+    private boolean firstTokenLogged;
+
+    /**
+     * Whether signing in again is first tried silently, with the authentication server's session cookie.
      */
-    private CountDownTimer tokenCountDownTimer;
+    private boolean silentReauthentication;
+
+    /**
+     * Label showing the seconds remaining until the displayed token expires, looked up once.
+     */
+    private TextView timeRemainingTextView;
+
+    /**
+     * Time at which the displayed token expires, in milliseconds since the epoch, or 0 if no count down is running.
+     */
+    private long countDownExpiresAtMillis;
+
+    /**
+     * Seconds last shown in the time remaining label, so that the label is only set when the value changes.
+     */
+    private long countDownShownSeconds = -1;
+
+    /**
+     * Updates the time remaining label. It runs on the UI thread just after each whole second of the token's
+     * remaining lifetime passes, so every run changes the label.
+     */
+    private final Runnable countDownUpdater = new Runnable() {
+        @Override
+        public void run() {
+            updateTimeRemaining();
+        }
+    };
 
     /**
      * A progress dialog to indicate to the user that the app is waiting for an http response
@@ -109,14 +314,19 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
     private ProgressDialog myProgressDialog;
 
     /**
-     * The webview used for authentication
+     * The Access Token request
+     */
+    private AuthorizationRequest authorizationRequest;
+
+    /**
+     * Tracks the displayed token from valid through due for refresh to expired
      */
-    private WebView webView;
+    private TokenLifecycle tokenLifecycle;
 
     /**
-     * The full URL of the Access Token request
+     * Tokens received for each institution context, reused instead of signing in again
      */
-    private String requestUrl;
+    private TokenRegistry tokenRegistry;
 
     /**
      * This method initializes the class and only fires once - when the app loads into memory. Once an app is
@@ -126,7 +336,8 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
      * The method loads the layout from the xml file, instantiates an instance of the webview. A WebView is an embedded
      * Chrome browser with no user controls, which we will use to handle OAuth2 authentication. Initially the webView is
      * invisible. It is made visible to facilitate sign in, and hidden after a token is received so that the token can
-     * be displayed.
+     * be displayed. The activity does not keep its own reference to the webView, so that the AuthenticatingWebView can
+     * release it after sign in when res/values/config.xml asks for that.
      *
      * @param savedInstanceState state information for the app
      * @see android.app.Activity#onCreate(android.os.Bundle)
@@ -134,6 +345,8 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
     @Override
     protected final void onCreate(final Bundle savedInstanceState) {
 
+        createdAtNanos = System.nanoTime();
+
         /*
          * Set the context required for the progress dialog
          */
@@ -144,15 +357,54 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
          */
         super.onCreate(savedInstanceState);
 
+        /*
+         * Take over the authentication state of the previous activity if this one replaces it after a configuration
+         * change, otherwise start from scratch.
+         */
+        AuthenticationState retainedState = (AuthenticationState) getLastNonConfigurationInstance();
+        if (retainedState != null) {
+            tokenRegistry = retainedState.getTokenRegistry();
+            tokenLifecycle = retainedState.getTokenLifecycle();
+            operationQueue = retainedState.getOperationQueue();
+        } else {
+            tokenRegistry = new TokenRegistry(TOKEN_REGISTRY_CAPACITY, new TokenDeadlines(TOKEN_REFRESH_FRACTION,
+                TOKEN_DEADLINE_TICK_MILLISECONDS));
+            tokenLifecycle = new TokenLifecycle(TOKEN_REFRESH_FRACTION);
+            operationQueue = new OperationQueue(new File(getFilesDir(), "pending-operations"));
+        }
+
+        /*
+         * Other processes and companion apps get their tokens from this registry through the TokenBrokerProvider.
+         */
+        TokenBrokerProvider.setTokenRegistry(tokenRegistry);
+
+        /*
+         * HttpURLConnection keeps as many connections alive as web service calls may run at once. It reads the setting
+         * when it first connects, so it is set before the warm-up below opens a connection.
+         */
+        int maxConcurrentServiceCalls = getResources().getInteger(R.integer.maxConcurrentServiceCalls);
+        System.setProperty("http.maxConnections", Integer.toString(maxConcurrentServiceCalls));
+
+        /*
+         * Look up and connect to the authentication server, and load the WebView engine, in the background while the
+         * layout is inflated. There is no need after a configuration change.
+         */
+        warmedUp = retainedState == null && getResources().getBoolean(R.bool.warmUpAtStartup)
+            && !getString(R.string.wskey).equals("");
+        if (warmedUp) {
+            new StartupWarmer(this, getString(R.string.authenticatingServerBaseUrl)).start();
+        }
+
         /*
          * Loads the view elements from the xml file. R.layout.activity_main refers to res/layout/activity_main.xml
          */
         setContentView(R.layout.activity_main);
+        timeRemainingTextView = (TextView) findViewById(R.id.timeRemainingTextView);
 
         /*
          * Get a handle to the webView whose position and size is defined in activity_main.xml
          */
-        webView = (WebView) findViewById(R.id.webView);
+        WebView webView = (WebView) findViewById(R.id.webView);
 
         /*
          * Get a handle to the CookieManager, which is global for this app, and use it to enable cookies.
@@ -163,20 +415,14 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
         /*
          * Build the request url by getting the request parameters from res/values/authentication.xml.
          */
-        requestUrl = (new StringBuffer()).append(getString(R.string.authenticatingServerBaseUrl))
-            .append("/authorizeCode?client_id=")
-            .append(getString(R.string.wskey))
-            .append("&authenticatingInstitutionId=")
-            .append(getString(R.string.authenticatingInstitutionId))
-            .append("&contextInstitutionId=")
-            .append(getString(R.string.contextInstitutionId))
-            .append("&redirect_uri=")
-            .append(getString(R.string.redirectUrl))
-            .append("&response_type=")
-            .append(getString(R.string.responseType))
-            .append("&scope=")
-            .append(getString(R.string.scopes))
-            .toString();
+        authorizationRequest = new AuthorizationRequest.Builder().setAuthenticatingServerBaseUrl(getString(R.string.authenticatingServerBaseUrl))
+            .setWskey(getString(R.string.wskey))
+            .setAuthenticatingInstitutionId(getString(R.string.authenticatingInstitutionId))
+            .setContextInstitutionId(getString(R.string.contextInstitutionId))
+            .setRedirectUri(getString(R.string.redirectUrl))
+            .setResponseType(getString(R.string.responseType))
+            .setScopes(getString(R.string.scopes))
+            .build();
 
         if (getString(R.string.wskey).equals("")) {
             /*
@@ -190,9 +436,238 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
              * Create the AuthenticatingWebView, a custom WebView, to make the url request. We also pass this class's
              * context so that the AuthenticatingWebView can execute callbacks.
              */
-            authenticatingWebView = new AuthenticatingWebView(webView, this);
-            authenticatingWebView.makeRequest(requestUrl);
+            authenticatingWebView = new AuthenticatingWebView(webView, this, tokenRegistry);
+            authenticatingWebView.setFlowMetrics(new FlowMetrics(new LogTraceSink()));
+            authenticatingWebView.setReleaseAfterSignIn(getResources().getBoolean(R.bool.releaseWebViewAfterSignIn));
+            silentReauthentication = getResources().getBoolean(R.bool.silentReauthentication);
+
+            /*
+             * With response type "code" the WebView only collects an authorization code, which is exchanged for the
+             * token natively with a PKCE code verifier. Refresh tokens are redeemed by the same exchange either way,
+             * on the same background thread when they fall due, or on the calling thread when a service has rejected
+             * the token.
+             */
+            TokenExchange tokenExchange = new TokenExchange(getString(R.string.authenticatingServerBaseUrl) + "/accessToken",
+                getString(R.string.wskey), getString(R.string.redirectUrl));
+            tokenExchangeExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TokenExchange");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            if ("code".equals(getString(R.string.responseType))) {
+                authenticatingWebView.setTokenExchange(tokenExchange, tokenExchangeExecutor);
+            }
+            tokenRefresher = new TokenRefresher(tokenExchange, tokenRegistry.getDeadlines(), tokenExchangeExecutor, this);
+            operationQueue.setRefreshState(tokenRefresher);
+
+            /*
+             * Only let the WebView load pages from the authentication server and the allowed hosts. An empty list of
+             * allowed hosts lets it load any page.
+             */
+            String authenticatingHost = URI.create(getString(R.string.authenticatingServerBaseUrl)).getHost();
+            ArrayList<String> allowedHosts = new ArrayList<String>(Arrays.asList(getResources().getStringArray(R.array.allowedHosts)));
+            if (!allowedHosts.isEmpty()) {
+                allowedHosts.add(authenticatingHost);
+            }
+            authenticatingWebView.setNavigationPolicy(new NavigationPolicy(new RedirectMatcher(getString(R.string.redirectUrl)),
+                allowedHosts));
+
+            /*
+             * Keep the style sheets, scripts and other static assets of the authentication host on disk across sign ins.
+             * They are fetched with the WebView's cookies, as the WebView would fetch them.
+             */
+            authenticatingWebView.setAssetCache(new AssetCache(new DiskLruCache(new File(getCacheDir(), "login-assets"), ASSET_CACHE_BYTES),
+                Collections.singleton(authenticatingHost), new AssetCache.CookieJar() {
+                    @Override
+                    public String getCookie(final String url) {
+                        return CookieManager.getInstance().getCookie(url);
+                    }
+
+                    @Override
+                    public void setCookie(final String url, final String value) {
+                        CookieManager.getInstance().setCookie(url, value);
+                    }
+                }));
+
+            /*
+             * Keep the sub-resources listed in res/values/authentication.xml from loading, to speed up the login pages.
+             * The authentication server is always a first party, even when any host may be loaded, so that third-party
+             * rules never block its own scripts.
+             */
+            ArrayList<String> firstPartyHosts = new ArrayList<String>(Arrays.asList(getResources().getStringArray(R.array.allowedHosts)));
+            firstPartyHosts.add(authenticatingHost);
+            authenticatingWebView.setResourceFilter(new ResourceFilter(Arrays.asList(getResources().getStringArray(R.array.blockedResources)),
+                firstPartyHosts));
+
+            /*
+             * Calls to OCLC web services share the token. If the service rejects it, they redeem its refresh token, or
+             * sign in again if there is none.
+             */
+            serviceClient = new ServiceClient(new WebViewTokenProvider(authenticatingWebView, authorizationRequest, tokenRegistry,
+                tokenRefresher, TOKEN_EXPIRY_MARGIN_MILLISECONDS, SERVICE_TOKEN_TIMEOUT_MILLISECONDS), maxConcurrentServiceCalls);
+
+            /*
+             * Patron data, such as checked out items, is cached for the principal and institution of the token it was
+             * fetched with, and dropped when the user signs out. It is only kept on disk encrypted with the token's
+             * key; if the key cannot be had, it is kept in memory.
+             */
+            responseCache = createResponseCache();
+            serviceClient.setResponseCache(responseCache);
+            if (!getString(R.string.ncipServiceUrl).equals("")) {
+                ncipBatch = new NcipBatch(serviceClient, getString(R.string.ncipServiceUrl), maxConcurrentServiceCalls);
+            }
+
+            /*
+             * After a configuration change, display the token or carry on with the sign in that the previous activity
+             * had. Otherwise display the stored token if it is still valid, or sign in.
+             */
+            tokenStoreExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(runnable, "TokenStore");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            tokenStore = new TokenStore(this, tokenStoreExecutor);
+            AuthorizationResult storedToken = tokenStore.getToken(TOKEN_EXPIRY_MARGIN_MILLISECONDS);
+            if (retainedState != null && retainedState.getSignInState() != null
+                && authenticatingWebView.resumeRequest(authorizationRequest, retainedState.getSignInState())) {
+                Log.i(TAG, "Resumed the sign in in progress after a configuration change");
+            } else if (retainedState != null && tokenLifecycle.getToken() != null) {
+                showResults(tokenLifecycle.getToken(), "configuration change");
+            } else if (storedToken != null) {
+                tokenRegistry.put(authorizationRequest.getTokenKey(), storedToken);
+                showResults(storedToken, "stored token");
+            } else {
+                authenticatingWebView.makeRequest(authorizationRequest, TOKEN_EXPIRY_MARGIN_MILLISECONDS);
+            }
+        }
+
+        /*
+         * Listen to the token deadlines once everything they call is set up, since those that passed while the
+         * previous activity was being replaced fire straight away.
+         */
+        tokenRegistry.getDeadlines().setListener(this);
+    }
+
+    /**
+     * Returns the client for calling OCLC web services, such as WMS NCIP, with the token. Its calls block, so they
+     * must be made from a background thread.
+     *
+     * @return the client, or null if the authentication parameters are not set
+     */
+    public final ServiceClient getServiceClient() {
+        return serviceClient;
+    }
+
+    /**
+     * Returns the runner of NCIP operation batches, for example to renew every item a patron has checked out at once.
+     * Pass it the displayed token, whose principal and context institution the operations are for.
+     *
+     * @return the batch runner, or null if ncipServiceUrl is not set in res/values/authentication.xml
+     */
+    public final NcipBatch getNcipBatch() {
+        return ncipBatch;
+    }
+
+    /**
+     * Returns the queue of NCIP operations waiting for a new token, for example to show the user what is pending.
+     *
+     * @return the queue
+     */
+    public final OperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    /**
+     * Runs NCIP operations for the displayed user in a batch. Operations that cannot be sent, because the device is
+     * offline or no token could be had in time, are queued on disk and sent once the next token is displayed. Must
+     * only be called if {@link #getNcipBatch()} is not null.
+     *
+     * @param operations the operations to run
+     * @param listener receives the outcome, on a background thread; the failures it reports that
+     *            OperationQueue's unsent picks out have been queued
+     */
+    public final void submitOperations(final List<NcipOperation> operations, final NcipBatch.Listener listener) {
+        final AuthorizationResult token = tokenLifecycle.getToken();
+        ncipBatch.submit(operations, token, new NcipBatch.Listener() {
+            @Override
+            public void batchCompleted(final NcipBatch.Result result) {
+                List<NcipOperation> unsent = operationQueue.unsent(result, token);
+                if (!unsent.isEmpty() && token != null && token.getPrincipalId() != null) {
+                    try {
+                        int queued = operationQueue.enqueue(token, unsent);
+                        Log.i(TAG, "Queued " + queued + " operations until the next token, " + operationQueue.getStats());
+                    } catch (IOException e) {
+                        Log.w(TAG, "Could not queue " + unsent.size() + " operations", e);
+                    }
+                }
+                listener.batchCompleted(result);
+            }
+        });
+    }
+
+    /**
+     * Stops the background token exchanges and NCIP batches when the activity goes away.
+     *
+     * @see android.app.Activity#onDestroy()
+     */
+    @Override
+    protected final void onDestroy() {
+        if (tokenExchangeExecutor != null) {
+            tokenExchangeExecutor.shutdown();
         }
+        if (tokenStoreExecutor != null) {
+            tokenStoreExecutor.shutdown();
+        }
+        stopCountDown();
+
+        /*
+         * A replay of queued operations carries on through a configuration change, so this activity's batch runner is
+         * only shut down once it is done. Operations a stopped runner turns away stay queued.
+         */
+        if (ncipBatch != null) {
+            if (isFinishing()) {
+                ncipBatch.shutdown();
+            } else {
+                operationQueue.shutdownAfterReplays(ncipBatch);
+            }
+        }
+
+        /*
+         * The token deadlines carry on for the activity that replaces this one after a configuration change.
+         */
+        tokenRegistry.getDeadlines().setListener(null);
+        if (isFinishing()) {
+            tokenRegistry.getDeadlines().shutdown();
+            operationQueue.shutdown();
+            TokenBrokerProvider.setTokenRegistry(null);
+            TokenBrokerProvider.tokensChanged(this);
+        }
+        if (myProgressDialog != null) {
+            myProgressDialog.dismiss();
+        }
+        super.onDestroy();
+    }
+
+    /**
+     * Hands the authentication state over to the activity that replaces this one after a configuration change, so that
+     * it neither signs in again nor loses the sign in in progress.
+     *
+     * @return the authentication state
+     * @see android.app.Activity#onRetainNonConfigurationInstance()
+     */
+    @Override
+    public final Object onRetainNonConfigurationInstance() {
+        AuthenticationState state = new AuthenticationState(tokenRegistry, tokenLifecycle, operationQueue);
+        if (authenticatingWebView != null) {
+            state.setSignInState(authenticatingWebView.saveState());
+        }
+        return state;
     }
 
     /**
@@ -220,6 +695,44 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
          * Removes the cookies associated with this app only - browser cookies and other app's cookies are not affected.
          */
         myCookieManager.removeAllCookie();
+
+        /*
+         * Forget the stored token as well, so that the next start signs in from scratch.
+         */
+        if (tokenStore != null) {
+            tokenStore.clear();
+            tokenRegistry.clear();
+            tokenLifecycle.clear();
+            clearResponseCache();
+            TokenBrokerProvider.tokensChanged(this);
+        }
+    }
+
+    /**
+     * Drops the cached patron responses, which belong to the user signing out, and logs how well the cache did.
+     */
+    private void clearResponseCache() {
+        Log.i(TAG, "Patron response cache " + responseCache.getStats());
+        responseCache.clear();
+    }
+
+    /**
+     * Creates the cache of patron responses. Responses are stored on disk sealed with the key of the token's
+     * {@link EncryptedTokenFile}, which only the app can read; if that key cannot be had, they are kept in memory.
+     *
+     * @return the cache
+     */
+    private PrincipalResponseCache createResponseCache() {
+        try {
+            RecordCipher cipher = new EncryptedTokenFile(getFilesDir()).getCipher();
+            return new PrincipalResponseCache(new DiskLruCache(new File(getCacheDir(), "patron-responses"),
+                RESPONSE_CACHE_BYTES), cipher, RESPONSE_CACHE_MEMORY_ENTRIES, RESPONSE_CACHE_TTL_MILLISECONDS);
+        } catch (IOException e) {
+            Log.w(TAG, "No key for the patron response cache, keeping responses in memory", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "No cipher for the patron response cache, keeping responses in memory", e);
+        }
+        return new PrincipalResponseCache(null, null, RESPONSE_CACHE_MEMORY_ENTRIES, RESPONSE_CACHE_TTL_MILLISECONDS);
     }
 
     /**
@@ -239,14 +752,25 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
             ((TextView) findViewById(R.id.access_token)).setText(getString(R.string.authParamsNotSet));
         } else {
             /*
-             * Clear the token count down timer if it is running and set the timer text to expired.
+             * Stop the token count down if it is running and set the timer text to expired.
              */
-            if (tokenCountDownTimer != null) {
-                tokenCountDownTimer.cancel();
-                tokenCountDownTimer = null;
-                ((TextView) findViewById(R.id.timeRemainingTextView)).setText(getString(R.string.time_remaining_expired));
+            if (countDownExpiresAtMillis != 0) {
+                stopCountDown();
+                timeRemainingTextView.setText(getString(R.string.time_remaining_expired));
             }
 
+            /*
+             * The new token replaces the current one, so stop tracking it for refresh and expiry.
+             */
+            tokenRegistry.remove(authorizationRequest.getTokenKey());
+            tokenLifecycle.clear();
+            TokenBrokerProvider.tokensChanged(this);
+
+            /*
+             * Another user may sign in, so the current user's patron data goes.
+             */
+            clearResponseCache();
+
             /*
              * Hide the text result views.
              */
@@ -256,7 +780,20 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
             /*
              * Make another request.
              */
-            authenticatingWebView.makeRequest(requestUrl);
+            signInQuietlyIfAllowed();
+        }
+    }
+
+    /**
+     * Makes the token request, silently if res/values/config.xml allows it, so that a user still signed in to the
+     * authentication server is not shown the login pages again.
+     */
+    private void signInQuietlyIfAllowed() {
+        if (silentReauthentication) {
+            authenticatingWebView.makeSilentRequest(authorizationRequest, TOKEN_EXPIRY_MARGIN_MILLISECONDS,
+                SILENT_SIGN_IN_TIMEOUT_MILLISECONDS);
+        } else {
+            authenticatingWebView.makeRequest(authorizationRequest, TOKEN_EXPIRY_MARGIN_MILLISECONDS);
         }
     }
 
@@ -290,68 +827,222 @@ public class MainActivity extends Activity implements AuthenticatingWebViewCallb
      */
     @Override
     public final void stopProgressDialog() {
-        myProgressDialog.hide();
+        if (myProgressDialog != null) {
+            myProgressDialog.hide();
+        }
+
+        /*
+         * Log the time from startup to the first page, normally the login form, so that starts with and without the
+         * warm-up can be compared.
+         */
+        if (!firstPageLogged) {
+            firstPageLogged = true;
+            Log.i(TAG, "First page shown " + (System.nanoTime() - createdAtNanos) / NANOSECONDS_TO_MILLISECONDS
+                + " ms after onCreate, warm-up " + (warmedUp ? "on" : "off"));
+        }
     }
 
     /**
-     * Display the results by extracting the values from the Hash Map and inserting them into the TextViews which are
-     * defined in res/layout/activity_main.xml. Implements a callback function called by
-     * AuthenticatingWebViewCallbackMethods.
+     * Store the token, display the results and send the operations queued for the user. Implements a callback function
+     * called by AuthenticatingWebViewCallbackMethods.
      *
-     * @param authorizationReturnParameters A list of return params and values
+     * @param result the token and the params returned with it
      */
     @Override
-    public final void displayResults(final HashMap<String, String> authorizationReturnParameters) {
+    public final void displayResults(final AuthorizationResult result) {
+        if (!result.isSuccessful()) {
+            Log.w(TAG, "Authentication failed: " + result.getError() + " " + result.getErrorDescription());
+        }
+        tokenStore.saveToken(result);
+        showResults(result, "sign in");
 
         /*
-         * Make the text result views visible. Each result parameter's textview is grouped into a LinearLayout.
+         * Send the operations that were waiting for a token of this user.
          */
-        LinearLayout resultLayout = (LinearLayout) findViewById(R.id.resultLayout);
-        resultLayout.setVisibility(View.VISIBLE);
+        if (result.isSuccessful() && result.getPrincipalId() != null && ncipBatch != null) {
+            operationQueue.replay(result, ncipBatch, this);
+        }
+    }
+
+    /**
+     * Logs the outcome of sending the queued operations. Implements a callback function called by OperationQueue on its
+     * own thread.
+     *
+     * @param settled the number of operations the service answered
+     * @param remaining the number of operations still queued for the user
+     * @param elapsedMillis time the replay took
+     */
+    @Override
+    public final void replayCompleted(final int settled, final int remaining, final long elapsedMillis) {
+        if (settled > 0 || remaining > 0) {
+            Log.i(TAG, "Sent " + settled + " queued operations in " + elapsedMillis + " ms, " + remaining + " still queued, "
+                + operationQueue.getStats());
+        }
+    }
+
+    /**
+     * Registers a token refreshed in the background, and displays it if it replaces the displayed token. Implements a
+     * callback function called by TokenRefresher on its own thread, so the display is handed over to the UI thread. A
+     * token that was signed out or replaced while the refresh ran is not put back.
+     *
+     * @param key the token's key
+     * @param previous the token that was refreshed
+     * @param result the new token and the params returned with it
+     */
+    @Override
+    public final void tokenRefreshed(final TokenKey key, final AuthorizationResult previous, final AuthorizationResult result) {
+        if (tokenRegistry.get(key, 0) != previous) {
+            return;
+        }
+        tokenRegistry.put(key, result);
+        if (key.equals(authorizationRequest.getTokenKey())) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    displayResults(result);
+                }
+            });
+        }
+    }
 
-        ((TextView) findViewById(R.id.access_token)).setText(authorizationReturnParameters.get("access_token"));
-        ((TextView) findViewById(R.id.principalID)).setText(authorizationReturnParameters.get("principalID"));
-        ((TextView) findViewById(R.id.principalIDNS)).setText(authorizationReturnParameters.get("principalIDNS"));
-        ((TextView) findViewById(R.id.context_institution_id)).setText(authorizationReturnParameters.get("context_institution_id"));
-        ((TextView) findViewById(R.id.token_type)).setText(authorizationReturnParameters.get("token_type"));
-        ((TextView) findViewById(R.id.expires_in)).setText(authorizationReturnParameters.get("expires_in"));
-        ((TextView) findViewById(R.id.expires_at)).setText(authorizationReturnParameters.get("expires_at"));
+    /**
+     * Implements a callback function called by TokenRefresher when a token could not be refreshed. Nothing needs to be
+     * done: the token expires and the user can sign in again.
+     *
+     * @param key the token's key
+     */
+    @Override
+    public final void tokenRefreshFailed(final TokenKey key) {
+        Log.w(TAG, "Could not refresh the access token for " + key);
+    }
+
+    /**
+     * Refreshes a registered token that is due for refresh, if a refresh token was issued. Implements a callback
+     * function called by TokenDeadlines on its own thread; the refresh itself runs on the token exchange thread.
+     *
+     * @param key the token's key
+     * @param result the token
+     */
+    @Override
+    public final void refreshDue(final TokenKey key, final AuthorizationResult result) {
+        Log.i(TAG, "Token for " + key + " is due for refresh");
+        if (tokenRefresher != null) {
+            tokenRefresher.refresh(key, result);
+        }
+    }
+
+    /**
+     * Drops an expired token from the registry. If it is the displayed token and silent sign in is allowed, a new one
+     * is requested silently. Implements a callback function called by TokenDeadlines on its own thread.
+     *
+     * @param key the token's key
+     * @param result the token
+     */
+    @Override
+    public final void expired(final TokenKey key, final AuthorizationResult result) {
+        tokenRegistry.remove(key, result);
+        Log.i(TAG, "Token for " + key + " expired, deadlines " + tokenRegistry.getDeadlines().getStats());
+        TokenBrokerProvider.tokensChanged(this);
+
+        if (silentReauthentication && key.equals(authorizationRequest.getTokenKey()) && result == tokenLifecycle.getToken()) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (!isFinishing() && !authenticatingWebView.isAuthenticating()) {
+                        signInQuietlyIfAllowed();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Display the results by inserting the token's fields into the TextViews which are defined in
+     * res/layout/activity_main.xml.
+     *
+     * @param result the token to display
+     * @param source where the token came from, for the startup timing log
+     */
+    private void showResults(final AuthorizationResult result, final String source) {
 
         /*
-         * Check if the token CountDownTimer, and cancel it if it does.
+         * A token that is displayed again after a configuration change keeps its refresh time.
          */
-        if (tokenCountDownTimer != null) {
-            tokenCountDownTimer.cancel();
+        long now = System.currentTimeMillis();
+        if (tokenLifecycle.getToken() != result) {
+            tokenLifecycle.tokenReceived(result, now);
+            TokenBrokerProvider.tokensChanged(this);
         }
 
         /*
-         * Start a new token count down timer based on the time remaining returned with the token (time remaining is in
-         * seconds).
+         * Log the time from startup to the first token, so the stored token and sign in paths can be compared.
          */
-        if (authorizationReturnParameters.get("expires_in") != null) {
-            tokenCountDownTimer = new CountDownTimer(Integer.parseInt(authorizationReturnParameters.get("expires_in")) * SECONDS_TO_MILLISECONDS,
-                SECONDS_TO_MILLISECONDS) {
+        if (!firstTokenLogged) {
+            firstTokenLogged = true;
+            Log.i(TAG, "First token from " + source + " displayed " + (System.nanoTime() - createdAtNanos) / NANOSECONDS_TO_MILLISECONDS
+                + " ms after onCreate, warm-up " + (warmedUp ? "on" : "off"));
+        }
 
-                /* Callback fires every 1000 ms. */
-                @Override
-                public void onTick(final long millisUntilFinished) {
-                    ((TextView) findViewById(R.id.timeRemainingTextView)).setText(getString(R.string.time_remaining) + millisUntilFinished
-                        / SECONDS_TO_MILLISECONDS);
-                }
+        /*
+         * Make the text result views visible. Each result parameter's textview is grouped into a LinearLayout.
+         */
+        LinearLayout resultLayout = (LinearLayout) findViewById(R.id.resultLayout);
+        resultLayout.setVisibility(View.VISIBLE);
 
-                /*
-                 * Callback fires when timer counts down to zero.
-                 */
-                @Override
-                public void onFinish() {
-                    ((TextView) findViewById(R.id.timeRemainingTextView)).setText(getString(R.string.time_remaining_expired));
-                }
-            }.start();
+        /*
+         * Expires in is the time actually remaining, so that a token delivered some time after it was received is
+         * displayed like a fresh one.
+         */
+        long expiresInSeconds = result.getExpiresInSeconds(now);
+        ((TextView) findViewById(R.id.access_token)).setText(result.getAccessToken());
+        ((TextView) findViewById(R.id.principalID)).setText(result.getPrincipalId());
+        ((TextView) findViewById(R.id.principalIDNS)).setText(result.getPrincipalIdNs());
+        ((TextView) findViewById(R.id.context_institution_id)).setText(result.getContextInstitutionId());
+        ((TextView) findViewById(R.id.token_type)).setText(result.getTokenType());
+        ((TextView) findViewById(R.id.expires_in)).setText(expiresInSeconds < 0 ? null : Long.toString(expiresInSeconds));
+        ((TextView) findViewById(R.id.expires_at)).setText(result.getParameter("expires_at"));
+
+        /*
+         * Count down the time remaining until the token expires, replacing the count down of any earlier token.
+         */
+        stopCountDown();
+        if (result.getExpiresAtMillis() != 0) {
+            countDownExpiresAtMillis = result.getExpiresAtMillis();
+            updateTimeRemaining();
         } else {
             /*
-             * If the "expires_in" parameter is null, then something has gone wrong during authentication.
+             * If no expiry time was returned, then something has gone wrong during authentication.
              */
-            ((TextView) findViewById(R.id.timeRemainingTextView)).setText(getString(R.string.invalid_authentication_request));
+            timeRemainingTextView.setText(getString(R.string.invalid_authentication_request));
+        }
+    }
+
+    /**
+     * Shows the whole seconds remaining until the displayed token expires, if they have changed, and schedules the
+     * next update for just after the next second passes.
+     */
+    private void updateTimeRemaining() {
+        long remainingMillis = countDownExpiresAtMillis - System.currentTimeMillis();
+        if (remainingMillis <= 0) {
+            stopCountDown();
+            timeRemainingTextView.setText(getString(R.string.time_remaining_expired));
+            return;
+        }
+
+        long remainingSeconds = remainingMillis / SECONDS_TO_MILLISECONDS;
+        if (remainingSeconds != countDownShownSeconds) {
+            countDownShownSeconds = remainingSeconds;
+            timeRemainingTextView.setText(getString(R.string.time_remaining) + remainingSeconds);
         }
+        timeRemainingTextView.postDelayed(countDownUpdater, remainingMillis % SECONDS_TO_MILLISECONDS + 1);
+    }
+
+    /**
+     * Stops the count down of the displayed token, if one is running. The label keeps its text.
+     */
+    private void stopCountDown() {
+        timeRemainingTextView.removeCallbacks(countDownUpdater);
+        countDownExpiresAtMillis = 0;
+        countDownShownSeconds = -1;
     }
 }
@@ -0,0 +1,111 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import android.os.Debug;
+
+/**
+ * The memory footprint of the app's process at one moment: the Java heap in use and the native heap allocated, which
+ * is where the WebView's renderer lives on versions of Android that run it in the app's process.
+ * <p>
+ * Snapshots are logged around releasing the WebView, so that what it costs to keep one alive can be read off the log.
+ */
+public final class MemorySnapshot {
+
+    /**
+     * Number of bytes in a kilobyte.
+     */
+    private static final long BYTES_PER_KILOBYTE = 1024L;
+
+    /**
+     * Java heap in use, in bytes.
+     */
+    private final long javaHeapBytes;
+
+    /**
+     * Native heap allocated, in bytes.
+     */
+    private final long nativeHeapBytes;
+
+    /**
+     * Creates a snapshot of the given figures.
+     *
+     * @param javaHeapBytes Java heap in use, in bytes
+     * @param nativeHeapBytes native heap allocated, in bytes
+     */
+    private MemorySnapshot(final long javaHeapBytes, final long nativeHeapBytes) {
+        this.javaHeapBytes = javaHeapBytes;
+        this.nativeHeapBytes = nativeHeapBytes;
+    }
+
+    /**
+     * Takes a snapshot of the current process.
+     *
+     * @return the snapshot
+     */
+    public static MemorySnapshot take() {
+        Runtime runtime = Runtime.getRuntime();
+        return new MemorySnapshot(runtime.totalMemory() - runtime.freeMemory(), Debug.getNativeHeapAllocatedSize());
+    }
+
+    /**
+     * Returns the Java heap in use.
+     *
+     * @return the Java heap in use, in bytes
+     */
+    public long getJavaHeapBytes() {
+        return javaHeapBytes;
+    }
+
+    /**
+     * Returns the native heap allocated.
+     *
+     * @return the native heap allocated, in bytes
+     */
+    public long getNativeHeapBytes() {
+        return nativeHeapBytes;
+    }
+
+    /**
+     * Describes the change from an earlier snapshot to this one.
+     *
+     * @param before the earlier snapshot
+     * @return the figures of both snapshots and the difference, in kilobytes
+     */
+    public String since(final MemorySnapshot before) {
+        return "java heap " + kilobytes(before.javaHeapBytes) + " -> " + kilobytes(javaHeapBytes) + " KB ("
+            + kilobytes(javaHeapBytes - before.javaHeapBytes) + "), native heap " + kilobytes(before.nativeHeapBytes)
+            + " -> " + kilobytes(nativeHeapBytes) + " KB (" + kilobytes(nativeHeapBytes - before.nativeHeapBytes) + ")";
+    }
+
+    /**
+     * Describes this snapshot.
+     *
+     * @return the figures in kilobytes
+     */
+    @Override
+    public String toString() {
+        return "java heap " + kilobytes(javaHeapBytes) + " KB, native heap " + kilobytes(nativeHeapBytes) + " KB";
+    }
+
+    /**
+     * Converts bytes to whole kilobytes.
+     *
+     * @param bytes a number of bytes
+     * @return the number of kilobytes
+     */
+    private static long kilobytes(final long bytes) {
+        return bytes / BYTES_PER_KILOBYTE;
+    }
+}
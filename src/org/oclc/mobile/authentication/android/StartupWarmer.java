@@ -0,0 +1,120 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.util.Log;
+import android.webkit.WebSettings;
+
+/**
+ * Does the slow parts of reaching the authentication server on a background thread while the activity inflates its
+ * layout: resolving the server's host name, opening a TLS connection to it, and, on Android 4.2 and later, loading the
+ * WebView engine.
+ * <p>
+ * The host name lookup is cached by the system and so also benefits the WebView. The connection is kept alive in the
+ * HttpURLConnection pool, which the asset cache and token refresh use; the WebView has a connection pool of its own.
+ */
+public class StartupWarmer implements Runnable {
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "StartupWarmer";
+
+    /**
+     * Connect and read timeout of the warm-up request.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 10000;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * The application context, used to load the WebView engine.
+     */
+    private final Context context;
+
+    /**
+     * Base url of the authentication server.
+     */
+    private final String serverBaseUrl;
+
+    /**
+     * Creates a warmer.
+     *
+     * @param context any context, only its application context is kept
+     * @param serverBaseUrl base url of the authentication server
+     */
+    public StartupWarmer(final Context context, final String serverBaseUrl) {
+        this.context = context.getApplicationContext();
+        this.serverBaseUrl = serverBaseUrl;
+    }
+
+    /**
+     * Starts warming up on a new background thread.
+     */
+    public final void start() {
+        Thread thread = new Thread(this, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Warms up. Failures are logged and otherwise ignored, since the sign in does all of this again anyway.
+     */
+    @Override
+    public final void run() {
+        long start = System.nanoTime();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            loadWebViewEngine();
+        }
+
+        try {
+            URL url = new URL(serverBaseUrl);
+            InetAddress.getAllByName(url.getHost());
+
+            /*
+             * A HEAD request completes the TLS handshake. Reading the (empty) response returns the connection to the
+             * pool instead of closing it.
+             */
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            connection.setRequestMethod("HEAD");
+            connection.getResponseCode();
+            connection.getInputStream().close();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not warm up the connection to " + serverBaseUrl, e);
+        }
+
+        Log.i(TAG, "Warm-up took " + (System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS + " ms");
+    }
+
+    /**
+     * Loads the WebView engine by asking it for its user agent, which can be done off the UI thread.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+    private void loadWebViewEngine() {
+        WebSettings.getDefaultUserAgent(context);
+    }
+}
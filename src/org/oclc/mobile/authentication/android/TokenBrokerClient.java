@@ -0,0 +1,145 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.LatencyHistogram;
+import org.oclc.mobile.authentication.core.TokenRecord;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * Fetches tokens from the {@link TokenBrokerProvider} of this app, from another process or a companion app signed with
+ * the same certificate. Each fetch is one query, so one IPC hop, and its latency is recorded.
+ * <p>
+ * Fetches block on the provider's process, so they should not be made on the UI thread.
+ */
+public class TokenBrokerClient {
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "TokenBrokerClient";
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Resolves the queries to the provider.
+     */
+    private final ContentResolver resolver;
+
+    /**
+     * Latency of the fetches.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Creates a client.
+     *
+     * @param context any context of the calling app
+     */
+    public TokenBrokerClient(final Context context) {
+        this.resolver = context.getContentResolver();
+    }
+
+    /**
+     * Fetches a token.
+     *
+     * @param wskey the wskey client ID
+     * @param authenticatingInstitutionId the institution that authenticates the user
+     * @param contextInstitutionId the institution whose data is being accessed
+     * @param scopes the scopes, separated by spaces
+     * @param minimumRemainingMillis how long the token must still be valid for
+     * @return the token, or null if the broker has no such token or cannot be reached
+     */
+    public final AuthorizationResult getToken(final String wskey, final String authenticatingInstitutionId,
+        final String contextInstitutionId, final String scopes, final long minimumRemainingMillis) {
+
+        long start = System.nanoTime();
+        Cursor cursor = resolver.query(TokenBrokerProvider.uriFor(wskey, authenticatingInstitutionId,
+            contextInstitutionId, scopes, minimumRemainingMillis), null, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return TokenRecord.decode(cursor.getBlob(cursor.getColumnIndexOrThrow(TokenBrokerProvider.COLUMN_RECORD)));
+        } catch (IOException e) {
+            Log.w(TAG, "Broker returned an unreadable token", e);
+            return null;
+        } finally {
+            cursor.close();
+            latency.record((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+        }
+    }
+
+    /**
+     * Measures the IPC latency by fetching the same token a number of times.
+     *
+     * @param wskey the wskey client ID
+     * @param authenticatingInstitutionId the institution that authenticates the user
+     * @param contextInstitutionId the institution whose data is being accessed
+     * @param scopes the scopes, separated by spaces
+     * @param iterations the number of fetches
+     * @return the latency of those fetches, in milliseconds
+     */
+    public final LatencyHistogram measure(final String wskey, final String authenticatingInstitutionId,
+        final String contextInstitutionId, final String scopes, final int iterations) {
+        LatencyHistogram measured = new LatencyHistogram();
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            getToken(wskey, authenticatingInstitutionId, contextInstitutionId, scopes, 0);
+            measured.record((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+        }
+        Log.i(TAG, "Token broker latency over " + iterations + " fetches: " + measured);
+        return measured;
+    }
+
+    /**
+     * Subscribes to token changes. The observer is told when a token is received, refreshed, expires or is cleared,
+     * and should then fetch the token again.
+     *
+     * @param observer the observer
+     */
+    public final void subscribe(final ContentObserver observer) {
+        resolver.registerContentObserver(TokenBrokerProvider.TOKENS_URI, true, observer);
+    }
+
+    /**
+     * Ends a subscription.
+     *
+     * @param observer the observer passed to {@link #subscribe(ContentObserver)}
+     */
+    public final void unsubscribe(final ContentObserver observer) {
+        resolver.unregisterContentObserver(observer);
+    }
+
+    /**
+     * @return the latency of the fetches made so far, in milliseconds
+     */
+    public final LatencyHistogram getLatency() {
+        return latency;
+    }
+}
@@ -0,0 +1,220 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.List;
+
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.TokenKey;
+import org.oclc.mobile.authentication.core.TokenRecord;
+import org.oclc.mobile.authentication.core.TokenRegistry;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+
+/**
+ * Brokers this app's tokens to its other processes and to companion apps signed with the same certificate, so that
+ * they can use the patron's token without signing in through a WebView of their own.
+ * <p>
+ * A token is asked for with a query of {@link #uriFor(String, String, String, String, long)}, which names the wskey,
+ * the authenticating and context institutions and the scopes, and how long the token must still be valid for. The
+ * cursor has one row, holding the {@link TokenRecord} and the expiry time, if the TokenRegistry of the running
+ * MainActivity has such a token, and no rows otherwise. Subscribers register a ContentObserver on {@link #TOKENS_URI}
+ * and are notified whenever a token is received, refreshed, expires or is cleared.
+ * <p>
+ * Access is guarded by a signature permission declared in AndroidManifest.xml. Tokens cannot be written.
+ */
+public class TokenBrokerProvider extends ContentProvider {
+
+    /**
+     * Authority of the provider, as declared in AndroidManifest.xml.
+     */
+    public static final String AUTHORITY = "org.oclc.mobile.authentication.android.tokens";
+
+    /**
+     * Uri of all the tokens, observed for changes.
+     */
+    public static final Uri TOKENS_URI = Uri.parse("content://" + AUTHORITY + "/tokens");
+
+    /**
+     * Column holding the token record.
+     */
+    public static final String COLUMN_RECORD = "record";
+
+    /**
+     * Column holding the time at which the token expires, in milliseconds since the epoch.
+     */
+    public static final String COLUMN_EXPIRES_AT = "expiresAt";
+
+    /**
+     * Query parameter holding the scopes, separated by spaces.
+     */
+    private static final String PARAMETER_SCOPE = "scope";
+
+    /**
+     * Query parameter holding how long the token must still be valid for, in milliseconds.
+     */
+    private static final String PARAMETER_MINIMUM_REMAINING = "minimumRemainingMillis";
+
+    /**
+     * Number of path segments of a token uri: tokens, wskey, authenticating and context institution.
+     */
+    private static final int TOKEN_PATH_SEGMENTS = 4;
+
+    /**
+     * MIME type of a token.
+     */
+    private static final String TOKEN_TYPE = "vnd.android.cursor.item/vnd.oclc.token";
+
+    /**
+     * Tokens of the running MainActivity, or null if none is running.
+     */
+    private static volatile TokenRegistry tokenRegistry;
+
+    /**
+     * Publishes the tokens that queries are answered from. MainActivity publishes its registry when it is created
+     * and withdraws it when it finishes.
+     *
+     * @param registry the tokens, or null to answer every query with no token
+     */
+    public static void setTokenRegistry(final TokenRegistry registry) {
+        tokenRegistry = registry;
+    }
+
+    /**
+     * Tells the subscribers that a token has been received, refreshed, has expired or has been cleared.
+     *
+     * @param context any context of this app
+     */
+    public static void tokensChanged(final Context context) {
+        context.getContentResolver().notifyChange(TOKENS_URI, null);
+    }
+
+    /**
+     * Builds the uri of a token.
+     *
+     * @param wskey the wskey client ID
+     * @param authenticatingInstitutionId the institution that authenticates the user
+     * @param contextInstitutionId the institution whose data is being accessed
+     * @param scopes the scopes, separated by spaces
+     * @param minimumRemainingMillis how long the token must still be valid for
+     * @return the uri to query
+     */
+    public static Uri uriFor(final String wskey, final String authenticatingInstitutionId,
+        final String contextInstitutionId, final String scopes, final long minimumRemainingMillis) {
+        return TOKENS_URI.buildUpon().appendPath(wskey).appendPath(authenticatingInstitutionId)
+            .appendPath(contextInstitutionId).appendQueryParameter(PARAMETER_SCOPE, scopes)
+            .appendQueryParameter(PARAMETER_MINIMUM_REMAINING, Long.toString(minimumRemainingMillis)).build();
+    }
+
+    /**
+     * Nothing to set up; the tokens are published by MainActivity.
+     *
+     * @return true, the provider is always ready
+     */
+    @Override
+    public final boolean onCreate() {
+        return true;
+    }
+
+    /**
+     * Looks up a token.
+     *
+     * @param uri a uri built by {@link #uriFor(String, String, String, String, long)}
+     * @param projection ignored, both columns are returned
+     * @param selection ignored
+     * @param selectionArgs ignored
+     * @param sortOrder ignored
+     * @return a cursor with the token's row, or with no rows if there is no such token
+     */
+    @Override
+    public final Cursor query(final Uri uri, final String[] projection, final String selection,
+        final String[] selectionArgs, final String sortOrder) {
+
+        List<String> segments = uri.getPathSegments();
+        if (segments.size() != TOKEN_PATH_SEGMENTS) {
+            throw new IllegalArgumentException("Not a token uri: " + uri);
+        }
+        String scopes = uri.getQueryParameter(PARAMETER_SCOPE);
+        TokenKey key = new TokenKey(segments.get(1), segments.get(2), segments.get(3), scopes == null ? "" : scopes);
+        long minimumRemainingMillis;
+        try {
+            minimumRemainingMillis = Long.parseLong(uri.getQueryParameter(PARAMETER_MINIMUM_REMAINING));
+        } catch (NumberFormatException e) {
+            minimumRemainingMillis = 0;
+        }
+
+        MatrixCursor cursor = new MatrixCursor(new String[] {COLUMN_RECORD, COLUMN_EXPIRES_AT}, 1);
+        TokenRegistry registry = tokenRegistry;
+        AuthorizationResult token = registry == null ? null : registry.get(key, minimumRemainingMillis);
+        if (token != null) {
+            cursor.addRow(new Object[] {TokenRecord.encode(token), token.getExpiresAtMillis()});
+        }
+        cursor.setNotificationUri(getContext().getContentResolver(), TOKENS_URI);
+        return cursor;
+    }
+
+    /**
+     * @param uri a token uri
+     * @return the MIME type of a token
+     */
+    @Override
+    public final String getType(final Uri uri) {
+        return TOKEN_TYPE;
+    }
+
+    /**
+     * Tokens cannot be written.
+     *
+     * @param uri ignored
+     * @param values ignored
+     * @return never returns
+     */
+    @Override
+    public final Uri insert(final Uri uri, final ContentValues values) {
+        throw new UnsupportedOperationException("Tokens are read only");
+    }
+
+    /**
+     * Tokens cannot be written.
+     *
+     * @param uri ignored
+     * @param selection ignored
+     * @param selectionArgs ignored
+     * @return never returns
+     */
+    @Override
+    public final int delete(final Uri uri, final String selection, final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Tokens are read only");
+    }
+
+    /**
+     * Tokens cannot be written.
+     *
+     * @param uri ignored
+     * @param values ignored
+     * @param selection ignored
+     * @param selectionArgs ignored
+     * @return never returns
+     */
+    @Override
+    public final int update(final Uri uri, final ContentValues values, final String selection,
+        final String[] selectionArgs) {
+        throw new UnsupportedOperationException("Tokens are read only");
+    }
+}
@@ -0,0 +1,239 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.oclc.mobile.authentication.core.AuthorizationException;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.OperationQueue;
+import org.oclc.mobile.authentication.core.TokenDeadlines;
+import org.oclc.mobile.authentication.core.TokenExchange;
+import org.oclc.mobile.authentication.core.TokenKey;
+
+import android.util.Log;
+
+/**
+ * Refreshes access tokens in the background before they expire, using the refresh token that is issued when
+ * "refresh_token" is one of the requested scopes.
+ * <p>
+ * The refreshes are timed by the {@link TokenDeadlines} wheel that already tracks every registered token, whose
+ * refreshDue deadline passes once a fraction of the token's lifetime, with some jitter, is over; this class has no
+ * timer of its own. Each refresh is redeemed by a {@link TokenExchange} on the given background executor, over the
+ * same keep-alive connection as the authorization code exchange. A refresh that fails to reach the server is tried
+ * again with an exponential backoff, starting at five seconds, for as long as the retry comes before the token
+ * expires; one the server rejects is not retried.
+ * <p>
+ * While a token is being refreshed the services may already refuse it, so the refresher tells the OperationQueue which
+ * tokens it is refreshing.
+ * <p>
+ * Note that the OCLC servers may require an HMAC signed request to redeem a refresh token in the implicit flow, which
+ * a mobile app cannot make without storing its secret. In that case the refresh fails, the listener is told, and the
+ * user signs in again as before.
+ */
+public class TokenRefresher implements OperationQueue.RefreshState {
+
+    /**
+     * Callbacks from the refresher. They are called on the executor's background thread.
+     */
+    public interface Listener {
+
+        /**
+         * Method is called when a new access token has been received
+         *
+         * @param key the token's key
+         * @param previous the token that was refreshed
+         * @param result the new token and the params returned with it
+         */
+        void tokenRefreshed(TokenKey key, AuthorizationResult previous, AuthorizationResult result);
+
+        /**
+         * Method is called when the token could not be refreshed and no more attempts will be made
+         *
+         * @param key the token's key
+         */
+        void tokenRefreshFailed(TokenKey key);
+    }
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "TokenRefresher";
+
+    /**
+     * Delay before the first retry of a failed refresh, which doubles with each further failure.
+     */
+    private static final long FIRST_RETRY_MILLISECONDS = 5000L;
+
+    /**
+     * Redeems the refresh tokens.
+     */
+    private final TokenExchange tokenExchange;
+
+    /**
+     * Times the refreshes and their retries.
+     */
+    private final TokenDeadlines deadlines;
+
+    /**
+     * Runs the refreshes.
+     */
+    private final Executor executor;
+
+    /**
+     * Receives the refreshed tokens.
+     */
+    private final Listener listener;
+
+    /**
+     * Access tokens whose refresh is in progress. Guarded by itself.
+     */
+    private final Set<String> refreshing = new HashSet<String>();
+
+    /**
+     * Creates a refresher.
+     *
+     * @param tokenExchange redeems the refresh tokens at the token endpoint
+     * @param deadlines tracks the tokens and is asked to retry failed refreshes
+     * @param executor runs the refreshes in the background
+     * @param listener receives refreshed tokens and failures
+     */
+    public TokenRefresher(final TokenExchange tokenExchange, final TokenDeadlines deadlines, final Executor executor,
+        final Listener listener) {
+        this.tokenExchange = tokenExchange;
+        this.deadlines = deadlines;
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Refreshes a token whose refreshDue deadline has passed. Nothing is done if the token has no refresh token.
+     *
+     * @param key the token's key
+     * @param previous the token to refresh
+     */
+    public final void refresh(final TokenKey key, final AuthorizationResult previous) {
+
+        String refreshToken = previous.getRefreshToken();
+        if (refreshToken == null || refreshToken.length() == 0) {
+            return;
+        }
+
+        started(previous);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    AuthorizationResult result;
+                    try {
+                        result = tokenExchange.refresh(previous);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Token refresh for " + key + " failed", e);
+                        finished(previous);
+                        retry(key, previous);
+                        return;
+                    } catch (AuthorizationException e) {
+                        /*
+                         * The server rejected the refresh token, so trying it again will not help.
+                         */
+                        Log.w(TAG, "Token refresh rejected", e);
+                        finished(previous);
+                        listener.tokenRefreshFailed(key);
+                        return;
+                    }
+
+                    listener.tokenRefreshed(key, previous, result);
+                    finished(previous);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /*
+             * The executor has been shut down with the activity; the deadline fires again for the next one.
+             */
+            finished(previous);
+            retry(key, previous);
+        }
+    }
+
+    /**
+     * Redeems the refresh token of a token straight away on the calling thread, for example when a service has
+     * rejected the token, and hands the new token to the listener as a scheduled refresh does.
+     *
+     * @param key the token's key
+     * @param previous the token to refresh, which must have a refresh token
+     * @return the new token
+     * @throws IOException if the token endpoint cannot be reached or returns no token
+     * @throws AuthorizationException if the server rejects the refresh token
+     */
+    public final AuthorizationResult refreshNow(final TokenKey key, final AuthorizationResult previous)
+        throws IOException, AuthorizationException {
+        started(previous);
+        try {
+            AuthorizationResult result = tokenExchange.refresh(previous);
+            listener.tokenRefreshed(key, previous, result);
+            return result;
+        } finally {
+            finished(previous);
+        }
+    }
+
+    /**
+     * Tells whether a token is being refreshed, for the OperationQueue, which keeps operations the service refused
+     * with 403 Forbidden meanwhile.
+     *
+     * @param token a token
+     * @return true if a refresh of the token is in progress
+     */
+    @Override
+    public final boolean isRefreshing(final AuthorizationResult token) {
+        synchronized (refreshing) {
+            return token != null && refreshing.contains(token.getAccessToken());
+        }
+    }
+
+    /**
+     * @param token a token whose refresh is starting
+     */
+    private void started(final AuthorizationResult token) {
+        synchronized (refreshing) {
+            refreshing.add(token.getAccessToken());
+        }
+    }
+
+    /**
+     * @param token a token whose refresh has succeeded or failed
+     */
+    private void finished(final AuthorizationResult token) {
+        synchronized (refreshing) {
+            refreshing.remove(token.getAccessToken());
+        }
+    }
+
+    /**
+     * Asks the deadlines to fire refreshDue again after a failure, backing off, or tells the listener if the token
+     * expires before the next retry.
+     *
+     * @param key the token's key
+     * @param previous the token being refreshed
+     */
+    private void retry(final TokenKey key, final AuthorizationResult previous) {
+        if (!deadlines.retryRefresh(key, previous, FIRST_RETRY_MILLISECONDS, System.currentTimeMillis())) {
+            listener.tokenRefreshFailed(key);
+        }
+    }
+}
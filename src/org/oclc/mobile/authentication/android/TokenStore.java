@@ -0,0 +1,169 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.EncryptedTokenFile;
+import org.oclc.mobile.authentication.core.TokenRecord;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Persists the parameters of the last successful authentication in the app's private storage, so that a token that
+ * is still valid can be shown at startup without running the OAuth2 flow again.
+ * <p>
+ * The record is an {@link EncryptedTokenFile}: the AES encrypted and HMAC authenticated {@link TokenRecord} of the
+ * parameters and the absolute time, in milliseconds since the epoch, at which the token expires. The AES key is generated on first use
+ * and kept in a second private file. The Android Keystore is not available at this app's minimum SDK level, so the
+ * encryption guards against casual reads of the record rather than against a rooted device.
+ * <p>
+ * The record is read lazily on the first call to {@link #getToken(long)} and then kept in memory. Saving and clearing
+ * update the memory at once, and encrypt and write, or delete, the record on the given background executor, in the
+ * order they were asked for if the executor runs one task at a time.
+ */
+public class TokenStore {
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "TokenStore";
+
+    /**
+     * The encrypted record in the app's private files directory.
+     */
+    private final EncryptedTokenFile file;
+
+    /**
+     * Writes and deletes the record file.
+     */
+    private final Executor writer;
+
+    /**
+     * The stored token, or null if there is none.
+     */
+    private AuthorizationResult token;
+
+    /**
+     * Whether the record file has been read yet.
+     */
+    private boolean loaded;
+
+    /**
+     * Creates a store in the app's private files directory. Nothing is read until a token is asked for.
+     *
+     * @param context the context whose files directory holds the record
+     * @param writer writes and deletes the record file in the background; a single thread keeps them in order
+     */
+    public TokenStore(final Context context, final Executor writer) {
+        this.file = new EncryptedTokenFile(context.getFilesDir());
+        this.writer = writer;
+    }
+
+    /**
+     * Returns the stored token if it remains valid for at least the given time.
+     *
+     * @param minimumRemainingMillis how long the token must still be valid for
+     * @return the stored token, or null if there is no token or it expires too soon
+     */
+    public final synchronized AuthorizationResult getToken(final long minimumRemainingMillis) {
+
+        if (!loaded) {
+            load();
+            loaded = true;
+        }
+
+        if (token == null || !token.isValidFor(minimumRemainingMillis, System.currentTimeMillis())) {
+            return null;
+        }
+        return token;
+    }
+
+    /**
+     * Stores the token of a successful authentication, replacing any earlier token. Results without an access token
+     * or a known expiry time are not stored. The record is written in the background.
+     *
+     * @param result the token
+     */
+    public final synchronized void saveToken(final AuthorizationResult result) {
+
+        if (result.getAccessToken() == null || result.getExpiresAtMillis() == 0) {
+            return;
+        }
+        token = result;
+        loaded = true;
+
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    file.write(result);
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not save token", e);
+                } catch (GeneralSecurityException e) {
+                    Log.w(TAG, "Could not encrypt token", e);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Could not encode token", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the stored token, for example when the user clears cookies to sign in from scratch. The record is
+     * deleted in the background, after any write asked for before.
+     */
+    public final synchronized void clear() {
+        token = null;
+        loaded = true;
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                file.delete();
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the writer, or on the calling thread if the writer has been shut down, so that the last token is
+     * not lost when the activity goes away.
+     *
+     * @param task writes or deletes the record
+     */
+    private void execute(final Runnable task) {
+        try {
+            writer.execute(task);
+        } catch (RejectedExecutionException e) {
+            task.run();
+        }
+    }
+
+    /**
+     * Reads and decrypts the record file. A missing, unreadable or tampered record simply leaves the store empty.
+     */
+    private void load() {
+        try {
+            token = file.read();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read stored token", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not decrypt stored token", e);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.oclc.mobile.authentication.android;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.oclc.mobile.authentication.core.AuthorizationException;
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.ServiceClient;
+import org.oclc.mobile.authentication.core.SingleFlight;
+import org.oclc.mobile.authentication.core.TokenKey;
+import org.oclc.mobile.authentication.core.TokenRegistry;
+
+import android.util.Log;
+
+/**
+ * Supplies a ServiceClient with tokens from the AuthenticatingWebView. A registered token is used while it remains
+ * valid; otherwise the calling thread waits for a sign in, which concurrent callers share. A token the service rejects
+ * is refreshed with its refresh token, if it has one, without showing anything. Only if it has none, or the server
+ * rejects it, is the token dropped from the registry, so the next token comes from a new sign in.
+ * <p>
+ * Must not be used on the UI thread, which runs the sign in.
+ */
+public class WebViewTokenProvider implements ServiceClient.TokenProvider {
+
+    /**
+     * Tag for log messages.
+     */
+    private static final String TAG = "WebViewTokenProvider";
+
+    /**
+     * Runs the sign ins.
+     */
+    private final AuthenticatingWebView authenticatingWebView;
+
+    /**
+     * The token request.
+     */
+    private final AuthorizationRequest request;
+
+    /**
+     * Tokens already received.
+     */
+    private final TokenRegistry tokenRegistry;
+
+    /**
+     * Redeems the refresh tokens of rejected tokens, or null to always sign in again.
+     */
+    private final TokenRefresher tokenRefresher;
+
+    /**
+     * How long a registered token must still be valid for to be used.
+     */
+    private final long minimumRemainingMillis;
+
+    /**
+     * How long to wait for a sign in.
+     */
+    private final long timeoutMillis;
+
+    /**
+     * Creates a provider.
+     *
+     * @param authenticatingWebView runs the sign ins
+     * @param request the token request
+     * @param tokenRegistry tokens already received
+     * @param tokenRefresher redeems the refresh tokens of rejected tokens, or null to always sign in again
+     * @param minimumRemainingMillis how long a registered token must still be valid for to be used
+     * @param timeoutMillis how long to wait for a sign in
+     */
+    public WebViewTokenProvider(final AuthenticatingWebView authenticatingWebView, final AuthorizationRequest request,
+        final TokenRegistry tokenRegistry, final TokenRefresher tokenRefresher, final long minimumRemainingMillis,
+        final long timeoutMillis) {
+        this.authenticatingWebView = authenticatingWebView;
+        this.request = request;
+        this.tokenRegistry = tokenRegistry;
+        this.tokenRefresher = tokenRefresher;
+        this.minimumRemainingMillis = minimumRemainingMillis;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Returns a registered token, or waits for a sign in.
+     *
+     * @return a valid token
+     * @throws IOException if the sign in fails, is cancelled or takes too long
+     */
+    @Override
+    public final AuthorizationResult getToken() throws IOException {
+        SingleFlight<TokenKey, AuthorizationResult>.Ticket ticket = authenticatingWebView.requestToken(request,
+            minimumRemainingMillis, null, 0);
+        try {
+            return ticket.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            ticket.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a token");
+        } catch (TimeoutException e) {
+            ticket.cancel(false);
+            throw new IOException("No token within " + timeoutMillis + " ms");
+        } catch (CancellationException e) {
+            throw new IOException("Sign in was cancelled");
+        } catch (ExecutionException e) {
+            throw new IOException("Sign in failed: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Redeems the refresh token of the rejected token, if it has one. Otherwise, or if the server rejects the refresh
+     * token, drops the rejected token from the registry, unless another caller already has, and waits for a sign in.
+     *
+     * @param rejected the token the service rejected
+     * @return a new token
+     * @throws IOException if the token endpoint cannot be reached, or the sign in fails, is cancelled or takes too long
+     */
+    @Override
+    public final AuthorizationResult refreshToken(final AuthorizationResult rejected) throws IOException {
+        TokenKey key = request.getTokenKey();
+        String refreshToken = rejected.getRefreshToken();
+        if (tokenRefresher != null && refreshToken != null && refreshToken.length() > 0) {
+            synchronized (this) {
+                /*
+                 * Another caller whose token was rejected may have refreshed it meanwhile.
+                 */
+                AuthorizationResult current = tokenRegistry.get(key, minimumRemainingMillis);
+                if (current != null && current != rejected) {
+                    return current;
+                }
+                try {
+                    AuthorizationResult refreshed = tokenRefresher.refreshNow(key, rejected);
+                    if (refreshed.isSuccessful()) {
+                        return refreshed;
+                    }
+                } catch (AuthorizationException e) {
+                    Log.w(TAG, "Refresh token rejected, signing in again", e);
+                }
+            }
+        }
+        tokenRegistry.remove(key, rejected);
+        return getToken();
+    }
+}
@@ -0,0 +1,458 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches the static assets of the authentication host (style sheets, scripts, images and fonts) on disk across sign
+ * ins, so that the login pages do not download them every time.
+ * <p>
+ * Assets are stored in a {@link DiskLruCache}. A cached asset is served without touching the network while it is
+ * fresh according to its Cache-Control max-age, and is revalidated with If-None-Match and If-Modified-Since once it
+ * is stale. Assets are fetched with the WebView's cookies, and cookies they set are handed back to it, through a
+ * {@link CookieJar}. Since the cache answers in place of the WebView's own HTTP cache, it keeps to the same rules:
+ * only GET requests for the extensions above on the given hosts are cached; HTML, urls with user info or
+ * credential-like query parameters, and responses that set cookies, vary by cookie or are marked no-store or private
+ * are never stored. A response other than 200 or 304 is handed to the WebView as it is rather than fetched a second
+ * time. Hits, revalidations, misses and their latencies are counted.
+ */
+public final class AssetCache {
+
+    /**
+     * The cookies of the WebView, which asset requests carry and update.
+     */
+    public interface CookieJar {
+
+        /**
+         * @param url the url of a request
+         * @return the value of the Cookie header to send with it, or null for none
+         */
+        String getCookie(String url);
+
+        /**
+         * Stores a cookie a response has set.
+         *
+         * @param url the url of the request
+         * @param value the value of its Set-Cookie header
+         */
+        void setCookie(String url, String value);
+    }
+
+    /**
+     * An asset ready to hand to the WebView.
+     */
+    public static final class Asset {
+
+        /**
+         * The MIME type.
+         */
+        private final String mimeType;
+
+        /**
+         * The character encoding, or null if the type does not declare one.
+         */
+        private final String encoding;
+
+        /**
+         * The content.
+         */
+        private final InputStream data;
+
+        /**
+         * Creates an asset.
+         *
+         * @param mimeType the MIME type
+         * @param encoding the character encoding, may be null
+         * @param data the content
+         */
+        private Asset(final String mimeType, final String encoding, final InputStream data) {
+            this.mimeType = mimeType;
+            this.encoding = encoding;
+            this.data = data;
+        }
+
+        /**
+         * @return the MIME type
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return the character encoding, or null if the type does not declare one
+         */
+        public String getEncoding() {
+            return encoding;
+        }
+
+        /**
+         * @return the content, which the reader must close
+         */
+        public InputStream getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Query parameter names that suggest a url carries credentials.
+     */
+    private static final String[] CREDENTIAL_PARAMETERS = {"token", "code", "password", "secret", "key", "session",
+        "auth", "sig" };
+
+    /**
+     * Metadata key of the ETag validator.
+     */
+    private static final String ETAG = "etag";
+
+    /**
+     * Metadata key of the Last-Modified validator.
+     */
+    private static final String LAST_MODIFIED = "lastModified";
+
+    /**
+     * Metadata key of the Content-Type.
+     */
+    private static final String CONTENT_TYPE = "contentType";
+
+    /**
+     * Metadata key of the time until which the asset is fresh, in milliseconds since the epoch.
+     */
+    private static final String FRESH_UNTIL = "freshUntil";
+
+    /**
+     * Connect and read timeout of asset requests.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Multiplier to convert seconds to milliseconds
+     */
+    private static final int SECONDS_TO_MILLISECONDS = 1000;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Size of the buffer used to read responses.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Where the assets are stored.
+     */
+    private final DiskLruCache cache;
+
+    /**
+     * Hosts whose assets are cached.
+     */
+    private final HostSet hosts;
+
+    /**
+     * The WebView's cookies, or null to fetch assets without cookies.
+     */
+    private final CookieJar cookies;
+
+    /**
+     * Assets served fresh from disk.
+     */
+    private long hits;
+
+    /**
+     * Assets served from disk after the server confirmed them.
+     */
+    private long revalidations;
+
+    /**
+     * Assets downloaded.
+     */
+    private long misses;
+
+    /**
+     * Latency of hits.
+     */
+    private final LatencyHistogram hitLatency = new LatencyHistogram();
+
+    /**
+     * Latency of revalidations and misses.
+     */
+    private final LatencyHistogram networkLatency = new LatencyHistogram();
+
+    /**
+     * Creates an asset cache.
+     *
+     * @param cache where the assets are stored
+     * @param cachedHosts hosts, with their subdomains, whose assets are cached
+     * @param cookies the WebView's cookies, or null to fetch assets without cookies
+     */
+    public AssetCache(final DiskLruCache cache, final Collection<String> cachedHosts, final CookieJar cookies) {
+        this.cache = cache;
+        this.hosts = new HostSet(cachedHosts);
+        this.cookies = cookies;
+    }
+
+    /**
+     * Tells whether a url is a static asset of a cached host that carries no credentials.
+     *
+     * @param url the url
+     * @return true if the asset may be cached
+     */
+    public boolean isCacheable(final String url) {
+        String host = HostSet.hostOf(url);
+        if (host == null || !hosts.contains(host) || url.indexOf('@') != -1) {
+            return false;
+        }
+        String type = ResourceFilter.guessMimeType(HostSet.pathOf(url));
+        if (type == null || type.equals("text/html")) {
+            return false;
+        }
+        int query = url.indexOf('?');
+        if (query != -1) {
+            String parameters = url.substring(query + 1).toLowerCase(Locale.US);
+            for (String name : CREDENTIAL_PARAMETERS) {
+                if (parameters.contains(name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an asset from the cache, revalidating or downloading it as needed.
+     *
+     * @param url a url for which isCacheable is true
+     * @return the asset, which is the server's answer as it is if that was neither 200 nor 304, or null if the request
+     *         failed, so that the WebView fetches it itself
+     */
+    public Asset fetch(final String url) {
+        long start = System.nanoTime();
+        DiskLruCache.Entry entry = cache.get(url);
+        try {
+            if (entry != null && parseLong(entry.getMetadata().get(FRESH_UNTIL)) > System.currentTimeMillis()) {
+                Asset asset = fromEntry(entry);
+                synchronized (this) {
+                    hits++;
+                    hitLatency.record((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+                }
+                return asset;
+            }
+            Asset asset = download(url, entry);
+            synchronized (this) {
+                networkLatency.record((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+            }
+            return asset;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return hit, revalidation and miss counts and latency percentiles as a single line of JSON
+     */
+    public synchronized String getStats() {
+        return "{\"hits\":" + hits + ",\"revalidations\":" + revalidations + ",\"misses\":" + misses
+            + ",\"hitLatencyMs\":" + hitLatency + ",\"networkLatencyMs\":" + networkLatency + "}";
+    }
+
+    /**
+     * Requests an asset, conditionally if a stale copy is cached, and stores the response if it may be cached.
+     *
+     * @param url the url of the asset
+     * @param entry the stale cached copy, or null
+     * @return the asset, or the server's answer if it was neither 200 nor 304
+     * @throws IOException if the request fails
+     */
+    private Asset download(final String url, final DiskLruCache.Entry entry) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            connection.setUseCaches(false);
+            String cookie = cookies == null ? null : cookies.getCookie(url);
+            if (cookie != null) {
+                connection.setRequestProperty("Cookie", cookie);
+            }
+            if (entry != null) {
+                String etag = entry.getMetadata().get(ETAG);
+                if (etag != null) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+                String lastModified = entry.getMetadata().get(LAST_MODIFIED);
+                if (lastModified != null) {
+                    connection.setRequestProperty("If-Modified-Since", lastModified);
+                }
+            }
+
+            int status = connection.getResponseCode();
+            List<String> setCookies = connection.getHeaderFields().get("Set-Cookie");
+            if (cookies != null && setCookies != null) {
+                for (String setCookie : setCookies) {
+                    cookies.setCookie(url, setCookie);
+                }
+            }
+            if (status == HttpURLConnection.HTTP_NOT_MODIFIED && entry != null) {
+                HashMap<String, String> metadata = new HashMap<String, String>(entry.getMetadata());
+                metadata.put(FRESH_UNTIL, Long.toString(freshUntil(connection)));
+                DiskLruCache.Entry updated = cache.updateMetadata(url, metadata);
+                synchronized (this) {
+                    revalidations++;
+                }
+                return fromEntry(updated == null ? entry : updated);
+            }
+
+            InputStream body = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream() : connection
+                .getInputStream();
+            byte[] content = body == null ? new byte[0] : read(body);
+            String contentType = connection.getContentType();
+            if (contentType == null) {
+                contentType = ResourceFilter.guessMimeType(HostSet.pathOf(url));
+            }
+            synchronized (this) {
+                misses++;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                /* Asking again would only get the same answer; the WebView has it now */
+                return asset(contentType, new ByteArrayInputStream(content));
+            }
+
+            String cacheControl = lower(connection.getHeaderField("Cache-Control"));
+            String vary = lower(connection.getHeaderField("Vary"));
+            if (setCookies == null && !cacheControl.contains("no-store") && !cacheControl.contains("private")
+                && !vary.contains("cookie") && !vary.contains("*") && !lower(contentType).startsWith("text/html")) {
+                HashMap<String, String> metadata = new HashMap<String, String>();
+                metadata.put(CONTENT_TYPE, contentType);
+                metadata.put(FRESH_UNTIL, Long.toString(freshUntil(connection)));
+                if (connection.getHeaderField("ETag") != null) {
+                    metadata.put(ETAG, connection.getHeaderField("ETag"));
+                }
+                if (connection.getHeaderField("Last-Modified") != null) {
+                    metadata.put(LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+                }
+                cache.put(url, content, metadata);
+            }
+            return asset(contentType, new ByteArrayInputStream(content));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * @param entry a cached asset
+     * @return the asset read from disk
+     * @throws IOException if the content cannot be opened
+     */
+    private Asset fromEntry(final DiskLruCache.Entry entry) throws IOException {
+        return asset(entry.getMetadata().get(CONTENT_TYPE), cache.open(entry));
+    }
+
+    /**
+     * Splits a Content-Type into MIME type and encoding.
+     *
+     * @param contentType the Content-Type, for example "text/css; charset=UTF-8"
+     * @param data the content
+     * @return the asset
+     */
+    private static Asset asset(final String contentType, final InputStream data) {
+        if (contentType == null) {
+            return new Asset("application/octet-stream", null, data);
+        }
+        String mimeType = contentType;
+        String encoding = null;
+        int semicolon = contentType.indexOf(';');
+        if (semicolon != -1) {
+            mimeType = contentType.substring(0, semicolon);
+            int charset = contentType.toLowerCase(Locale.US).indexOf("charset=", semicolon);
+            if (charset != -1) {
+                encoding = contentType.substring(charset + "charset=".length()).trim();
+            }
+        }
+        return new Asset(mimeType.trim(), encoding, data);
+    }
+
+    /**
+     * Works out until when a response is fresh from its Cache-Control max-age.
+     *
+     * @param connection the response
+     * @return the time until which the response is fresh, in milliseconds since the epoch
+     */
+    private static long freshUntil(final HttpURLConnection connection) {
+        String cacheControl = lower(connection.getHeaderField("Cache-Control"));
+        int maxAge = cacheControl.indexOf("max-age=");
+        if (maxAge == -1 || cacheControl.contains("no-cache")) {
+            return 0;
+        }
+        int start = maxAge + "max-age=".length();
+        int end = start;
+        while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+            end++;
+        }
+        return System.currentTimeMillis() + parseLong(cacheControl.substring(start, end)) * SECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @param value a number, may be null
+     * @return the number, or 0 if it is missing or invalid
+     */
+    private static long parseLong(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param value a header value, may be null
+     * @return the value lower-cased, or "" if it is null
+     */
+    private static String lower(final String value) {
+        return value == null ? "" : value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Reads a whole response.
+     *
+     * @param in the response stream, which is closed
+     * @return the bytes read
+     * @throws IOException if the stream cannot be read
+     */
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
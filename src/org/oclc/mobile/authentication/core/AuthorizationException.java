@@ -0,0 +1,49 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * Thrown when the authentication server redirects back with an OAuth2 error instead of a token, for example when the
+ * user declines to allow the requested scopes.
+ */
+public class AuthorizationException extends Exception {
+
+    /**
+     * Serialization version.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The OAuth2 error code, such as access_denied.
+     */
+    private final String error;
+
+    /**
+     * Creates an exception for an error returned by the server.
+     *
+     * @param error the OAuth2 error code, or null if the server did not return one
+     * @param errorDescription the server's description of the error, or null
+     */
+    public AuthorizationException(final String error, final String errorDescription) {
+        super(errorDescription != null ? error + ": " + errorDescription : error);
+        this.error = error;
+    }
+
+    /**
+     * @return the OAuth2 error code, or null if the server did not return one
+     */
+    public String getError() {
+        return error;
+    }
+}
@@ -0,0 +1,230 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+
+/**
+ * A request for an access token. The request URL is of this form:
+ * <p>
+ * {baseURL}/authorizeCode?client_id={wskey client ID}&authenticatingInstitutionId={Inst ID}
+ * &contextInstitutionId={Inst ID}&redirect_uri={redirect Url}&response_type={token} &scope={scope_1 scope_2 ...}
+ * <p>
+ * Requests are created with a {@link Builder}, which percent-encodes the values. A request for an authorization code
+ * (response_type=code) is loaded with a PKCE code challenge, see {@link #getUrl(Pkce)}.
+ */
+public final class AuthorizationRequest {
+
+    /**
+     * Builds an AuthorizationRequest from its parameters.
+     */
+    public static final class Builder {
+
+        /**
+         * The base url of the authentication server.
+         */
+        private String authenticatingServerBaseUrl;
+
+        /**
+         * The wskey client ID.
+         */
+        private String wskey;
+
+        /**
+         * The institution that authenticates the user.
+         */
+        private String authenticatingInstitutionId;
+
+        /**
+         * The institution whose data is being accessed.
+         */
+        private String contextInstitutionId;
+
+        /**
+         * The url the server redirects to with the results.
+         */
+        private String redirectUri;
+
+        /**
+         * The OAuth2 response type.
+         */
+        private String responseType = "token";
+
+        /**
+         * The scopes, separated by spaces.
+         */
+        private String scopes;
+
+        /**
+         * @param value the base url of the authentication server, for example https://authn.sd00.worldcat.org/oauth2
+         * @return this builder
+         */
+        public Builder setAuthenticatingServerBaseUrl(final String value) {
+            this.authenticatingServerBaseUrl = value;
+            return this;
+        }
+
+        /**
+         * @param value the wskey client ID
+         * @return this builder
+         */
+        public Builder setWskey(final String value) {
+            this.wskey = value;
+            return this;
+        }
+
+        /**
+         * @param value the institution that authenticates the user
+         * @return this builder
+         */
+        public Builder setAuthenticatingInstitutionId(final String value) {
+            this.authenticatingInstitutionId = value;
+            return this;
+        }
+
+        /**
+         * @param value the institution whose data is being accessed
+         * @return this builder
+         */
+        public Builder setContextInstitutionId(final String value) {
+            this.contextInstitutionId = value;
+            return this;
+        }
+
+        /**
+         * @param value the url the server redirects to with the results
+         * @return this builder
+         */
+        public Builder setRedirectUri(final String value) {
+            this.redirectUri = value;
+            return this;
+        }
+
+        /**
+         * @param value the OAuth2 response type, "token" unless set, or "code" for the authorization code flow
+         * @return this builder
+         */
+        public Builder setResponseType(final String value) {
+            this.responseType = value;
+            return this;
+        }
+
+        /**
+         * @param value the scopes, separated by spaces
+         * @return this builder
+         */
+        public Builder setScopes(final String value) {
+            this.scopes = value;
+            return this;
+        }
+
+        /**
+         * @return the request
+         * @throws IllegalStateException if a parameter has not been set
+         */
+        public AuthorizationRequest build() {
+            if (authenticatingServerBaseUrl == null || wskey == null || authenticatingInstitutionId == null
+                || contextInstitutionId == null || redirectUri == null || responseType == null || scopes == null) {
+                throw new IllegalStateException("All the authentication parameters must be set");
+            }
+            return new AuthorizationRequest(this);
+        }
+    }
+
+    /**
+     * The full URL of the request.
+     */
+    private final String url;
+
+    /**
+     * The url the server redirects to with the results.
+     */
+    private final String redirectUri;
+
+    /**
+     * Identifies the token being requested.
+     */
+    private final TokenKey tokenKey;
+
+    /**
+     * Creates the request from a builder.
+     *
+     * @param builder the builder holding the parameters
+     */
+    private AuthorizationRequest(final Builder builder) {
+        this.redirectUri = builder.redirectUri;
+        this.tokenKey = new TokenKey(builder.wskey, builder.authenticatingInstitutionId, builder.contextInstitutionId,
+            builder.scopes);
+        this.url = new StringBuilder().append(builder.authenticatingServerBaseUrl)
+            .append("/authorizeCode?client_id=")
+            .append(encode(builder.wskey))
+            .append("&authenticatingInstitutionId=")
+            .append(encode(builder.authenticatingInstitutionId))
+            .append("&contextInstitutionId=")
+            .append(encode(builder.contextInstitutionId))
+            .append("&redirect_uri=")
+            .append(encode(builder.redirectUri))
+            .append("&response_type=")
+            .append(encode(builder.responseType))
+            .append("&scope=")
+            .append(encode(builder.scopes))
+            .toString();
+    }
+
+    /**
+     * @return the full URL of the request
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * Returns the URL of the request with a PKCE code challenge, for the authorization code flow.
+     *
+     * @param pkce the pair whose verifier will redeem the code
+     * @return the full URL of the request with the challenge
+     */
+    public String getUrl(final Pkce pkce) {
+        return url + "&code_challenge=" + encode(pkce.getChallenge()) + "&code_challenge_method=" + Pkce.METHOD;
+    }
+
+    /**
+     * @return the url the server redirects to with the results
+     */
+    public String getRedirectUri() {
+        return redirectUri;
+    }
+
+    /**
+     * @return the key of the token being requested
+     */
+    public TokenKey getTokenKey() {
+        return tokenKey;
+    }
+
+    /**
+     * Percent-encodes a query parameter value. Spaces become %20 rather than +.
+     *
+     * @param value the value to encode
+     * @return the encoded value
+     */
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
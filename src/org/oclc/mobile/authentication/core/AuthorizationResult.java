@@ -0,0 +1,272 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outcome of an authentication: the parameters returned with the token, parsed once into typed fields, and the
+ * absolute times at which the token and the refresh token expire. The parameters are copied when the result is created
+ * and cannot be changed afterwards, so a result can be handed to any thread.
+ * <p>
+ * A result without an access token records a failed authentication; {@link #getError()} then tells why, if the server
+ * said.
+ */
+public final class AuthorizationResult {
+
+    /**
+     * Multiplier to convert seconds to milliseconds
+     */
+    private static final int SECONDS_TO_MILLISECONDS = 1000;
+
+    /**
+     * The params returned with the token.
+     */
+    private final Map<String, String> parameters;
+
+    /**
+     * The access token, or null if the authentication failed.
+     */
+    private final String accessToken;
+
+    /**
+     * The token type, normally bearer.
+     */
+    private final String tokenType;
+
+    /**
+     * The user's principal ID.
+     */
+    private final String principalId;
+
+    /**
+     * The namespace of the user's principal ID.
+     */
+    private final String principalIdNs;
+
+    /**
+     * The institution whose data the token gives access to.
+     */
+    private final String contextInstitutionId;
+
+    /**
+     * The refresh token, or null if none was issued.
+     */
+    private final String refreshToken;
+
+    /**
+     * The scopes granted, empty if the server did not list them.
+     */
+    private final Set<String> scopes;
+
+    /**
+     * Time at which the token expires, in milliseconds since the epoch, or 0 if expires_in was missing or invalid.
+     */
+    private final long expiresAtMillis;
+
+    /**
+     * Time at which the refresh token expires, in milliseconds since the epoch, or 0 if it is unknown.
+     */
+    private final long refreshTokenExpiresAtMillis;
+
+    /**
+     * Creates a result.
+     *
+     * @param parameters the params returned with the token
+     * @param expiresAtMillis time at which the token expires
+     * @param refreshTokenExpiresAtMillis time at which the refresh token expires
+     */
+    private AuthorizationResult(final Map<String, String> parameters, final long expiresAtMillis,
+        final long refreshTokenExpiresAtMillis) {
+        this.parameters = Collections.unmodifiableMap(new HashMap<String, String>(parameters));
+        this.accessToken = parameters.get("access_token");
+        this.tokenType = parameters.get("token_type");
+        this.principalId = parameters.get("principalID");
+        this.principalIdNs = parameters.get("principalIDNS");
+        this.contextInstitutionId = parameters.get("context_institution_id");
+        this.refreshToken = parameters.get("refresh_token");
+        this.scopes = Scopes.intern(parameters.get("scope"));
+        this.expiresAtMillis = expiresAtMillis;
+        this.refreshTokenExpiresAtMillis = refreshTokenExpiresAtMillis;
+    }
+
+    /**
+     * Creates a result from the params of a token received at the given time. The expiry times are worked out from
+     * expires_in and refresh_token_expires_in.
+     *
+     * @param parameters the params returned with the token
+     * @param receivedAtMillis time at which the token was received, in milliseconds since the epoch
+     * @return the result
+     */
+    public static AuthorizationResult received(final Map<String, String> parameters, final long receivedAtMillis) {
+        return new AuthorizationResult(parameters, expiryTime(parameters.get("expires_in"), receivedAtMillis),
+            expiryTime(parameters.get("refresh_token_expires_in"), receivedAtMillis));
+    }
+
+    /**
+     * Creates a result for a token whose expiry time is already known, for example one read back from storage.
+     *
+     * @param parameters the params returned with the token
+     * @param expiresAtMillis time at which the token expires, in milliseconds since the epoch
+     * @return the result
+     */
+    public static AuthorizationResult expiringAt(final Map<String, String> parameters, final long expiresAtMillis) {
+        return new AuthorizationResult(parameters, expiresAtMillis, 0);
+    }
+
+    /**
+     * Works out an expiry time from a lifetime in seconds.
+     *
+     * @param expiresIn the lifetime in seconds, may be null
+     * @param receivedAtMillis time at which the lifetime started, in milliseconds since the epoch
+     * @return the expiry time in milliseconds since the epoch, or 0 if the lifetime is missing or invalid
+     */
+    private static long expiryTime(final String expiresIn, final long receivedAtMillis) {
+        if (expiresIn == null) {
+            return 0;
+        }
+        try {
+            return receivedAtMillis + Long.parseLong(expiresIn) * SECONDS_TO_MILLISECONDS;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return true if the authentication returned an access token
+     */
+    public boolean isSuccessful() {
+        return accessToken != null;
+    }
+
+    /**
+     * @return the access token, or null if the authentication failed
+     */
+    public String getAccessToken() {
+        return accessToken;
+    }
+
+    /**
+     * @return the token type, normally bearer, or null if it was not returned
+     */
+    public String getTokenType() {
+        return tokenType;
+    }
+
+    /**
+     * @return the user's principal ID, or null if it was not returned
+     */
+    public String getPrincipalId() {
+        return principalId;
+    }
+
+    /**
+     * @return the namespace of the user's principal ID, or null if it was not returned
+     */
+    public String getPrincipalIdNs() {
+        return principalIdNs;
+    }
+
+    /**
+     * @return the institution whose data the token gives access to, or null if it was not returned
+     */
+    public String getContextInstitutionId() {
+        return contextInstitutionId;
+    }
+
+    /**
+     * @return the refresh token, or null if none was issued
+     */
+    public String getRefreshToken() {
+        return refreshToken;
+    }
+
+    /**
+     * @return the scopes granted, which are shared and cannot be modified, empty if the server did not list them
+     */
+    public Set<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * @return the OAuth2 error code returned instead of a token, or null if there was none
+     */
+    public String getError() {
+        return parameters.get("error");
+    }
+
+    /**
+     * @return the server's description of the error, or null if there was none
+     */
+    public String getErrorDescription() {
+        return parameters.get("error_description");
+    }
+
+    /**
+     * @param name the name of a returned param
+     * @return the param's value, or null if it was not returned
+     */
+    public String getParameter(final String name) {
+        return parameters.get(name);
+    }
+
+    /**
+     * @return all the returned params, which cannot be modified
+     */
+    public Map<String, String> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return time at which the token expires in milliseconds since the epoch, or 0 if it is unknown
+     */
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    /**
+     * @return time at which the refresh token expires in milliseconds since the epoch, or 0 if it is unknown
+     */
+    public long getRefreshTokenExpiresAtMillis() {
+        return refreshTokenExpiresAtMillis;
+    }
+
+    /**
+     * Returns the seconds left until the token expires, so that a token delivered some time after it was received can
+     * be displayed like a fresh one.
+     *
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return the whole seconds remaining, 0 once the token has expired, or -1 if the expiry time is unknown
+     */
+    public long getExpiresInSeconds(final long nowMillis) {
+        if (expiresAtMillis == 0) {
+            return -1;
+        }
+        return Math.max(0, expiresAtMillis - nowMillis) / SECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * Tells whether the result holds an access token that is valid for at least the given time.
+     *
+     * @param minimumRemainingMillis how long the token must still be valid for
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return true if the token can be used
+     */
+    public boolean isValidFor(final long minimumRemainingMillis, final long nowMillis) {
+        return accessToken != null && expiresAtMillis - nowMillis >= minimumRemainingMillis;
+    }
+}
@@ -0,0 +1,422 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size-bounded cache of byte contents on disk, keyed by string and evicted least recently used first.
+ * <p>
+ * Contents are stored content-addressed, in files named after the SHA-1 of their bytes, so keys with identical
+ * contents share one file. Each key also carries a small map of metadata, such as validators. The index of keys is
+ * kept in memory and rewritten to an "index" file whenever it changes; it is read the first time the cache is used.
+ * All methods are synchronized. I/O errors leave the cache empty or unchanged rather than failing the caller.
+ */
+public final class DiskLruCache {
+
+    /**
+     * A cached content and its metadata.
+     */
+    public static final class Entry {
+
+        /**
+         * SHA-1 of the content, which is also its file name.
+         */
+        private final String blob;
+
+        /**
+         * Size of the content in bytes.
+         */
+        private final long size;
+
+        /**
+         * Metadata stored with the content.
+         */
+        private final Map<String, String> metadata;
+
+        /**
+         * Creates an entry.
+         *
+         * @param blob SHA-1 of the content
+         * @param size size of the content
+         * @param metadata metadata stored with the content
+         */
+        private Entry(final String blob, final long size, final Map<String, String> metadata) {
+            this.blob = blob;
+            this.size = size;
+            this.metadata = Collections.unmodifiableMap(new HashMap<String, String>(metadata));
+        }
+
+        /**
+         * @return size of the content in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return metadata stored with the content, which cannot be modified
+         */
+        public Map<String, String> getMetadata() {
+            return metadata;
+        }
+    }
+
+    /**
+     * Name of the index file.
+     */
+    private static final String INDEX_FILE = "index";
+
+    /**
+     * Version of the index layout.
+     */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Mask of the low nibble of a byte.
+     */
+    private static final int NIBBLE_MASK = 0x0F;
+
+    /**
+     * Hexadecimal digits used in file names.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The directory holding the index and contents.
+     */
+    private final File directory;
+
+    /**
+     * Maximum total size of the contents in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * Entries by key, least recently used first.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    /**
+     * Number of keys referring to each content file.
+     */
+    private final HashMap<String, Integer> references = new HashMap<String, Integer>();
+
+    /**
+     * Total size of the distinct contents in bytes.
+     */
+    private long totalBytes;
+
+    /**
+     * Whether the index has been read.
+     */
+    private boolean loaded;
+
+    /**
+     * Creates a cache in a directory, which is created if needed.
+     *
+     * @param directory the directory holding the index and contents
+     * @param maxBytes maximum total size of the contents in bytes
+     */
+    public DiskLruCache(final File directory, final long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up a key and marks it as recently used.
+     *
+     * @param key the key
+     * @return the entry, or null if the key is not cached
+     */
+    public synchronized Entry get(final String key) {
+        load();
+        Entry entry = entries.get(key);
+        if (entry != null && !new File(directory, entry.blob).exists()) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Opens an entry's content. The content stays readable even if the entry is evicted while it is being read.
+     *
+     * @param entry an entry returned by get or put
+     * @return a stream of the content, which the caller must close
+     * @throws IOException if the content file cannot be opened
+     */
+    public synchronized InputStream open(final Entry entry) throws IOException {
+        return new FileInputStream(new File(directory, entry.blob));
+    }
+
+    /**
+     * Stores a content under a key, replacing any earlier one, and evicts the least recently used keys if the cache
+     * is over its size.
+     *
+     * @param key the key
+     * @param content the content
+     * @param metadata metadata stored with the content
+     * @return the new entry, or null if it could not be stored or is larger than the whole cache
+     */
+    public synchronized Entry put(final String key, final byte[] content, final Map<String, String> metadata) {
+        load();
+        if (content.length > maxBytes) {
+            remove(key);
+            return null;
+        }
+        String blob = sha1(content);
+        try {
+            File file = new File(directory, blob);
+            if (!references.containsKey(blob) || !file.exists()) {
+                write(file, content);
+            }
+        } catch (IOException e) {
+            return null;
+        }
+
+        Entry entry = new Entry(blob, content.length, metadata);
+        Entry old = entries.put(key, entry);
+        retain(entry);
+        release(old);
+        trimToSize();
+        saveIndex();
+        return entry;
+    }
+
+    /**
+     * Replaces the metadata of a key, for example when a revalidation returns new validators.
+     *
+     * @param key the key
+     * @param metadata the new metadata
+     * @return the updated entry, or null if the key is not cached
+     */
+    public synchronized Entry updateMetadata(final String key, final Map<String, String> metadata) {
+        load();
+        Entry old = entries.get(key);
+        if (old == null) {
+            return null;
+        }
+        Entry entry = new Entry(old.blob, old.size, metadata);
+        entries.put(key, entry);
+        saveIndex();
+        return entry;
+    }
+
+    /**
+     * Removes a key.
+     *
+     * @param key the key
+     */
+    public synchronized void remove(final String key) {
+        load();
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+            saveIndex();
+        }
+    }
+
+    /**
+     * Removes all keys and contents.
+     */
+    public synchronized void clear() {
+        load();
+        for (Entry entry : entries.values()) {
+            new File(directory, entry.blob).delete();
+        }
+        entries.clear();
+        references.clear();
+        totalBytes = 0;
+        saveIndex();
+    }
+
+    /**
+     * @return total size of the contents in bytes
+     */
+    public synchronized long getSize() {
+        load();
+        return totalBytes;
+    }
+
+    /**
+     * Evicts the least recently used keys until the contents fit in maxBytes.
+     */
+    private void trimToSize() {
+        Iterator<Entry> leastRecentlyUsed = entries.values().iterator();
+        while (totalBytes > maxBytes && leastRecentlyUsed.hasNext()) {
+            Entry entry = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            release(entry);
+        }
+    }
+
+    /**
+     * Counts a reference from a key to its content.
+     *
+     * @param entry the entry referring to the content
+     */
+    private void retain(final Entry entry) {
+        Integer count = references.get(entry.blob);
+        if (count == null) {
+            references.put(entry.blob, Integer.valueOf(1));
+            totalBytes += entry.size;
+        } else {
+            references.put(entry.blob, Integer.valueOf(count.intValue() + 1));
+        }
+    }
+
+    /**
+     * Drops a reference from a key to its content, deleting the content when nothing refers to it.
+     *
+     * @param entry the entry that referred to the content, may be null
+     */
+    private void release(final Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        Integer count = references.get(entry.blob);
+        if (count == null) {
+            return;
+        }
+        if (count.intValue() > 1) {
+            references.put(entry.blob, Integer.valueOf(count.intValue() - 1));
+        } else {
+            references.remove(entry.blob);
+            totalBytes -= entry.size;
+            new File(directory, entry.blob).delete();
+        }
+    }
+
+    /**
+     * Reads the index the first time the cache is used.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        directory.mkdirs();
+
+        File index = new File(directory, INDEX_FILE);
+        if (!index.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(index));
+            try {
+                if (in.readInt() != INDEX_VERSION) {
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    String key = in.readUTF();
+                    String blob = in.readUTF();
+                    long size = in.readLong();
+                    int metadataCount = in.readShort();
+                    HashMap<String, String> metadata = new HashMap<String, String>();
+                    for (int j = 0; j < metadataCount; j++) {
+                        metadata.put(in.readUTF(), in.readUTF());
+                    }
+                    Entry entry = new Entry(blob, size, metadata);
+                    entries.put(key, entry);
+                    retain(entry);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            entries.clear();
+            references.clear();
+            totalBytes = 0;
+        }
+    }
+
+    /**
+     * Rewrites the index file, least recently used key first so that the order survives a restart.
+     */
+    private void saveIndex() {
+        File temporary = new File(directory, INDEX_FILE + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary));
+            try {
+                out.writeInt(INDEX_VERSION);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> keyed : entries.entrySet()) {
+                    Entry entry = keyed.getValue();
+                    out.writeUTF(keyed.getKey());
+                    out.writeUTF(entry.blob);
+                    out.writeLong(entry.size);
+                    out.writeShort(entry.metadata.size());
+                    for (Map.Entry<String, String> metadata : entry.metadata.entrySet()) {
+                        out.writeUTF(metadata.getKey());
+                        out.writeUTF(metadata.getValue());
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            temporary.renameTo(new File(directory, INDEX_FILE));
+        } catch (IOException e) {
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Writes a content file.
+     *
+     * @param file the file
+     * @param content the content
+     * @throws IOException if the file cannot be written
+     */
+    private static void write(final File file, final byte[] content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content, 0, content.length);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param content bytes to hash
+     * @return the SHA-1 of the bytes in hexadecimal
+     */
+    private static String sha1(final byte[] content) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & NIBBLE_MASK];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & NIBBLE_MASK];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,166 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * The encrypted file of a token: the {@link TokenRecord} sealed by a {@link RecordCipher}, so that a tampered or
+ * truncated record is rejected. The AES key is generated on first use and kept in a second file in the same
+ * directory; {@link #getCipher()} hands it out for other data kept for the user, such as cached patron responses.
+ * <p>
+ * Files are written to a temporary file that is then renamed into place, so a crash while writing leaves the previous
+ * file rather than a partial one. The file is read and written as a whole; callers decide when, and what to do about
+ * errors.
+ */
+public final class EncryptedTokenFile {
+
+    /**
+     * Name of the file holding the encrypted token record.
+     */
+    private static final String RECORD_FILE = "token.dat";
+
+    /**
+     * Name of the file holding the AES key.
+     */
+    private static final String KEY_FILE = "token.key";
+
+    /**
+     * Suffix of the temporary file a file is written to before it is renamed into place.
+     */
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+
+    /**
+     * Held while the key is read or generated, so that two users of the same directory never generate two keys.
+     */
+    private static final Object KEY_LOCK = new Object();
+
+    /**
+     * Directory holding the record and key files.
+     */
+    private final File directory;
+
+    /**
+     * Creates the file of a directory. Nothing is read or written until asked for.
+     *
+     * @param directory directory holding the record and key files, which should be private to the app
+     */
+    public EncryptedTokenFile(final File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Reads and decrypts the token.
+     *
+     * @return the token, or null if no token has been written
+     * @throws IOException if the record cannot be read or parsed
+     * @throws GeneralSecurityException if the record fails its MAC check, because it has been tampered with or was
+     *             written without one, or cannot be decrypted
+     */
+    public AuthorizationResult read() throws IOException, GeneralSecurityException {
+        File recordFile = new File(directory, RECORD_FILE);
+        if (!recordFile.exists()) {
+            return null;
+        }
+        return TokenRecord.decode(getCipher().open(readFile(recordFile)));
+    }
+
+    /**
+     * Encrypts and writes a token, replacing any earlier one.
+     *
+     * @param token the token
+     * @throws IOException if the record or key cannot be written
+     * @throws GeneralSecurityException if the token cannot be encrypted
+     * @throws IllegalArgumentException if the token cannot be encoded, see {@link TokenRecord#encode}
+     */
+    public void write(final AuthorizationResult token) throws IOException, GeneralSecurityException {
+        byte[] encoded = TokenRecord.encode(token);
+        writeFile(new File(directory, RECORD_FILE), getCipher().seal(encoded));
+    }
+
+    /**
+     * Deletes the token. The key is kept for the next one.
+     */
+    public void delete() {
+        new File(directory, RECORD_FILE).delete();
+    }
+
+    /**
+     * Returns the cipher of the AES key, generating and saving the key on first use.
+     *
+     * @return the cipher used for the token record
+     * @throws IOException if the key file cannot be read or written
+     * @throws GeneralSecurityException if AES or HMAC-SHA256 is not available
+     */
+    public RecordCipher getCipher() throws IOException, GeneralSecurityException {
+
+        byte[] key;
+        synchronized (KEY_LOCK) {
+            File keyFile = new File(directory, KEY_FILE);
+            if (keyFile.exists()) {
+                key = readFile(keyFile);
+            } else {
+                key = new byte[RecordCipher.KEY_LENGTH];
+                new SecureRandom().nextBytes(key);
+                writeFile(keyFile, key);
+            }
+        }
+        return new RecordCipher(key);
+    }
+
+    /**
+     * Reads a whole file.
+     *
+     * @param file the file to read
+     * @return the file's contents
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        byte[] contents = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(contents);
+        } finally {
+            in.close();
+        }
+        return contents;
+    }
+
+    /**
+     * Replaces a file's contents by writing a temporary file, flushing it to the disk and renaming it over the file.
+     *
+     * @param file the file to write
+     * @param contents the new contents
+     * @throws IOException if the file cannot be written or renamed
+     */
+    private static void writeFile(final File file, final byte[] contents) throws IOException {
+        File temporary = new File(file.getPath() + TEMPORARY_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temporary);
+        try {
+            out.write(contents);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not rename " + temporary + " to " + file);
+        }
+    }
+}
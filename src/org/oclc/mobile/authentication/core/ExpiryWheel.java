@@ -0,0 +1,388 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Fires deadlines for any number of keys from a single background thread, instead of one timer per key.
+ * <p>
+ * This is a hashed timer wheel. Time is cut into ticks, and each tick maps onto one of a fixed number of slots, which
+ * holds the keys whose deadline falls in a tick ending up in that slot. Scheduling and cancelling a key are constant
+ * time. Deadlines are rounded up to the next tick boundary, so all the keys due in the same tick are fired together in
+ * one wakeup, and the thread sleeps right through ticks that have nothing due.
+ * <p>
+ * Each key has at most one deadline; scheduling it again replaces the earlier one. The listener is called on the
+ * wheel's thread, outside of any lock, so it may schedule or cancel keys.
+ *
+ * @param <K> the type of the keys
+ */
+public final class ExpiryWheel<K> {
+
+    /**
+     * Receives the deadlines as they pass.
+     *
+     * @param <K> the type of the keys
+     */
+    public interface Listener<K> {
+
+        /**
+         * Method is called once a key's deadline has passed
+         *
+         * @param key the key
+         * @param deadlineMillis the deadline that passed, in milliseconds since the epoch
+         */
+        void deadlineReached(K key, long deadlineMillis);
+    }
+
+    /**
+     * A scheduled deadline, linked into the list of its slot.
+     *
+     * @param <K> the type of the keys
+     */
+    private static final class Timeout<K> {
+
+        /**
+         * The key.
+         */
+        private final K key;
+
+        /**
+         * The deadline, in milliseconds since the epoch.
+         */
+        private final long deadlineMillis;
+
+        /**
+         * The tick at the end of which the deadline fires.
+         */
+        private final long tick;
+
+        /**
+         * Previous timeout in the slot.
+         */
+        private Timeout<K> previous;
+
+        /**
+         * Next timeout in the slot.
+         */
+        private Timeout<K> next;
+
+        /**
+         * Creates a timeout.
+         *
+         * @param key the key
+         * @param deadlineMillis the deadline
+         * @param tick the tick at the end of which the deadline fires
+         */
+        private Timeout(final K key, final long deadlineMillis, final long tick) {
+            this.key = key;
+            this.deadlineMillis = deadlineMillis;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * Length of a tick, in milliseconds.
+     */
+    private final long tickMillis;
+
+    /**
+     * Mask that maps a tick onto its slot. The number of slots is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * First timeout of each slot, or null if the slot is empty.
+     */
+    private final List<Timeout<K>> slots;
+
+    /**
+     * The timeout of each key.
+     */
+    private final HashMap<K, Timeout<K>> timeouts = new HashMap<K, Timeout<K>>();
+
+    /**
+     * Receives the deadlines.
+     */
+    private final Listener<K> listener;
+
+    /**
+     * The last tick whose deadlines have been fired.
+     */
+    private long currentTick;
+
+    /**
+     * The tick the thread is sleeping until, or Long.MAX_VALUE if it is sleeping until something is scheduled.
+     */
+    private long sleepingUntilTick = Long.MAX_VALUE;
+
+    /**
+     * Number of times the deadlines were advanced.
+     */
+    private long wakeups;
+
+    /**
+     * Number of deadlines fired.
+     */
+    private long fired;
+
+    /**
+     * The thread that fires the deadlines, or null if it is not running.
+     */
+    private Thread thread;
+
+    /**
+     * Creates a wheel starting at the given time. Its thread is not started.
+     *
+     * @param tickMillis length of a tick in milliseconds, which is how far a deadline can fire late
+     * @param slotCount number of slots, rounded up to a power of two; a wheel with about as many slots as the ticks in
+     *            a typical deadline fires each key on its first visit to its slot
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @param listener receives the deadlines
+     */
+    public ExpiryWheel(final long tickMillis, final int slotCount, final long nowMillis, final Listener<K> listener) {
+        int size = 1;
+        while (size < slotCount) {
+            size <<= 1;
+        }
+        this.tickMillis = tickMillis;
+        this.mask = size - 1;
+        this.slots = new ArrayList<Timeout<K>>(size);
+        for (int i = 0; i < size; i++) {
+            slots.add(null);
+        }
+        this.currentTick = nowMillis / tickMillis;
+        this.listener = listener;
+    }
+
+    /**
+     * Schedules a key's deadline, replacing any deadline it already has. A deadline that has already passed fires at
+     * the end of the current tick.
+     *
+     * @param key the key
+     * @param deadlineMillis the deadline in milliseconds since the epoch
+     */
+    public synchronized void schedule(final K key, final long deadlineMillis) {
+        unlink(timeouts.remove(key));
+
+        long tick = Math.max(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis);
+        Timeout<K> timeout = new Timeout<K>(key, deadlineMillis, tick);
+        int slot = (int) (tick & mask);
+        timeout.next = slots.get(slot);
+        if (timeout.next != null) {
+            timeout.next.previous = timeout;
+        }
+        slots.set(slot, timeout);
+        timeouts.put(key, timeout);
+
+        /*
+         * Wake the thread up if it is sleeping past the new deadline.
+         */
+        if (tick < sleepingUntilTick) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Cancels a key's deadline.
+     *
+     * @param key the key
+     * @return true if the key had a deadline
+     */
+    public synchronized boolean cancel(final K key) {
+        Timeout<K> timeout = timeouts.remove(key);
+        unlink(timeout);
+        return timeout != null;
+    }
+
+    /**
+     * Cancels every deadline.
+     */
+    public synchronized void clear() {
+        timeouts.clear();
+        for (int i = 0; i < slots.size(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    /**
+     * @return the number of keys with a deadline
+     */
+    public synchronized int size() {
+        return timeouts.size();
+    }
+
+    /**
+     * @return the number of times the deadlines were advanced, which is how often the thread woke up
+     */
+    public synchronized long getWakeups() {
+        return wakeups;
+    }
+
+    /**
+     * @return the number of deadlines fired
+     */
+    public synchronized long getFired() {
+        return fired;
+    }
+
+    /**
+     * Fires every deadline in the ticks that have ended by the given time. The wheel's thread calls this itself; it is
+     * public so that a wheel can also be driven by another clock.
+     *
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return the number of deadlines fired
+     */
+    public int advance(final long nowMillis) {
+        ArrayList<Timeout<K>> due = new ArrayList<Timeout<K>>();
+        synchronized (this) {
+            wakeups++;
+            long nowTick = nowMillis / tickMillis;
+
+            /*
+             * Visit each slot at most once, however long it has been since the last advance.
+             */
+            long lastTick = Math.min(nowTick, currentTick + slots.size());
+            for (long tick = currentTick + 1; tick <= lastTick; tick++) {
+                Timeout<K> timeout = slots.get((int) (tick & mask));
+                while (timeout != null) {
+                    Timeout<K> next = timeout.next;
+                    if (timeout.tick <= nowTick) {
+                        unlink(timeout);
+                        timeouts.remove(timeout.key);
+                        due.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            if (nowTick > currentTick) {
+                currentTick = nowTick;
+            }
+            fired += due.size();
+        }
+
+        for (Timeout<K> timeout : due) {
+            listener.deadlineReached(timeout.key, timeout.deadlineMillis);
+        }
+        return due.size();
+    }
+
+    /**
+     * Starts the thread that fires the deadlines. It is a daemon thread, so it does not keep the app alive.
+     *
+     * @param name the name of the thread
+     */
+    public synchronized void start(final String name) {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (awaitNextTick()) {
+                    advance(System.currentTimeMillis());
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the thread. Deadlines stay scheduled, and fire if the thread is started again.
+     */
+    public synchronized void shutdown() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Sleeps until the end of the next tick that has a deadline, or until a deadline is scheduled before it.
+     *
+     * @return false if the thread was stopped
+     */
+    private synchronized boolean awaitNextTick() {
+        Thread self = Thread.currentThread();
+        try {
+            while (thread == self) {
+                long nextTick = nextTick();
+                sleepingUntilTick = nextTick;
+                if (nextTick == Long.MAX_VALUE) {
+                    wait();
+                } else {
+                    long delay = nextTick * tickMillis - System.currentTimeMillis();
+                    if (delay <= 0) {
+                        return true;
+                    }
+                    wait(delay);
+                }
+            }
+        } catch (InterruptedException e) {
+            return false;
+        } finally {
+            sleepingUntilTick = Long.MAX_VALUE;
+        }
+        return false;
+    }
+
+    /**
+     * Finds the earliest tick with a deadline, visiting the slots in the order their ticks come up.
+     *
+     * @return the tick, whose start is the earliest time its deadlines can fire, or Long.MAX_VALUE if no deadline is
+     *         scheduled
+     */
+    private long nextTick() {
+        if (timeouts.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long earliest = Long.MAX_VALUE;
+        for (long tick = currentTick + 1; tick <= currentTick + slots.size(); tick++) {
+            for (Timeout<K> timeout = slots.get((int) (tick & mask)); timeout != null; timeout = timeout.next) {
+                if (timeout.tick == tick) {
+                    return tick;
+                }
+                earliest = Math.min(earliest, timeout.tick);
+            }
+        }
+        return earliest;
+    }
+
+    /**
+     * Removes a timeout from its slot.
+     *
+     * @param timeout the timeout, may be null
+     */
+    private void unlink(final Timeout<K> timeout) {
+        if (timeout == null) {
+            return;
+        }
+        if (timeout.previous != null) {
+            timeout.previous.next = timeout.next;
+        } else {
+            int slot = (int) (timeout.tick & mask);
+            if (slots.get(slot) == timeout) {
+                slots.set(slot, timeout.next);
+            }
+        }
+        if (timeout.next != null) {
+            timeout.next.previous = timeout.previous;
+        }
+        timeout.previous = null;
+        timeout.next = null;
+    }
+}
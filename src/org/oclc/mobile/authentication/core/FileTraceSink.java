@@ -0,0 +1,69 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Appends each trace and summary as a line of JSON to a file. Write failures are ignored, since losing a trace must
+ * not affect authentication.
+ */
+public final class FileTraceSink implements TraceSink {
+
+    /**
+     * The file written to.
+     */
+    private final File file;
+
+    /**
+     * Creates a sink that appends to a file.
+     *
+     * @param file the file written to, created if it does not exist
+     */
+    public FileTraceSink(final File file) {
+        this.file = file;
+    }
+
+    @Override
+    public void flowCompleted(final FlowTrace trace) {
+        append("{\"trace\":" + trace + "}");
+    }
+
+    @Override
+    public void summary(final String summary) {
+        append("{\"summary\":" + summary + "}");
+    }
+
+    /**
+     * Appends a line to the file.
+     *
+     * @param line the line, without its line break
+     */
+    private synchronized void append(final String line) {
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                writer.write(line);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+/**
+ * Aggregates the traces of completed authentications into latency histograms and passes each trace and an updated
+ * summary to a {@link TraceSink}. Thread safe.
+ */
+public final class FlowMetrics {
+
+    /**
+     * Receives the traces and summaries.
+     */
+    private final TraceSink sink;
+
+    /**
+     * Time from loading the request URL to receiving the redirect URI.
+     */
+    private final LatencyHistogram total = new LatencyHistogram();
+
+    /**
+     * Time from loading the request URL until the login form had loaded.
+     */
+    private final LatencyHistogram timeToLoginForm = new LatencyHistogram();
+
+    /**
+     * Time the user spent on loaded pages.
+     */
+    private final LatencyHistogram thinkTime = new LatencyHistogram();
+
+    /**
+     * Time from submitting the credentials to receiving the redirect URI.
+     */
+    private final LatencyHistogram submitToRedirect = new LatencyHistogram();
+
+    /**
+     * Number of pages loaded before the redirect URI.
+     */
+    private final LatencyHistogram redirectChainLength = new LatencyHistogram();
+
+    /**
+     * Number of sub-resources that were not loaded.
+     */
+    private final LatencyHistogram blockedRequests = new LatencyHistogram();
+
+    /**
+     * Creates metrics that report to a sink.
+     *
+     * @param sink receives the traces and summaries
+     */
+    public FlowMetrics(final TraceSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Records a completed authentication.
+     *
+     * @param trace the authentication's timing
+     */
+    public void record(final FlowTrace trace) {
+        total.record(trace.getTotalMillis());
+        timeToLoginForm.record(trace.getTimeToLoginFormMillis());
+        thinkTime.record(trace.getThinkTimeMillis());
+        submitToRedirect.record(trace.getSubmitToRedirectMillis());
+        redirectChainLength.record(trace.getRedirectChainLength());
+        blockedRequests.record(trace.getBlockedRequests());
+
+        sink.flowCompleted(trace);
+        sink.summary(getSummary());
+    }
+
+    /**
+     * @return percentiles of each phase as a single line of JSON; redirectChainLength and blockedRequests are counts,
+     *         the others are in milliseconds
+     */
+    public String getSummary() {
+        return "{\"totalMs\":" + total + ",\"timeToLoginFormMs\":" + timeToLoginForm + ",\"thinkMs\":" + thinkTime
+            + ",\"submitToRedirectMs\":" + submitToRedirect + ",\"redirectChainLength\":" + redirectChainLength
+            + ",\"blockedRequests\":" + blockedRequests + "}";
+    }
+}
@@ -0,0 +1,247 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Timing of one authentication, from loading the request URL to receiving the redirect URI.
+ * <p>
+ * The trace is fed the WebView's page events. The first page to finish loading is taken to be the login form. Time
+ * between a page finishing and the next one starting is the user reading or typing (think time), and the first
+ * navigation after the login form is the credential submit. Urls are recorded without their query string or fragment,
+ * so that no token or code ends up in a trace. A trace is used on one thread only.
+ */
+public final class FlowTrace {
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Time at which the request URL was loaded.
+     */
+    private final long startNanos;
+
+    /**
+     * Urls of the pages loaded, without query or fragment.
+     */
+    private final List<String> urls = new ArrayList<String>();
+
+    /**
+     * Load time in milliseconds of each page in urls, or -1 while it is loading.
+     */
+    private final List<Long> loadMillis = new ArrayList<Long>();
+
+    /**
+     * Time at which the page being loaded started, or 0 if none is loading.
+     */
+    private long pageStartNanos;
+
+    /**
+     * Time at which the last page finished loading, or 0 if the user has navigated since.
+     */
+    private long lastFinishNanos;
+
+    /**
+     * Time at which the login form finished loading, or 0 if it has not.
+     */
+    private long loginFormNanos;
+
+    /**
+     * Time at which the credentials were submitted, or 0 if they have not been.
+     */
+    private long submitNanos;
+
+    /**
+     * Total time between a page finishing and the next one starting.
+     */
+    private long thinkNanos;
+
+    /**
+     * Time at which the redirect URI was received, or 0 if it has not been.
+     */
+    private long endNanos;
+
+    /**
+     * Number of sub-resources that were not loaded.
+     */
+    private int blockedRequests;
+
+    /**
+     * Starts a trace.
+     *
+     * @param startNanos time at which the request URL was loaded, from System.nanoTime()
+     */
+    public FlowTrace(final long startNanos) {
+        this.startNanos = startNanos;
+    }
+
+    /**
+     * Records a page starting to load.
+     *
+     * @param url the url of the page
+     * @param nanos the current System.nanoTime()
+     */
+    public void pageStarted(final String url, final long nanos) {
+        if (lastFinishNanos != 0) {
+            thinkNanos += nanos - lastFinishNanos;
+            lastFinishNanos = 0;
+            if (loginFormNanos != 0 && submitNanos == 0) {
+                submitNanos = nanos;
+            }
+        }
+        pageStartNanos = nanos;
+        urls.add(stripQuery(url));
+        loadMillis.add(Long.valueOf(-1));
+    }
+
+    /**
+     * Records the current page finishing loading.
+     *
+     * @param nanos the current System.nanoTime()
+     */
+    public void pageFinished(final long nanos) {
+        if (pageStartNanos == 0) {
+            return;
+        }
+        loadMillis.set(loadMillis.size() - 1, Long.valueOf((nanos - pageStartNanos) / NANOSECONDS_TO_MILLISECONDS));
+        pageStartNanos = 0;
+        lastFinishNanos = nanos;
+        if (loginFormNanos == 0) {
+            loginFormNanos = nanos;
+        }
+    }
+
+    /**
+     * Records the redirect URI being received, which ends the trace.
+     *
+     * @param nanos the current System.nanoTime()
+     */
+    public void redirectReceived(final long nanos) {
+        if (lastFinishNanos != 0) {
+            thinkNanos += nanos - lastFinishNanos;
+            lastFinishNanos = 0;
+            if (submitNanos == 0) {
+                submitNanos = nanos;
+            }
+        }
+        endNanos = nanos;
+    }
+
+    /**
+     * Records the number of sub-resources a {@link ResourceFilter} kept from loading.
+     *
+     * @param count the number of requests blocked
+     */
+    public void setBlockedRequests(final int count) {
+        this.blockedRequests = count;
+    }
+
+    /**
+     * @return the number of sub-resources that were not loaded
+     */
+    public int getBlockedRequests() {
+        return blockedRequests;
+    }
+
+    /**
+     * @return true once the redirect URI has been received
+     */
+    public boolean isComplete() {
+        return endNanos != 0;
+    }
+
+    /**
+     * @return time from loading the request URL to receiving the redirect URI, in milliseconds
+     */
+    public long getTotalMillis() {
+        return (endNanos - startNanos) / NANOSECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @return time from loading the request URL until the login form had loaded, in milliseconds, or -1 if no page
+     *         finished loading
+     */
+    public long getTimeToLoginFormMillis() {
+        return loginFormNanos == 0 ? -1 : (loginFormNanos - startNanos) / NANOSECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @return time the user spent on loaded pages, in milliseconds
+     */
+    public long getThinkTimeMillis() {
+        return thinkNanos / NANOSECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @return time from submitting the credentials to receiving the redirect URI, in milliseconds, or -1 if the login
+     *         form was never submitted
+     */
+    public long getSubmitToRedirectMillis() {
+        return submitNanos == 0 ? -1 : (endNanos - submitNanos) / NANOSECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @return the number of pages loaded before the redirect URI
+     */
+    public int getRedirectChainLength() {
+        return urls.size();
+    }
+
+    /**
+     * @return the trace as a single line of JSON
+     */
+    @Override
+    public String toString() {
+        StringBuilder json = new StringBuilder().append("{\"totalMs\":")
+            .append(getTotalMillis())
+            .append(",\"timeToLoginFormMs\":")
+            .append(getTimeToLoginFormMillis())
+            .append(",\"thinkMs\":")
+            .append(getThinkTimeMillis())
+            .append(",\"submitToRedirectMs\":")
+            .append(getSubmitToRedirectMillis())
+            .append(",\"redirectChainLength\":")
+            .append(getRedirectChainLength())
+            .append(",\"blockedRequests\":")
+            .append(blockedRequests)
+            .append(",\"loads\":[");
+        for (int i = 0; i < urls.size(); i++) {
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append("{\"url\":\"").append(urls.get(i).replace("\\", "\\\\").replace("\"", "\\\""))
+                .append("\",\"ms\":").append(loadMillis.get(i)).append('}');
+        }
+        return json.append("]}").toString();
+    }
+
+    /**
+     * Removes the query string and fragment from a url.
+     *
+     * @param url the url
+     * @return the url up to its first "?" or "#"
+     */
+    private static String stripQuery(final String url) {
+        for (int i = 0; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                return url.substring(0, i);
+            }
+        }
+        return url;
+    }
+}
@@ -0,0 +1,153 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A set of hosts, each of which also stands for its subdomains: "worldcat.org" matches worldcat.org and
+ * authn.sd00.worldcat.org. The hosts are lower-cased and split into a set and a suffix list once, when the set is
+ * created, and urls are examined without being parsed into objects.
+ */
+public final class HostSet {
+
+    /**
+     * The hosts, lower-cased.
+     */
+    private final HashSet<String> hosts = new HashSet<String>();
+
+    /**
+     * The hosts prefixed with ".", to match their subdomains.
+     */
+    private final List<String> domainSuffixes = new ArrayList<String>();
+
+    /**
+     * Creates a set of hosts.
+     *
+     * @param hostNames the hosts, may be null
+     */
+    public HostSet(final Collection<String> hostNames) {
+        if (hostNames != null) {
+            for (String host : hostNames) {
+                String normalized = host.trim().toLowerCase(Locale.US);
+                if (normalized.length() > 0) {
+                    hosts.add(normalized);
+                    domainSuffixes.add("." + normalized);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the set holds no hosts
+     */
+    public boolean isEmpty() {
+        return hosts.isEmpty();
+    }
+
+    /**
+     * @param host a lower-case host
+     * @return true if the host or one of its parent domains is in the set
+     */
+    public boolean contains(final String host) {
+        if (hosts.contains(host)) {
+            return true;
+        }
+        for (String suffix : domainSuffixes) {
+            if (host.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the host of an http or https url, lower-cased and without user info or port.
+     *
+     * @param url the url
+     * @return the host, or null if the url is not http or https
+     */
+    public static String hostOf(final String url) {
+        int hostStart = authorityStart(url);
+        if (hostStart == -1) {
+            return null;
+        }
+        int hostEnd = authorityEnd(url, hostStart);
+        for (int i = hostStart; i < hostEnd; i++) {
+            if (url.charAt(i) == '@') {
+                hostStart = i + 1;
+            }
+        }
+        for (int i = hostStart; i < hostEnd; i++) {
+            if (url.charAt(i) == ':') {
+                hostEnd = i;
+            }
+        }
+        return url.substring(hostStart, hostEnd).toLowerCase(Locale.US);
+    }
+
+    /**
+     * Returns the path of an http or https url, without query or fragment.
+     *
+     * @param url the url
+     * @return the path, "/" if it is empty, or null if the url is not http or https
+     */
+    public static String pathOf(final String url) {
+        int authorityStart = authorityStart(url);
+        if (authorityStart == -1) {
+            return null;
+        }
+        int pathStart = authorityEnd(url, authorityStart);
+        int pathEnd = url.length();
+        for (int i = pathStart; i < pathEnd; i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                pathEnd = i;
+            }
+        }
+        return pathStart == pathEnd ? "/" : url.substring(pathStart, pathEnd);
+    }
+
+    /**
+     * @param url the url
+     * @return the index just after "http://" or "https://", or -1 if the url has another scheme
+     */
+    private static int authorityStart(final String url) {
+        if (url.regionMatches(true, 0, "https://", 0, "https://".length())) {
+            return "https://".length();
+        }
+        if (url.regionMatches(true, 0, "http://", 0, "http://".length())) {
+            return "http://".length();
+        }
+        return -1;
+    }
+
+    /**
+     * @param url the url
+     * @param authorityStart the index at which the authority starts
+     * @return the index of the first "/", "?" or "#" after the authority, or the length of the url
+     */
+    private static int authorityEnd(final String url, final int authorityStart) {
+        for (int i = authorityStart; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '/' || c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+}
@@ -0,0 +1,224 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Reads the members of a JSON object, such as a token endpoint response, into a map of strings. These classes are
+ * Android-free, so org.json is not available to them.
+ * <p>
+ * String values are unescaped; numbers, true and false are kept as written; members whose value is null are left out.
+ * Nested objects and arrays are kept as their JSON text.
+ */
+final class JsonObjectReader {
+
+    /**
+     * Radix of the digits of a unicode escape.
+     */
+    private static final int HEX_RADIX = 16;
+
+    /**
+     * Number of digits of a unicode escape.
+     */
+    private static final int UNICODE_ESCAPE_DIGITS = 4;
+
+    /**
+     * The JSON text.
+     */
+    private final String json;
+
+    /**
+     * Index of the next character to read.
+     */
+    private int cursor;
+
+    /**
+     * Creates a reader.
+     *
+     * @param json the JSON text
+     */
+    private JsonObjectReader(final String json) {
+        this.json = json;
+    }
+
+    /**
+     * Reads a JSON object.
+     *
+     * @param json the JSON text
+     * @param members the map that receives the members
+     * @throws IOException if the text is not a JSON object
+     */
+    static void read(final String json, final Map<String, String> members) throws IOException {
+        JsonObjectReader reader = new JsonObjectReader(json);
+        reader.expect('{');
+        if (reader.peek() == '}') {
+            reader.cursor++;
+        } else {
+            do {
+                reader.expect('"');
+                String name = reader.readString();
+                reader.expect(':');
+                String value = reader.readValue();
+                if (value != null) {
+                    members.put(name, value);
+                }
+            } while (reader.next() == ',');
+            reader.cursor--;
+            reader.expect('}');
+        }
+        if (reader.peek() != 0) {
+            throw new IOException("Text after the JSON object");
+        }
+    }
+
+    /**
+     * Reads a value.
+     *
+     * @return the value as a string, or null for null
+     * @throws IOException if there is no valid value
+     */
+    private String readValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            cursor++;
+            return readString();
+        }
+        int start = cursor;
+        if (c == '{' || c == '[') {
+            skipNested();
+        } else {
+            while (cursor < json.length() && ",}] \t\r\n".indexOf(json.charAt(cursor)) == -1) {
+                cursor++;
+            }
+        }
+        String value = json.substring(start, cursor);
+        if (value.length() == 0) {
+            throw new IOException("Missing value at " + start);
+        }
+        return "null".equals(value) ? null : value;
+    }
+
+    /**
+     * Reads the rest of a string whose opening quote has been read.
+     *
+     * @return the unescaped string
+     * @throws IOException if the string is not terminated or has a bad escape
+     */
+    private String readString() throws IOException {
+        StringBuilder value = new StringBuilder();
+        while (cursor < json.length()) {
+            char c = json.charAt(cursor++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (cursor >= json.length()) {
+                break;
+            }
+            char escaped = json.charAt(cursor++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (cursor + UNICODE_ESCAPE_DIGITS > json.length()) {
+                    throw new IOException("Bad unicode escape at " + cursor);
+                }
+                try {
+                    value.append((char) Integer.parseInt(json.substring(cursor, cursor + UNICODE_ESCAPE_DIGITS),
+                        HEX_RADIX));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Bad unicode escape at " + cursor);
+                }
+                cursor += UNICODE_ESCAPE_DIGITS;
+                break;
+            default:
+                value.append(escaped);
+            }
+        }
+        throw new IOException("Unterminated string");
+    }
+
+    /**
+     * Skips a nested object or array, including any strings in it.
+     *
+     * @throws IOException if it is not terminated
+     */
+    private void skipNested() throws IOException {
+        int depth = 0;
+        while (cursor < json.length()) {
+            char c = json.charAt(cursor++);
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                depth++;
+            } else if ((c == '}' || c == ']') && --depth == 0) {
+                return;
+            }
+        }
+        throw new IOException("Unterminated nested value");
+    }
+
+    /**
+     * Reads the next character that is not white space.
+     *
+     * @param expected the character that must come next
+     * @throws IOException if another character comes next
+     */
+    private void expect(final char expected) throws IOException {
+        if (next() != expected) {
+            throw new IOException("Expected '" + expected + "' at " + (cursor - 1));
+        }
+    }
+
+    /**
+     * Reads the next character that is not white space.
+     *
+     * @return the character, or 0 at the end of the text
+     */
+    private char next() {
+        char c = peek();
+        cursor++;
+        return c;
+    }
+
+    /**
+     * Skips white space and looks at the next character without reading it.
+     *
+     * @return the character, or 0 at the end of the text
+     */
+    private char peek() {
+        while (cursor < json.length() && Character.isWhitespace(json.charAt(cursor))) {
+            cursor++;
+        }
+        return cursor < json.length() ? json.charAt(cursor) : 0;
+    }
+}
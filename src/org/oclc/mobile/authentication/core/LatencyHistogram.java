@@ -0,0 +1,128 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+/**
+ * Counts millisecond latencies in logarithmic buckets, so that percentiles can be read back in constant memory. Each
+ * power of two is split into {@value #SUB_BUCKETS} linear buckets, which bounds the error of a percentile to about
+ * 25%. All methods are synchronized.
+ */
+public final class LatencyHistogram {
+
+    /**
+     * Number of linear buckets per power of two.
+     */
+    private static final int SUB_BUCKETS = 4;
+
+    /**
+     * log2 of SUB_BUCKETS.
+     */
+    private static final int SUB_BUCKET_BITS = 2;
+
+    /**
+     * Number of bits in a long.
+     */
+    private static final int LONG_BITS = 64;
+
+    /**
+     * Counts of each bucket. Values below SUB_BUCKETS have a bucket each.
+     */
+    private final long[] counts = new long[(LONG_BITS - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+
+    /**
+     * Number of values recorded.
+     */
+    private long total;
+
+    /**
+     * Largest value recorded.
+     */
+    private long max;
+
+    /**
+     * Records a latency.
+     *
+     * @param millis the latency, negative values are ignored
+     */
+    public synchronized void record(final long millis) {
+        if (millis < 0) {
+            return;
+        }
+        counts[bucketOf(millis)]++;
+        total++;
+        max = Math.max(max, millis);
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * Returns the value below which the given fraction of recorded values fall, rounded up to the top of its bucket.
+     *
+     * @param fraction the percentile as a fraction, for example 0.95
+     * @return the percentile in milliseconds, or 0 if nothing was recorded
+     */
+    public synchronized long getPercentile(final double fraction) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank && counts[bucket] > 0) {
+                return Math.min(max, upperBoundOf(bucket));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return p50, p95, p99 and max as a JSON object
+     */
+    @Override
+    public synchronized String toString() {
+        return "{\"count\":" + total + ",\"p50\":" + getPercentile(0.5) + ",\"p95\":" + getPercentile(0.95) + ",\"p99\":"
+            + getPercentile(0.99) + ",\"max\":" + max + "}";
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return the index of the bucket holding the value
+     */
+    private static int bucketOf(final long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = LONG_BITS - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @param bucket the index of a bucket
+     * @return the largest value the bucket holds
+     */
+    private static long upperBoundOf(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,80 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.Collection;
+
+/**
+ * Decides what the authentication WebView does with each url it is about to load: let the WebView load it, capture it
+ * as the redirect URI, or block it.
+ * <p>
+ * The redirect URI is recognized by a {@link RedirectMatcher}. Other http and https urls are loaded if their host is
+ * allowed. An allowed host "worldcat.org" allows worldcat.org and all of its subdomains; with no allowed hosts, every
+ * host is allowed. about: urls are loaded, and any other scheme is blocked. The hosts are held in a {@link HostSet},
+ * so urls are examined without being parsed into objects.
+ */
+public final class NavigationPolicy {
+
+    /**
+     * What to do with a url.
+     */
+    public enum Decision {
+        /** Let the WebView load the url. */
+        PROCEED,
+        /** The url is the redirect URI: parse it and do not load it. */
+        REDIRECT,
+        /** Do not load the url. */
+        BLOCK
+    }
+
+    /**
+     * Recognizes the redirect URI.
+     */
+    private final RedirectMatcher redirectMatcher;
+
+    /**
+     * The allowed hosts.
+     */
+    private final HostSet hosts;
+
+    /**
+     * Creates a policy.
+     *
+     * @param redirectMatcher recognizes the redirect URI
+     * @param allowedHosts hosts whose pages may be loaded, with their subdomains, or null or empty to allow any host
+     */
+    public NavigationPolicy(final RedirectMatcher redirectMatcher, final Collection<String> allowedHosts) {
+        this.redirectMatcher = redirectMatcher;
+        this.hosts = new HostSet(allowedHosts);
+    }
+
+    /**
+     * @param url the url the WebView is about to load
+     * @return what to do with the url
+     */
+    public Decision decide(final String url) {
+
+        if (redirectMatcher.matches(url)) {
+            return Decision.REDIRECT;
+        }
+
+        String host = HostSet.hostOf(url);
+        if (host == null) {
+            return url.regionMatches(true, 0, "about:", 0, "about:".length()) ? Decision.PROCEED : Decision.BLOCK;
+        }
+        if (hosts.isEmpty() || hosts.contains(host)) {
+            return Decision.PROCEED;
+        }
+        return Decision.BLOCK;
+    }
+}
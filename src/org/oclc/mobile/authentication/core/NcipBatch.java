@@ -0,0 +1,339 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs many NCIP operations, such as renewing all of a patron's checkouts, as one batch. The operations are sent
+ * through a {@link ServiceClient}, a bounded number at a time over its kept-alive connections, and the outcome of each
+ * is gathered into a single {@link Result} delivered when the last one finishes. One operation failing does not stop
+ * the others.
+ */
+public class NcipBatch {
+
+    /**
+     * Receives the outcome of a batch.
+     */
+    public interface Listener {
+
+        /**
+         * Method is called once every operation of the batch has finished, on the thread of the last one
+         *
+         * @param result the outcome of each operation
+         */
+        void batchCompleted(Result result);
+    }
+
+    /**
+     * The outcome of one operation.
+     */
+    public static final class ItemResult {
+
+        /**
+         * The operation.
+         */
+        private final NcipOperation operation;
+
+        /**
+         * The HTTP status of the response, or 0 if there was none.
+         */
+        private final int status;
+
+        /**
+         * The NCIP response message, or null if there was none.
+         */
+        private final String response;
+
+        /**
+         * Why the operation could not be sent, or null if it was.
+         */
+        private final Exception error;
+
+        /**
+         * Creates an outcome.
+         *
+         * @param operation the operation
+         * @param status the HTTP status of the response
+         * @param response the NCIP response message
+         * @param error why the operation could not be sent
+         */
+        private ItemResult(final NcipOperation operation, final int status, final String response, final Exception error) {
+            this.operation = operation;
+            this.status = status;
+            this.response = response;
+            this.error = error;
+        }
+
+        /**
+         * @return the operation
+         */
+        public NcipOperation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the HTTP status of the response, or 0 if there was none
+         */
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return the NCIP response message, or null if there was none
+         */
+        public String getResponse() {
+            return response;
+        }
+
+        /**
+         * @return why the operation could not be sent, or null if it was
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * Tells whether the operation succeeded: it was answered with a 2xx status and the NCIP response reports no
+         * Problem.
+         *
+         * @return true if the operation succeeded
+         */
+        public boolean isSuccessful() {
+            return error == null && status >= 200 && status < 300 && response != null && response.indexOf("Problem>") < 0;
+        }
+
+        @Override
+        public String toString() {
+            return operation + ": " + (isSuccessful() ? "ok" : error != null ? error.getMessage() : "HTTP " + status);
+        }
+    }
+
+    /**
+     * The outcome of a batch: the outcome of each operation, in the order the operations were given.
+     */
+    public static final class Result {
+
+        /**
+         * The outcome of each operation.
+         */
+        private final List<ItemResult> items;
+
+        /**
+         * Time the batch took, in milliseconds.
+         */
+        private final long elapsedMillis;
+
+        /**
+         * Creates an outcome.
+         *
+         * @param items the outcome of each operation
+         * @param elapsedMillis time the batch took
+         */
+        private Result(final List<ItemResult> items, final long elapsedMillis) {
+            this.items = Collections.unmodifiableList(items);
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /**
+         * @return the outcome of each operation, in the order the operations were given
+         */
+        public List<ItemResult> getItems() {
+            return items;
+        }
+
+        /**
+         * @return the operations that did not succeed
+         */
+        public List<ItemResult> getFailures() {
+            ArrayList<ItemResult> failures = new ArrayList<ItemResult>();
+            for (ItemResult item : items) {
+                if (!item.isSuccessful()) {
+                    failures.add(item);
+                }
+            }
+            return failures;
+        }
+
+        /**
+         * @return time the batch took, in milliseconds
+         */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        @Override
+        public String toString() {
+            return items.size() + " operations, " + getFailures().size() + " failed, " + elapsedMillis + " ms";
+        }
+    }
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Media type of NCIP messages.
+     */
+    private static final String NCIP_MEDIA_TYPE = "application/xml";
+
+    /**
+     * Sends the operations.
+     */
+    private final ServiceClient client;
+
+    /**
+     * Url of the NCIP service.
+     */
+    private final String serviceUrl;
+
+    /**
+     * Threads that send the operations, as many as may be in progress at once.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Creates a batch runner.
+     *
+     * @param client sends the operations
+     * @param serviceUrl url of the NCIP service
+     * @param parallelism number of operations in progress at once
+     */
+    public NcipBatch(final ServiceClient client, final String serviceUrl, final int parallelism) {
+        this.client = client;
+        this.serviceUrl = serviceUrl;
+        this.workers = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "NcipBatch-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts a batch and returns straight away. Once the runner has been shut down, operations are no longer sent but
+     * still get an outcome, with the rejection as its error, so that the caller can keep them for later; the listener
+     * may then be called on the calling thread.
+     *
+     * @param operations the operations to run
+     * @param token the token whose principal and context institution the operations are for
+     * @param listener receives the outcome once every operation has finished
+     */
+    public final void submit(final List<NcipOperation> operations, final AuthorizationResult token, final Listener listener) {
+
+        final long start = System.nanoTime();
+        final ItemResult[] results = new ItemResult[operations.size()];
+        final AtomicInteger remaining = new AtomicInteger(operations.size());
+        if (operations.isEmpty()) {
+            listener.batchCompleted(new Result(new ArrayList<ItemResult>(), 0));
+            return;
+        }
+
+        for (int i = 0; i < operations.size(); i++) {
+            final int index = i;
+            final NcipOperation operation = operations.get(i);
+            final Runnable finish = new Runnable() {
+                @Override
+                public void run() {
+                    if (remaining.decrementAndGet() == 0) {
+                        listener.batchCompleted(new Result(Arrays.asList(results),
+                            (System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS));
+                    }
+                }
+            };
+            try {
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        results[index] = send(operation, token);
+                        finish.run();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                results[index] = new ItemResult(operation, 0, null, e);
+                finish.run();
+            }
+        }
+    }
+
+    /**
+     * Runs a batch and waits for it to finish. Must not be called on the UI thread.
+     *
+     * @param operations the operations to run
+     * @param token the token whose principal and context institution the operations are for
+     * @return the outcome of each operation
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public final Result execute(final List<NcipOperation> operations, final AuthorizationResult token)
+        throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Result[] outcome = new Result[1];
+        submit(operations, token, new Listener() {
+            @Override
+            public void batchCompleted(final Result result) {
+                outcome[0] = result;
+                done.countDown();
+            }
+        });
+        done.await();
+        return outcome[0];
+    }
+
+    /**
+     * Stops the worker threads once the batches already submitted have finished.
+     */
+    public final void shutdown() {
+        workers.shutdown();
+    }
+
+    /**
+     * Sends one operation.
+     *
+     * @param operation the operation
+     * @param token the token whose principal and context institution the operation is for
+     * @return the outcome
+     */
+    private ItemResult send(final NcipOperation operation, final AuthorizationResult token) {
+        try {
+            byte[] message = operation.toMessage(token.getContextInstitutionId(), token.getPrincipalId()).getBytes("UTF-8");
+            ServiceResponse response = client.post(serviceUrl, NCIP_MEDIA_TYPE, message, NCIP_MEDIA_TYPE);
+            return new ItemResult(operation, response.getStatus(), response.getBodyAsString(), null);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            return new ItemResult(operation, 0, null, e);
+        } catch (RuntimeException e) {
+            /*
+             * Record it against the operation, so that the batch still completes.
+             */
+            return new ItemResult(operation, 0, null, e);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * One NCIP operation on an item: renewing it, placing a hold on it or looking it up. An operation knows how to write
+ * itself as an NCIP 2.0 message for a given agency and user.
+ */
+public final class NcipOperation {
+
+    /**
+     * The kinds of operation.
+     */
+    public enum Type {
+        /** Renew an item checked out to the user. */
+        RENEW("RenewItem"),
+        /** Place a hold on an item for the user. */
+        HOLD("RequestItem"),
+        /** Look up an item's details. */
+        LOOKUP("LookupItem");
+
+        /**
+         * Name of the NCIP message.
+         */
+        private final String messageName;
+
+        /**
+         * Creates a type.
+         *
+         * @param messageName name of the NCIP message
+         */
+        private Type(final String messageName) {
+            this.messageName = messageName;
+        }
+    }
+
+    /**
+     * Namespace of NCIP 2.0 messages.
+     */
+    private static final String NCIP_NAMESPACE = "http://www.niso.org/2008/ncip";
+
+    /**
+     * Version of the NCIP schema the messages follow.
+     */
+    private static final String NCIP_VERSION = "http://www.niso.org/schemas/ncip/v2_02/ncip_v2_02.xsd";
+
+    /**
+     * The kind of operation.
+     */
+    private final Type type;
+
+    /**
+     * Identifier of the item, such as its barcode.
+     */
+    private final String itemId;
+
+    /**
+     * Creates an operation.
+     *
+     * @param type the kind of operation
+     * @param itemId identifier of the item
+     */
+    private NcipOperation(final Type type, final String itemId) {
+        this.type = type;
+        this.itemId = itemId;
+    }
+
+    /**
+     * @param itemId identifier of the item
+     * @return an operation renewing the item
+     */
+    public static NcipOperation renew(final String itemId) {
+        return new NcipOperation(Type.RENEW, itemId);
+    }
+
+    /**
+     * @param itemId identifier of the item
+     * @return an operation placing a hold on the item
+     */
+    public static NcipOperation hold(final String itemId) {
+        return new NcipOperation(Type.HOLD, itemId);
+    }
+
+    /**
+     * @param itemId identifier of the item
+     * @return an operation looking the item up
+     */
+    public static NcipOperation lookup(final String itemId) {
+        return new NcipOperation(Type.LOOKUP, itemId);
+    }
+
+    /**
+     * @return the kind of operation
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return identifier of the item
+     */
+    public String getItemId() {
+        return itemId;
+    }
+
+    /**
+     * Writes the operation as an NCIP message.
+     *
+     * @param agencyId the institution that holds the item, normally the context institution
+     * @param userId the user the operation is for, normally the principal ID; not sent with a lookup
+     * @return the message
+     */
+    public String toMessage(final String agencyId, final String userId) {
+        StringBuilder message = new StringBuilder(512);
+        message.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>")
+            .append("<NCIPMessage xmlns=\"").append(NCIP_NAMESPACE).append("\" version=\"").append(NCIP_VERSION).append("\">")
+            .append('<').append(type.messageName).append('>')
+            .append("<InitiationHeader><FromAgencyId><AgencyId>").append(escape(agencyId))
+            .append("</AgencyId></FromAgencyId><ToAgencyId><AgencyId>").append(escape(agencyId))
+            .append("</AgencyId></ToAgencyId></InitiationHeader>");
+        if (type != Type.LOOKUP) {
+            message.append("<UserId><UserIdentifierValue>").append(escape(userId)).append("</UserIdentifierValue></UserId>");
+        }
+        message.append("<ItemId><ItemIdentifierValue>").append(escape(itemId)).append("</ItemIdentifierValue></ItemId>");
+        if (type == Type.HOLD) {
+            message.append("<RequestType>Hold</RequestType><RequestScopeType>Item</RequestScopeType>");
+        }
+        message.append("</").append(type.messageName).append("></NCIPMessage>");
+        return message.toString();
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + itemId;
+    }
+
+    /**
+     * Escapes the characters that are special in XML text.
+     *
+     * @param text the text, may be null
+     * @return the escaped text, empty for null
+     */
+    private static String escape(final String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+            case '&':
+                escaped.append("&amp;");
+                break;
+            case '<':
+                escaped.append("&lt;");
+                break;
+            case '>':
+                escaped.append("&gt;");
+                break;
+            case '"':
+                escaped.append("&quot;");
+                break;
+            default:
+                escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
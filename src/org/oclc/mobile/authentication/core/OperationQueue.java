@@ -0,0 +1,883 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * NCIP operations that could not be sent, kept on disk until a new token arrives for the user they are for, and then
+ * sent in batches.
+ * <p>
+ * The queue is a write-ahead log: an operation is appended to the "operations" file and synced to disk before
+ * {@link #enqueue} returns, and an operation that the service has answered is marked done by appending another record.
+ * Each record carries a CRC32, so a record torn by a crash is dropped, along with anything after it, the first time the
+ * queue is used. The log is compacted to the operations still pending whenever a replay finishes.
+ * <p>
+ * Operations are kept per principal and context institution, and are only ever sent with a token of the same user.
+ * Each has a duplicate key, its type and item, so that an operation enqueued again while it is still pending, for
+ * example by a second tap on Renew, is queued once. The key only deduplicates the queue on the device: NCIP has no
+ * standard field for it and the service does not see it, so it does not stop the service receiving an operation
+ * twice. An operation the service answered just before the app died, or whose answer was lost, is sent again on the
+ * next replay; renewals and holds are repeated by the service as it sees fit.
+ * <p>
+ * An operation is settled once the service has answered it in a way that sending it again would not change. One that
+ * could not be sent, or was answered with 401 Unauthorized, 408 Request Timeout, 429 Too Many Requests or a server
+ * error, stays queued, as does one answered with 403 Forbidden while its token is being refreshed, as reported by the
+ * queue's {@link RefreshState}.
+ * <p>
+ * Replays run one at a time on the queue's background thread. State is guarded by the queue's lock; enqueue blocks on
+ * the disk, so it should not be called on the UI thread.
+ */
+public final class OperationQueue {
+
+    /**
+     * Receives the outcome of a replay.
+     */
+    public interface Listener {
+
+        /**
+         * Method is called on the queue's background thread when a replay has finished
+         *
+         * @param settled the number of operations the service answered, which are no longer queued
+         * @param remaining the number of operations still queued for the user, because the service could not be reached
+         * @param elapsedMillis time the replay took
+         */
+        void replayCompleted(int settled, int remaining, long elapsedMillis);
+    }
+
+    /**
+     * Tells whether a token is being refreshed, during which the service may refuse it with 403 Forbidden.
+     */
+    public interface RefreshState {
+
+        /**
+         * @param token a token operations were sent with
+         * @return true if a refresh of the token is in progress
+         */
+        boolean isRefreshing(AuthorizationResult token);
+    }
+
+    /**
+     * An operation waiting to be sent.
+     */
+    private static final class Pending {
+
+        /**
+         * The user the operation is for.
+         */
+        private final String principal;
+
+        /**
+         * The duplicate key, unique among the user's pending operations.
+         */
+        private final String key;
+
+        /**
+         * The operation.
+         */
+        private final NcipOperation operation;
+
+        /**
+         * When the operation was enqueued.
+         */
+        private final long enqueuedAtMillis;
+
+        /**
+         * Creates a pending operation.
+         *
+         * @param principal the user the operation is for
+         * @param key the duplicate key
+         * @param operation the operation
+         * @param enqueuedAtMillis when the operation was enqueued
+         */
+        private Pending(final String principal, final String key, final NcipOperation operation,
+            final long enqueuedAtMillis) {
+            this.principal = principal;
+            this.key = key;
+            this.operation = operation;
+            this.enqueuedAtMillis = enqueuedAtMillis;
+        }
+    }
+
+    /**
+     * Name of the log file.
+     */
+    private static final String LOG_FILE = "operations";
+
+    /**
+     * Version of the log layout, written at the start of the file.
+     */
+    private static final int LOG_VERSION = 1;
+
+    /**
+     * Size of the version at the start of the file.
+     */
+    private static final int HEADER_BYTES = 4;
+
+    /**
+     * Record of an enqueued operation.
+     */
+    private static final byte ENQUEUED = 1;
+
+    /**
+     * Record of an operation the service has answered.
+     */
+    private static final byte DONE = 2;
+
+    /**
+     * Size of the length and checksum around each record.
+     */
+    private static final int FRAME_BYTES = 8;
+
+    /**
+     * Largest record that is read; a larger length means the record is torn.
+     */
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    /**
+     * Number of operations sent in each batch of a replay.
+     */
+    private static final int REPLAY_BATCH_SIZE = 100;
+
+    /**
+     * Lowest HTTP status of a server error, which may go away if the operation is sent again.
+     */
+    private static final int HTTP_SERVER_ERROR = 500;
+
+    /**
+     * HTTP status of a rejected token.
+     */
+    private static final int HTTP_UNAUTHORIZED = 401;
+
+    /**
+     * HTTP status of a refused request, which may be a token the service no longer accepts while it is refreshed.
+     */
+    private static final int HTTP_FORBIDDEN = 403;
+
+    /**
+     * HTTP status of a request the server gave up waiting for.
+     */
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+
+    /**
+     * HTTP status of a request refused because too many were made.
+     */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * The log file.
+     */
+    private final File file;
+
+    /**
+     * Single background thread that runs the replays.
+     */
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(runnable, "OperationQueue");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * Pending operations by principal and duplicate key, oldest first.
+     */
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<String, Pending>();
+
+    /**
+     * Tells whether a token is being refreshed, or null if 403 Forbidden always settles an operation.
+     */
+    private volatile RefreshState refreshState;
+
+    /**
+     * Appends to the log, or null until the log is first written.
+     */
+    private FileOutputStream log;
+
+    /**
+     * Number of records in the log, to tell when compacting it would save space.
+     */
+    private int logRecords;
+
+    /**
+     * Whether the log has been read.
+     */
+    private boolean loaded;
+
+    /**
+     * Number of operations enqueued.
+     */
+    private long enqueued;
+
+    /**
+     * Number of operations not enqueued because they were already pending.
+     */
+    private long duplicates;
+
+    /**
+     * Number of operations the service answered during replays.
+     */
+    private long settled;
+
+    /**
+     * Number of times the log was compacted.
+     */
+    private long compactions;
+
+    /**
+     * Number of records that could not be written, which leaves sent operations to be sent again.
+     */
+    private long writeFailures;
+
+    /**
+     * Creates a queue kept in the given directory, which should not be a cache directory, since the operations are
+     * lost if the system clears it. The directory is read the first time the queue is used.
+     *
+     * @param directory the directory of the log, created if need be
+     */
+    public OperationQueue(final File directory) {
+        directory.mkdirs();
+        this.file = new File(directory, LOG_FILE);
+    }
+
+    /**
+     * Sets what tells whether a token is being refreshed. Until it is set, an operation answered with 403 Forbidden is
+     * settled.
+     *
+     * @param state tells whether a token is being refreshed, or null
+     */
+    public void setRefreshState(final RefreshState state) {
+        this.refreshState = state;
+    }
+
+    /**
+     * Tells which operations of a batch may succeed if they are sent again: those that are not settled, as described
+     * above. An operation answered otherwise, even with an NCIP Problem, is settled, since sending it again would get
+     * the same answer.
+     *
+     * @param result the outcome of a batch
+     * @param token the token the batch was sent with
+     * @return the operations worth sending again, in the order of the batch
+     */
+    public List<NcipOperation> unsent(final NcipBatch.Result result, final AuthorizationResult token) {
+        ArrayList<NcipOperation> unsent = new ArrayList<NcipOperation>();
+        for (NcipBatch.ItemResult item : result.getItems()) {
+            if (!isSettled(item, token)) {
+                unsent.add(item.getOperation());
+            }
+        }
+        return unsent;
+    }
+
+    /**
+     * Queues an operation for the user of a token, unless an operation with the same duplicate key is already queued
+     * for the user. The operation is on disk when this method returns.
+     *
+     * @param token a token of the user the operation is for, which may have expired
+     * @param operation the operation
+     * @return true if the operation was queued, false if it was already
+     * @throws IOException if the operation cannot be written to disk
+     */
+    public boolean enqueue(final AuthorizationResult token, final NcipOperation operation) throws IOException {
+        return enqueue(token, Collections.singletonList(operation)) == 1;
+    }
+
+    /**
+     * Queues operations for the user of a token, leaving out those whose duplicate key is already queued for the
+     * user. The operations are on disk, with a single sync, when this method returns.
+     *
+     * @param token a token of the user the operations are for, which may have expired
+     * @param operations the operations
+     * @return the number of operations queued
+     * @throws IOException if the operations cannot be written to disk, in which case none is queued
+     */
+    public synchronized int enqueue(final AuthorizationResult token, final List<NcipOperation> operations)
+        throws IOException {
+        load();
+        String principal = principalOf(token);
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, Pending> added = new LinkedHashMap<String, Pending>();
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        for (NcipOperation operation : operations) {
+            String key = keyOf(operation);
+            String mapKey = principal + '\n' + key;
+            if (pending.containsKey(mapKey) || added.containsKey(mapKey)) {
+                duplicates++;
+                continue;
+            }
+            Pending entry = new Pending(principal, key, operation, now);
+            added.put(mapKey, entry);
+            records.add(enqueuedRecord(entry));
+        }
+
+        append(records);
+        pending.putAll(added);
+        enqueued += added.size();
+        return added.size();
+    }
+
+    /**
+     * @return the number of operations queued for every user
+     */
+    public synchronized int size() {
+        load();
+        return pending.size();
+    }
+
+    /**
+     * @param token a token of the user
+     * @return the operations queued for the user of the token, oldest first
+     */
+    public synchronized List<NcipOperation> getPending(final AuthorizationResult token) {
+        load();
+        return operationsOf(pendingFor(principalOf(token), Integer.MAX_VALUE));
+    }
+
+    /**
+     * Sends the operations queued for the user of a new token on the queue's background thread, in batches, and
+     * returns straight away. The replay stops at the first batch with an operation that could not be sent, since the
+     * service cannot be reached, or the token is no longer accepted; those operations stay queued.
+     *
+     * @param token the new token
+     * @param batch runs the batches
+     * @param listener receives the outcome, or null
+     */
+    public void replay(final AuthorizationResult token, final NcipBatch batch, final Listener listener) {
+        final String principal = principalOf(token);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runReplay(principal, token, batch, listener);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /*
+             * The queue has been shut down; the operations wait for the next one.
+             */
+            return;
+        }
+    }
+
+    /**
+     * Shuts a batch runner down once the replays already started have finished with it, for example when the activity
+     * that owns the runner is recreated while a replay is still sending through it.
+     *
+     * @param batch the batch runner
+     */
+    public void shutdownAfterReplays(final NcipBatch batch) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    batch.shutdown();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            /*
+             * The queue has been shut down, so no replay is using the runner.
+             */
+            batch.shutdown();
+        }
+    }
+
+    /**
+     * Stops the background thread once the replays already started have finished, and closes the log. The queue must
+     * not be used afterwards.
+     */
+    public void shutdown() {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    close();
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * @return counts of the operations enqueued, left out as duplicates, settled by replays and still pending, of the
+     *         compactions and of the records that could not be written
+     */
+    public synchronized String getStats() {
+        return "enqueued=" + enqueued + " duplicates=" + duplicates + " settled=" + settled + " pending="
+            + pending.size() + " logRecords=" + logRecords + " compactions=" + compactions + " writeFailures="
+            + writeFailures;
+    }
+
+    /**
+     * Sends the operations queued for a user, in batches, until none is left or one cannot be sent.
+     *
+     * @param principal the user
+     * @param token the token of the user
+     * @param batch runs the batches
+     * @param listener receives the outcome, or null
+     */
+    private void runReplay(final String principal, final AuthorizationResult token, final NcipBatch batch,
+        final Listener listener) {
+
+        long start = System.nanoTime();
+        int replaySettled = sendAll(principal, token, batch);
+
+        int remaining;
+        synchronized (this) {
+            compactIfNeeded();
+            remaining = pendingFor(principal, Integer.MAX_VALUE).size();
+        }
+        if (listener != null) {
+            listener.replayCompleted(replaySettled, remaining, (System.nanoTime() - start)
+                / NANOSECONDS_TO_MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sends the operations queued for a user, in batches, until none is left or a batch has an operation that could not
+     * be sent.
+     *
+     * @param principal the user
+     * @param token the token of the user
+     * @param batch runs the batches
+     * @return the number of operations settled
+     */
+    private int sendAll(final String principal, final AuthorizationResult token, final NcipBatch batch) {
+        int count = 0;
+        try {
+            while (true) {
+                List<Pending> chunk;
+                synchronized (this) {
+                    load();
+                    chunk = pendingFor(principal, REPLAY_BATCH_SIZE);
+                }
+                if (chunk.isEmpty()) {
+                    return count;
+                }
+
+                List<NcipBatch.ItemResult> items = batch.execute(operationsOf(chunk), token).getItems();
+                ArrayList<Pending> done = new ArrayList<Pending>();
+                for (int i = 0; i < items.size(); i++) {
+                    if (isSettled(items.get(i), token)) {
+                        done.add(chunk.get(i));
+                    }
+                }
+                synchronized (this) {
+                    markDone(done);
+                    settled += done.size();
+                }
+                count += done.size();
+                if (done.size() < chunk.size()) {
+                    return count;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return count;
+        }
+    }
+
+    /**
+     * Removes operations from the queue and appends their done records with a single sync. If the records cannot be
+     * written, the operations are still removed, so that this process does not send them again.
+     *
+     * @param done the operations to remove
+     */
+    private void markDone(final List<Pending> done) {
+        if (done.isEmpty()) {
+            return;
+        }
+        ArrayList<byte[]> records = new ArrayList<byte[]>();
+        for (Pending entry : done) {
+            pending.remove(entry.principal + '\n' + entry.key);
+            records.add(doneRecord(entry));
+        }
+        try {
+            append(records);
+        } catch (IOException e) {
+            writeFailures += records.size();
+        }
+    }
+
+    /**
+     * @param principal a user
+     * @param max the largest number of operations to return
+     * @return the oldest operations queued for the user
+     */
+    private List<Pending> pendingFor(final String principal, final int max) {
+        ArrayList<Pending> entries = new ArrayList<Pending>();
+        for (Pending entry : pending.values()) {
+            if (entries.size() == max) {
+                break;
+            }
+            if (entry.principal.equals(principal)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the log the first time the queue is used. Reading stops at the first record that is incomplete or fails
+     * its checksum, and the log is cut there, so that new records are not appended after a torn one.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.exists()) {
+            return;
+        }
+
+        long validLength = readLog();
+        try {
+            if (validLength < file.length()) {
+                if (validLength < HEADER_BYTES) {
+                    file.delete();
+                } else {
+                    RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+                    try {
+                        truncated.setLength(validLength);
+                    } finally {
+                        truncated.close();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            writeFailures++;
+        }
+    }
+
+    /**
+     * Reads the log into the pending operations.
+     *
+     * @return the length of the log up to the first record that is incomplete, fails its checksum or cannot be parsed
+     */
+    private long readLog() {
+        long validLength = 0;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != LOG_VERSION) {
+                    return 0;
+                }
+                validLength = HEADER_BYTES;
+                byte[] record;
+                while ((record = readRecord(in)) != null) {
+                    apply(record);
+                    logRecords++;
+                    validLength += FRAME_BYTES + record.length;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            /*
+             * A record cut short by a crash ends the log; what came before it is kept.
+             */
+            return validLength;
+        }
+        return validLength;
+    }
+
+    /**
+     * Reads one record with its length and checksum.
+     *
+     * @param in the log
+     * @return the record, or null at the end of the log or if the length or checksum is wrong
+     * @throws IOException if the record is cut short
+     */
+    private static byte[] readRecord(final DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length <= 0 || length > MAX_RECORD_BYTES) {
+            return null;
+        }
+        byte[] record = new byte[length];
+        in.readFully(record);
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        return in.readInt() == (int) crc.getValue() ? record : null;
+    }
+
+    /**
+     * Applies one record of the log to the pending operations.
+     *
+     * @param record the record
+     * @throws IOException if the record cannot be parsed
+     */
+    private void apply(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte kind = in.readByte();
+        String principal = in.readUTF();
+        String key = in.readUTF();
+        if (kind == ENQUEUED) {
+            NcipOperation operation = operationOf(in.readUTF(), in.readUTF());
+            pending.put(principal + '\n' + key, new Pending(principal, key, operation, in.readLong()));
+        } else if (kind == DONE) {
+            pending.remove(principal + '\n' + key);
+        } else {
+            throw new IOException("Unknown record " + kind);
+        }
+    }
+
+    /**
+     * Appends records to the log and syncs it to disk, writing the header first if the log is new.
+     *
+     * @param records the records
+     * @throws IOException if the records cannot be written
+     */
+    private void append(final List<byte[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        if (log == null && (!file.exists() || file.length() < HEADER_BYTES)) {
+            out.writeInt(LOG_VERSION);
+        }
+        for (byte[] record : records) {
+            frame(out, record);
+        }
+
+        if (log == null) {
+            log = new FileOutputStream(file, true);
+        }
+        log.write(bytes.toByteArray());
+        log.getFD().sync();
+        logRecords += records.size();
+    }
+
+    /**
+     * Rewrites the log with only the pending operations, if it holds any other record. The new log is written to a
+     * temporary file and synced before it replaces the old one, so a crash leaves one or the other.
+     */
+    private void compactIfNeeded() {
+        if (logRecords == pending.size()) {
+            return;
+        }
+        close();
+        File temporary = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(LOG_VERSION);
+                for (Pending entry : pending.values()) {
+                    frame(out, enqueuedRecord(entry));
+                }
+                out.flush();
+            } finally {
+                out.close();
+            }
+            syncFile(temporary);
+            if (!temporary.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+            logRecords = pending.size();
+            compactions++;
+        } catch (IOException e) {
+            temporary.delete();
+            writeFailures++;
+        }
+    }
+
+    /**
+     * Closes the log, which is opened again by the next append.
+     */
+    private synchronized void close() {
+        if (log != null) {
+            try {
+                log.close();
+            } catch (IOException e) {
+                writeFailures++;
+            }
+            log = null;
+        }
+    }
+
+    /**
+     * Writes a record with its length and checksum.
+     *
+     * @param out the stream
+     * @param record the record
+     * @throws IOException if the record cannot be written
+     */
+    private static void frame(final DataOutputStream out, final byte[] record) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * @param entry a pending operation
+     * @return the record of its being enqueued
+     */
+    private static byte[] enqueuedRecord(final Pending entry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(ENQUEUED);
+            out.writeUTF(entry.principal);
+            out.writeUTF(entry.key);
+            out.writeUTF(entry.operation.getType().name());
+            out.writeUTF(entry.operation.getItemId());
+            out.writeLong(entry.enqueuedAtMillis);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param entry a pending operation
+     * @return the record of its being done
+     */
+    private static byte[] doneRecord(final Pending entry) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(DONE);
+            out.writeUTF(entry.principal);
+            out.writeUTF(entry.key);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Syncs a file that has been closed to disk.
+     *
+     * @param written the file
+     * @throws IOException if the file cannot be synced
+     */
+    private static void syncFile(final File written) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(written, "rw");
+        try {
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param item the outcome of an operation
+     * @param token the token the operation was sent with
+     * @return true if the service answered it in a way that sending it again would not change
+     */
+    private boolean isSettled(final NcipBatch.ItemResult item, final AuthorizationResult token) {
+        int status = item.getStatus();
+        if (item.getError() != null || status == 0 || status >= HTTP_SERVER_ERROR) {
+            return false;
+        }
+        switch (status) {
+        case HTTP_UNAUTHORIZED:
+        case HTTP_REQUEST_TIMEOUT:
+        case HTTP_TOO_MANY_REQUESTS:
+            return false;
+        case HTTP_FORBIDDEN:
+            RefreshState state = refreshState;
+            return state == null || !state.isRefreshing(token);
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @param token a token
+     * @return the user and context institution of the token
+     * @throws IllegalArgumentException if the token does not name a user
+     */
+    private static String principalOf(final AuthorizationResult token) {
+        if (token == null || token.getPrincipalId() == null) {
+            throw new IllegalArgumentException("The token does not name a user");
+        }
+        return token.getPrincipalIdNs() + '|' + token.getPrincipalId() + '|' + token.getContextInstitutionId();
+    }
+
+    /**
+     * @param operation an operation
+     * @return its duplicate key: its type and item
+     */
+    private static String keyOf(final NcipOperation operation) {
+        return operation.getType().name() + ':' + operation.getItemId();
+    }
+
+    /**
+     * @param type the name of a type of operation
+     * @param itemId identifier of the item
+     * @return the operation
+     * @throws IOException if the type is unknown
+     */
+    private static NcipOperation operationOf(final String type, final String itemId) throws IOException {
+        NcipOperation.Type kind;
+        try {
+            kind = NcipOperation.Type.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Unknown operation " + type);
+        }
+        if (kind == NcipOperation.Type.RENEW) {
+            return NcipOperation.renew(itemId);
+        } else if (kind == NcipOperation.Type.HOLD) {
+            return NcipOperation.hold(itemId);
+        }
+        return NcipOperation.lookup(itemId);
+    }
+
+    /**
+     * @param entries pending operations
+     * @return their operations
+     */
+    private static List<NcipOperation> operationsOf(final List<Pending> entries) {
+        ArrayList<NcipOperation> operations = new ArrayList<NcipOperation>(entries.size());
+        for (Pending entry : entries) {
+            operations.add(entry.operation);
+        }
+        return operations;
+    }
+}
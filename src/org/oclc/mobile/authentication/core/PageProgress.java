@@ -0,0 +1,62 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * Decides when the progress dialog of an authentication is shown and hidden as its pages load. The dialog is only
+ * shown for the pages of a visible authentication, and only hidden once it has been shown, so a silent authentication,
+ * whose pages load in a hidden WebView, never touches it, not even when it is escalated halfway through a page. Not
+ * thread safe; AuthenticatingWebView uses it on the UI thread.
+ */
+public final class PageProgress {
+
+    /**
+     * Whether the dialog is shown.
+     */
+    private boolean shown;
+
+    /**
+     * Method is called when a page starts to load.
+     *
+     * @param silent whether the authentication is silent
+     * @return true if the dialog should be shown
+     */
+    public boolean pageStarted(final boolean silent) {
+        if (silent) {
+            return false;
+        }
+        shown = true;
+        return true;
+    }
+
+    /**
+     * Method is called when a page has finished loading.
+     *
+     * @return true if the dialog should be hidden, false if it is not shown
+     */
+    public boolean pageFinished() {
+        if (!shown) {
+            return false;
+        }
+        shown = false;
+        return true;
+    }
+
+    /**
+     * @return whether the dialog is shown
+     */
+    public boolean isShown() {
+        return shown;
+    }
+}
@@ -0,0 +1,141 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+/**
+ * A Proof Key for Code Exchange (RFC 7636) pair. The S256 code challenge goes to the authorization endpoint with the
+ * authorization request, and the code verifier goes to the token endpoint with the authorization code, so that a code
+ * intercepted on its way back to the app is of no use to anyone else.
+ * <p>
+ * A new pair is generated for each authentication, and rebuilt from its verifier if the authentication is resumed
+ * elsewhere. Base64url is implemented here because android.util.Base64 is not
+ * available to these Android-free classes and java.util.Base64 is not available on Android.
+ */
+public final class Pkce {
+
+    /**
+     * The code challenge method sent with the request.
+     */
+    public static final String METHOD = "S256";
+
+    /**
+     * Number of random bytes in a code verifier, which make 43 base64url characters, the shortest verifier allowed.
+     */
+    private static final int VERIFIER_BYTES = 32;
+
+    /**
+     * The base64url alphabet.
+     */
+    private static final char[] BASE64URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_"
+        .toCharArray();
+
+    /**
+     * Source of the code verifiers.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The code verifier.
+     */
+    private final String verifier;
+
+    /**
+     * The S256 code challenge.
+     */
+    private final String challenge;
+
+    /**
+     * Creates the pair for a verifier.
+     *
+     * @param verifier the code verifier
+     */
+    private Pkce(final String verifier) {
+        this.verifier = verifier;
+        try {
+            this.challenge = base64Url(MessageDigest.getInstance("SHA-256").digest(verifier.getBytes("US-ASCII")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Generates a new pair.
+     *
+     * @return the pair
+     */
+    public static Pkce generate() {
+        byte[] random = new byte[VERIFIER_BYTES];
+        RANDOM.nextBytes(random);
+        return new Pkce(base64Url(random));
+    }
+
+    /**
+     * Rebuilds the pair of an authentication in progress from its verifier, for example after the activity running it
+     * has been recreated.
+     *
+     * @param verifier the code verifier returned by {@link #getVerifier()}
+     * @return the pair
+     */
+    public static Pkce fromVerifier(final String verifier) {
+        return new Pkce(verifier);
+    }
+
+    /**
+     * @return the code verifier, sent to the token endpoint
+     */
+    public String getVerifier() {
+        return verifier;
+    }
+
+    /**
+     * @return the S256 code challenge, sent to the authorization endpoint
+     */
+    public String getChallenge() {
+        return challenge;
+    }
+
+    /**
+     * Encodes bytes as base64url without padding.
+     *
+     * @param bytes the bytes to encode
+     * @return the encoded bytes
+     */
+    static String base64Url(final byte[] bytes) {
+        StringBuilder encoded = new StringBuilder((bytes.length * 4 + 2) / 3);
+        int index = 0;
+        while (index + 2 < bytes.length) {
+            int group = (bytes[index] & 0xFF) << 16 | (bytes[index + 1] & 0xFF) << 8 | (bytes[index + 2] & 0xFF);
+            encoded.append(BASE64URL[group >> 18 & 0x3F]).append(BASE64URL[group >> 12 & 0x3F])
+                .append(BASE64URL[group >> 6 & 0x3F]).append(BASE64URL[group & 0x3F]);
+            index += 3;
+        }
+        int remaining = bytes.length - index;
+        if (remaining == 1) {
+            int group = (bytes[index] & 0xFF) << 16;
+            encoded.append(BASE64URL[group >> 18 & 0x3F]).append(BASE64URL[group >> 12 & 0x3F]);
+        } else if (remaining == 2) {
+            int group = (bytes[index] & 0xFF) << 16 | (bytes[index + 1] & 0xFF) << 8;
+            encoded.append(BASE64URL[group >> 18 & 0x3F]).append(BASE64URL[group >> 12 & 0x3F])
+                .append(BASE64URL[group >> 6 & 0x3F]);
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,531 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Caches web service responses for the user a token was issued to, so that screens such as checked out items and
+ * holds do not fetch the same data on every visit.
+ * <p>
+ * Responses are keyed by the token's principalID, principalIDNS and context_institution_id together with the url and
+ * the media type asked for, so one user never sees another's data. Recently used responses are kept in memory. A
+ * {@link DiskLruCache} holding all of them is optional, and needs a {@link RecordCipher}: the headers and body of a
+ * response are sealed with it before they are written, and keys are hashed with it, so neither a patron's items nor
+ * their principalID can be read from the cache directory. A response is fresh for its
+ * Cache-Control max-age, or for the default time to live if it has none; a stale response is revalidated with
+ * If-None-Match and If-Modified-Since. Responses marked no-store are not kept.
+ * <p>
+ * The cache must be cleared when the user signs out. Hits, revalidations and misses and their latencies are counted.
+ * All methods are synchronized.
+ */
+public final class PrincipalResponseCache {
+
+    /**
+     * A cached response.
+     */
+    public static final class Cached {
+
+        /**
+         * The response as received, with all its headers.
+         */
+        private final ServiceResponse response;
+
+        /**
+         * Time until which the response is fresh, in milliseconds since the epoch.
+         */
+        private final long freshUntilMillis;
+
+        /**
+         * Creates a cached response.
+         *
+         * @param response the response as received
+         * @param freshUntilMillis time until which the response is fresh
+         */
+        private Cached(final ServiceResponse response, final long freshUntilMillis) {
+            this.response = response;
+            this.freshUntilMillis = freshUntilMillis;
+        }
+
+        /**
+         * @param nowMillis the current time in milliseconds since the epoch
+         * @return true if the response can be used without asking the server
+         */
+        public boolean isFresh(final long nowMillis) {
+            return nowMillis < freshUntilMillis;
+        }
+
+        /**
+         * @return the ETag validator, or null if there is none
+         */
+        public String getEtag() {
+            return response.getHeader("ETag");
+        }
+
+        /**
+         * @return the Last-Modified validator, or null if there is none
+         */
+        public String getLastModified() {
+            return response.getHeader("Last-Modified");
+        }
+
+        /**
+         * @return the response as it was received, headers included
+         */
+        public ServiceResponse toResponse() {
+            return response;
+        }
+    }
+
+    /**
+     * Status of a response that may be cached.
+     */
+    private static final int HTTP_OK = 200;
+
+    /**
+     * Version of the sealed record of a response, written first so that the format can change.
+     */
+    private static final int RECORD_VERSION = 1;
+
+    /**
+     * Metadata key of the time until which the response is fresh, in milliseconds since the epoch.
+     */
+    private static final String FRESH_UNTIL = "freshUntil";
+
+    /**
+     * Multiplier to convert seconds to milliseconds
+     */
+    private static final int SECONDS_TO_MILLISECONDS = 1000;
+
+    /**
+     * Size of the buffer used to read cached bodies.
+     */
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * Hexadecimal digits used in hashed keys.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * Where all the responses are stored, or null to keep them in memory only.
+     */
+    private final DiskLruCache disk;
+
+    /**
+     * Seals responses stored on disk and hashes keys, or null if responses are kept in memory only.
+     */
+    private final RecordCipher cipher;
+
+    /**
+     * Recently used responses by hashed key, least recently used first.
+     */
+    private final LinkedHashMap<String, Cached> memory = new LinkedHashMap<String, Cached>(16, 0.75f, true);
+
+    /**
+     * Maximum number of responses kept in memory.
+     */
+    private final int memoryCapacity;
+
+    /**
+     * How long a response without a max-age is fresh, in milliseconds.
+     */
+    private final long defaultTtlMillis;
+
+    /**
+     * Responses served fresh from the cache.
+     */
+    private long hits;
+
+    /**
+     * Responses served from the cache after the server confirmed them.
+     */
+    private long revalidations;
+
+    /**
+     * Responses fetched.
+     */
+    private long misses;
+
+    /**
+     * Latency of hits.
+     */
+    private final LatencyHistogram hitLatency = new LatencyHistogram();
+
+    /**
+     * Latency of revalidations and misses.
+     */
+    private final LatencyHistogram networkLatency = new LatencyHistogram();
+
+    /**
+     * Creates a cache.
+     *
+     * @param disk where all the responses are stored, or null to keep them in memory only
+     * @param cipher seals responses stored on disk and hashes keys, normally that of the token's
+     *            {@link EncryptedTokenFile}; may be null only if disk is
+     * @param memoryCapacity maximum number of responses kept in memory
+     * @param defaultTtlMillis how long a response without a max-age is fresh
+     * @throws IllegalArgumentException if there is a disk but no cipher
+     */
+    public PrincipalResponseCache(final DiskLruCache disk, final RecordCipher cipher, final int memoryCapacity,
+        final long defaultTtlMillis) {
+        if (disk != null && cipher == null) {
+            throw new IllegalArgumentException("Responses are only stored on disk encrypted");
+        }
+        this.disk = disk;
+        this.cipher = cipher;
+        this.memoryCapacity = memoryCapacity;
+        this.defaultTtlMillis = defaultTtlMillis;
+    }
+
+    /**
+     * Works out the key of a response. With a cipher the key is an HMAC, so the user's principalID cannot be recovered
+     * from it by hashing candidates; without one it is a plain hash, which is only ever kept in memory.
+     *
+     * @param token the token the request is made with
+     * @param url the url of the request
+     * @param accept the media type asked for, may be null
+     * @return the hashed key
+     */
+    public String key(final AuthorizationResult token, final String url, final String accept) {
+        String key = token.getPrincipalIdNs() + '\n' + token.getPrincipalId() + '\n' + token.getContextInstitutionId()
+            + '\n' + accept + '\n' + url;
+        if (cipher != null) {
+            return cipher.hash(key);
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0F];
+            }
+            return new String(hex);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns a cached response, fresh or stale.
+     *
+     * @param key the key of the response
+     * @return the response, or null if none is cached
+     */
+    public synchronized Cached get(final String key) {
+        Cached cached = memory.get(key);
+        if (cached != null || disk == null) {
+            return cached;
+        }
+
+        DiskLruCache.Entry entry = disk.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            ServiceResponse response = deserialize(cipher.open(read(disk.open(entry))));
+            cached = new Cached(response, parseLong(entry.getMetadata().get(FRESH_UNTIL)));
+        } catch (IOException e) {
+            return null;
+        } catch (GeneralSecurityException e) {
+            /* Tampered with, or written before entries were sealed */
+            disk.remove(key);
+            return null;
+        }
+        remember(key, cached);
+        return cached;
+    }
+
+    /**
+     * Stores a response received from the server, unless it is not a 200 or is marked no-store.
+     *
+     * @param key the key of the response
+     * @param response the response
+     * @param nowMillis the current time in milliseconds since the epoch
+     */
+    public synchronized void put(final String key, final ServiceResponse response, final long nowMillis) {
+        String cacheControl = lower(response.getHeader("Cache-Control"));
+        if (response.getStatus() != HTTP_OK || cacheControl.contains("no-store")) {
+            return;
+        }
+
+        Cached cached = new Cached(new ServiceResponse(HTTP_OK, copy(response.getHeaders()), response.getBody()),
+            freshUntil(cacheControl, nowMillis));
+        remember(key, cached);
+        if (disk == null) {
+            return;
+        }
+        try {
+            disk.put(key, cipher.seal(serialize(cached.response)), metadata(cached));
+        } catch (IOException e) {
+            /* A header too long to serialize; the response stays in memory only */
+            disk.remove(key);
+        } catch (GeneralSecurityException e) {
+            disk.remove(key);
+        }
+    }
+
+    /**
+     * Marks a stale response as fresh again after the server answered 304 Not Modified.
+     *
+     * @param key the key of the response
+     * @param cached the stale response
+     * @param notModified the server's 304 response, whose Cache-Control sets the new freshness
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return the refreshed response
+     */
+    public synchronized Cached revalidated(final String key, final Cached cached, final ServiceResponse notModified,
+        final long nowMillis) {
+        Cached refreshed = new Cached(cached.response, freshUntil(lower(notModified.getHeader("Cache-Control")),
+            nowMillis));
+        remember(key, refreshed);
+        if (disk != null) {
+            disk.updateMetadata(key, metadata(refreshed));
+        }
+        return refreshed;
+    }
+
+    /**
+     * Removes every response, for example when the user signs out or clears cookies.
+     */
+    public synchronized void clear() {
+        memory.clear();
+        if (disk != null) {
+            disk.clear();
+        }
+    }
+
+    /**
+     * Counts a response served fresh from the cache.
+     *
+     * @param latencyMillis how long it took
+     */
+    public synchronized void recordHit(final long latencyMillis) {
+        hits++;
+        hitLatency.record(latencyMillis);
+    }
+
+    /**
+     * Counts a stale response the server confirmed.
+     *
+     * @param latencyMillis how long it took
+     */
+    public synchronized void recordRevalidation(final long latencyMillis) {
+        revalidations++;
+        networkLatency.record(latencyMillis);
+    }
+
+    /**
+     * Counts a response fetched from the server.
+     *
+     * @param latencyMillis how long it took
+     */
+    public synchronized void recordMiss(final long latencyMillis) {
+        misses++;
+        networkLatency.record(latencyMillis);
+    }
+
+    /**
+     * @return hit, revalidation and miss counts, the hit ratio and latency percentiles as a single line of JSON
+     */
+    public synchronized String getStats() {
+        long total = hits + revalidations + misses;
+        double hitRatio = total == 0 ? 0 : (double) (hits + revalidations) / total;
+        return "{\"hits\":" + hits + ",\"revalidations\":" + revalidations + ",\"misses\":" + misses + ",\"hitRatio\":"
+            + String.format(Locale.US, "%.3f", hitRatio) + ",\"hitLatencyMs\":" + hitLatency + ",\"networkLatencyMs\":"
+            + networkLatency + "}";
+    }
+
+    /**
+     * Keeps a response in memory, dropping the least recently used beyond the capacity.
+     *
+     * @param key the key of the response
+     * @param cached the response
+     */
+    private void remember(final String key, final Cached cached) {
+        memory.put(key, cached);
+        Iterator<String> leastRecentlyUsed = memory.keySet().iterator();
+        while (memory.size() > memoryCapacity) {
+            leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+        }
+    }
+
+    /**
+     * Works out until when a response is fresh.
+     *
+     * @param cacheControl the lower-cased Cache-Control of the response
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return the time until which the response is fresh, in milliseconds since the epoch
+     */
+    private long freshUntil(final String cacheControl, final long nowMillis) {
+        if (cacheControl.contains("no-cache")) {
+            return 0;
+        }
+        int maxAge = cacheControl.indexOf("max-age=");
+        if (maxAge == -1) {
+            return nowMillis + defaultTtlMillis;
+        }
+        int start = maxAge + "max-age=".length();
+        int end = start;
+        while (end < cacheControl.length() && Character.isDigit(cacheControl.charAt(end))) {
+            end++;
+        }
+        return nowMillis + parseLong(cacheControl.substring(start, end)) * SECONDS_TO_MILLISECONDS;
+    }
+
+    /**
+     * @param cached a response
+     * @return the metadata stored with it on disk, which holds nothing about the user
+     */
+    private static Map<String, String> metadata(final Cached cached) {
+        HashMap<String, String> metadata = new HashMap<String, String>();
+        metadata.put(FRESH_UNTIL, Long.toString(cached.freshUntilMillis));
+        return metadata;
+    }
+
+    /**
+     * Copies headers, leaving out the status line, which HttpURLConnection reports under a null name.
+     *
+     * @param headers the headers as received
+     * @return an unmodifiable copy
+     */
+    private static Map<String, List<String>> copy(final Map<String, List<String>> headers) {
+        LinkedHashMap<String, List<String>> copy = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null) {
+                copy.put(header.getKey(), Collections.unmodifiableList(new ArrayList<String>(header.getValue())));
+            }
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Writes the headers and body of a response for sealing.
+     *
+     * @param response the response
+     * @return the version, the headers and the body
+     * @throws java.io.UTFDataFormatException if a header is longer than 65535 bytes of modified UTF-8
+     * @throws IOException never, as the record is written to memory
+     */
+    private static byte[] serialize(final ServiceResponse response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        Map<String, List<String>> headers = response.getHeaders();
+        out.writeInt(RECORD_VERSION);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            out.writeUTF(header.getKey());
+            out.writeInt(header.getValue().size());
+            for (String value : header.getValue()) {
+                out.writeUTF(value);
+            }
+        }
+        byte[] body = response.getBody();
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads back a response written by {@link #serialize}.
+     *
+     * @param record the opened record
+     * @return the response, with status 200
+     * @throws IOException if the record is of another version or is malformed
+     */
+    private static ServiceResponse deserialize(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readInt() != RECORD_VERSION) {
+            throw new IOException("Unknown response record version");
+        }
+        LinkedHashMap<String, List<String>> headers = new LinkedHashMap<String, List<String>>();
+        for (int headerCount = in.readInt(); headerCount > 0; headerCount--) {
+            String name = in.readUTF();
+            int valueCount = in.readInt();
+            List<String> values = new ArrayList<String>();
+            for (int i = 0; i < valueCount; i++) {
+                values.add(in.readUTF());
+            }
+            headers.put(name, Collections.unmodifiableList(values));
+        }
+        byte[] body = new byte[in.readInt()];
+        in.readFully(body);
+        return new ServiceResponse(HTTP_OK, Collections.unmodifiableMap(headers), body);
+    }
+
+    /**
+     * @param value a number, may be null
+     * @return the number, or 0 if it is missing or invalid
+     */
+    private static long parseLong(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @param value a header value, may be null
+     * @return the value lower-cased, or "" if it is null
+     */
+    private static String lower(final String value) {
+        return value == null ? "" : value.toLowerCase(Locale.US);
+    }
+
+    /**
+     * Reads a whole cached body.
+     *
+     * @param in the body, which is closed
+     * @return the bytes read
+     * @throws IOException if the body cannot be read
+     */
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,191 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts and authenticates records kept on disk: a sealed record is a random IV, the AES/CBC encrypted data and an
+ * HMAC-SHA256 of the two, which is checked before anything is decrypted, so a tampered or truncated record is
+ * rejected. The HMAC key, and a separate key for hashing names such as cache keys, are derived from the AES key.
+ * <p>
+ * AES/GCM would do the same in one step, but is not available at the app's minimum SDK level. Thread safe.
+ */
+public final class RecordCipher {
+
+    /**
+     * Length in bytes of the AES key and of the IV.
+     */
+    public static final int KEY_LENGTH = 16;
+
+    /**
+     * Cipher used for the data.
+     */
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    /**
+     * MAC over the IV and the encrypted data, and of hashed names.
+     */
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+
+    /**
+     * Length in bytes of the MAC.
+     */
+    private static final int MAC_LENGTH = 32;
+
+    /**
+     * Label from which the MAC key of records is derived.
+     */
+    private static final String RECORD_MAC_LABEL = "token.dat mac";
+
+    /**
+     * Label from which the key of hashed names is derived.
+     */
+    private static final String NAME_MAC_LABEL = "name hash";
+
+    /**
+     * Hexadecimal digits used in hashed names.
+     */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /**
+     * The AES key.
+     */
+    private final SecretKeySpec key;
+
+    /**
+     * The MAC key of records.
+     */
+    private final SecretKeySpec recordMacKey;
+
+    /**
+     * The MAC key of hashed names.
+     */
+    private final SecretKeySpec nameMacKey;
+
+    /**
+     * Creates a cipher.
+     *
+     * @param key the AES key, {@link #KEY_LENGTH} bytes long
+     * @throws GeneralSecurityException if AES or HMAC-SHA256 is not available
+     */
+    public RecordCipher(final byte[] key) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(key, "AES");
+        this.recordMacKey = deriveKey(key, RECORD_MAC_LABEL);
+        this.nameMacKey = deriveKey(key, NAME_MAC_LABEL);
+    }
+
+    /**
+     * Encrypts and authenticates data.
+     *
+     * @param data the data
+     * @return the sealed record
+     * @throws GeneralSecurityException if the data cannot be encrypted
+     */
+    public byte[] seal(final byte[] data) throws GeneralSecurityException {
+        byte[] iv = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        byte[] encrypted = cipher.doFinal(data);
+
+        byte[] record = new byte[iv.length + encrypted.length + MAC_LENGTH];
+        System.arraycopy(iv, 0, record, 0, iv.length);
+        System.arraycopy(encrypted, 0, record, iv.length, encrypted.length);
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(recordMacKey);
+        mac.update(record, 0, iv.length + encrypted.length);
+        System.arraycopy(mac.doFinal(), 0, record, iv.length + encrypted.length, MAC_LENGTH);
+        return record;
+    }
+
+    /**
+     * Checks and decrypts a sealed record.
+     *
+     * @param record the sealed record
+     * @return the data
+     * @throws GeneralSecurityException if the record fails its MAC check, because it has been tampered with, truncated
+     *             or was not sealed with this key, or cannot be decrypted
+     */
+    public byte[] open(final byte[] record) throws GeneralSecurityException {
+        if (record.length <= KEY_LENGTH + MAC_LENGTH) {
+            throw new GeneralSecurityException("Record too short");
+        }
+        int macOffset = record.length - MAC_LENGTH;
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(recordMacKey);
+        mac.update(record, 0, macOffset);
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(record, macOffset, actual, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new GeneralSecurityException("Record fails its MAC check");
+        }
+
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(record, 0, KEY_LENGTH));
+        return cipher.doFinal(record, KEY_LENGTH, macOffset - KEY_LENGTH);
+    }
+
+    /**
+     * Hashes a name with a secret key, so that the hash cannot be matched against guessed names by anyone without the
+     * key.
+     *
+     * @param name the name
+     * @return the hash in hexadecimal
+     */
+    public String hash(final String name) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(nameMacKey);
+            byte[] digest = mac.doFinal(name.getBytes("UTF-8"));
+            char[] hex = new char[digest.length * 2];
+            for (int i = 0; i < digest.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0x0F];
+                hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0x0F];
+            }
+            return new String(hex);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Derives a MAC key from the AES key.
+     *
+     * @param key the AES key
+     * @param label what the derived key is for
+     * @return the derived key
+     * @throws GeneralSecurityException if HMAC-SHA256 is not available
+     */
+    private static SecretKeySpec deriveKey(final byte[] key, final String label) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance(MAC_ALGORITHM);
+        mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+        try {
+            return new SecretKeySpec(mac.doFinal(label.getBytes("UTF-8")), MAC_ALGORITHM);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
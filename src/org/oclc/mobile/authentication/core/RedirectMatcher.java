@@ -0,0 +1,55 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+/**
+ * Recognizes the redirect URI that ends an authentication: the redirect URI followed by a "#" that starts its params,
+ * or, in the authorization code flow, by a "?" that starts its query string. The WebView lower-cases the scheme and
+ * host of the urls it loads, so the comparison ignores case. What follows is not checked: an error redirect such as
+ * [redirectURI]#error=access_denied carries a single parameter, and must reach the RedirectUriParser, which reports the
+ * error, rather than be loaded into the WebView, which cannot load the app's scheme and would be left blank.
+ */
+public final class RedirectMatcher {
+
+    /**
+     * The redirect URI followed by the "#" that starts its params.
+     */
+    private final String prefix;
+
+    /**
+     * The redirect URI followed by the "?" that starts its query string.
+     */
+    private final String queryPrefix;
+
+    /**
+     * Creates a matcher for a redirect URI.
+     *
+     * @param redirectUri the redirect URI, for example ncipapp://user_agent_flow
+     */
+    public RedirectMatcher(final String redirectUri) {
+        this.prefix = redirectUri + "#";
+        this.queryPrefix = redirectUri + "?";
+    }
+
+    /**
+     * Tells whether a url is the redirect URI carrying the authentication results.
+     *
+     * @param url the url about to be loaded
+     * @return true if the url should be parsed rather than loaded
+     */
+    public boolean matches(final String url) {
+        return url.regionMatches(true, 0, prefix, 0, prefix.length())
+            || url.regionMatches(true, 0, queryPrefix, 0, queryPrefix.length());
+    }
+}
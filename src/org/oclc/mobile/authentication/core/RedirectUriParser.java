@@ -0,0 +1,186 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Parses the parameters out of a redirect URI of the form [redirectURI]#[param1]=[val1]&[param2]=[val2]... or, in the
+ * authorization code flow, [redirectURI]?[param1]=[val1]&[param2]=[val2]...
+ * <p>
+ * The fragment is scanned once with a cursor. Each name and value is split on the first "=" only, so base64 values
+ * that end in "=" padding survive intact, and percent-encoded octets (for example the %20 in expires_at) are decoded
+ * as UTF-8. Segments without an "=" are stored with an empty value. A "+" is left as is, since the server does not
+ * encode it in tokens.
+ * <p>
+ * The decode buffer is reused between calls, so an instance must not be shared between threads.
+ */
+public final class RedirectUriParser {
+
+    /**
+     * Character set of percent-encoded octets.
+     */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Initial size of the decode buffer, large enough for a typical access token.
+     */
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    /**
+     * Radix of the two digits following a "%".
+     */
+    private static final int HEX_RADIX = 16;
+
+    /**
+     * Bits shifted out by the high digit of a percent-encoded octet.
+     */
+    private static final int HIGH_NIBBLE_SHIFT = 4;
+
+    /**
+     * Reused buffer that holds the decoded octets of the segment being parsed.
+     */
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    /**
+     * Parses the fragment of a redirect url, or its query string if it has no fragment, and puts each parameter into
+     * the given map.
+     *
+     * @param redirectUrl the redirect url to be parsed
+     * @param parameters the map that receives the decoded parameters
+     * @return false if the url has neither a fragment nor a query string, true otherwise
+     */
+    public boolean parse(final String redirectUrl, final Map<String, String> parameters) {
+
+        /*
+         * A query string before a fragment belongs to the redirect URI, not to the results.
+         */
+        int cursor = redirectUrl.indexOf('#');
+        if (cursor == -1) {
+            cursor = redirectUrl.indexOf('?');
+        }
+        if (cursor == -1) {
+            return false;
+        }
+        cursor++;
+
+        final int length = redirectUrl.length();
+        while (cursor < length) {
+
+            int end = redirectUrl.indexOf('&', cursor);
+            if (end == -1) {
+                end = length;
+            }
+
+            /*
+             * Skip empty segments, such as those produced by "&&" or a trailing "&".
+             */
+            if (end > cursor) {
+                int equals = redirectUrl.indexOf('=', cursor);
+                if (equals == -1 || equals > end) {
+                    parameters.put(decode(redirectUrl, cursor, end), "");
+                } else {
+                    parameters.put(decode(redirectUrl, cursor, equals), decode(redirectUrl, equals + 1, end));
+                }
+            }
+
+            cursor = end + 1;
+        }
+
+        return true;
+    }
+
+    /**
+     * Percent-decodes a range of the source string. A range without a "%" is returned as a plain substring, and a
+     * malformed escape is kept literally.
+     *
+     * @param source the string holding the range
+     * @param start index of the first character of the range
+     * @param end index one past the last character of the range
+     * @return the decoded range
+     */
+    private String decode(final String source, final int start, final int end) {
+
+        int percent = source.indexOf('%', start);
+        if (percent == -1 || percent >= end) {
+            return source.substring(start, end);
+        }
+
+        /*
+         * A decoded range is never longer than the encoded one, except when a non-ASCII character expands to
+         * several UTF-8 octets, so size the buffer for the worst case.
+         */
+        int capacity = (end - start) * 3;
+        if (buffer.length < capacity) {
+            buffer = new byte[capacity];
+        }
+
+        int size = 0;
+        int index = start;
+        while (index < end) {
+            char c = source.charAt(index);
+            if (c == '%' && index + 2 < end) {
+                int high = Character.digit(source.charAt(index + 1), HEX_RADIX);
+                int low = Character.digit(source.charAt(index + 2), HEX_RADIX);
+                if (high != -1 && low != -1) {
+                    buffer[size++] = (byte) ((high << HIGH_NIBBLE_SHIFT) | low);
+                    index += 3;
+                    continue;
+                }
+            }
+
+            /*
+             * A character outside the Basic Multilingual Plane is a surrogate pair, which is one UTF-8 sequence.
+             */
+            if (Character.isHighSurrogate(c) && index + 1 < end && Character.isLowSurrogate(source.charAt(index + 1))) {
+                size = encode(Character.toCodePoint(c, source.charAt(index + 1)), size);
+                index += 2;
+            } else {
+                size = encode(c, size);
+                index++;
+            }
+        }
+
+        return UTF_8.decode(ByteBuffer.wrap(buffer, 0, size)).toString();
+    }
+
+    /**
+     * Writes an undecoded character into the buffer as UTF-8.
+     *
+     * @param c the code point to write
+     * @param size the number of octets already in the buffer
+     * @return the number of octets in the buffer after the write
+     */
+    private int encode(final int c, final int size) {
+        int next = size;
+        if (c < 0x80) {
+            buffer[next++] = (byte) c;
+        } else if (c < 0x800) {
+            buffer[next++] = (byte) (0xC0 | (c >> 6));
+            buffer[next++] = (byte) (0x80 | (c & 0x3F));
+        } else if (c >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            buffer[next++] = (byte) (0xF0 | (c >> 18));
+            buffer[next++] = (byte) (0x80 | ((c >> 12) & 0x3F));
+            buffer[next++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[next++] = (byte) (0x80 | (c & 0x3F));
+        } else {
+            buffer[next++] = (byte) (0xE0 | (c >> 12));
+            buffer[next++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            buffer[next++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return next;
+    }
+}
@@ -0,0 +1,193 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Decides which sub-resources of the login pages are not worth loading, such as images, web fonts or third-party
+ * scripts, and counts the requests it blocks.
+ * <p>
+ * Each rule is a string of space-separated conditions, all of which must hold for a request to be blocked:
+ * <ul>
+ * <li>type=[MIME type prefix] - the type guessed from the url's file extension, for example "type=image/"</li>
+ * <li>host=[host] - the host or one of its subdomains</li>
+ * <li>path=[path prefix] - the start of the url's path</li>
+ * <li>third-party - a host outside the first-party hosts</li>
+ * </ul>
+ * For example "third-party type=application/javascript" blocks scripts from other sites. Only http and https urls
+ * are filtered. The filter is thread safe, since the WebView asks for sub-resources on a background thread.
+ */
+public final class ResourceFilter {
+
+    /**
+     * MIME types by file extension, for the resources a login page typically references.
+     */
+    private static final Map<String, String> MIME_TYPES = new HashMap<String, String>();
+    static {
+        MIME_TYPES.put("png", "image/png");
+        MIME_TYPES.put("jpg", "image/jpeg");
+        MIME_TYPES.put("jpeg", "image/jpeg");
+        MIME_TYPES.put("gif", "image/gif");
+        MIME_TYPES.put("webp", "image/webp");
+        MIME_TYPES.put("svg", "image/svg+xml");
+        MIME_TYPES.put("ico", "image/x-icon");
+        MIME_TYPES.put("woff", "font/woff");
+        MIME_TYPES.put("woff2", "font/woff2");
+        MIME_TYPES.put("ttf", "font/ttf");
+        MIME_TYPES.put("otf", "font/otf");
+        MIME_TYPES.put("eot", "application/vnd.ms-fontobject");
+        MIME_TYPES.put("js", "application/javascript");
+        MIME_TYPES.put("css", "text/css");
+        MIME_TYPES.put("html", "text/html");
+        MIME_TYPES.put("htm", "text/html");
+    }
+
+    /**
+     * One rule, all of whose conditions must hold.
+     */
+    private static final class Rule {
+
+        /**
+         * Hosts the request must be on, or null for any.
+         */
+        private HostSet host;
+
+        /**
+         * Prefix of the request's path, or null for any.
+         */
+        private String pathPrefix;
+
+        /**
+         * Prefix of the request's MIME type, or null for any.
+         */
+        private String typePrefix;
+
+        /**
+         * Whether the request must be to a third-party host.
+         */
+        private boolean thirdParty;
+    }
+
+    /**
+     * The rules.
+     */
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    /**
+     * Hosts that are not third parties.
+     */
+    private final HostSet firstPartyHosts;
+
+    /**
+     * Requests blocked since the count was last taken.
+     */
+    private int blockedCount;
+
+    /**
+     * Creates a filter.
+     *
+     * @param ruleStrings the rules, in the format described above
+     * @param firstPartyHosts hosts, with their subdomains, that are not third parties
+     * @throws IllegalArgumentException if a rule has an unknown condition
+     */
+    public ResourceFilter(final Collection<String> ruleStrings, final Collection<String> firstPartyHosts) {
+        this.firstPartyHosts = new HostSet(firstPartyHosts);
+        for (String ruleString : ruleStrings) {
+            Rule rule = new Rule();
+            boolean empty = true;
+            for (String condition : ruleString.trim().split("\\s+")) {
+                if (condition.length() == 0) {
+                    continue;
+                }
+                empty = false;
+                if (condition.equals("third-party")) {
+                    rule.thirdParty = true;
+                } else if (condition.startsWith("host=")) {
+                    rule.host = new HostSet(Collections.singleton(condition.substring("host=".length())));
+                } else if (condition.startsWith("path=")) {
+                    rule.pathPrefix = condition.substring("path=".length());
+                } else if (condition.startsWith("type=")) {
+                    rule.typePrefix = condition.substring("type=".length()).toLowerCase(Locale.US);
+                } else {
+                    throw new IllegalArgumentException("Unknown resource filter condition: " + condition);
+                }
+            }
+            if (!empty) {
+                rules.add(rule);
+            }
+        }
+    }
+
+    /**
+     * Tells whether a sub-resource should be blocked, and counts it if so.
+     *
+     * @param url the url of the sub-resource
+     * @return true if the resource should not be loaded
+     */
+    public boolean shouldBlock(final String url) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        String host = HostSet.hostOf(url);
+        if (host == null) {
+            return false;
+        }
+        String path = HostSet.pathOf(url);
+        String type = guessMimeType(path);
+
+        for (Rule rule : rules) {
+            if ((rule.host == null || rule.host.contains(host))
+                && (rule.pathPrefix == null || path.startsWith(rule.pathPrefix))
+                && (rule.typePrefix == null || (type != null && type.startsWith(rule.typePrefix)))
+                && (!rule.thirdParty || !firstPartyHosts.contains(host))) {
+                synchronized (this) {
+                    blockedCount++;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of requests blocked since the last call, for example during one authentication.
+     *
+     * @return the number of requests blocked
+     */
+    public synchronized int takeBlockedCount() {
+        int count = blockedCount;
+        blockedCount = 0;
+        return count;
+    }
+
+    /**
+     * Guesses a MIME type from the file extension of a path.
+     *
+     * @param path the path of a url
+     * @return the MIME type, or null if the extension is not known
+     */
+    public static String guessMimeType(final String path) {
+        int dot = path.lastIndexOf('.');
+        if (dot == -1 || dot < path.lastIndexOf('/')) {
+            return null;
+        }
+        return MIME_TYPES.get(path.substring(dot + 1).toLowerCase(Locale.US));
+    }
+}
@@ -0,0 +1,72 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Parses space separated scope lists into sorted, unmodifiable sets, and hands out one shared instance per distinct
+ * set. Every token key and token result for the same scopes then holds the same set, and comparing two of them usually
+ * stops at the identity check.
+ */
+public final class Scopes {
+
+    /**
+     * Number of distinct sets kept. An app asks for a handful of scope lists, so the limit only guards against a
+     * server returning a different list every time.
+     */
+    private static final int MAXIMUM_INTERNED = 64;
+
+    /**
+     * The shared instance of each set.
+     */
+    private static final HashMap<Set<String>, Set<String>> INTERNED = new HashMap<Set<String>, Set<String>>();
+
+    /**
+     * Not instantiated.
+     */
+    private Scopes() {
+    }
+
+    /**
+     * Returns the shared set of the scopes in a list.
+     *
+     * @param scopes the scopes, separated by spaces, or null for none
+     * @return the sorted, unmodifiable set of scopes
+     */
+    public static Set<String> intern(final String scopes) {
+        TreeSet<String> normalized = new TreeSet<String>();
+        if (scopes != null) {
+            for (String scope : scopes.trim().split("\\s+")) {
+                if (scope.length() > 0) {
+                    normalized.add(scope);
+                }
+            }
+        }
+
+        synchronized (INTERNED) {
+            Set<String> interned = INTERNED.get(normalized);
+            if (interned == null) {
+                interned = Collections.unmodifiableSet(normalized);
+                if (INTERNED.size() < MAXIMUM_INTERNED) {
+                    INTERNED.put(interned, interned);
+                }
+            }
+            return interned;
+        }
+    }
+}
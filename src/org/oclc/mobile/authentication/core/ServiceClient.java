@@ -0,0 +1,343 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Calls OCLC web services, such as WMS NCIP, with the access token of an authentication.
+ * <p>
+ * Every call carries the token in a Bearer Authorization header. A call answered with 401 Unauthorized is retried
+ * once with a token obtained again from the {@link TokenProvider}. Responses are requested gzip compressed and read
+ * in full, so that the connection goes back to HttpURLConnection's keep-alive pool for the next call to the same host.
+ * The number of calls in progress at once is limited; further calls wait for a free place.
+ * <p>
+ * GET responses can be cached per user with a {@link PrincipalResponseCache}. A fresh cached response is returned
+ * without a call; a stale one is revalidated with a conditional GET.
+ * <p>
+ * Calls block, so they must not be made on the UI thread. The latency of every call is recorded.
+ */
+public class ServiceClient {
+
+    /**
+     * Supplies the access token for the calls.
+     */
+    public interface TokenProvider {
+
+        /**
+         * Method is called before each call to get the token to send
+         *
+         * @return a valid token
+         * @throws IOException if no token can be had
+         */
+        AuthorizationResult getToken() throws IOException;
+
+        /**
+         * Method is called when the service rejected a token, to get a new one
+         *
+         * @param rejected the token the service rejected
+         * @return a new token, or null if there is none
+         * @throws IOException if no token can be had
+         */
+        AuthorizationResult refreshToken(AuthorizationResult rejected) throws IOException;
+    }
+
+    /**
+     * Connect and read timeout of a call.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the buffer used to read a response.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Status of a conditional GET whose cached response is still current.
+     */
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    /**
+     * Supplies the access tokens.
+     */
+    private final TokenProvider tokenProvider;
+
+    /**
+     * Places for the calls in progress.
+     */
+    private final Semaphore permits;
+
+    /**
+     * Latency of the calls, including any wait for a place.
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Cache of GET responses, or null to cache nothing.
+     */
+    private volatile PrincipalResponseCache responseCache;
+
+    /**
+     * Creates a client.
+     *
+     * @param tokenProvider supplies the access tokens
+     * @param maxConcurrentCalls the number of calls that may be in progress at once
+     */
+    public ServiceClient(final TokenProvider tokenProvider, final int maxConcurrentCalls) {
+        this.tokenProvider = tokenProvider;
+        this.permits = new Semaphore(maxConcurrentCalls, true);
+    }
+
+    /**
+     * Makes a GET call.
+     *
+     * @param url the url of the service
+     * @param accept the media type wanted, or null for any
+     * @return the response
+     * @throws IOException if the call fails or no token can be had
+     */
+    public final ServiceResponse get(final String url, final String accept) throws IOException {
+        return execute("GET", url, accept, null, null);
+    }
+
+    /**
+     * Makes a POST call.
+     *
+     * @param url the url of the service
+     * @param accept the media type wanted, or null for any
+     * @param body the request body
+     * @param contentType the media type of the request body
+     * @return the response
+     * @throws IOException if the call fails or no token can be had
+     */
+    public final ServiceResponse post(final String url, final String accept, final byte[] body, final String contentType)
+        throws IOException {
+        return execute("POST", url, accept, body, contentType);
+    }
+
+    /**
+     * Makes a call, retrying it once with a new token if the service answers 401 Unauthorized.
+     *
+     * @param method the HTTP method
+     * @param url the url of the service
+     * @param accept the media type wanted, or null for any
+     * @param body the request body, or null for none
+     * @param contentType the media type of the request body, or null for none
+     * @return the response
+     * @throws IOException if the call fails or no token can be had
+     */
+    public final ServiceResponse execute(final String method, final String url, final String accept, final byte[] body,
+        final String contentType) throws IOException {
+
+        long start = System.nanoTime();
+        try {
+            PrincipalResponseCache cache = "GET".equals(method) ? responseCache : null;
+            AuthorizationResult token = tokenProvider.getToken();
+            ServiceResponse response = call(method, url, accept, body, contentType, token, cache);
+
+            /*
+             * The token may have been revoked or have expired on the server's clock. Get a new one and try again,
+             * once. No place is held meanwhile, since getting a token may take a while.
+             */
+            if (response.getStatus() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                AuthorizationResult refreshed = tokenProvider.refreshToken(token);
+                if (refreshed != null) {
+                    response = call(method, url, accept, body, contentType, refreshed, cache);
+                }
+            }
+            return response;
+        } finally {
+            latency.record((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the latency of the calls made so far, in milliseconds
+     */
+    public final LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Sets the cache of GET responses.
+     *
+     * @param responseCache the cache, or null to cache nothing
+     */
+    public final void setResponseCache(final PrincipalResponseCache responseCache) {
+        this.responseCache = responseCache;
+    }
+
+    /**
+     * Makes a call with the given token, answering GETs from the cache where it can.
+     *
+     * @param method the HTTP method
+     * @param url the url of the service
+     * @param accept the media type wanted, or null for any
+     * @param body the request body, or null for none
+     * @param contentType the media type of the request body, or null for none
+     * @param token the token to send
+     * @param cache the cache of responses, or null to cache nothing
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    private ServiceResponse call(final String method, final String url, final String accept, final byte[] body,
+        final String contentType, final AuthorizationResult token, final PrincipalResponseCache cache)
+        throws IOException {
+
+        if (cache == null || token == null) {
+            return send(method, url, accept, body, contentType, token, null);
+        }
+
+        long start = System.nanoTime();
+        String key = cache.key(token, url, accept);
+        PrincipalResponseCache.Cached cached = cache.get(key);
+        if (cached != null && cached.isFresh(System.currentTimeMillis())) {
+            cache.recordHit((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+            return cached.toResponse();
+        }
+
+        HashMap<String, String> conditions = new HashMap<String, String>();
+        if (cached != null && cached.getEtag() != null) {
+            conditions.put("If-None-Match", cached.getEtag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            conditions.put("If-Modified-Since", cached.getLastModified());
+        }
+        ServiceResponse response = send(method, url, accept, body, contentType, token, conditions);
+
+        long now = System.currentTimeMillis();
+        if (response.getStatus() == HTTP_NOT_MODIFIED && cached != null) {
+            response = cache.revalidated(key, cached, response, now).toResponse();
+            cache.recordRevalidation((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+        } else if (response.getStatus() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+            cache.put(key, response, now);
+            cache.recordMiss((System.nanoTime() - start) / NANOSECONDS_TO_MILLISECONDS);
+        }
+        return response;
+    }
+
+    /**
+     * Makes one HTTP request with the given token, once a place is free.
+     *
+     * @param method the HTTP method
+     * @param url the url of the service
+     * @param accept the media type wanted, or null for any
+     * @param body the request body, or null for none
+     * @param contentType the media type of the request body, or null for none
+     * @param token the token to send
+     * @param extraHeaders further request headers, or null for none
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    private ServiceResponse send(final String method, final String url, final String accept, final byte[] body,
+        final String contentType, final AuthorizationResult token, final Map<String, String> extraHeaders)
+        throws IOException {
+
+        if (token == null || token.getAccessToken() == null) {
+            throw new IOException("No access token");
+        }
+
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to call " + url);
+        }
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            connection.setRequestMethod(method);
+            connection.setRequestProperty("Authorization", "Bearer " + token.getAccessToken());
+            connection.setRequestProperty("Accept-Encoding", "gzip");
+            if (accept != null) {
+                connection.setRequestProperty("Accept", accept);
+            }
+            if (extraHeaders != null) {
+                for (Map.Entry<String, String> header : extraHeaders.entrySet()) {
+                    connection.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+
+            if (body != null) {
+                connection.setDoOutput(true);
+                if (contentType != null) {
+                    connection.setRequestProperty("Content-Type", contentType);
+                }
+
+                /*
+                 * Not streamed: HttpURLConnection buffers the body and sends it with the headers. Streamed, it goes in
+                 * a second packet, which on a kept-alive connection waits for the server's delayed ACK of the first.
+                 */
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            InputStream in = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream()
+                : connection.getInputStream();
+            byte[] responseBody = in == null ? new byte[0] : readFully(in, "gzip".equalsIgnoreCase(connection
+                .getContentEncoding()));
+            return new ServiceResponse(status, connection.getHeaderFields(), responseBody);
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which returns the connection to the keep-alive pool.
+     *
+     * @param in the response stream
+     * @param gzipped whether the body is gzip compressed
+     * @return the decompressed body
+     * @throws IOException if the body cannot be read
+     */
+    private static byte[] readFully(final InputStream in, final boolean gzipped) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream source = in;
+        try {
+            if (gzipped) {
+                source = new GZIPInputStream(in);
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = source.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            source.close();
+        }
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,108 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The response to a web service call made through a {@link ServiceClient}: the status code, the headers and the
+ * whole body, already read and decompressed.
+ */
+public final class ServiceResponse {
+
+    /**
+     * The HTTP status code.
+     */
+    private final int status;
+
+    /**
+     * The response headers.
+     */
+    private final Map<String, List<String>> headers;
+
+    /**
+     * The decompressed body, empty if there was none.
+     */
+    private final byte[] body;
+
+    /**
+     * Creates a response.
+     *
+     * @param status the HTTP status code
+     * @param headers the response headers
+     * @param body the decompressed body
+     */
+    ServiceResponse(final int status, final Map<String, List<String>> headers, final byte[] body) {
+        this.status = status;
+        this.headers = headers == null ? Collections.<String, List<String>> emptyMap() : headers;
+        this.body = body;
+    }
+
+    /**
+     * @return the HTTP status code
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return true if the status code is in the 2xx range
+     */
+    public boolean isSuccessful() {
+        return status >= 200 && status < 300;
+    }
+
+    /**
+     * Returns the first value of a header. Header names are compared without regard to case.
+     *
+     * @param name the name of the header
+     * @return the header's value, or null if it was not returned
+     */
+    public String getHeader(final String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name) && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the response headers as received
+     */
+    Map<String, List<String>> getHeaders() {
+        return headers;
+    }
+
+    /**
+     * @return the decompressed body, empty if there was none
+     */
+    public byte[] getBody() {
+        return body.clone();
+    }
+
+    /**
+     * @return the body decoded as UTF-8
+     */
+    public String getBodyAsString() {
+        try {
+            return new String(body, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
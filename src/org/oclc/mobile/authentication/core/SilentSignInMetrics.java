@@ -0,0 +1,109 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Locale;
+
+/**
+ * Counts the outcomes of silent sign ins, which run the authorization request in a hidden WebView in the hope that the
+ * authentication server's session cookie lets it redirect straight back with a token. A silent sign in either
+ * succeeds, or is escalated to the visible flow because a login form turned up or no redirect arrived in time.
+ * Thread safe.
+ */
+public final class SilentSignInMetrics {
+
+    /**
+     * Why a silent sign in was escalated to the visible flow.
+     */
+    public enum Escalation {
+
+        /**
+         * A page stayed loaded without navigating on, so the user has to sign in.
+         */
+        LOGIN_FORM,
+
+        /**
+         * The redirect URI did not arrive in time.
+         */
+        TIMEOUT
+    }
+
+    /**
+     * Silent sign ins that received the redirect URI without being shown.
+     */
+    private long successes;
+
+    /**
+     * Silent sign ins escalated because of a login form.
+     */
+    private long loginFormEscalations;
+
+    /**
+     * Silent sign ins escalated because of the timeout.
+     */
+    private long timeoutEscalations;
+
+    /**
+     * Time from loading the request URL to receiving the redirect URI, of successful silent sign ins.
+     */
+    private final LatencyHistogram successLatency = new LatencyHistogram();
+
+    /**
+     * Time from loading the request URL to the escalation, of escalated silent sign ins.
+     */
+    private final LatencyHistogram escalationLatency = new LatencyHistogram();
+
+    /**
+     * Records a silent sign in that received the redirect URI.
+     *
+     * @param elapsedMillis time from loading the request URL to the redirect URI
+     */
+    public synchronized void succeeded(final long elapsedMillis) {
+        successes++;
+        successLatency.record(elapsedMillis);
+    }
+
+    /**
+     * Records a silent sign in that was escalated to the visible flow.
+     *
+     * @param reason why it was escalated
+     * @param elapsedMillis time from loading the request URL to the escalation
+     */
+    public synchronized void escalated(final Escalation reason, final long elapsedMillis) {
+        if (reason == Escalation.LOGIN_FORM) {
+            loginFormEscalations++;
+        } else {
+            timeoutEscalations++;
+        }
+        escalationLatency.record(elapsedMillis);
+    }
+
+    /**
+     * @return the fraction of silent sign ins that succeeded, or 0 if there have been none
+     */
+    public synchronized double getSuccessRate() {
+        long attempts = successes + loginFormEscalations + timeoutEscalations;
+        return attempts == 0 ? 0 : (double) successes / attempts;
+    }
+
+    /**
+     * @return outcome counts, the success rate and latency percentiles in milliseconds as a single line of JSON
+     */
+    public synchronized String getSummary() {
+        return "{\"successes\":" + successes + ",\"loginFormEscalations\":" + loginFormEscalations
+            + ",\"timeoutEscalations\":" + timeoutEscalations + ",\"successRate\":"
+            + String.format(Locale.US, "%.3f", getSuccessRate()) + ",\"successMs\":" + successLatency
+            + ",\"escalationMs\":" + escalationLatency + "}";
+    }
+}
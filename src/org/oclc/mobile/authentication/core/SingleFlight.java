@@ -0,0 +1,364 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent calls for the same key into a single call. The first caller to join a key starts the call,
+ * later callers join it while it is in flight, and all of them receive its outcome.
+ * <p>
+ * Each caller holds a {@link Ticket}, which is a {@link Future} of the outcome and can also notify a {@link Listener}.
+ * A caller may give up on its own ticket with {@link Ticket#cancel(boolean)} or wait with a timeout; neither affects
+ * the other callers. When every caller has given up the call is dropped, and ending it later has no effect. The whole
+ * call can be cancelled or failed through the key. All methods are thread safe; listeners
+ * are notified on the thread that completes the call, outside of any lock.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the outcome
+ */
+public final class SingleFlight<K, V> {
+
+    /**
+     * Receives the outcome of a call.
+     *
+     * @param <V> the type of the outcome
+     */
+    public interface Listener<V> {
+
+        /**
+         * Method is called when the call succeeds
+         *
+         * @param value the outcome
+         */
+        void completed(V value);
+
+        /**
+         * Method is called when the call fails
+         *
+         * @param cause why the call failed
+         */
+        void failed(Throwable cause);
+
+        /**
+         * Method is called when the call, or this caller's ticket, is cancelled
+         */
+        void cancelled();
+    }
+
+    /**
+     * A caller's handle on a call.
+     */
+    public final class Ticket implements Future<V> {
+
+        /**
+         * The key of the call, or null for a ticket that was completed without a call.
+         */
+        private final K key;
+
+        /**
+         * Notified of the outcome, may be null.
+         */
+        private final Listener<V> listener;
+
+        /**
+         * Whether the outcome is known.
+         */
+        private boolean done;
+
+        /**
+         * Whether the ticket was cancelled.
+         */
+        private boolean cancelled;
+
+        /**
+         * The outcome, if the call succeeded.
+         */
+        private V value;
+
+        /**
+         * The cause, if the call failed.
+         */
+        private Throwable cause;
+
+        /**
+         * Creates a pending ticket.
+         *
+         * @param key the key of the call
+         * @param listener notified of the outcome, may be null
+         */
+        private Ticket(final K key, final Listener<V> listener) {
+            this.key = key;
+            this.listener = listener;
+        }
+
+        /**
+         * Gives up on the call for this caller only. The call itself carries on for the other callers. Once the last
+         * caller has given up the call is no longer in flight, so the next caller starts a new one rather than joining
+         * a call that may never end.
+         *
+         * @param mayInterruptIfRunning ignored, since the call does not run on the caller's thread
+         * @return false if the outcome was already known
+         */
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            synchronized (SingleFlight.this) {
+                List<Ticket> tickets = flights.get(key);
+                if (tickets != null && tickets.remove(this) && tickets.isEmpty()) {
+                    flights.remove(key);
+                }
+            }
+            return finish(null, null, true);
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public V get() throws InterruptedException, ExecutionException {
+            synchronized (this) {
+                while (!done) {
+                    wait();
+                }
+            }
+            return outcome();
+        }
+
+        @Override
+        public V get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+            TimeoutException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            synchronized (this) {
+                while (!done) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        throw new TimeoutException();
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return outcome();
+        }
+
+        /**
+         * @return the outcome of a finished ticket
+         * @throws ExecutionException if the call failed
+         */
+        private synchronized V outcome() throws ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            if (cause != null) {
+                throw new ExecutionException(cause);
+            }
+            return value;
+        }
+
+        /**
+         * Records the outcome and notifies the listener, unless the outcome is already known.
+         *
+         * @param result the outcome of a successful call
+         * @param failure the cause of a failed call
+         * @param cancel whether the ticket is cancelled
+         * @return false if the outcome was already known
+         */
+        private boolean finish(final V result, final Throwable failure, final boolean cancel) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                done = true;
+                value = result;
+                cause = failure;
+                cancelled = cancel;
+                notifyAll();
+            }
+            if (listener != null) {
+                if (cancel) {
+                    listener.cancelled();
+                } else if (failure != null) {
+                    listener.failed(failure);
+                } else {
+                    listener.completed(result);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Wraps a listener so that it is notified on the given executor instead of on the thread that completes the call,
+     * for example to receive a token on a background thread when the call completes on the UI thread.
+     *
+     * @param executor runs the notifications
+     * @param listener the listener to notify
+     * @param <V> the type of the outcome
+     * @return a listener that hands each notification to the executor
+     */
+    public static <V> Listener<V> notifyingOn(final Executor executor, final Listener<V> listener) {
+        return new Listener<V>() {
+            @Override
+            public void completed(final V value) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.completed(value);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(final Throwable cause) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.failed(cause);
+                    }
+                });
+            }
+
+            @Override
+            public void cancelled() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.cancelled();
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * The tickets of each call in flight.
+     */
+    private final HashMap<K, List<Ticket>> flights = new HashMap<K, List<Ticket>>();
+
+    /**
+     * Joins the call for a key if it is in flight, otherwise starts it. The start action runs on the calling thread,
+     * after the call has been registered, so callers arriving while it runs join the new call.
+     *
+     * @param key the key of the call
+     * @param listener notified of the outcome, may be null
+     * @param start starts the call, which must later be ended by complete, fail or cancel
+     * @return the caller's ticket
+     */
+    public Ticket join(final K key, final Listener<V> listener, final Runnable start) {
+        Ticket ticket = new Ticket(key, listener);
+        boolean leader;
+        synchronized (this) {
+            List<Ticket> tickets = flights.get(key);
+            leader = tickets == null;
+            if (leader) {
+                tickets = new ArrayList<Ticket>();
+                flights.put(key, tickets);
+            }
+            tickets.add(ticket);
+        }
+        if (leader) {
+            start.run();
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns a ticket that already holds an outcome, for callers whose value was found without a call.
+     *
+     * @param value the outcome
+     * @param listener notified of the outcome straight away, may be null
+     * @return a finished ticket
+     */
+    public Ticket completed(final V value, final Listener<V> listener) {
+        Ticket ticket = new Ticket(null, listener);
+        ticket.finish(value, null, false);
+        return ticket;
+    }
+
+    /**
+     * @param key the key of a call
+     * @return true if the call is in flight
+     */
+    public synchronized boolean isInFlight(final K key) {
+        return flights.containsKey(key);
+    }
+
+    /**
+     * Ends a call successfully.
+     *
+     * @param key the key of the call
+     * @param value the outcome
+     * @return false if the call was not in flight
+     */
+    public boolean complete(final K key, final V value) {
+        return end(key, value, null, false);
+    }
+
+    /**
+     * Ends a call with a failure.
+     *
+     * @param key the key of the call
+     * @param cause why the call failed
+     * @return false if the call was not in flight
+     */
+    public boolean fail(final K key, final Throwable cause) {
+        return end(key, null, cause, false);
+    }
+
+    /**
+     * Cancels a call for all its callers.
+     *
+     * @param key the key of the call
+     * @return false if the call was not in flight
+     */
+    public boolean cancel(final K key) {
+        return end(key, null, null, true);
+    }
+
+    /**
+     * Removes a call and finishes its tickets.
+     *
+     * @param key the key of the call
+     * @param value the outcome of a successful call
+     * @param cause the cause of a failed call
+     * @param cancel whether the call is cancelled
+     * @return false if the call was not in flight
+     */
+    private boolean end(final K key, final V value, final Throwable cause, final boolean cancel) {
+        List<Ticket> tickets;
+        synchronized (this) {
+            tickets = flights.remove(key);
+        }
+        if (tickets == null) {
+            return false;
+        }
+        for (Ticket ticket : tickets) {
+            ticket.finish(value, cause, cancel);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,320 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tells when each token in a {@link TokenRegistry} is due for refresh and when it expires, using one
+ * {@link ExpiryWheel} for all of them rather than a timer per token.
+ * <p>
+ * A tracked token first fires refreshDue once the refresh fraction of its remaining lifetime has passed, give or take
+ * some random jitter so that tokens received together, and clients started together, do not refresh in lockstep. It
+ * then fires expired when it expires. A refresh that failed can be retried with an exponential backoff. Tracking a key
+ * again replaces its token and its deadlines.
+ * <p>
+ * The listener is called on the wheel's thread. A deadline that passes while there is no listener, for example while
+ * the activity is being recreated, is kept and fired as soon as a listener is set.
+ */
+public final class TokenDeadlines {
+
+    /**
+     * Receives the deadlines of the tracked tokens.
+     */
+    public interface Listener {
+
+        /**
+         * Method is called when a token is due for refresh
+         *
+         * @param key the token's key
+         * @param result the token
+         */
+        void refreshDue(TokenKey key, AuthorizationResult result);
+
+        /**
+         * Method is called when a token has expired. The token is no longer tracked.
+         *
+         * @param key the token's key
+         * @param result the token
+         */
+        void expired(TokenKey key, AuthorizationResult result);
+    }
+
+    /**
+     * A tracked token and whether its refresh due deadline has passed.
+     */
+    private static final class Tracked {
+
+        /**
+         * The token.
+         */
+        private final AuthorizationResult result;
+
+        /**
+         * Whether refreshDue has been fired.
+         */
+        private boolean refreshFired;
+
+        /**
+         * The deadline scheduled for the token, used to ignore a deadline of a token since replaced.
+         */
+        private long deadlineMillis;
+
+        /**
+         * Number of refreshes of the token that have failed, which sets the backoff of the next retry.
+         */
+        private int refreshFailures;
+
+        /**
+         * Whether the deadline passed while there was no listener, and must be fired again once there is one.
+         */
+        private boolean missed;
+
+        /**
+         * Creates a tracked token.
+         *
+         * @param result the token
+         */
+        private Tracked(final AuthorizationResult result) {
+            this.result = result;
+        }
+    }
+
+    /**
+     * Number of slots in the wheel.
+     */
+    private static final int SLOT_COUNT = 2048;
+
+    /**
+     * Maximum jitter of the refresh due deadline and of a retry, as a fraction of the time until it.
+     */
+    private static final double JITTER_FRACTION = 0.1;
+
+    /**
+     * Largest power of two by which the first retry delay is multiplied, which keeps the backoff from overflowing.
+     */
+    private static final int MAXIMUM_BACKOFF_SHIFT = 30;
+
+    /**
+     * Fraction of a token's remaining lifetime after which it is due for refresh.
+     */
+    private final double refreshFraction;
+
+    /**
+     * The tracked tokens.
+     */
+    private final HashMap<TokenKey, Tracked> tracked = new HashMap<TokenKey, Tracked>();
+
+    /**
+     * Source of the jitter. Only used while holding the lock on tracked.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Fires the deadlines.
+     */
+    private final ExpiryWheel<TokenKey> wheel;
+
+    /**
+     * Receives the deadlines, or null to keep them until there is a listener. Guarded by the lock on tracked.
+     */
+    private Listener listener;
+
+    /**
+     * Creates a tracker and starts its wheel.
+     *
+     * @param refreshFraction fraction of a token's remaining lifetime after which it is due for refresh
+     * @param tickMillis length of a wheel tick, which is how late a deadline may fire; deadlines that fall in the same
+     *            tick are fired together
+     */
+    public TokenDeadlines(final double refreshFraction, final long tickMillis) {
+        this.refreshFraction = refreshFraction;
+        this.wheel = new ExpiryWheel<TokenKey>(tickMillis, SLOT_COUNT, System.currentTimeMillis(),
+            new ExpiryWheel.Listener<TokenKey>() {
+                @Override
+                public void deadlineReached(final TokenKey key, final long deadlineMillis) {
+                    fire(key, deadlineMillis);
+                }
+            });
+        wheel.start("TokenDeadlines");
+    }
+
+    /**
+     * Sets the listener, replacing the previous one, for example when the activity that listened is recreated. The
+     * deadlines that passed while there was no listener are fired again for the new one.
+     *
+     * @param listener receives the deadlines, or null to keep them until a listener is set
+     */
+    public void setListener(final Listener listener) {
+        synchronized (tracked) {
+            this.listener = listener;
+            if (listener == null) {
+                return;
+            }
+            for (Map.Entry<TokenKey, Tracked> entry : tracked.entrySet()) {
+                Tracked token = entry.getValue();
+                if (token.missed) {
+                    token.missed = false;
+                    wheel.schedule(entry.getKey(), token.deadlineMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tracks a token, replacing the token tracked for its key. Its refresh due deadline is jittered by up to a tenth of
+     * the time until it, and always falls before the token expires. A token without a known expiry time is not
+     * tracked.
+     *
+     * @param key the token's key
+     * @param result the token
+     * @param nowMillis the current time in milliseconds since the epoch
+     */
+    public void track(final TokenKey key, final AuthorizationResult result, final long nowMillis) {
+        synchronized (tracked) {
+            if (result.getExpiresAtMillis() == 0) {
+                tracked.remove(key);
+                wheel.cancel(key);
+                return;
+            }
+            Tracked token = new Tracked(result);
+            long remaining = Math.max(0, result.getExpiresAtMillis() - nowMillis);
+            long untilRefresh = jitter((long) (remaining * refreshFraction));
+            token.deadlineMillis = nowMillis + Math.min(untilRefresh, Math.max(0, remaining - 1));
+            tracked.put(key, token);
+            wheel.schedule(key, token.deadlineMillis);
+        }
+    }
+
+    /**
+     * Fires refreshDue for a tracked token again after a refresh that failed, for example because it could not reach
+     * the server. The delay doubles with each failure of the same token, starting from the given first delay and
+     * jittered by up to a tenth, and is capped at the time the token has left: nothing is scheduled once the next retry
+     * would not come before the token expires, in which case only its expiry is fired. Nothing is scheduled either if
+     * the key now tracks another token.
+     *
+     * @param key the token's key
+     * @param result the token whose refresh failed
+     * @param firstDelayMillis delay before the first retry
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return true if refreshDue was scheduled again
+     */
+    public boolean retryRefresh(final TokenKey key, final AuthorizationResult result, final long firstDelayMillis,
+        final long nowMillis) {
+        synchronized (tracked) {
+            Tracked token = tracked.get(key);
+            if (token == null || token.result != result) {
+                return false;
+            }
+            long delay = jitter(firstDelayMillis << Math.min(token.refreshFailures, MAXIMUM_BACKOFF_SHIFT));
+            if (delay < 0 || nowMillis + delay >= result.getExpiresAtMillis()) {
+                return false;
+            }
+            token.refreshFailures++;
+            token.refreshFired = false;
+            token.missed = false;
+            token.deadlineMillis = nowMillis + delay;
+            wheel.schedule(key, token.deadlineMillis);
+            return true;
+        }
+    }
+
+    /**
+     * Stops tracking a token.
+     *
+     * @param key the token's key
+     */
+    public void untrack(final TokenKey key) {
+        synchronized (tracked) {
+            tracked.remove(key);
+            wheel.cancel(key);
+        }
+    }
+
+    /**
+     * Stops tracking every token.
+     */
+    public void clear() {
+        synchronized (tracked) {
+            tracked.clear();
+            wheel.clear();
+        }
+    }
+
+    /**
+     * Stops the wheel's thread. No more deadlines are fired.
+     */
+    public void shutdown() {
+        wheel.shutdown();
+    }
+
+    /**
+     * Describes the work done so far, for comparing with a timer per token.
+     *
+     * @return the number of tokens tracked, deadlines fired and wheel wakeups
+     */
+    public String getStats() {
+        return "tracked=" + wheel.size() + " fired=" + wheel.getFired() + " wakeups=" + wheel.getWakeups();
+    }
+
+    /**
+     * Moves a delay by a random amount of up to a tenth of it either way.
+     *
+     * @param delayMillis the delay
+     * @return the jittered delay
+     */
+    private long jitter(final long delayMillis) {
+        return delayMillis + (long) (delayMillis * JITTER_FRACTION * (2 * random.nextDouble() - 1));
+    }
+
+    /**
+     * Handles a deadline: fires refreshDue and schedules the expiry, or fires expired and forgets the token. Without a
+     * listener, the deadline is kept for the next one.
+     *
+     * @param key the token's key
+     * @param deadlineMillis the deadline that passed
+     */
+    private void fire(final TokenKey key, final long deadlineMillis) {
+        Tracked token;
+        boolean expired;
+        Listener current;
+        synchronized (tracked) {
+            token = tracked.get(key);
+            if (token == null || token.deadlineMillis != deadlineMillis) {
+                return;
+            }
+            current = listener;
+            if (current == null) {
+                token.missed = true;
+                return;
+            }
+            expired = token.refreshFired;
+            if (expired) {
+                tracked.remove(key);
+            } else {
+                token.refreshFired = true;
+                token.deadlineMillis = token.result.getExpiresAtMillis();
+                wheel.schedule(key, token.deadlineMillis);
+            }
+        }
+
+        if (expired) {
+            current.expired(key, token.result);
+        } else {
+            current.refreshDue(key, token.result);
+        }
+    }
+}
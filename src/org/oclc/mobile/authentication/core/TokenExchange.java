@@ -0,0 +1,209 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Redeems authorization codes and refresh tokens at the token endpoint, natively rather than through the WebView.
+ * <p>
+ * In the authorization code flow the WebView only collects the code; {@link #exchangeCode(String, Pkce)} turns it
+ * into a token with the PKCE code verifier. {@link #refresh(AuthorizationResult)} redeems the refresh token of a token
+ * for a new one. Both POST a form and read the JSON response in full without disconnecting, so that consecutive
+ * exchanges reuse HttpURLConnection's keep-alive connection to the token endpoint.
+ * <p>
+ * The token endpoint is passed in, so the exchange can be pointed at a local stand-in server. Exchanges block and
+ * must not be made on the UI thread. Thread safe.
+ */
+public class TokenExchange {
+
+    /**
+     * Connect and read timeout of an exchange.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the buffer used to read the response.
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Url of the token endpoint, for example {baseURL}/accessToken.
+     */
+    private final String tokenEndpointUrl;
+
+    /**
+     * The wskey client ID.
+     */
+    private final String clientId;
+
+    /**
+     * The redirect URI the authorization codes were sent to.
+     */
+    private final String redirectUri;
+
+    /**
+     * Creates an exchange for a token endpoint.
+     *
+     * @param tokenEndpointUrl url of the token endpoint
+     * @param clientId the wskey client ID
+     * @param redirectUri the redirect URI of the authorization requests
+     */
+    public TokenExchange(final String tokenEndpointUrl, final String clientId, final String redirectUri) {
+        this.tokenEndpointUrl = tokenEndpointUrl;
+        this.clientId = clientId;
+        this.redirectUri = redirectUri;
+    }
+
+    /**
+     * Redeems an authorization code.
+     *
+     * @param code the code the WebView collected
+     * @param pkce the pair whose challenge was sent with the authorization request
+     * @return the token
+     * @throws IOException if the token endpoint cannot be reached or returns no token
+     * @throws AuthorizationException if the token endpoint rejects the code
+     */
+    public final AuthorizationResult exchangeCode(final String code, final Pkce pkce) throws IOException,
+        AuthorizationException {
+        return AuthorizationResult.received(post("grant_type=authorization_code&code=" + encode(code)
+            + "&redirect_uri=" + encode(redirectUri) + "&client_id=" + encode(clientId) + "&code_verifier="
+            + encode(pkce.getVerifier())), System.currentTimeMillis());
+    }
+
+    /**
+     * Redeems the refresh token of a token. Parameters the server does not return again, such as the principal or a
+     * refresh token that is not rotated, are carried over from the previous token.
+     *
+     * @param previous the token to refresh
+     * @return the new token
+     * @throws IOException if the token endpoint cannot be reached or returns no token
+     * @throws AuthorizationException if the token endpoint rejects the refresh token
+     */
+    public final AuthorizationResult refresh(final AuthorizationResult previous) throws IOException,
+        AuthorizationException {
+
+        String refreshToken = previous.getRefreshToken();
+        if (refreshToken == null || refreshToken.length() == 0) {
+            throw new AuthorizationException("invalid_request", "No refresh token");
+        }
+
+        HashMap<String, String> refreshed = post("grant_type=refresh_token&refresh_token=" + encode(refreshToken)
+            + "&client_id=" + encode(clientId));
+        for (Map.Entry<String, String> carried : previous.getParameters().entrySet()) {
+            if (!refreshed.containsKey(carried.getKey())) {
+                refreshed.put(carried.getKey(), carried.getValue());
+            }
+        }
+        return AuthorizationResult.received(refreshed, System.currentTimeMillis());
+    }
+
+    /**
+     * POSTs a form to the token endpoint.
+     *
+     * @param form the url-encoded form
+     * @return the parameters of the JSON response
+     * @throws IOException if the token endpoint cannot be reached or returns no token
+     * @throws AuthorizationException if the token endpoint returns an OAuth2 error
+     */
+    private HashMap<String, String> post(final String form) throws IOException, AuthorizationException {
+
+        byte[] body = form.getBytes("UTF-8");
+        HttpURLConnection connection = (HttpURLConnection) new URL(tokenEndpointUrl).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+        connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        connection.setRequestProperty("Accept", "application/json");
+
+        /*
+         * The form is small, so let HttpURLConnection buffer it and send it with the headers. Streamed, it goes in a
+         * second packet, which on a kept-alive connection waits for the server's delayed ACK of the first.
+         */
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+
+        /*
+         * Read the response to the end, error or not, so that the connection goes back to the keep-alive pool.
+         */
+        int status = connection.getResponseCode();
+        InputStream in = status >= HttpURLConnection.HTTP_BAD_REQUEST ? connection.getErrorStream()
+            : connection.getInputStream();
+        String response = in == null ? "" : readResponse(in);
+
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        try {
+            JsonObjectReader.read(response, parameters);
+        } catch (IOException e) {
+            throw new IOException("Token endpoint returned HTTP " + status + " without a JSON object");
+        }
+        if (parameters.get("error") != null) {
+            throw new AuthorizationException(parameters.get("error"), parameters.get("error_description"));
+        }
+        if (status != HttpURLConnection.HTTP_OK || parameters.get("access_token") == null) {
+            throw new IOException("Token endpoint returned HTTP " + status + " without an access_token");
+        }
+        return parameters;
+    }
+
+    /**
+     * Percent-encodes a form value.
+     *
+     * @param value the value to encode
+     * @return the encoded value
+     */
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a response body as UTF-8.
+     *
+     * @param in the response stream, which is closed
+     * @return the response body
+     * @throws IOException if the stream cannot be read
+     */
+    private static String readResponse(final InputStream in) throws IOException {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                response.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return response.toString("UTF-8");
+    }
+}
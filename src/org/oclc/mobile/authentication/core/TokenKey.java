@@ -0,0 +1,114 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Set;
+
+/**
+ * Identifies the token a request asks for: the wskey, the authenticating and context institutions, and the set of
+ * scopes. Scopes are normalized into a sorted set, so "WMS_NCIP refresh_token" and "refresh_token  WMS_NCIP" make the
+ * same key. The sets are shared through {@link Scopes}.
+ */
+public final class TokenKey {
+
+    /**
+     * The wskey client ID.
+     */
+    private final String wskey;
+
+    /**
+     * The institution that authenticates the user.
+     */
+    private final String authenticatingInstitutionId;
+
+    /**
+     * The institution whose data is being accessed.
+     */
+    private final String contextInstitutionId;
+
+    /**
+     * The normalized scopes.
+     */
+    private final Set<String> scopes;
+
+    /**
+     * Hash code, computed once since keys are looked up often.
+     */
+    private final int hashCode;
+
+    /**
+     * Creates a key.
+     *
+     * @param wskey the wskey client ID
+     * @param authenticatingInstitutionId the institution that authenticates the user
+     * @param contextInstitutionId the institution whose data is being accessed
+     * @param scopes the scopes, separated by spaces
+     */
+    public TokenKey(final String wskey, final String authenticatingInstitutionId, final String contextInstitutionId,
+        final String scopes) {
+        this.wskey = wskey;
+        this.authenticatingInstitutionId = authenticatingInstitutionId;
+        this.contextInstitutionId = contextInstitutionId;
+
+        this.scopes = Scopes.intern(scopes);
+
+        int hash = wskey.hashCode();
+        hash = 31 * hash + authenticatingInstitutionId.hashCode();
+        hash = 31 * hash + contextInstitutionId.hashCode();
+        this.hashCode = 31 * hash + this.scopes.hashCode();
+    }
+
+    /**
+     * @return the normalized scopes
+     */
+    public Set<String> getScopes() {
+        return scopes;
+    }
+
+    /**
+     * Tells whether a token for this key can be used for another key: same wskey and institutions, and at least the
+     * other key's scopes.
+     *
+     * @param other the key being requested
+     * @return true if a token for this key satisfies the other key
+     */
+    public boolean satisfies(final TokenKey other) {
+        return wskey.equals(other.wskey) && authenticatingInstitutionId.equals(other.authenticatingInstitutionId)
+            && contextInstitutionId.equals(other.contextInstitutionId) && scopes.containsAll(other.scopes);
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof TokenKey)) {
+            return false;
+        }
+        TokenKey other = (TokenKey) object;
+        return hashCode == other.hashCode && wskey.equals(other.wskey)
+            && authenticatingInstitutionId.equals(other.authenticatingInstitutionId)
+            && contextInstitutionId.equals(other.contextInstitutionId) && scopes.equals(other.scopes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return wskey + "/" + authenticatingInstitutionId + "/" + contextInstitutionId + "/" + scopes;
+    }
+}
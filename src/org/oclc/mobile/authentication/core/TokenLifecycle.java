@@ -0,0 +1,108 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Collections;
+/**
+ * Tracks the current token through its life: valid, due for refresh once a fraction of its lifetime has passed, and
+ * expired. All methods are synchronized so the lifecycle can be shared between threads.
+ */
+public final class TokenLifecycle {
+
+    /**
+     * The stages of a token's life.
+     */
+    public enum State {
+        /** No token has been received. */
+        NONE,
+        /** The token is valid. */
+        VALID,
+        /** The token is valid, but should be refreshed. */
+        REFRESH_DUE,
+        /** The token has expired. */
+        EXPIRED
+    }
+
+    /**
+     * Fraction of the token lifetime after which it is due for refresh.
+     */
+    private final double refreshFraction;
+
+    /**
+     * The current token, or null if there is none.
+     */
+    private AuthorizationResult token;
+
+    /**
+     * Time at which the current token is due for refresh, in milliseconds since the epoch.
+     */
+    private long refreshDueAtMillis;
+
+    /**
+     * Creates a lifecycle with no token.
+     *
+     * @param refreshFraction fraction of a token's lifetime after which it is due for refresh, between 0 and 1
+     */
+    public TokenLifecycle(final double refreshFraction) {
+        this.refreshFraction = refreshFraction;
+    }
+
+    /**
+     * Makes a newly received token the current one.
+     *
+     * @param result the token
+     * @param nowMillis the current time in milliseconds since the epoch
+     */
+    public synchronized void tokenReceived(final AuthorizationResult result, final long nowMillis) {
+        this.token = result;
+        this.refreshDueAtMillis = nowMillis + (long) ((result.getExpiresAtMillis() - nowMillis) * refreshFraction);
+    }
+
+    /**
+     * Forgets the current token, for example on sign out.
+     */
+    public synchronized void clear() {
+        token = null;
+        refreshDueAtMillis = 0;
+    }
+
+    /**
+     * @param nowMillis the current time in milliseconds since the epoch
+     * @return the stage of the current token
+     */
+    public synchronized State getState(final long nowMillis) {
+        if (token == null) {
+            return State.NONE;
+        }
+        if (!token.isValidFor(0, nowMillis)) {
+            return State.EXPIRED;
+        }
+        return nowMillis >= refreshDueAtMillis ? State.REFRESH_DUE : State.VALID;
+    }
+
+    /**
+     * @return the current token, or null if there is none
+     */
+    public synchronized AuthorizationResult getToken() {
+        return token;
+    }
+
+    /**
+     * @return time at which the current token is due for refresh in milliseconds since the epoch, or 0 if there is
+     *         no token
+     */
+    public synchronized long getRefreshDueAtMillis() {
+        return refreshDueAtMillis;
+    }
+}
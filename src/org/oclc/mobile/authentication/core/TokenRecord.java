@@ -0,0 +1,93 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary form of a token, used wherever a token leaves memory: the encrypted record of the TokenStore and the
+ * token broker that hands tokens to other processes.
+ * <p>
+ * The record is a version byte, the absolute time at which the token expires in milliseconds since the epoch, the
+ * number of parameters, and each parameter's name and value in modified UTF-8. The token is rebuilt from its
+ * parameters and expiry time, so nothing but those two has to agree between writer and reader.
+ */
+public final class TokenRecord {
+
+    /**
+     * Version of the record layout, written first so that a future layout can be told apart.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Not instantiable.
+     */
+    private TokenRecord() {
+    }
+
+    /**
+     * Encodes a token.
+     *
+     * @param result the token
+     * @return the record
+     */
+    public static byte[] encode(final AuthorizationResult result) {
+        Map<String, String> parameters = result.getParameters();
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(record);
+        try {
+            out.writeByte(VERSION);
+            out.writeLong(result.getExpiresAtMillis());
+            out.writeShort(parameters.size());
+            for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+                out.writeUTF(parameter.getKey());
+                out.writeUTF(parameter.getValue());
+            }
+            out.flush();
+        } catch (IOException e) {
+            /*
+             * Writing to memory only fails for a parameter longer than modified UTF-8 allows.
+             */
+            throw new IllegalArgumentException("Token cannot be encoded", e);
+        }
+        return record.toByteArray();
+    }
+
+    /**
+     * Decodes a token.
+     *
+     * @param record the record
+     * @return the token
+     * @throws IOException if the record is truncated or of an unknown version
+     */
+    public static AuthorizationResult decode(final byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        if (in.readByte() != VERSION) {
+            throw new IOException("Unknown token record version");
+        }
+        long expiresAt = in.readLong();
+        int count = in.readShort();
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        for (int i = 0; i < count; i++) {
+            parameters.put(in.readUTF(), in.readUTF());
+        }
+        return AuthorizationResult.expiringAt(parameters, expiresAt);
+    }
+}
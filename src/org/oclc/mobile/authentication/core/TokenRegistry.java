@@ -0,0 +1,200 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the tokens of several institution contexts, so that switching back to a context whose token is still valid
+ * does not require signing in again.
+ * <p>
+ * Tokens are keyed by {@link TokenKey}. A lookup that has no exact match is satisfied by a token for the same wskey
+ * and institutions with a superset of the requested scopes. The registry holds a bounded number of tokens: expired
+ * tokens are dropped first, then the least recently used. All methods are synchronized so the registry can be shared
+ * between threads.
+ * <p>
+ * A registry created with a {@link TokenDeadlines} keeps it tracking exactly the tokens it holds.
+ */
+public class TokenRegistry {
+
+    /**
+     * Maximum number of tokens held.
+     */
+    private final int capacity;
+
+    /**
+     * The tokens, in least recently used order.
+     */
+    private final LinkedHashMap<TokenKey, AuthorizationResult> entries;
+
+    /**
+     * Tracks the refresh and expiry deadlines of the tokens held, or null if they are not tracked.
+     */
+    private final TokenDeadlines deadlines;
+
+    /**
+     * Creates an empty registry.
+     *
+     * @param capacity the maximum number of tokens held
+     */
+    public TokenRegistry(final int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Creates an empty registry whose tokens are tracked for refresh and expiry.
+     *
+     * @param capacity the maximum number of tokens held
+     * @param deadlines tracks the deadlines of the tokens held, may be null
+     */
+    public TokenRegistry(final int capacity, final TokenDeadlines deadlines) {
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<TokenKey, AuthorizationResult>(capacity, 0.75f, true);
+        this.deadlines = deadlines;
+    }
+
+    /**
+     * @return the tracker of the tokens' deadlines, or null if they are not tracked
+     */
+    public final TokenDeadlines getDeadlines() {
+        return deadlines;
+    }
+
+    /**
+     * Returns a token for the key that remains valid for at least the given time.
+     *
+     * @param key the token being requested
+     * @param minimumRemainingMillis how long the token must still be valid for
+     * @return the token, or null if no token satisfies the key
+     */
+    public final synchronized AuthorizationResult get(final TokenKey key, final long minimumRemainingMillis) {
+
+        long now = System.currentTimeMillis();
+
+        AuthorizationResult found = entries.get(key);
+        if (found != null && found.isValidFor(minimumRemainingMillis, now)) {
+            return found;
+        }
+
+        /*
+         * No usable exact match, so look for a token with more scopes. Prefer the one that lasts longest.
+         */
+        found = null;
+        TokenKey foundKey = null;
+        for (Map.Entry<TokenKey, AuthorizationResult> candidate : entries.entrySet()) {
+            AuthorizationResult token = candidate.getValue();
+            if (token.isValidFor(minimumRemainingMillis, now) && candidate.getKey().satisfies(key)
+                && (found == null || token.getExpiresAtMillis() > found.getExpiresAtMillis())) {
+                found = token;
+                foundKey = candidate.getKey();
+            }
+        }
+
+        /*
+         * Touch the entry so it counts as recently used.
+         */
+        if (foundKey != null) {
+            entries.get(foundKey);
+        }
+        return found;
+    }
+
+    /**
+     * Registers the token returned by an authentication. Results without an access token are not registered.
+     *
+     * @param key the token that was requested
+     * @param result the token
+     */
+    public final synchronized void put(final TokenKey key, final AuthorizationResult result) {
+
+        if (result.getAccessToken() == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        entries.put(key, result);
+        if (deadlines != null) {
+            deadlines.track(key, result, now);
+        }
+
+        if (entries.size() > capacity) {
+            removeExpired(now);
+        }
+        Iterator<TokenKey> leastRecentlyUsed = entries.keySet().iterator();
+        while (entries.size() > capacity) {
+            TokenKey evicted = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            if (deadlines != null) {
+                deadlines.untrack(evicted);
+            }
+        }
+    }
+
+    /**
+     * Removes the token for a key, for example when the user asks to sign in again.
+     *
+     * @param key the token to remove
+     */
+    public final synchronized void remove(final TokenKey key) {
+        entries.remove(key);
+        if (deadlines != null) {
+            deadlines.untrack(key);
+        }
+    }
+
+    /**
+     * Removes the token for a key if it is still the given one, for example when that token has expired.
+     *
+     * @param key the token to remove
+     * @param result the token expected for the key
+     * @return true if the token was removed
+     */
+    public final synchronized boolean remove(final TokenKey key, final AuthorizationResult result) {
+        if (entries.get(key) != result) {
+            return false;
+        }
+        remove(key);
+        return true;
+    }
+
+    /**
+     * Removes all tokens.
+     */
+    public final synchronized void clear() {
+        entries.clear();
+        if (deadlines != null) {
+            deadlines.clear();
+        }
+    }
+
+    /**
+     * Removes the tokens that have expired.
+     *
+     * @param now the current time in milliseconds since the epoch
+     */
+    private void removeExpired(final long now) {
+        Iterator<Map.Entry<TokenKey, AuthorizationResult>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<TokenKey, AuthorizationResult> entry = iterator.next();
+            if (!entry.getValue().isValidFor(0, now)) {
+                iterator.remove();
+                if (deadlines != null) {
+                    deadlines.untrack(entry.getKey());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.oclc.mobile.authentication.core;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+/**
+ * Receives the traces of completed authentications and the aggregated statistics from {@link FlowMetrics}.
+ */
+public interface TraceSink {
+
+    /**
+     * Method is called when an authentication completes
+     *
+     * @param trace the authentication's timing
+     */
+    void flowCompleted(FlowTrace trace);
+
+    /**
+     * Method is called with the statistics of all authentications so far, after each one completes
+     *
+     * @param summary the statistics as a single line of JSON
+     */
+    void summary(String summary);
+}
@@ -0,0 +1,115 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Runs the single-threaded micro-benchmarks of the tools: each operation is run for a warmup, then timed over several
+ * rounds, and the median round is reported with the bytes the calling thread allocated per operation.
+ */
+final class Benchmarks {
+
+    /**
+     * One operation to be timed.
+     */
+    interface Operation {
+
+        /**
+         * Method is called once per iteration
+         *
+         * @param iteration the number of the iteration, from 0
+         * @throws Exception if the operation fails, which ends the benchmark
+         */
+        void run(int iteration) throws Exception;
+    }
+
+    /**
+     * Number of timed rounds, of which the median is reported.
+     */
+    private static final int ROUNDS = 5;
+
+    /**
+     * Multiplier to convert nanoseconds to microseconds.
+     */
+    static final long NANOSECONDS_TO_MICROSECONDS = 1000L;
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds.
+     */
+    static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Not instantiable.
+     */
+    private Benchmarks() {
+    }
+
+    /**
+     * Times an operation and prints the median nanoseconds and the bytes allocated per operation as a line of JSON.
+     *
+     * @param name the name of the benchmark
+     * @param iterations the number of operations in a round; as many are run first as a warmup
+     * @param operation the operation
+     * @return the median nanoseconds per operation
+     * @throws Exception if the operation fails
+     */
+    static long run(final String name, final int iterations, final Operation operation) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+
+        long[] nanosPerOperation = new long[ROUNDS];
+        long allocatedBefore = allocatedBytes();
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                operation.run(i);
+            }
+            nanosPerOperation[round] = (System.nanoTime() - start) / iterations;
+        }
+        long allocated = allocatedBytes() - allocatedBefore;
+
+        Arrays.sort(nanosPerOperation);
+        long median = nanosPerOperation[ROUNDS / 2];
+        System.out.println("{\"benchmark\":\"" + name + "\",\"iterations\":" + iterations + ",\"nsPerOperation\":"
+            + median + (allocatedBefore < 0 ? "" : ",\"allocatedBytesPerOperation\":" + allocated
+                / ((long) iterations * ROUNDS)) + "}");
+        return median;
+    }
+
+    /**
+     * @param sortedNanos sorted latencies, in nanoseconds
+     * @param fraction the percentile, from 0 to 1
+     * @return the latency at the percentile, in microseconds
+     */
+    static long percentile(final long[] sortedNanos, final double fraction) {
+        if (sortedNanos.length == 0) {
+            return 0;
+        }
+        return sortedNanos[(int) Math.ceil(fraction * (sortedNanos.length - 1))] / NANOSECONDS_TO_MICROSECONDS;
+    }
+
+    /**
+     * @return the bytes allocated so far by the calling thread, or -1 if the JVM cannot tell
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+}
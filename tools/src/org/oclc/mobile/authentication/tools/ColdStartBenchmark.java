@@ -0,0 +1,95 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.File;
+import java.util.Map;
+
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.EncryptedTokenFile;
+
+/**
+ * Compares the two ways MainActivity gets its first token at startup: reading the token that TokenStore kept in its
+ * {@link EncryptedTokenFile}, and signing in against a {@link StandInAuthorizationServer}.
+ * <p>
+ * The first read of the file is reported on its own, since it pays for loading the cipher classes, as the first start
+ * of the app does. The sign in leaves out the WebView, which only adds to that path. Options are those of the server,
+ * of which latency and depth set the cost of each hop; run in a fresh JVM for the first-read figure to mean anything.
+ */
+public final class ColdStartBenchmark {
+
+    /**
+     * Number of reads of the stored token per round.
+     */
+    private static final int READ_ITERATIONS = 200;
+
+    /**
+     * Number of sign ins per round, fewer since each costs several round trips.
+     */
+    private static final int SIGN_IN_ITERATIONS = 20;
+
+    /**
+     * Not instantiable.
+     */
+    private ColdStartBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the options of the server, each of the form --name=value
+     * @throws Exception if the benchmark cannot run
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        StandInAuthorizationServer server = new StandInAuthorizationServer(0);
+        server.configure(options);
+        server.start();
+        File directory = File.createTempFile("token-store", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            final LoadHarness harness = new LoadHarness(options, server);
+            AuthorizationResult token = harness.signIn();
+            new EncryptedTokenFile(directory).write(token);
+
+            final EncryptedTokenFile file = new EncryptedTokenFile(directory);
+            long start = System.nanoTime();
+            file.read();
+            System.out.println("{\"benchmark\":\"storedToken-firstRead\",\"us\":" + (System.nanoTime() - start)
+                / Benchmarks.NANOSECONDS_TO_MICROSECONDS + "}");
+
+            long stored = Benchmarks.run("storedToken", READ_ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(final int iteration) throws Exception {
+                    file.read();
+                }
+            });
+            long signIn = Benchmarks.run("signIn", SIGN_IN_ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(final int iteration) throws Exception {
+                    harness.signIn();
+                }
+            });
+            System.out.println("{\"signInOverStoredToken\":" + signIn / Math.max(1, stored) + "}");
+        } finally {
+            server.stop();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,746 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.oclc.mobile.authentication.core.AuthorizationException;
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.FlowMetrics;
+import org.oclc.mobile.authentication.core.FlowTrace;
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.NcipBatch;
+import org.oclc.mobile.authentication.core.NcipOperation;
+import org.oclc.mobile.authentication.core.OperationQueue;
+import org.oclc.mobile.authentication.core.Pkce;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+import org.oclc.mobile.authentication.core.RedirectUriParser;
+import org.oclc.mobile.authentication.core.ServiceClient;
+import org.oclc.mobile.authentication.core.ServiceResponse;
+import org.oclc.mobile.authentication.core.SilentSignInMetrics;
+import org.oclc.mobile.authentication.core.TokenDeadlines;
+import org.oclc.mobile.authentication.core.TokenExchange;
+import org.oclc.mobile.authentication.core.TokenRegistry;
+import org.oclc.mobile.authentication.core.TraceSink;
+
+/**
+ * Drives many simulated authentications, token refreshes and web service calls through the authentication core
+ * against a {@link StandInAuthorizationServer}, and reports their throughput, latency percentiles and the bytes
+ * allocated per operation by the calling thread.
+ * <p>
+ * An authentication goes the way AuthenticatingWebView takes it: each url is checked by the {@link NavigationPolicy},
+ * the pages are timed by a {@link FlowTrace}, the redirect URI is parsed by the {@link RedirectUriParser}, a code is
+ * exchanged by the {@link TokenExchange}, and the token is put into a {@link TokenRegistry}. Only the WebView itself
+ * is left out: redirects are followed here, without rendering.
+ * <p>
+ * The silent scenario signs each device in again and again without showing anything, as MainActivity does when
+ * silentReauthentication is on, against a server that requires a login and whose sessions last sessionLifetime. A
+ * silent sign in that meets the login form, or does not reach the redirect URI within silentTimeout, is escalated, and
+ * the device then signs in visibly, which starts a new session. The outcomes are counted by
+ * {@link SilentSignInMetrics}, including those of the warm-up, like the flow metrics.
+ * <p>
+ * Options, all of the form --name=value:
+ * <ul>
+ * <li>scenario: implicit, code, silent, refresh, service, ncip or queue; implicit unless set</li>
+ * <li>operations: number of authentications, refreshes, calls or batches measured; 2000 unless set</li>
+ * <li>warmup: number run first and not measured; 200 unless set</li>
+ * <li>concurrency: number in progress at once; 16 unless set</li>
+ * <li>method: GET or POST, for the service scenario; GET unless set</li>
+ * <li>items: number of operations in an NCIP batch; 20 unless set</li>
+ * <li>silentTimeout: milliseconds after which a silent sign in is shown, for the silent scenario; 10000 unless set</li>
+ * <li>port, latency, depth, tokenSize, errorRate, login, sessionLifetime: the settings of the server; see
+ * {@link StandInAuthorizationServer}</li>
+ * </ul>
+ */
+public final class LoadHarness {
+
+    /**
+     * One unit of measured work.
+     */
+    private interface Task {
+
+        /**
+         * Method is called to do the work once
+         *
+         * @param worker the state of the calling thread
+         * @return true if the work succeeded, false if it ended in an expected error, such as an error redirect
+         * @throws Exception if the work failed
+         */
+        boolean run(Worker worker) throws Exception;
+    }
+
+    /**
+     * The state of one thread of the harness, which plays one device.
+     */
+    private static final class Worker {
+
+        /**
+         * Parses the redirect URIs; it keeps a buffer, so it is not shared.
+         */
+        private final RedirectUriParser parser = new RedirectUriParser();
+
+        /**
+         * The session cookie this device holds, like the WebView's CookieManager, or null if it has none.
+         */
+        private String cookie;
+    }
+
+    /**
+     * The redirect URI of the app.
+     */
+    private static final String REDIRECT_URI = "ncipapp://user_agent_flow";
+
+    /**
+     * Multiplier to convert nanoseconds to milliseconds.
+     */
+    private static final long NANOSECONDS_TO_MILLISECONDS = 1000000L;
+
+    /**
+     * Multiplier to convert milliseconds to seconds.
+     */
+    private static final long MILLISECONDS_PER_SECOND = 1000L;
+
+    /**
+     * Multiplier to convert nanoseconds to seconds.
+     */
+    private static final double NANOSECONDS_PER_SECOND = 1e9;
+
+    /**
+     * Connect and read timeout of a request.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the buffer used to read a response.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Finds the flow id in the login form.
+     */
+    private static final Pattern FLOW_FIELD = Pattern.compile("name=\"flow\" value=\"([^\"]*)\"");
+
+    /**
+     * The options.
+     */
+    private final Map<String, String> options;
+
+    /**
+     * The server under load.
+     */
+    private final StandInAuthorizationServer server;
+
+    /**
+     * The authentication request of every flow.
+     */
+    private final AuthorizationRequest request;
+
+    /**
+     * The same request in the authorization code flow.
+     */
+    private final AuthorizationRequest codeRequest;
+
+    /**
+     * Decides what happens to each url of a flow.
+     */
+    private final NavigationPolicy policy;
+
+    /**
+     * Redeems authorization codes and refresh tokens.
+     */
+    private final TokenExchange tokenExchange;
+
+    /**
+     * Receives the tokens.
+     */
+    private final TokenRegistry tokenRegistry;
+
+    /**
+     * Times the phases of the flows.
+     */
+    private final FlowMetrics flowMetrics;
+
+    /**
+     * Number of flows that got a login form.
+     */
+    private final AtomicInteger loginForms = new AtomicInteger();
+
+    /**
+     * Counts how silent sign ins end.
+     */
+    private final SilentSignInMetrics silentSignInMetrics = new SilentSignInMetrics();
+
+    /**
+     * Creates a harness against a running server.
+     *
+     * @param options the options
+     * @param server the server under load
+     */
+    LoadHarness(final Map<String, String> options, final StandInAuthorizationServer server) {
+        this.options = options;
+        this.server = server;
+        AuthorizationRequest.Builder builder = new AuthorizationRequest.Builder()
+            .setAuthenticatingServerBaseUrl(server.getBaseUrl()).setWskey("standInWskey")
+            .setAuthenticatingInstitutionId("128807").setContextInstitutionId("128807").setRedirectUri(REDIRECT_URI)
+            .setScopes("WMS_NCIP refresh_token");
+        this.request = builder.build();
+        this.codeRequest = builder.setResponseType("code").build();
+        this.policy = new NavigationPolicy(new RedirectMatcher(REDIRECT_URI), Collections.singleton("127.0.0.1"));
+        this.tokenExchange = new TokenExchange(server.getBaseUrl() + "/accessToken", "standInWskey", REDIRECT_URI);
+        this.tokenRegistry = new TokenRegistry(1, new TokenDeadlines(0.75, 1000L));
+        this.flowMetrics = new FlowMetrics(new TraceSink() {
+            @Override
+            public void flowCompleted(final FlowTrace trace) {
+                /*
+                 * Only the aggregated statistics are reported.
+                 */
+            }
+
+            @Override
+            public void summary(final String summary) {
+                /*
+                 * Read once at the end instead.
+                 */
+            }
+        });
+    }
+
+    /**
+     * Runs a scenario.
+     *
+     * @param args the options, each of the form --name=value
+     * @throws Exception if the harness cannot run
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        int concurrency = intOption(options, "concurrency", 16);
+
+        /*
+         * As MainActivity does, so that the keep-alive pool holds a connection for every call in progress.
+         */
+        System.setProperty("http.maxConnections", Integer.toString(concurrency));
+
+        StandInAuthorizationServer server = new StandInAuthorizationServer(intOption(options, "port", 0));
+        server.configure(options);
+        server.start();
+        try {
+            new LoadHarness(options, server).run(options.containsKey("scenario") ? options.get("scenario")
+                : "implicit", concurrency);
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Runs a scenario and prints its report.
+     *
+     * @param scenario the scenario
+     * @param concurrency number of operations in progress at once
+     * @throws Exception if the scenario cannot run
+     */
+    private void run(final String scenario, final int concurrency) throws Exception {
+        if ("implicit".equals(scenario) || "code".equals(scenario)) {
+            final AuthorizationRequest flowRequest = "code".equals(scenario) ? codeRequest : request;
+            measure(scenario, concurrency, true, new Task() {
+                @Override
+                public boolean run(final Worker worker) throws Exception {
+                    return authenticate(flowRequest, worker).isSuccessful();
+                }
+            });
+            System.out.println("{\"flowMetrics\":" + flowMetrics.getSummary() + ",\"loginForms\":" + loginForms.get()
+                + ",\"tokenDeadlines\":" + tokenRegistry.getDeadlines().getStats() + "}");
+
+        } else if ("silent".equals(scenario)) {
+            server.setRequireLogin(true);
+            final long silentTimeoutMillis = intOption(options, "silentTimeout", 10000);
+            measure(scenario, concurrency, true, new Task() {
+                @Override
+                public boolean run(final Worker worker) throws Exception {
+                    /*
+                     * A device without a session signs in visibly first, as the app's first sign in does.
+                     */
+                    if (worker.cookie == null) {
+                        authenticate(request, worker, 0);
+                    }
+                    AuthorizationResult result = authenticate(request, worker, silentTimeoutMillis);
+                    if (result == null) {
+                        authenticate(request, worker, 0);
+                        return false;
+                    }
+                    return result.isSuccessful();
+                }
+            });
+            System.out.println("{\"silentSignIn\":" + silentSignInMetrics.getSummary() + ",\"loginForms\":"
+                + loginForms.get() + "}");
+
+        } else if ("refresh".equals(scenario)) {
+            final AuthorizationResult token = firstToken();
+            measure(scenario, concurrency, true, new Task() {
+                @Override
+                public boolean run(final Worker worker) throws Exception {
+                    return tokenExchange.refresh(token).isSuccessful();
+                }
+            });
+
+        } else if ("service".equals(scenario)) {
+            final ServiceClient client = new ServiceClient(fixedToken(firstToken()), concurrency);
+            final boolean post = "POST".equalsIgnoreCase(options.get("method"));
+            final byte[] message = NcipOperation.renew("standInItem").toMessage("128807", "standInUser")
+                .getBytes("UTF-8");
+            final AtomicInteger sequence = new AtomicInteger();
+            measure(scenario + (post ? "-post" : "-get"), concurrency, true, new Task() {
+                @Override
+                public boolean run(final Worker worker) throws Exception {
+                    ServiceResponse response = post ? client.post(server.getUrl("/ncip"), "application/xml", message,
+                        "application/xml") : client.get(server.getUrl("/patron/items/" + sequence.incrementAndGet()),
+                        "application/json");
+                    return response.getStatus() == HttpURLConnection.HTTP_OK;
+                }
+            });
+            System.out.println("{\"serviceClientLatencyMs\":" + client.getLatency() + "}");
+
+        } else if ("ncip".equals(scenario)) {
+            AuthorizationResult token = firstToken();
+            ServiceClient client = new ServiceClient(fixedToken(token), concurrency);
+            List<NcipOperation> operations = new ArrayList<NcipOperation>();
+            for (int i = 0; i < intOption(options, "items", 20); i++) {
+                operations.add(NcipOperation.renew("standInItem" + i));
+            }
+            measureBatches("ncip-serial", new NcipBatch(client, server.getUrl("/ncip"), 1), operations, token);
+            measureBatches("ncip-batched-" + concurrency, new NcipBatch(client, server.getUrl("/ncip"), concurrency),
+                operations, token);
+
+        } else if ("queue".equals(scenario)) {
+            measureQueue(concurrency);
+
+        } else {
+            throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    /**
+     * Measures the operation queue: the latency of enqueuing operations one at a time, each synced to disk; the time to
+     * read the queue back, as after a restart; and the throughput of replaying every queued operation.
+     *
+     * @param concurrency number of operations enqueued, and sent by the replay, at once
+     * @throws Exception if the queue cannot be measured
+     */
+    private void measureQueue(final int concurrency) throws Exception {
+        File directory = File.createTempFile("operation-queue", "");
+        directory.delete();
+        final AuthorizationResult token = firstToken();
+        final OperationQueue queue = new OperationQueue(directory);
+        final AtomicInteger sequence = new AtomicInteger();
+        measure("queue-enqueue", concurrency, true, new Task() {
+            @Override
+            public boolean run(final Worker worker) throws Exception {
+                return queue.enqueue(token, NcipOperation.renew("standInItem" + sequence.incrementAndGet()));
+            }
+        });
+        queue.shutdown();
+
+        long start = System.nanoTime();
+        OperationQueue reloaded = new OperationQueue(directory);
+        int queued = reloaded.size();
+        long reloadNanos = System.nanoTime() - start;
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] outcome = new long[3];
+        NcipBatch batch = new NcipBatch(new ServiceClient(fixedToken(token), concurrency), server.getUrl("/ncip"),
+            concurrency);
+        long requestsBefore = server.getRequestCount();
+        reloaded.replay(token, batch, new OperationQueue.Listener() {
+            @Override
+            public void replayCompleted(final int settled, final int remaining, final long elapsedMillis) {
+                outcome[0] = settled;
+                outcome[1] = remaining;
+                outcome[2] = elapsedMillis;
+                done.countDown();
+            }
+        });
+        done.await();
+        batch.shutdown();
+
+        System.out.println("{\"scenario\":\"queue-replay\",\"queued\":" + queued + ",\"reloadMs\":" + reloadNanos
+            / NANOSECONDS_TO_MILLISECONDS + ",\"settled\":" + outcome[0] + ",\"remaining\":" + outcome[1]
+            + ",\"elapsedMs\":" + outcome[2] + ",\"throughputPerSecond\":"
+            + (outcome[2] == 0 ? outcome[0] : outcome[0] * MILLISECONDS_PER_SECOND / outcome[2])
+            + ",\"serverRequests\":" + (server.getRequestCount() - requestsBefore) + ",\"logBytes\":"
+            + new File(directory, "operations").length() + ",\"stats\":\"" + reloaded.getStats() + "\"}");
+        reloaded.shutdown();
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Measures NCIP batches run one after the other. Their allocation is not reported, since the operations run on the
+     * batch's own threads.
+     *
+     * @param name the name of the measurement
+     * @param batch runs the batches
+     * @param operations the operations of each batch
+     * @param token the token of the operations
+     * @throws Exception if the batches cannot run
+     */
+    private void measureBatches(final String name, final NcipBatch batch, final List<NcipOperation> operations,
+        final AuthorizationResult token) throws Exception {
+        try {
+            measure(name, 1, false, new Task() {
+                @Override
+                public boolean run(final Worker worker) throws Exception {
+                    return batch.execute(operations, token).getFailures().isEmpty();
+                }
+            });
+        } finally {
+            batch.shutdown();
+        }
+    }
+
+    /**
+     * Runs a task the configured number of times, after a warmup, and prints throughput, latency percentiles and
+     * allocation as a single line of JSON.
+     *
+     * @param name the name of the measurement
+     * @param concurrency number of tasks in progress at once
+     * @param reportAllocation whether the task runs on the calling thread, so that its allocation can be reported
+     * @param task the task
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private void measure(final String name, final int concurrency, final boolean reportAllocation, final Task task)
+        throws InterruptedException {
+        int warmup = intOption(options, "warmup", 200);
+        if (warmup > 0) {
+            runConcurrently(warmup, concurrency, task, new long[warmup], new AtomicInteger(), new AtomicInteger(),
+                new AtomicLong());
+        }
+
+        int count = intOption(options, "operations", 2000);
+        long[] latencyNanos = new long[count];
+        AtomicInteger errors = new AtomicInteger();
+        AtomicInteger failures = new AtomicInteger();
+        AtomicLong allocatedBytes = new AtomicLong();
+        long requestsBefore = server.getRequestCount();
+        long start = System.nanoTime();
+        runConcurrently(count, concurrency, task, latencyNanos, errors, failures, allocatedBytes);
+        long elapsedNanos = System.nanoTime() - start;
+
+        Arrays.sort(latencyNanos);
+        System.out.println("{\"scenario\":\"" + name + "\",\"operations\":" + count + ",\"concurrency\":"
+            + concurrency + ",\"errors\":" + errors.get() + ",\"failures\":" + failures.get()
+            + ",\"throughputPerSecond\":" + Math.round(count * NANOSECONDS_PER_SECOND / elapsedNanos)
+            + ",\"p50Us\":" + Benchmarks.percentile(latencyNanos, 0.5) + ",\"p95Us\":" + Benchmarks.percentile(latencyNanos, 0.95)
+            + ",\"p99Us\":" + Benchmarks.percentile(latencyNanos, 0.99) + ",\"maxUs\":" + Benchmarks.percentile(latencyNanos, 1)
+            + (reportAllocation && allocatedBytes.get() >= 0 ? ",\"allocatedBytesPerOperation\":"
+                + allocatedBytes.get() / count : "") + ",\"serverRequests\":"
+            + (server.getRequestCount() - requestsBefore) + "}");
+    }
+
+    /**
+     * Runs a task on the given number of threads until it has run the given number of times.
+     *
+     * @param count the number of times to run the task
+     * @param concurrency the number of threads
+     * @param task the task
+     * @param latencyNanos receives the latency of each run
+     * @param errors counts the runs that ended in an expected error
+     * @param failures counts the runs that threw
+     * @param allocatedBytes receives the bytes allocated by the runs, or a negative number if the JVM cannot tell
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    private static void runConcurrently(final int count, final int concurrency, final Task task,
+        final long[] latencyNanos, final AtomicInteger errors, final AtomicInteger failures,
+        final AtomicLong allocatedBytes) throws InterruptedException {
+
+        final AtomicInteger next = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Worker worker = new Worker();
+                    long allocatedBefore = Benchmarks.allocatedBytes();
+                    try {
+                        int index;
+                        while ((index = next.getAndIncrement()) < count) {
+                            long start = System.nanoTime();
+                            try {
+                                if (!task.run(worker)) {
+                                    errors.incrementAndGet();
+                                }
+                            } catch (Exception e) {
+                                if (failures.incrementAndGet() == 1) {
+                                    e.printStackTrace();
+                                }
+                            }
+                            latencyNanos[index] = System.nanoTime() - start;
+                        }
+                    } finally {
+                        long allocatedAfter = Benchmarks.allocatedBytes();
+                        if (allocatedBefore < 0 || allocatedAfter < 0) {
+                            allocatedBytes.set(Long.MIN_VALUE);
+                        } else {
+                            allocatedBytes.addAndGet(allocatedAfter - allocatedBefore);
+                        }
+                        done.countDown();
+                    }
+                }
+            }, "LoadHarness-" + i);
+            thread.start();
+        }
+        done.await();
+    }
+
+    /**
+     * Authenticates once, as AuthenticatingWebView does, following the redirects itself.
+     *
+     * @param flowRequest the authentication request
+     * @param worker the state of the calling thread
+     * @return the result, which is an error result if the server redirected with an error
+     * @throws IOException if a request fails or a url is blocked
+     * @throws AuthorizationException if the code exchange is rejected
+     */
+    private AuthorizationResult authenticate(final AuthorizationRequest flowRequest, final Worker worker)
+        throws IOException, AuthorizationException {
+        return authenticate(flowRequest, worker, 0);
+    }
+
+    /**
+     * Authenticates once, as AuthenticatingWebView does, following the redirects itself. A silent authentication
+     * stops, as makeSilentRequest would show the WebView, at the login form or once its time is up.
+     *
+     * @param flowRequest the authentication request
+     * @param worker the state of the calling thread
+     * @param silentTimeoutMillis time after which a silent authentication is escalated, or 0 for a visible one
+     * @return the result, which is an error result if the server redirected with an error, or null if a silent
+     *         authentication was escalated
+     * @throws IOException if a request fails or a url is blocked
+     * @throws AuthorizationException if the code exchange is rejected
+     */
+    private AuthorizationResult authenticate(final AuthorizationRequest flowRequest, final Worker worker,
+        final long silentTimeoutMillis) throws IOException, AuthorizationException {
+
+        long startNanos = System.nanoTime();
+        FlowTrace trace = new FlowTrace(startNanos);
+        Pkce pkce = flowRequest == codeRequest ? Pkce.generate() : null;
+        String url = pkce == null ? flowRequest.getUrl() : flowRequest.getUrl(pkce);
+        String form = null;
+
+        while (true) {
+            long elapsedMillis = (System.nanoTime() - startNanos) / NANOSECONDS_TO_MILLISECONDS;
+            if (silentTimeoutMillis > 0 && elapsedMillis >= silentTimeoutMillis) {
+                silentSignInMetrics.escalated(SilentSignInMetrics.Escalation.TIMEOUT, elapsedMillis);
+                return null;
+            }
+
+            NavigationPolicy.Decision decision = policy.decide(url);
+            if (decision == NavigationPolicy.Decision.REDIRECT) {
+                trace.redirectReceived(System.nanoTime());
+                break;
+            }
+            if (decision == NavigationPolicy.Decision.BLOCK) {
+                throw new IOException("Blocked " + url);
+            }
+
+            trace.pageStarted(url, System.nanoTime());
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            if (worker.cookie != null) {
+                connection.setRequestProperty("Cookie", worker.cookie);
+            }
+            if (form != null) {
+                byte[] body = form.getBytes("UTF-8");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+                form = null;
+            }
+
+            int status = connection.getResponseCode();
+            String page = read(connection);
+            String setCookie = connection.getHeaderField("Set-Cookie");
+            if (setCookie != null) {
+                worker.cookie = setCookie.substring(0, setCookie.indexOf(';') == -1 ? setCookie.length() : setCookie
+                    .indexOf(';'));
+            }
+
+            if (status == HttpURLConnection.HTTP_MOVED_TEMP) {
+                url = resolve(url, connection.getHeaderField("Location"));
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                /*
+                 * The login form: it is the only page the stand-in renders. Submit it at once.
+                 */
+                trace.pageFinished(System.nanoTime());
+                Matcher flow = FLOW_FIELD.matcher(page);
+                if (!flow.find()) {
+                    throw new IOException("Unexpected page at " + url);
+                }
+                if (silentTimeoutMillis > 0) {
+                    silentSignInMetrics.escalated(SilentSignInMetrics.Escalation.LOGIN_FORM,
+                        (System.nanoTime() - startNanos) / NANOSECONDS_TO_MILLISECONDS);
+                    return null;
+                }
+                loginForms.incrementAndGet();
+                form = "flow=" + flow.group(1) + "&userid=standIn&password=standIn";
+                url = server.getBaseUrl() + "/login";
+            } else {
+                throw new IOException("HTTP " + status + " from " + url);
+            }
+        }
+
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        worker.parser.parse(url, parameters);
+        AuthorizationResult result = AuthorizationResult.received(parameters, System.currentTimeMillis());
+        if (pkce != null && result.getParameter("code") != null) {
+            result = tokenExchange.exchangeCode(result.getParameter("code"), pkce);
+        }
+        if (result.isSuccessful()) {
+            tokenRegistry.put(flowRequest.getTokenKey(), result);
+        }
+        if (silentTimeoutMillis > 0) {
+            silentSignInMetrics.succeeded((System.nanoTime() - startNanos) / NANOSECONDS_TO_MILLISECONDS);
+        }
+        flowMetrics.record(trace);
+        return result;
+    }
+
+    /**
+     * Authenticates once in the implicit flow, as a device of its own, for the other tools.
+     *
+     * @return the result, which is an error result if the server redirected with an error
+     * @throws IOException if a request fails or a url is blocked
+     * @throws AuthorizationException if the code exchange is rejected
+     */
+    AuthorizationResult signIn() throws IOException, AuthorizationException {
+        return authenticate(request, new Worker());
+    }
+
+    /**
+     * Authenticates once, for the scenarios that need a token to start with.
+     *
+     * @return a token with a refresh token
+     * @throws Exception if no token can be had
+     */
+    private AuthorizationResult firstToken() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            AuthorizationResult token = authenticate(request, new Worker());
+            if (token.isSuccessful()) {
+                return token;
+            }
+        }
+        throw new IOException("No successful authentication in 100 attempts");
+    }
+
+    /**
+     * @param token a token
+     * @return a provider that always supplies the token
+     */
+    private static ServiceClient.TokenProvider fixedToken(final AuthorizationResult token) {
+        return new ServiceClient.TokenProvider() {
+            @Override
+            public AuthorizationResult getToken() {
+                return token;
+            }
+
+            @Override
+            public AuthorizationResult refreshToken(final AuthorizationResult rejected) {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which returns the connection to the keep-alive pool.
+     *
+     * @param connection the connection
+     * @return the body, or an empty string if there is none
+     * @throws IOException if the body cannot be read
+     */
+    private static String read(final HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? connection
+            .getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Resolves the Location of a redirect, which may be relative or have a scheme that java.net.URL does not know.
+     *
+     * @param url the url that was redirected
+     * @param location the Location header
+     * @return the absolute url to go to
+     * @throws IOException if there is no Location or it is not a valid URI
+     */
+    private static String resolve(final String url, final String location) throws IOException {
+        if (location == null) {
+            throw new IOException("Redirect without a Location from " + url);
+        }
+        try {
+            return new URI(url).resolve(location).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid Location " + location, e);
+        }
+    }
+
+    /**
+     * @param options the options
+     * @param name the name of an option
+     * @param defaultValue the value if the option is not set
+     * @return the value of the option
+     */
+    private static int intOption(final Map<String, String> options, final String name, final int defaultValue) {
+        return options.containsKey(name) ? Integer.parseInt(options.get(name)) : defaultValue;
+    }
+}
@@ -0,0 +1,280 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.oclc.mobile.authentication.core.AssetCache;
+import org.oclc.mobile.authentication.core.DiskLruCache;
+import org.oclc.mobile.authentication.core.LatencyHistogram;
+import org.oclc.mobile.authentication.core.ResourceFilter;
+import org.w3c.dom.Document;
+
+/**
+ * Measures what the blockedResources rules and the {@link AssetCache} save on the stand-in server's login form: the
+ * requests made and blocked and the time until the form and every sub-resource it still loads have arrived. The
+ * filter is built from res/values/authentication.xml the way MainActivity builds it, with the stand-in as the
+ * authentication server. The settings are run in turn:
+ * <ul>
+ * <li>off - neither the filter nor the cache</li>
+ * <li>on - the filter</li>
+ * <li>coldAssets - the filter, and a cache emptied before every load, as on the first sign in</li>
+ * <li>warmAssets - the filter, and a cache holding fresh copies of the assets, as on later sign ins</li>
+ * <li>staleAssets - the filter, and a cache whose copies have expired and are revalidated with 304s</li>
+ * </ul>
+ * The WebView does not run off a device, so the form is fetched and the sub-resources it references are fetched at
+ * once over as many connections as a WebView opens to a host, skipping those the filter blocks and answering those the
+ * cache takes from it, as shouldInterceptRequest does. Options, as --name=value: flows (200), the form loads timed for
+ * each setting after as many again to warm up; resources, as for {@link ResourceFilterCheck}; and the server options,
+ * where latency defaults to 50 milliseconds and bandwidth to 1000 kilobytes per second so that the size of what is
+ * blocked or cached counts.
+ */
+public final class LoginPageBenchmark {
+
+    /**
+     * Connections a WebView opens to one host at once.
+     */
+    private static final int CONNECTIONS = 6;
+
+    /**
+     * Connect and read timeout of a request.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the asset cache, in bytes.
+     */
+    private static final long ASSET_CACHE_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Size of the buffer used to read a response.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Finds the sub-resources a page references.
+     */
+    private static final Pattern SUB_RESOURCE = Pattern.compile("(?:src|href)=\"([^\"]+)\"");
+
+    /**
+     * Not instantiable.
+     */
+    private LoginPageBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the options
+     * @throws Exception if the server cannot run or a load fails
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        if (!options.containsKey("latency")) {
+            options.put("latency", "50");
+        }
+        if (!options.containsKey("bandwidth")) {
+            options.put("bandwidth", "1000");
+        }
+        int flows = options.containsKey("flows") ? Integer.parseInt(options.get("flows")) : 200;
+        Document resources = ResourceFilterCheck.readResources(options);
+
+        StandInAuthorizationServer server = new StandInAuthorizationServer(0);
+        server.configure(options);
+        server.start();
+        ExecutorService connections = Executors.newFixedThreadPool(CONNECTIONS);
+        File directory = File.createTempFile("login-assets", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            List<String> firstPartyHosts = ResourceFilterCheck.stringArray(resources, "allowedHosts");
+            firstPartyHosts.add(URI.create(server.getBaseUrl()).getHost());
+            ResourceFilter filter = new ResourceFilter(ResourceFilterCheck.stringArray(resources, "blockedResources"),
+                firstPartyHosts);
+
+            LatencyHistogram off = run(server, connections, null, null, null, flows, "off");
+            LatencyHistogram on = run(server, connections, filter, null, null, flows, "on");
+            System.out.println("{\"benchmark\":\"loginPage\",\"filterP50Saved\":" + (off.getPercentile(0.5) - on
+                .getPercentile(0.5)) + ",\"filterP95Saved\":" + (off.getPercentile(0.95) - on.getPercentile(0.95))
+                + "}");
+
+            /*
+             * The assets are cached for the authentication host only, as MainActivity does. The session is not
+             * needed for them, so the cache is given no cookies.
+             */
+            DiskLruCache disk = new DiskLruCache(directory, ASSET_CACHE_BYTES);
+            AssetCache cold = new AssetCache(disk, Collections.singleton(URI.create(server.getBaseUrl()).getHost()),
+                null);
+            LatencyHistogram coldLoads = run(server, connections, filter, cold, disk, flows, "coldAssets");
+            AssetCache warm = new AssetCache(disk, Collections.singleton(URI.create(server.getBaseUrl()).getHost()),
+                null);
+            LatencyHistogram warmLoads = run(server, connections, filter, warm, null, flows, "warmAssets");
+            server.setAssetMaxAgeSeconds(0);
+            disk.clear();
+            AssetCache stale = new AssetCache(disk, Collections.singleton(URI.create(server.getBaseUrl()).getHost()),
+                null);
+            run(server, connections, filter, stale, null, flows, "staleAssets");
+            System.out.println("{\"benchmark\":\"loginPage\",\"warmP50Saved\":" + (coldLoads.getPercentile(0.5)
+                - warmLoads.getPercentile(0.5)) + ",\"warmP95Saved\":" + (coldLoads.getPercentile(0.95) - warmLoads
+                .getPercentile(0.95)) + "}");
+        } finally {
+            connections.shutdownNow();
+            server.stop();
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Loads the login form many times and prints the requests made to the server, the requests blocked, the bytes
+     * handed to the page and the load times per load, and the cache's counts if there is one.
+     *
+     * @param server the server
+     * @param connections the threads sub-resources are fetched on
+     * @param filter the filter, or null to load everything
+     * @param assets the asset cache, or null to fetch every asset
+     * @param emptied the disk of the asset cache to empty before every load, or null to keep it
+     * @param flows the number of loads timed, after as many to warm up
+     * @param name the name of the setting
+     * @return the load times, in milliseconds
+     * @throws Exception if a load fails
+     */
+    private static LatencyHistogram run(final StandInAuthorizationServer server, final ExecutorService connections,
+        final ResourceFilter filter, final AssetCache assets, final DiskLruCache emptied, final int flows,
+        final String name) throws Exception {
+        LatencyHistogram loadTimes = new LatencyHistogram();
+        long requests = 0;
+        long blocked = 0;
+        long bytes = 0;
+        for (int i = -flows; i < flows; i++) {
+            if (emptied != null) {
+                emptied.clear();
+            }
+            long requestsBefore = server.getRequestCount();
+            long start = System.nanoTime();
+            long loaded = load(server.getBaseUrl() + "/login?flow=benchmark" + i, connections, filter, assets);
+            int blockedByLoad = filter == null ? 0 : filter.takeBlockedCount();
+            if (i >= 0) {
+                loadTimes.record((System.nanoTime() - start) / Benchmarks.NANOSECONDS_TO_MILLISECONDS);
+                requests += server.getRequestCount() - requestsBefore;
+                blocked += blockedByLoad;
+                bytes += loaded;
+            }
+        }
+        System.out.println("{\"benchmark\":\"loginPage\",\"setting\":\"" + name + "\",\"flows\":" + flows
+            + ",\"requestsPerFlow\":" + (double) requests / flows + ",\"blockedRequestsPerFlow\":" + (double) blocked
+            / Math.max(1, flows) + ",\"bytesPerFlow\":" + bytes / flows + ",\"loadMs\":" + loadTimes
+            + (assets == null ? "" : ",\"assets\":" + assets.getStats()) + "}");
+        return loadTimes;
+    }
+
+    /**
+     * Loads the login form and the sub-resources the filter lets through, taking those the cache can answer from it.
+     *
+     * @param url the url of the form
+     * @param connections the threads sub-resources are fetched on
+     * @param filter the filter, or null to load everything
+     * @param assets the asset cache, or null to fetch every asset
+     * @return the bytes handed to the page
+     * @throws Exception if a request fails
+     */
+    private static long load(final String url, final ExecutorService connections, final ResourceFilter filter,
+        final AssetCache assets) throws Exception {
+        byte[] page = fetch(url);
+        String html = new String(page, "UTF-8");
+        List<Future<byte[]>> subResources = new ArrayList<Future<byte[]>>();
+        Matcher references = SUB_RESOURCE.matcher(html);
+        while (references.find()) {
+            final String subResource = URI.create(url).resolve(references.group(1)).toString();
+            if (filter != null && filter.shouldBlock(subResource)) {
+                continue;
+            }
+            subResources.add(connections.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException {
+                    if (assets != null && assets.isCacheable(subResource)) {
+                        AssetCache.Asset asset = assets.fetch(subResource);
+                        if (asset != null) {
+                            return read(asset.getData());
+                        }
+                    }
+                    return fetch(subResource);
+                }
+            }));
+        }
+        long bytes = page.length;
+        for (Future<byte[]> subResource : subResources) {
+            bytes += subResource.get().length;
+        }
+        return bytes;
+    }
+
+    /**
+     * Fetches a url and reads the body to the end, which returns the connection to the keep-alive pool. The JDK's own
+     * HTTP cache is not used.
+     *
+     * @param url the url
+     * @return the body
+     * @throws IOException if the request fails or is not answered with 200
+     */
+    private static byte[] fetch(final String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+        connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+        connection.setUseCaches(false);
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+            throw new IOException("HTTP " + connection.getResponseCode() + " from " + url);
+        }
+        return read(connection.getInputStream());
+    }
+
+    /**
+     * Reads a body to the end and closes it.
+     *
+     * @param in the body
+     * @return the bytes read
+     * @throws IOException if the body cannot be read
+     */
+    private static byte[] read(final InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,129 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+
+/**
+ * Measures the overhead each hop of the redirect chain adds in shouldOverrideUrlLoading, before and after the
+ * {@link NavigationPolicy}, on the urls of a sign in with the default allowedHosts.
+ * <p>
+ * Before, every hop was checked against the hard-coded redirect URI literal and then loaded again with
+ * view.loadUrl(url), which cancels the navigation and posts a new one to the UI thread. After, every hop is decided by
+ * the policy and allowed hops carry on without a second navigation. The decision is timed directly. The second
+ * navigation is represented by its hand-off to another thread and back, the part of it that a desktop JVM can run;
+ * the WebView's own cost of restarting the load comes on top of that and shows in the FlowTrace page load times on a
+ * device.
+ */
+public final class NavigationBenchmark {
+
+    /**
+     * Number of hops per round.
+     */
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * Number of re-dispatched hops per round, fewer since each crosses threads.
+     */
+    private static final int DISPATCH_ITERATIONS = 20000;
+
+    /**
+     * The urls of a sign in with two intermediate pages and a login form, ending with the redirect URI.
+     */
+    private static final String[] HOPS = {
+        "https://authn.sd00.worldcat.org/oauth2/authorizeCode?client_id=7pSWx0U3SHQNLJUvbMvEGJWJoKTgpPZLpbXdE"
+            + "&authenticatingInstitutionId=128807&contextInstitutionId=128807&redirect_uri=ncipapp%3A%2F%2F"
+            + "user_agent_flow&response_type=token&scope=WMS_NCIP",
+        "https://authn.sd00.worldcat.org/oauth2/hop?flow=5b2f0c9e&n=1",
+        "https://authn.sd00.worldcat.org/wayf/metaauth-ui/cmnd/protocol/samlpost?flow=5b2f0c9e",
+        "https://128807.share.worldcat.org/wms/login?service=authn&flow=5b2f0c9e",
+        "https://authn.sd00.worldcat.org/oauth2/hop?flow=5b2f0c9e&n=0",
+        "ncipapp://user_agent_flow#access_token=tk_Ot8jCvtqGzYeSvWu5WQ1Qk4GPsZRNkyY9mcO&principalID="
+            + "8eaa9f92-3951-431c-975a-d7df26b8d131&principalIDNS=urn%3Aoclc%3Aplatform%3A128807&"
+            + "context_institution_id=128807&expires_at=2014-03-14%2014%3A16%3A01Z&expires_in=1199&token_type=bearer"
+    };
+
+    /**
+     * Not instantiable.
+     */
+    private NavigationBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args not used
+     * @throws Exception if a hop fails
+     */
+    public static void main(final String[] args) throws Exception {
+        final NavigationPolicy policy = new NavigationPolicy(new RedirectMatcher("ncipapp://user_agent_flow"),
+            Arrays.asList("worldcat.org", "oclc.org", "authn.sd00.worldcat.org"));
+        for (String url : HOPS) {
+            if (isRedirectByLiteral(url) != (policy.decide(url) == NavigationPolicy.Decision.REDIRECT)) {
+                throw new IllegalStateException("The two checks disagree on " + url);
+            }
+        }
+
+        long literal = Benchmarks.run("hop-literal", ITERATIONS, new Benchmarks.Operation() {
+            @Override
+            public void run(final int iteration) {
+                isRedirectByLiteral(HOPS[iteration % HOPS.length]);
+            }
+        });
+        long decided = Benchmarks.run("hop-policy", ITERATIONS, new Benchmarks.Operation() {
+            @Override
+            public void run(final int iteration) {
+                policy.decide(HOPS[iteration % HOPS.length]);
+            }
+        });
+
+        /*
+         * Stands in for the UI thread's message queue, to which view.loadUrl posted the second navigation.
+         */
+        final ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        try {
+            final Callable<Boolean> navigation = new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return Boolean.TRUE;
+                }
+            };
+            long redispatched = Benchmarks.run("hop-redispatch", DISPATCH_ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(final int iteration) throws Exception {
+                    uiThread.submit(navigation).get();
+                }
+            });
+            System.out.println("{\"hops\":" + HOPS.length + ",\"beforeNsPerHop\":" + (literal + redispatched)
+                + ",\"afterNsPerHop\":" + decided + "}");
+        } finally {
+            uiThread.shutdown();
+        }
+    }
+
+    /**
+     * The redirect URI check of shouldOverrideUrlLoading before the navigation policy.
+     *
+     * @param url the url about to be loaded
+     * @return true if the url is the redirect URI
+     */
+    private static boolean isRedirectByLiteral(final String url) {
+        return url.indexOf("ncipapp://user_agent_flow#") == 0 && url.indexOf("&") != -1;
+    }
+}
@@ -0,0 +1,499 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.oclc.mobile.authentication.core.AuthorizationException;
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.Pkce;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+import org.oclc.mobile.authentication.core.RedirectUriParser;
+import org.oclc.mobile.authentication.core.TokenExchange;
+import org.oclc.mobile.authentication.core.TokenLifecycle;
+import org.oclc.mobile.authentication.core.TokenRegistry;
+
+/**
+ * Checks that recreating MainActivity, as a rotation does, sends no additional authorization request to the
+ * authentication server, whether a sign in is in progress or a token is on display.
+ * <p>
+ * The activity and its WebView do not run off a device, so the check plays them against the stand-in server. Each
+ * {@link Incarnation} decides what to do when it is created in the order MainActivity.onCreate does: carry on with the
+ * retained sign in in progress, show the retained token, or sign in. The sign in in progress is kept the way
+ * AuthenticatingWebView.saveState keeps it, with the url being loaded and the PKCE code verifier, and the session
+ * cookie outlives the activity as the CookieManager's does.
+ * <p>
+ * Every sign in, in the implicit and in the code flow, is recreated after each response, on the login form as much as
+ * in the middle of the redirects, and must reach the authorization endpoint exactly once. The token on display is then
+ * recreated many times and must not cause a single request. A rotation while the authorization request itself is still
+ * unanswered is not covered: its response goes to the WebView being destroyed, so the request has to be made again.
+ * <p>
+ * Options, as --name=value: rotations (100), the recreations with a token on display, and the server options; logins
+ * are required unless login=false, and errorRate must stay 0.
+ */
+public final class RecreationCheck {
+
+    /**
+     * A device: what outlives the activity, which is the session cookie in the CookieManager, and the settings that
+     * every incarnation reads again from the resources.
+     */
+    private static final class Device {
+
+        /**
+         * The stand-in server.
+         */
+        private final StandInAuthorizationServer server;
+
+        /**
+         * The authentication request.
+         */
+        private final AuthorizationRequest request;
+
+        /**
+         * Redeems authorization codes in the code flow, or null in the implicit flow.
+         */
+        private final TokenExchange tokenExchange;
+
+        /**
+         * Decides what happens to each url of a sign in.
+         */
+        private final NavigationPolicy policy = new NavigationPolicy(new RedirectMatcher(REDIRECT_URI), Collections
+            .singleton("127.0.0.1"));
+
+        /**
+         * Parses the redirect URI.
+         */
+        private final RedirectUriParser parser = new RedirectUriParser();
+
+        /**
+         * The session cookie, or null if the device has none.
+         */
+        private String cookie;
+
+        /**
+         * Creates a device that has not signed in.
+         *
+         * @param server the stand-in server
+         * @param codeFlow true for the authorization code flow, false for the implicit flow
+         */
+        private Device(final StandInAuthorizationServer server, final boolean codeFlow) {
+            this.server = server;
+            AuthorizationRequest.Builder builder = new AuthorizationRequest.Builder()
+                .setAuthenticatingServerBaseUrl(server.getBaseUrl()).setWskey("standInWskey")
+                .setAuthenticatingInstitutionId("128807").setContextInstitutionId("128807").setRedirectUri(REDIRECT_URI)
+                .setScopes("WMS_NCIP refresh_token");
+            this.request = codeFlow ? builder.setResponseType("code").build() : builder.build();
+            this.tokenExchange = codeFlow ? new TokenExchange(server.getBaseUrl() + "/accessToken", "standInWskey",
+                REDIRECT_URI) : null;
+        }
+    }
+
+    /**
+     * What AuthenticatingWebView.saveState keeps of a sign in in progress.
+     */
+    private static final class SignInState {
+
+        /**
+         * The url last loaded.
+         */
+        private final String pageUrl;
+
+        /**
+         * The PKCE code verifier, or null in the implicit flow.
+         */
+        private final String verifier;
+
+        /**
+         * The flow id of the login form on display, which the restored WebView shows again, or null if no form is
+         * on display.
+         */
+        private final String loginFlow;
+
+        /**
+         * Creates a saved sign in.
+         *
+         * @param pageUrl the url last loaded
+         * @param verifier the PKCE code verifier, or null
+         * @param loginFlow the flow id of the login form on display, or null
+         */
+        private SignInState(final String pageUrl, final String verifier, final String loginFlow) {
+            this.pageUrl = pageUrl;
+            this.verifier = verifier;
+            this.loginFlow = loginFlow;
+        }
+    }
+
+    /**
+     * What MainActivity hands over to its next incarnation, as AuthenticationState.
+     */
+    private static final class RetainedState {
+
+        /**
+         * Tokens received.
+         */
+        private final TokenRegistry tokenRegistry;
+
+        /**
+         * The token on display.
+         */
+        private final TokenLifecycle tokenLifecycle;
+
+        /**
+         * The sign in in progress, or null if none was in progress.
+         */
+        private final SignInState signInState;
+
+        /**
+         * Creates the retained state.
+         *
+         * @param tokenRegistry tokens received
+         * @param tokenLifecycle the token on display
+         * @param signInState the sign in in progress, or null
+         */
+        private RetainedState(final TokenRegistry tokenRegistry, final TokenLifecycle tokenLifecycle,
+            final SignInState signInState) {
+            this.tokenRegistry = tokenRegistry;
+            this.tokenLifecycle = tokenLifecycle;
+            this.signInState = signInState;
+        }
+    }
+
+    /**
+     * One incarnation of MainActivity with its WebView.
+     */
+    private static final class Incarnation {
+
+        /**
+         * The device it runs on.
+         */
+        private final Device device;
+
+        /**
+         * Tokens received.
+         */
+        private final TokenRegistry tokenRegistry;
+
+        /**
+         * The token on display.
+         */
+        private final TokenLifecycle tokenLifecycle;
+
+        /**
+         * The url of the sign in in progress that was last loaded, or null if no sign in is in progress.
+         */
+        private String pageUrl;
+
+        /**
+         * The PKCE pair of the sign in in progress in the code flow.
+         */
+        private Pkce pkce;
+
+        /**
+         * The flow id of the login form on display, or null if no form is on display.
+         */
+        private String loginFlow;
+
+        /**
+         * Creates the activity, as MainActivity.onCreate does.
+         *
+         * @param device the device it runs on
+         * @param retained the state handed over by the previous incarnation, or null on a cold start
+         */
+        private Incarnation(final Device device, final RetainedState retained) {
+            this.device = device;
+            this.tokenRegistry = retained == null ? new TokenRegistry(1) : retained.tokenRegistry;
+            this.tokenLifecycle = retained == null ? new TokenLifecycle(REFRESH_FRACTION) : retained.tokenLifecycle;
+
+            if (retained != null && retained.signInState != null) {
+                /*
+                 * resumeRequest: the WebView brings back the page it displayed and loads the url it was loading.
+                 */
+                SignInState saved = retained.signInState;
+                pageUrl = saved.pageUrl;
+                pkce = saved.verifier == null ? null : Pkce.fromVerifier(saved.verifier);
+                loginFlow = saved.loginFlow;
+            } else if (retained != null && tokenLifecycle.getToken() != null) {
+                /*
+                 * showResults of the retained token: nothing to load.
+                 */
+                return;
+            } else {
+                /*
+                 * makeRequest.
+                 */
+                pkce = device.tokenExchange == null ? null : Pkce.generate();
+                pageUrl = pkce == null ? device.request.getUrl() : device.request.getUrl(pkce);
+            }
+        }
+
+        /**
+         * @return the token on display, or null if there is none yet
+         */
+        private AuthorizationResult getDisplayedToken() {
+            return pageUrl == null ? tokenLifecycle.getToken() : null;
+        }
+
+        /**
+         * Takes the next step of the sign in in progress: loads the url being loaded, or submits the login form on
+         * display, and follows the response by one redirect.
+         *
+         * @throws IOException if a request fails, a url is blocked or the sign in ends in an error
+         * @throws AuthorizationException if the code exchange is rejected
+         */
+        private void step() throws IOException, AuthorizationException {
+            String url = loginFlow == null ? pageUrl : device.server.getBaseUrl() + "/login";
+            HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            if (device.cookie != null) {
+                connection.setRequestProperty("Cookie", device.cookie);
+            }
+            if (loginFlow != null) {
+                byte[] body = ("flow=" + loginFlow + "&userid=standIn&password=standIn").getBytes("UTF-8");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            String page = read(connection);
+            String setCookie = connection.getHeaderField("Set-Cookie");
+            if (setCookie != null) {
+                device.cookie = setCookie.substring(0, setCookie.indexOf(';') == -1 ? setCookie.length() : setCookie
+                    .indexOf(';'));
+            }
+
+            if (status == HttpURLConnection.HTTP_OK) {
+                Matcher flow = FLOW_FIELD.matcher(page);
+                if (!flow.find()) {
+                    throw new IOException("Unexpected page at " + url);
+                }
+                loginFlow = flow.group(1);
+                return;
+            }
+            if (status != HttpURLConnection.HTTP_MOVED_TEMP) {
+                throw new IOException("HTTP " + status + " from " + url);
+            }
+
+            loginFlow = null;
+            String location = resolve(url, connection.getHeaderField("Location"));
+            NavigationPolicy.Decision decision = device.policy.decide(location);
+            if (decision == NavigationPolicy.Decision.BLOCK) {
+                throw new IOException("Blocked " + location);
+            }
+            if (decision == NavigationPolicy.Decision.PROCEED) {
+                pageUrl = location;
+                return;
+            }
+
+            HashMap<String, String> parameters = new HashMap<String, String>();
+            device.parser.parse(location, parameters);
+            AuthorizationResult result = AuthorizationResult.received(parameters, System.currentTimeMillis());
+            if (pkce != null && result.getParameter("code") != null) {
+                result = device.tokenExchange.exchangeCode(result.getParameter("code"), pkce);
+            }
+            if (!result.isSuccessful()) {
+                throw new IOException("The sign in ended in " + result.getError());
+            }
+            tokenRegistry.put(device.request.getTokenKey(), result);
+            tokenLifecycle.tokenReceived(result, System.currentTimeMillis());
+            pageUrl = null;
+            pkce = null;
+        }
+
+        /**
+         * Hands the state over to the next incarnation, as onRetainNonConfigurationInstance does.
+         *
+         * @return the state
+         */
+        private RetainedState retain() {
+            SignInState signInState = pageUrl == null ? null : new SignInState(pageUrl, pkce == null ? null : pkce
+                .getVerifier(), loginFlow);
+            return new RetainedState(tokenRegistry, tokenLifecycle, signInState);
+        }
+    }
+
+    /**
+     * The redirect URI of the app.
+     */
+    private static final String REDIRECT_URI = "ncipapp://user_agent_flow";
+
+    /**
+     * Fraction of the token lifetime after which it is due for refresh, as in MainActivity.
+     */
+    private static final double REFRESH_FRACTION = 0.75;
+
+    /**
+     * Most steps a sign in may take before it is declared stuck.
+     */
+    private static final int MAX_STEPS = 100;
+
+    /**
+     * Connect and read timeout of a request.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the buffer used to read a response.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Finds the flow id in the login form.
+     */
+    private static final Pattern FLOW_FIELD = Pattern.compile("name=\"flow\" value=\"([^\"]*)\"");
+
+    /**
+     * Not instantiable.
+     */
+    private RecreationCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args the options
+     * @throws Exception if the server cannot run or the check fails
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        if (!options.containsKey("login")) {
+            options.put("login", "true");
+        }
+        int rotations = options.containsKey("rotations") ? Integer.parseInt(options.get("rotations")) : 100;
+
+        StandInAuthorizationServer server = new StandInAuthorizationServer(0);
+        server.configure(options);
+        server.start();
+        try {
+            check(new Device(server, false), "implicit", rotations);
+            check(new Device(server, true), "code", rotations);
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Signs in on a device, recreating the activity after every response, then recreates it with the token on
+     * display, and checks the requests the server received.
+     *
+     * @param device a device that has not signed in
+     * @param name the name of the flow, for the report
+     * @param rotations number of recreations with the token on display
+     * @throws Exception if the sign in fails or the check fails
+     */
+    private static void check(final Device device, final String name, final int rotations) throws Exception {
+        StandInAuthorizationServer server = device.server;
+        long authorizeBefore = server.getAuthorizeCount();
+        long requestsBefore = server.getRequestCount();
+
+        Incarnation activity = new Incarnation(device, null);
+        int steps = 0;
+        while (activity.getDisplayedToken() == null) {
+            if (++steps > MAX_STEPS) {
+                throw new IllegalStateException(name + ": no token after " + MAX_STEPS + " steps");
+            }
+            activity.step();
+            activity = new Incarnation(device, activity.retain());
+        }
+        long authorizeRequests = server.getAuthorizeCount() - authorizeBefore;
+        long signInRequests = server.getRequestCount() - requestsBefore;
+        if (authorizeRequests != 1) {
+            throw new IllegalStateException(name + ": " + authorizeRequests + " authorization requests for one sign in"
+                + " recreated " + steps + " times");
+        }
+
+        AuthorizationResult token = activity.getDisplayedToken();
+        long requestsBeforeRotations = server.getRequestCount();
+        for (int rotation = 0; rotation < rotations; rotation++) {
+            activity = new Incarnation(device, activity.retain());
+            if (activity.getDisplayedToken() != token) {
+                throw new IllegalStateException(name + ": rotation " + rotation + " lost the token on display");
+            }
+        }
+        long rotationRequests = server.getRequestCount() - requestsBeforeRotations;
+        if (rotationRequests != 0) {
+            throw new IllegalStateException(name + ": " + rotationRequests + " requests in " + rotations
+                + " rotations with a token on display");
+        }
+
+        System.out.println("{\"check\":\"recreation\",\"flow\":\"" + name + "\",\"signInRecreations\":" + steps
+            + ",\"signInRequests\":" + signInRequests + ",\"authorizeRequests\":" + authorizeRequests
+            + ",\"tokenRecreations\":" + rotations + ",\"tokenRequests\":" + rotationRequests + "}");
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which returns the connection to the keep-alive pool.
+     *
+     * @param connection the connection
+     * @return the body, or an empty string if there is none
+     * @throws IOException if the body cannot be read
+     */
+    private static String read(final HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? connection
+            .getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Resolves the Location of a redirect, which may be relative or have a scheme that java.net.URL does not know.
+     *
+     * @param url the url that was redirected
+     * @param location the Location header
+     * @return the absolute url to go to
+     * @throws IOException if there is no Location or it is not a valid URI
+     */
+    private static String resolve(final String url, final String location) throws IOException {
+        if (location == null) {
+            throw new IOException("Redirect without a Location from " + url);
+        }
+        try {
+            return new URI(url).resolve(location).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid Location " + location, e);
+        }
+    }
+}
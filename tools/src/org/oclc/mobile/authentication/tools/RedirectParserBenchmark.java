@@ -0,0 +1,105 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.oclc.mobile.authentication.core.RedirectUriParser;
+
+/**
+ * Compares the single-pass {@link RedirectUriParser} with the split-based parsing that AuthenticatingWebView used
+ * before it, on redirect URIs shaped like those of the authentication server: a short implicit-flow token, one with a
+ * refresh token and percent-encoded values, and one with a long refresh token.
+ * <p>
+ * The split-based parser is kept here only as the baseline. It does not decode values and cuts a value at its first
+ * "=", so the two do not return the same parameters for every URI.
+ */
+public final class RedirectParserBenchmark {
+
+    /**
+     * Number of parses per round.
+     */
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * Length of the long refresh token.
+     */
+    private static final int LONG_TOKEN_LENGTH = 2048;
+
+    /**
+     * Not instantiable.
+     */
+    private RedirectParserBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args not used
+     * @throws Exception if a parse fails
+     */
+    public static void main(final String[] args) throws Exception {
+        StringBuilder longToken = new StringBuilder("rt_");
+        while (longToken.length() < LONG_TOKEN_LENGTH) {
+            longToken.append("aB3dE5fG7hJ9kL1mN+pQ/rS=");
+        }
+
+        String base = "ncipapp://user_agent_flow#access_token=tk_Ot8jCvtqGzYeSvWu5WQ1Qk4GPsZRNkyY9mcO&principalID="
+            + "8eaa9f92-3951-431c-975a-d7df26b8d131&principalIDNS=urn%3Aoclc%3Aplatform%3A128807&"
+            + "context_institution_id=128807&expires_at=2014-03-14%2014%3A16%3A01Z&expires_in=1199&token_type=bearer";
+        Map<String, String> uris = new LinkedHashMap<String, String>();
+        uris.put("implicit", base);
+        uris.put("refresh", base + "&scope=WMS_NCIP%20refresh_token&refresh_token=rt_rhXeNdCtEwb3SFpWzT2Cm9xQ"
+            + "&refresh_token_expires_at=2014-03-21%2013%3A56%3A02Z&refresh_token_expires_in=604799");
+        uris.put("longRefresh", base + "&scope=WMS_NCIP%20refresh_token&refresh_token=" + longToken);
+
+        for (Map.Entry<String, String> uri : uris.entrySet()) {
+            final String url = uri.getValue();
+            final RedirectUriParser parser = new RedirectUriParser();
+            long split = Benchmarks.run(uri.getKey() + "-split", ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(final int iteration) {
+                    parseBySplitting(url, new HashMap<String, String>());
+                }
+            });
+            long singlePass = Benchmarks.run(uri.getKey() + "-singlePass", ITERATIONS, new Benchmarks.Operation() {
+                @Override
+                public void run(final int iteration) {
+                    parser.parse(url, new HashMap<String, String>());
+                }
+            });
+            System.out.println("{\"uri\":\"" + uri.getKey() + "\",\"length\":" + url.length() + ",\"speedup\":"
+                + String.format("%.2f", (double) split / Math.max(1, singlePass)) + "}");
+        }
+    }
+
+    /**
+     * The parsing of AuthenticatingWebView.parseRedirectURI before the single-pass parser.
+     *
+     * @param redirectUrl the redirect url
+     * @param parameters receives the parameters, undecoded
+     */
+    private static void parseBySplitting(final String redirectUrl, final Map<String, String> parameters) {
+        String[] params = redirectUrl.split("#")[1].split("&");
+        for (String parameter : params) {
+            if (parameter.contains("=")) {
+                parameters.put(parameter.split("=")[0], parameter.split("=")[1]);
+            } else {
+                parameters.put(parameter, "");
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.oclc.mobile.authentication.core.ResourceFilter;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Checks that the blockedResources rules of res/values/authentication.xml never block what the authentication
+ * server's own pages need: their documents, scripts, style sheets and requests without a file extension. The filter
+ * is built the way MainActivity builds it, with the configured allowedHosts and again with none, since an empty list
+ * must not turn the authentication server into a third party.
+ * <p>
+ * Images and fonts are not checked: the default rules block them on every host on purpose.
+ * <p>
+ * Options, as --name=value: resources, the file to read. Unless it is set, res/values/authentication.xml is looked
+ * for in the working directory and then above the directory or jar the tools were loaded from, so the check runs from
+ * any directory.
+ */
+public final class ResourceFilterCheck {
+
+    /**
+     * Paths of the resources a login page cannot do without.
+     */
+    private static final String[] REQUIRED_PATHS = {
+        "/oauth2/authorizeCode", "/wayf/metaauth-ui/cmnd/protocol/samlpost", "/login.html", "/static/js/login.js",
+        "/static/js/vendor/jquery.min.js", "/static/css/login.css", "/api/session?flow=5b2f0c9e"
+    };
+
+    /**
+     * Path of the resources file from the root of the project.
+     */
+    private static final String RESOURCES_PATH = "res/values/authentication.xml";
+
+    /**
+     * Not instantiable.
+     */
+    private ResourceFilterCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args the options
+     * @throws Exception if the resources cannot be read or a required resource would be blocked
+     */
+    public static void main(final String[] args) throws Exception {
+        Document resources = readResources(StandInAuthorizationServer.parseOptions(args));
+        URI base = URI.create(string(resources, "authenticatingServerBaseUrl"));
+        List<String> rules = stringArray(resources, "blockedResources");
+        List<String> allowedHosts = stringArray(resources, "allowedHosts");
+
+        int checked = 0;
+        for (List<String> configured : Arrays.asList(allowedHosts, Collections.<String>emptyList())) {
+            List<String> firstPartyHosts = new ArrayList<String>(configured);
+            firstPartyHosts.add(base.getHost());
+            ResourceFilter filter = new ResourceFilter(rules, firstPartyHosts);
+            for (String path : REQUIRED_PATHS) {
+                String url = base.getScheme() + "://" + base.getHost() + path;
+                if (filter.shouldBlock(url)) {
+                    throw new IllegalStateException("With allowedHosts " + configured + " the rules block " + url);
+                }
+                checked++;
+            }
+        }
+        System.out.println("{\"check\":\"resourceFilter\",\"rules\":" + rules.size() + ",\"urls\":" + checked
+            + ",\"blocked\":0}");
+    }
+
+    /**
+     * Reads the app's resources file: the one given by the resources option, or else res/values/authentication.xml
+     * in the working directory or above the location of the tools' classes.
+     *
+     * @param options the options
+     * @return the parsed file
+     * @throws Exception if the file cannot be found or parsed
+     */
+    static Document readResources(final Map<String, String> options) throws Exception {
+        File file;
+        if (options.containsKey("resources")) {
+            file = new File(options.get("resources"));
+        } else {
+            file = findResources();
+        }
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+
+    /**
+     * @return res/values/authentication.xml in the working directory, or in the nearest directory above the tools'
+     *         classes that has one
+     * @throws FileNotFoundException if there is none
+     * @throws URISyntaxException if the location of the classes is not a valid uri
+     */
+    private static File findResources() throws FileNotFoundException, URISyntaxException {
+        File file = new File(RESOURCES_PATH);
+        if (file.isFile()) {
+            return file;
+        }
+        File classes = new File(ResourceFilterCheck.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        for (File directory = classes.getAbsoluteFile(); directory != null; directory = directory.getParentFile()) {
+            file = new File(directory, RESOURCES_PATH);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new FileNotFoundException("No " + RESOURCES_PATH + " in the working directory or above " + classes
+            + "; set --resources");
+    }
+
+    /**
+     * @param resources the resources file
+     * @param name the name of a string
+     * @return its value
+     * @throws IllegalStateException if it is missing
+     */
+    static String string(final Document resources, final String name) {
+        NodeList strings = resources.getElementsByTagName("string");
+        for (int i = 0; i < strings.getLength(); i++) {
+            Element string = (Element) strings.item(i);
+            if (name.equals(string.getAttribute("name"))) {
+                return string.getTextContent().trim();
+            }
+        }
+        throw new IllegalStateException("No string " + name + " in the resources");
+    }
+
+    /**
+     * @param resources the resources file
+     * @param name the name of a string array
+     * @return its items, or an empty list if it is missing
+     */
+    static List<String> stringArray(final Document resources, final String name) {
+        List<String> items = new ArrayList<String>();
+        NodeList arrays = resources.getElementsByTagName("string-array");
+        for (int i = 0; i < arrays.getLength(); i++) {
+            Element array = (Element) arrays.item(i);
+            if (name.equals(array.getAttribute("name"))) {
+                NodeList children = array.getElementsByTagName("item");
+                for (int j = 0; j < children.getLength(); j++) {
+                    items.add(children.item(j).getTextContent().trim());
+                }
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,294 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.oclc.mobile.authentication.core.AuthorizationRequest;
+import org.oclc.mobile.authentication.core.NavigationPolicy;
+import org.oclc.mobile.authentication.core.PageProgress;
+import org.oclc.mobile.authentication.core.RedirectMatcher;
+
+/**
+ * Checks that a silent sign in never asks MainActivity to hide a progress dialog it has not shown, the way
+ * AuthenticatingWebView's page callbacks consult {@link PageProgress}. The app starts from a stored token, so no
+ * dialog has ever been created when the token expires and the silent sign in begins.
+ * <p>
+ * The WebView does not run off a device, so the check loads the pages of each sign in from the stand-in server itself
+ * and reports every page as started and finished, which is the most callbacks a WebView makes. The activity's
+ * dialog is played by a field that stays null until a dialog is shown and is dereferenced when one is hidden, as
+ * MainActivity.stopProgressDialog did before it checked for null.
+ * <p>
+ * Two cases are run: a silent sign in that gets through on the session cookie, which must never show the dialog, and
+ * one without a session, which meets the login form, is escalated, and must show the dialog for the pages after the
+ * form and hide it again. Options, as --name=value: flows (100), the sign ins of each case, and the server options.
+ */
+public final class SilentProgressCheck {
+
+    /**
+     * The dialog of one incarnation of MainActivity.
+     */
+    private static final class Activity {
+
+        /**
+         * The dialog, or null if none has been created.
+         */
+        private Boolean dialogShowing;
+
+        /**
+         * Number of times the dialog was shown.
+         */
+        private int shows;
+
+        /**
+         * As MainActivity.startProgressDialog: creates the dialog if needed and shows it.
+         */
+        private void startProgressDialog() {
+            dialogShowing = Boolean.TRUE;
+            shows++;
+        }
+
+        /**
+         * As MainActivity.stopProgressDialog used to: hides the dialog, which must exist.
+         */
+        private void stopProgressDialog() {
+            if (!dialogShowing.booleanValue()) {
+                throw new IllegalStateException("The dialog was hidden twice");
+            }
+            dialogShowing = Boolean.FALSE;
+        }
+    }
+
+    /**
+     * The redirect URI of the app.
+     */
+    private static final String REDIRECT_URI = "ncipapp://user_agent_flow";
+
+    /**
+     * Most pages a sign in may load before it is declared stuck.
+     */
+    private static final int MAX_PAGES = 100;
+
+    /**
+     * Connect and read timeout of a request.
+     */
+    private static final int TIMEOUT_MILLISECONDS = 15000;
+
+    /**
+     * Size of the buffer used to read a response.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Finds the flow id in the login form.
+     */
+    private static final Pattern FLOW_FIELD = Pattern.compile("name=\"flow\" value=\"([^\"]*)\"");
+
+    /**
+     * Not instantiable.
+     */
+    private SilentProgressCheck() {
+    }
+
+    /**
+     * Runs the check.
+     *
+     * @param args the options
+     * @throws Exception if the server cannot run or the check fails
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        options.put("login", "true");
+        int flows = options.containsKey("flows") ? Integer.parseInt(options.get("flows")) : 100;
+
+        StandInAuthorizationServer server = new StandInAuthorizationServer(0);
+        server.configure(options);
+        server.start();
+        try {
+            AuthorizationRequest request = new AuthorizationRequest.Builder()
+                .setAuthenticatingServerBaseUrl(server.getBaseUrl()).setWskey("standInWskey")
+                .setAuthenticatingInstitutionId("128807").setContextInstitutionId("128807").setRedirectUri(REDIRECT_URI)
+                .setScopes("WMS_NCIP").build();
+            NavigationPolicy policy = new NavigationPolicy(new RedirectMatcher(REDIRECT_URI), Collections
+                .singleton("127.0.0.1"));
+
+            /*
+             * A previous run of the app signed in, which left the session cookie behind.
+             */
+            String[] cookie = new String[1];
+            signIn(server, request, policy, cookie, new Activity(), false);
+
+            int shows = 0;
+            for (int flow = 0; flow < flows; flow++) {
+                Activity activity = new Activity();
+                signIn(server, request, policy, cookie, activity, true);
+                if (activity.dialogShowing != null) {
+                    throw new IllegalStateException("A silent sign in with a session showed the dialog");
+                }
+
+                Activity escalated = new Activity();
+                signIn(server, request, policy, new String[1], escalated, true);
+                if (escalated.dialogShowing == null || escalated.dialogShowing.booleanValue()) {
+                    throw new IllegalStateException("An escalated sign in left the dialog "
+                        + (escalated.dialogShowing == null ? "unshown" : "showing"));
+                }
+                shows += escalated.shows;
+            }
+            System.out.println("{\"check\":\"silentProgress\",\"flows\":" + flows + ",\"silentDialogs\":0"
+                + ",\"escalatedDialogShowsPerFlow\":" + (double) shows / flows + "}");
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Signs in once, reporting each page to a {@link PageProgress} and the activity as AuthenticatingWebView does.
+     * A silent sign in is escalated, and carries on visibly, when a page is the login form.
+     *
+     * @param server the stand-in server
+     * @param request the authentication request
+     * @param policy decides what happens to each url
+     * @param cookie holds the session cookie of the device in its only element, like the CookieManager
+     * @param activity receives the dialog calls
+     * @param silent whether the sign in starts silent
+     * @throws IOException if a request fails, a url is blocked or no token arrives
+     */
+    private static void signIn(final StandInAuthorizationServer server, final AuthorizationRequest request,
+        final NavigationPolicy policy, final String[] cookie, final Activity activity, final boolean silent)
+        throws IOException {
+        PageProgress progress = new PageProgress();
+        boolean hidden = silent;
+        String url = request.getUrl();
+        String form = null;
+
+        for (int page = 0; page < MAX_PAGES; page++) {
+            NavigationPolicy.Decision decision = policy.decide(url);
+            if (decision == NavigationPolicy.Decision.REDIRECT) {
+                if (url.indexOf("access_token=") == -1) {
+                    throw new IOException("No token in " + url);
+                }
+                return;
+            }
+            if (decision == NavigationPolicy.Decision.BLOCK) {
+                throw new IOException("Blocked " + url);
+            }
+
+            if (progress.pageStarted(hidden)) {
+                activity.startProgressDialog();
+            }
+            HttpURLConnection connection = (HttpURLConnection) new URL(form == null ? url : server.getBaseUrl()
+                + "/login").openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setConnectTimeout(TIMEOUT_MILLISECONDS);
+            connection.setReadTimeout(TIMEOUT_MILLISECONDS);
+            if (cookie[0] != null) {
+                connection.setRequestProperty("Cookie", cookie[0]);
+            }
+            if (form != null) {
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(form.getBytes("UTF-8"));
+                } finally {
+                    out.close();
+                }
+                form = null;
+            }
+            int status = connection.getResponseCode();
+            String body = read(connection);
+            String setCookie = connection.getHeaderField("Set-Cookie");
+            if (setCookie != null) {
+                cookie[0] = setCookie.substring(0, setCookie.indexOf(';') == -1 ? setCookie.length() : setCookie
+                    .indexOf(';'));
+            }
+            if (progress.pageFinished()) {
+                activity.stopProgressDialog();
+            }
+
+            if (status == HttpURLConnection.HTTP_MOVED_TEMP) {
+                url = resolve(url, connection.getHeaderField("Location"));
+            } else if (status == HttpURLConnection.HTTP_OK) {
+                Matcher flow = FLOW_FIELD.matcher(body);
+                if (!flow.find()) {
+                    throw new IOException("Unexpected page at " + url);
+                }
+
+                /*
+                 * The form stays loaded, so a silent sign in is escalated and the user submits it.
+                 */
+                hidden = false;
+                form = "flow=" + flow.group(1) + "&userid=standIn&password=standIn";
+            } else {
+                throw new IOException("HTTP " + status + " from " + url);
+            }
+        }
+        throw new IOException("No redirect URI after " + MAX_PAGES + " pages");
+    }
+
+    /**
+     * Reads a response body to the end and closes it, which returns the connection to the keep-alive pool.
+     *
+     * @param connection the connection
+     * @return the body, or an empty string if there is none
+     * @throws IOException if the body cannot be read
+     */
+    private static String read(final HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? connection
+            .getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * Resolves the Location of a redirect, which may be relative or have a scheme that java.net.URL does not know.
+     *
+     * @param url the url that was redirected
+     * @param location the Location header
+     * @return the absolute url to go to
+     * @throws IOException if there is no Location or it is not a valid URI
+     */
+    private static String resolve(final String url, final String location) throws IOException {
+        if (location == null) {
+            throw new IOException("Redirect without a Location from " + url);
+        }
+        try {
+            return new URI(url).resolve(location).toString();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid Location " + location, e);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.oclc.mobile.authentication.core.SingleFlight;
+
+/**
+ * Checks {@link SingleFlight} under contention, the way AuthenticatingWebView.requestToken uses it: many threads ask
+ * for the same token at once and must share a single sign in. Each round releases every caller together, ends the call
+ * once all of them have joined, and fails if more than one call was started or a caller received another outcome.
+ * <p>
+ * A second part checks that a call every caller has given up on, as WebViewTokenProvider does when its wait times
+ * out, is dropped, so that the next caller starts a new call instead of joining one that never ends.
+ * <p>
+ * Options, as --name=value: callers (64) and rounds (2000).
+ */
+public final class SingleFlightStress {
+
+    /**
+     * The key every caller asks for.
+     */
+    private static final String KEY = "token";
+
+    /**
+     * How long a caller of an abandoned call waits before giving up.
+     */
+    private static final long ABANDON_TIMEOUT_MILLIS = 5;
+
+    /**
+     * How long to wait for a round to end before declaring it stuck.
+     */
+    private static final long ROUND_TIMEOUT_SECONDS = 30;
+
+    /**
+     * Not instantiable.
+     */
+    private SingleFlightStress() {
+    }
+
+    /**
+     * Runs the checks.
+     *
+     * @param args the options
+     * @throws Exception if a check fails
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        int callers = options.containsKey("callers") ? Integer.parseInt(options.get("callers")) : 64;
+        int rounds = options.containsKey("rounds") ? Integer.parseInt(options.get("rounds")) : 2000;
+
+        ExecutorService threads = Executors.newFixedThreadPool(callers + 1);
+        try {
+            coalesce(threads, callers, rounds);
+            abandon(threads, callers, rounds / 10);
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    /**
+     * Releases all callers at once in every round and checks that they share exactly one call.
+     *
+     * @param threads runs the callers and the call
+     * @param callers number of callers per round
+     * @param rounds number of rounds
+     * @throws Exception if a check fails
+     */
+    private static void coalesce(final ExecutorService threads, final int callers, final int rounds)
+        throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger calls = new AtomicInteger();
+        long started = System.nanoTime();
+
+        for (int round = 0; round < rounds; round++) {
+            final Integer outcome = round;
+            final CountDownLatch gate = new CountDownLatch(1);
+            final CountDownLatch joined = new CountDownLatch(callers);
+
+            /*
+             * The call ends only once every caller holds a ticket, so a caller arriving after the end cannot
+             * legitimately start a second call in the same round.
+             */
+            final Runnable start = new Runnable() {
+                @Override
+                public void run() {
+                    calls.incrementAndGet();
+                    threads.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                joined.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                            flight.complete(KEY, outcome);
+                        }
+                    });
+                }
+            };
+
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < callers; i++) {
+                results.add(threads.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        gate.await();
+                        SingleFlight<String, Integer>.Ticket ticket = flight.join(KEY, null, start);
+                        joined.countDown();
+                        return ticket.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    }
+                }));
+            }
+            gate.countDown();
+            for (Future<Integer> result : results) {
+                Integer value = result.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                if (!outcome.equals(value)) {
+                    throw new IllegalStateException("Round " + round + ": a caller received " + value);
+                }
+            }
+            if (calls.get() != round + 1) {
+                throw new IllegalStateException("Round " + round + ": " + calls.get() + " calls after " + (round + 1)
+                    + " rounds");
+            }
+        }
+
+        System.out.println("{\"check\":\"coalesce\",\"callers\":" + callers + ",\"rounds\":" + rounds
+            + ",\"calls\":" + calls.get() + ",\"elapsedMillis\":"
+            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "}");
+    }
+
+    /**
+     * Starts calls that never end, lets every caller time out, and checks that the next caller starts a new call.
+     *
+     * @param threads runs the callers
+     * @param callers number of callers per round
+     * @param rounds number of rounds
+     * @throws Exception if a check fails
+     */
+    private static void abandon(final ExecutorService threads, final int callers, final int rounds)
+        throws Exception {
+        final SingleFlight<String, Integer> flight = new SingleFlight<String, Integer>();
+        final AtomicInteger calls = new AtomicInteger();
+        final Runnable start = new Runnable() {
+            @Override
+            public void run() {
+                calls.incrementAndGet();
+            }
+        };
+        long started = System.nanoTime();
+
+        for (int round = 0; round < rounds; round++) {
+            final CountDownLatch gate = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (int i = 0; i < callers; i++) {
+                results.add(threads.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        gate.await();
+                        SingleFlight<String, Integer>.Ticket ticket = flight.join(KEY, null, start);
+                        try {
+                            ticket.get(ABANDON_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                            return false;
+                        } catch (TimeoutException e) {
+                            return ticket.cancel(false);
+                        } catch (CancellationException e) {
+                            return false;
+                        }
+                    }
+                }));
+            }
+            gate.countDown();
+            for (Future<Boolean> result : results) {
+                if (!result.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Round " + round + ": a caller did not time out");
+                }
+            }
+            if (flight.isInFlight(KEY)) {
+                throw new IllegalStateException("Round " + round + ": the abandoned call is still in flight");
+            }
+        }
+
+        /*
+         * Every round's callers may have started more than one call between them, since a caller joining after all
+         * the others gave up finds nothing in flight; what matters is that the next caller is not left waiting.
+         */
+        int before = calls.get();
+        SingleFlight<String, Integer>.Ticket ticket = flight.join(KEY, null, start);
+        if (calls.get() != before + 1) {
+            throw new IllegalStateException("The caller after an abandoned call did not start a new one");
+        }
+        flight.complete(KEY, rounds);
+        if (ticket.get(ROUND_TIMEOUT_SECONDS, TimeUnit.SECONDS) != rounds) {
+            throw new IllegalStateException("The new call did not deliver its outcome");
+        }
+
+        System.out.println("{\"check\":\"abandon\",\"callers\":" + callers + ",\"rounds\":" + rounds + ",\"calls\":"
+            + calls.get() + ",\"elapsedMillis\":" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "}");
+    }
+}
@@ -0,0 +1,1002 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the OCLC authentication server and web services, so that the authentication flow can be
+ * exercised without authn.sd00.worldcat.org. It runs on the JDK's built-in HTTP server and can be embedded in a
+ * harness or run on its own, for example for an emulator, which reaches the host as 10.0.2.2.
+ * <p>
+ * It serves:
+ * <ul>
+ * <li>{baseURL}/authorizeCode, which redirects through a configurable number of intermediate pages and then to the
+ * redirect URI with a token in the fragment, or with an authorization code in the query string for response_type=code.
+ * A configurable fraction of flows ends in an error redirect instead, half of them with a lone error=access_denied.
+ * If logins are required, a request without a session cookie is redirected to a login form at {baseURL}/login first,
+ * which accepts any credentials. Sessions can be made to expire, to see how often a silent sign in still gets
+ * through.</li>
+ * <li>/static/..., the style sheet, scripts, images and web font of the login form, which also loads a script from
+ * localhost, a host the app treats as a third party. They carry an ETag, a Last-Modified and a max-age, and are
+ * answered with 304 to a matching If-None-Match or If-Modified-Since.</li>
+ * <li>{baseURL}/accessToken, which redeems authorization codes, checking the PKCE code verifier, and refresh
+ * tokens.</li>
+ * <li>/ncip, which answers any NCIP message, with an NCIP Problem for the error fraction.</li>
+ * <li>/patron/..., which answers GETs with a JSON document, an ETag and a max-age, and 304 to a matching
+ * If-None-Match.</li>
+ * </ul>
+ * Every response is delayed by the configured latency without holding a thread, so thousands of flows can be in
+ * progress at once. The settings can be changed while the server runs.
+ */
+public final class StandInAuthorizationServer {
+
+    /**
+     * Path of the authentication server.
+     */
+    private static final String OAUTH_PATH = "/oauth2";
+
+    /**
+     * Name of the session cookie set by the login form.
+     */
+    private static final String SESSION_COOKIE = "standin_session";
+
+    /**
+     * Lifetime of the tokens issued, in seconds.
+     */
+    private static final int EXPIRES_IN_SECONDS = 1199;
+
+    /**
+     * Namespace of the principals.
+     */
+    private static final String PRINCIPAL_ID_NS = "urn:oclc:platform:128807";
+
+    /**
+     * Characters of the tokens issued.
+     */
+    private static final char[] TOKEN_CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"
+        .toCharArray();
+
+    /**
+     * Path of the static resources of the login form.
+     */
+    private static final String STATIC_PATH = "/static";
+
+    /**
+     * Page served when a login is required, given the flow and the port of the third-party script.
+     */
+    private static final String LOGIN_FORM = "<html><head>"
+        + "<link rel=\"stylesheet\" href=\"" + STATIC_PATH + "/css/login.css\"/>"
+        + "<link rel=\"preload\" as=\"font\" href=\"" + STATIC_PATH + "/fonts/brand.woff2\"/>"
+        + "<script src=\"" + STATIC_PATH + "/js/login.js\"></script>"
+        + "<script src=\"http://localhost:%2$d" + STATIC_PATH + "/js/analytics.js\"></script>"
+        + "</head><body><img src=\"" + STATIC_PATH + "/img/logo.png\"/><img src=\"" + STATIC_PATH
+        + "/img/background.jpg\"/><form method=\"post\" action=\"" + OAUTH_PATH + "/login\">"
+        + "<input type=\"hidden\" name=\"flow\" value=\"%1$s\"/><input name=\"userid\"/>"
+        + "<input type=\"password\" name=\"password\"/><input type=\"submit\"/></form></body></html>";
+
+    /**
+     * Content types of the static resources by path, in the order the login form references them.
+     */
+    private static final Map<String, String> ASSET_TYPES = new LinkedHashMap<String, String>();
+
+    /**
+     * Sizes of the static resources by path, in bytes, about those of a typical institution's login page.
+     */
+    private static final Map<String, Integer> ASSET_SIZES = new HashMap<String, Integer>();
+    static {
+        String[][] assets = {
+            {"/css/login.css", "text/css", "8192"},
+            {"/fonts/brand.woff2", "font/woff2", "49152"},
+            {"/js/login.js", "application/javascript", "32768"},
+            {"/js/analytics.js", "application/javascript", "40960"},
+            {"/img/logo.png", "image/png", "24576"},
+            {"/img/background.jpg", "image/jpeg", "163840"}
+        };
+        for (String[] asset : assets) {
+            ASSET_TYPES.put(STATIC_PATH + asset[0], asset[1]);
+            ASSET_SIZES.put(STATIC_PATH + asset[0], Integer.valueOf(asset[2]));
+        }
+    }
+
+    /**
+     * Last-Modified of the static resources.
+     */
+    private static final String ASSETS_LAST_MODIFIED = "Sun, 05 Jan 2014 12:00:00 GMT";
+
+    /**
+     * Number of bytes in a kilobyte.
+     */
+    private static final int BYTES_PER_KILOBYTE = 1024;
+
+    /**
+     * Multiplier to convert seconds to milliseconds.
+     */
+    private static final int SECONDS_TO_MILLISECONDS = 1000;
+
+    /**
+     * Port of a server run from the command line.
+     */
+    private static final int DEFAULT_PORT = 8080;
+
+    /**
+     * Size of the buffer used to read a request.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * An authorization request in progress, from the first request to the redirect URI.
+     */
+    private static final class Flow {
+
+        /**
+         * The query parameters of the authorization request.
+         */
+        private final Map<String, String> request;
+
+        /**
+         * Number of intermediate pages still to go through.
+         */
+        private int hopsLeft;
+
+        /**
+         * Creates a flow.
+         *
+         * @param request the query parameters of the authorization request
+         * @param hops number of intermediate pages to go through
+         */
+        private Flow(final Map<String, String> request, final int hops) {
+            this.request = request;
+            this.hopsLeft = hops;
+        }
+    }
+
+    /**
+     * The HTTP server.
+     */
+    private final HttpServer server;
+
+    /**
+     * Runs the handlers, which read the requests.
+     */
+    private final ExecutorService handlers;
+
+    /**
+     * Sends the responses once their latency has passed.
+     */
+    private final ScheduledExecutorService responders;
+
+    /**
+     * Authorization requests in progress by flow id.
+     */
+    private final Map<String, Flow> flows = new ConcurrentHashMap<String, Flow>();
+
+    /**
+     * Authorization codes not yet redeemed, with the request that they were issued for.
+     */
+    private final Map<String, Map<String, String>> codes = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * Session cookies set by the login form, with the time each was set in milliseconds since the epoch.
+     */
+    private final Map<String, Long> sessions = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Source of flow ids, codes and principals.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Number of requests served.
+     */
+    private final AtomicLong requestCount = new AtomicLong();
+
+    /**
+     * Number of authorization requests served.
+     */
+    private final AtomicLong authorizeCount = new AtomicLong();
+
+    /**
+     * Source of the tokens.
+     */
+    private final SecureRandom tokens = new SecureRandom();
+
+    /**
+     * Decides which flows end in an error.
+     */
+    private final Random errors = new Random();
+
+    /**
+     * Delay of every response, in milliseconds.
+     */
+    private volatile long latencyMillis;
+
+    /**
+     * Speed at which each response body is sent, in kilobytes per second, or 0 for no limit.
+     */
+    private volatile int bandwidthKilobytes;
+
+    /**
+     * Number of intermediate pages before the redirect URI.
+     */
+    private volatile int redirectDepth = 2;
+
+    /**
+     * Number of characters of the access tokens.
+     */
+    private volatile int tokenSize = 36;
+
+    /**
+     * Fraction of flows and NCIP messages that end in an error.
+     */
+    private volatile double errorRate;
+
+    /**
+     * Whether a request without a session cookie gets a login form.
+     */
+    private volatile boolean requireLogin;
+
+    /**
+     * Max-age of the patron documents, in seconds.
+     */
+    private volatile int maxAgeSeconds;
+
+    /**
+     * How long a session lasts after the login form, in milliseconds, or 0 if it lasts as long as the server.
+     */
+    private volatile long sessionLifetimeMillis;
+
+    /**
+     * Max-age of the static resources, in seconds.
+     */
+    private volatile int assetMaxAgeSeconds = 3600;
+
+    /**
+     * Creates a server, which does not listen until it is started.
+     *
+     * @param port the port to listen on, or 0 for any free port
+     * @throws IOException if the port cannot be bound
+     */
+    public StandInAuthorizationServer(final int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        handlers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), daemonThreads("handler"));
+        responders = Executors.newScheduledThreadPool(2, daemonThreads("responder"));
+        server.setExecutor(handlers);
+        server.createContext(OAUTH_PATH + "/authorizeCode", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                authorize(exchange);
+            }
+        });
+        server.createContext(OAUTH_PATH + "/hop", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                hop(exchange);
+            }
+        });
+        server.createContext(OAUTH_PATH + "/login", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                login(exchange);
+            }
+        });
+        server.createContext(OAUTH_PATH + "/accessToken", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                accessToken(exchange);
+            }
+        });
+        server.createContext(STATIC_PATH, new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                asset(exchange);
+            }
+        });
+        server.createContext("/ncip", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                ncip(exchange);
+            }
+        });
+        server.createContext("/patron", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                patron(exchange);
+            }
+        });
+    }
+
+    /**
+     * Runs a server until the process is stopped.
+     *
+     * @param args the options, each of the form --name=value: port, 8080 unless set; latency, in milliseconds;
+     *            bandwidth, of each response in kilobytes per second; depth, the number of intermediate pages; tokenSize; errorRate, from 0 to 1; login, true to serve a
+     *            login form; sessionLifetime, in milliseconds; maxAge, of the patron documents in seconds;
+     *            assetMaxAge, of the static resources in seconds
+     * @throws IOException if the port cannot be bound
+     */
+    public static void main(final String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args);
+        StandInAuthorizationServer server = new StandInAuthorizationServer(options.containsKey("port") ? Integer
+            .parseInt(options.get("port")) : DEFAULT_PORT);
+        server.configure(options);
+        server.start();
+        System.out.println("Authenticating server base url: " + server.getBaseUrl());
+    }
+
+    /**
+     * Splits command line options of the form --name=value.
+     *
+     * @param args the command line
+     * @return the options by name
+     */
+    public static Map<String, String> parseOptions(final String[] args) {
+        HashMap<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (!arg.startsWith("--") || equals == -1) {
+                throw new IllegalArgumentException("Options are of the form --name=value: " + arg);
+            }
+            options.put(arg.substring(2, equals), arg.substring(equals + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Applies the settings among the given options: latency, bandwidth, depth, tokenSize, errorRate, login,
+     * sessionLifetime, maxAge and assetMaxAge.
+     *
+     * @param options the options by name
+     */
+    public void configure(final Map<String, String> options) {
+        if (options.containsKey("latency")) {
+            setLatencyMillis(Long.parseLong(options.get("latency")));
+        }
+        if (options.containsKey("bandwidth")) {
+            setBandwidthKilobytes(Integer.parseInt(options.get("bandwidth")));
+        }
+        if (options.containsKey("depth")) {
+            setRedirectDepth(Integer.parseInt(options.get("depth")));
+        }
+        if (options.containsKey("tokenSize")) {
+            setTokenSize(Integer.parseInt(options.get("tokenSize")));
+        }
+        if (options.containsKey("errorRate")) {
+            setErrorRate(Double.parseDouble(options.get("errorRate")));
+        }
+        if (options.containsKey("login")) {
+            setRequireLogin(Boolean.parseBoolean(options.get("login")));
+        }
+        if (options.containsKey("sessionLifetime")) {
+            setSessionLifetimeMillis(Long.parseLong(options.get("sessionLifetime")));
+        }
+        if (options.containsKey("maxAge")) {
+            setMaxAgeSeconds(Integer.parseInt(options.get("maxAge")));
+        }
+        if (options.containsKey("assetMaxAge")) {
+            setAssetMaxAgeSeconds(Integer.parseInt(options.get("assetMaxAge")));
+        }
+    }
+
+    /**
+     * @param millis delay of every response, in milliseconds
+     */
+    public void setLatencyMillis(final long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * @param kilobytes speed at which each response body is sent, in kilobytes per second, or 0 for no limit
+     */
+    public void setBandwidthKilobytes(final int kilobytes) {
+        this.bandwidthKilobytes = kilobytes;
+    }
+
+    /**
+     * @param depth number of intermediate pages before the redirect URI
+     */
+    public void setRedirectDepth(final int depth) {
+        this.redirectDepth = depth;
+    }
+
+    /**
+     * @param size number of characters of the access tokens
+     */
+    public void setTokenSize(final int size) {
+        this.tokenSize = size;
+    }
+
+    /**
+     * @param rate fraction of flows and NCIP messages that end in an error, from 0 to 1
+     */
+    public void setErrorRate(final double rate) {
+        this.errorRate = rate;
+    }
+
+    /**
+     * @param require true to serve a login form to requests without a session cookie
+     */
+    public void setRequireLogin(final boolean require) {
+        this.requireLogin = require;
+    }
+
+    /**
+     * @param millis how long a session lasts after the login form, in milliseconds, or 0 for as long as the server
+     */
+    public void setSessionLifetimeMillis(final long millis) {
+        this.sessionLifetimeMillis = millis;
+    }
+
+    /**
+     * @param seconds max-age of the patron documents, in seconds
+     */
+    public void setMaxAgeSeconds(final int seconds) {
+        this.maxAgeSeconds = seconds;
+    }
+
+    /**
+     * @param seconds max-age of the static resources, in seconds
+     */
+    public void setAssetMaxAgeSeconds(final int seconds) {
+        this.assetMaxAgeSeconds = seconds;
+    }
+
+    /**
+     * Starts listening.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops listening and drops the responses still waiting for their latency.
+     */
+    public void stop() {
+        server.stop(0);
+        responders.shutdownNow();
+        handlers.shutdownNow();
+    }
+
+    /**
+     * @return the base url of the authentication server, to use as authenticatingServerBaseUrl
+     */
+    public String getBaseUrl() {
+        return getUrl(OAUTH_PATH);
+    }
+
+    /**
+     * @param path a path on this server, such as /ncip
+     * @return the url of the path
+     */
+    public String getUrl(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * @return the number of requests served so far
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of authorization requests, which each start a flow, served so far
+     */
+    public long getAuthorizeCount() {
+        return authorizeCount.get();
+    }
+
+    /**
+     * Starts an authorization request: a redirect to the login form if one is required, otherwise the first hop.
+     *
+     * @param exchange the request
+     * @throws IOException if the request cannot be read
+     */
+    private void authorize(final HttpExchange exchange) throws IOException {
+        authorizeCount.incrementAndGet();
+        Map<String, String> request = parseForm(exchange.getRequestURI().getRawQuery());
+        String flowId = Long.toString(sequence.incrementAndGet());
+        flows.put(flowId, new Flow(request, redirectDepth));
+
+        if (requireLogin && !hasSession(exchange)) {
+            exchange.getResponseHeaders().add("Location", OAUTH_PATH + "/login?flow=" + flowId);
+            respond(exchange, HttpURLConnection.HTTP_MOVED_TEMP, "");
+        } else {
+            next(exchange, flowId);
+        }
+    }
+
+    /**
+     * Serves the login form of a flow, or accepts it with any credentials, sets the session cookie and carries on with
+     * the flow.
+     *
+     * @param exchange the request
+     * @throws IOException if the request cannot be read
+     */
+    private void login(final HttpExchange exchange) throws IOException {
+        if ("GET".equals(exchange.getRequestMethod())) {
+            String flowId = parseForm(exchange.getRequestURI().getRawQuery()).get("flow");
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=UTF-8");
+            respond(exchange, HttpURLConnection.HTTP_OK, String.format(LOGIN_FORM, flowId, server.getAddress()
+                .getPort()));
+            return;
+        }
+
+        String flowId = parseForm(readBody(exchange)).get("flow");
+        String session = Long.toHexString(tokens.nextLong());
+        sessions.put(session, System.currentTimeMillis());
+        exchange.getResponseHeaders().add("Set-Cookie", SESSION_COOKIE + "=" + session + "; Path=/");
+        next(exchange, flowId);
+    }
+
+    /**
+     * Serves a static resource of the login form, or 304 if the client's copy is current.
+     *
+     * @param exchange the request
+     * @throws IOException if the response cannot be sent
+     */
+    private void asset(final HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        String type = ASSET_TYPES.get(path);
+        if (type == null) {
+            respond(exchange, HttpURLConnection.HTTP_NOT_FOUND, "");
+            return;
+        }
+        String etag = "\"" + Integer.toHexString(path.hashCode()) + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Last-Modified", ASSETS_LAST_MODIFIED);
+        exchange.getResponseHeaders().add("Cache-Control", "max-age=" + assetMaxAgeSeconds);
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null ? etag.equals(ifNoneMatch) : ASSETS_LAST_MODIFIED.equals(exchange
+            .getRequestHeaders().getFirst("If-Modified-Since"))) {
+            respond(exchange, HttpURLConnection.HTTP_NOT_MODIFIED, (byte[]) null);
+            return;
+        }
+        byte[] body = new byte[ASSET_SIZES.get(path)];
+        Arrays.fill(body, (byte) ' ');
+        exchange.getResponseHeaders().add("Content-Type", type);
+        respond(exchange, HttpURLConnection.HTTP_OK, body);
+    }
+
+    /**
+     * Serves an intermediate page, which redirects on.
+     *
+     * @param exchange the request
+     * @throws IOException if the request cannot be read
+     */
+    private void hop(final HttpExchange exchange) throws IOException {
+        next(exchange, parseForm(exchange.getRequestURI().getRawQuery()).get("flow"));
+    }
+
+    /**
+     * Redirects to the next intermediate page of a flow, or to the redirect URI with the results.
+     *
+     * @param exchange the request
+     * @param flowId the flow
+     * @throws IOException if the response cannot be sent
+     */
+    private void next(final HttpExchange exchange, final String flowId) throws IOException {
+        Flow flow = flowId == null ? null : flows.get(flowId);
+        if (flow == null) {
+            respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, "Unknown flow");
+            return;
+        }
+
+        String location;
+        synchronized (flow) {
+            if (flow.hopsLeft > 0) {
+                flow.hopsLeft--;
+                location = OAUTH_PATH + "/hop?flow=" + flowId + "&n=" + flow.hopsLeft;
+            } else {
+                flows.remove(flowId);
+                location = redirect(flow.request);
+            }
+        }
+        exchange.getResponseHeaders().add("Location", location);
+        respond(exchange, HttpURLConnection.HTTP_MOVED_TEMP, "");
+    }
+
+    /**
+     * Builds the redirect URI that ends a flow.
+     *
+     * @param request the query parameters of the authorization request
+     * @return the redirect URI with the token, the code or an error
+     */
+    private String redirect(final Map<String, String> request) {
+        String redirectUri = request.get("redirect_uri");
+        boolean codeFlow = "code".equals(request.get("response_type"));
+        String separator = codeFlow ? "?" : "#";
+
+        if (errors.nextDouble() < errorRate) {
+            /*
+             * Half the errors are a user declining, which carries the error alone, with no "&" after it.
+             */
+            if (errors.nextBoolean()) {
+                return redirectUri + separator + "error=access_denied";
+            }
+            return redirectUri + separator + "error=server_error&error_description="
+                + encode("Simulated failure");
+        }
+        if (codeFlow) {
+            String code = "code_" + sequence.incrementAndGet() + "_" + Long.toHexString(tokens.nextLong());
+            codes.put(code, request);
+            return redirectUri + "?code=" + code;
+        }
+        return redirectUri + "#" + toQuery(issueToken(request));
+    }
+
+    /**
+     * Redeems an authorization code or a refresh token.
+     *
+     * @param exchange the request
+     * @throws IOException if the request cannot be read
+     */
+    private void accessToken(final HttpExchange exchange) throws IOException {
+        Map<String, String> form = parseForm(readBody(exchange));
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+
+        Map<String, String> token;
+        if ("authorization_code".equals(form.get("grant_type"))) {
+            Map<String, String> request = form.get("code") == null ? null : codes.remove(form.get("code"));
+            if (request == null) {
+                respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, error("invalid_grant", "Unknown or used code"));
+                return;
+            }
+            String challenge = request.get("code_challenge");
+            if (challenge != null && !challenge.equals(s256(form.get("code_verifier")))) {
+                respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, error("invalid_grant", "Code verifier does not match"));
+                return;
+            }
+            token = issueToken(request);
+        } else if ("refresh_token".equals(form.get("grant_type")) && form.get("refresh_token") != null) {
+            token = new HashMap<String, String>();
+            token.put("access_token", newToken("tk_", tokenSize));
+            token.put("token_type", "bearer");
+            token.put("expires_in", Integer.toString(EXPIRES_IN_SECONDS));
+        } else {
+            respond(exchange, HttpURLConnection.HTTP_BAD_REQUEST, error("unsupported_grant_type", null));
+            return;
+        }
+
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> parameter : token.entrySet()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(parameter.getKey()).append("\":\"").append(parameter.getValue()).append('"');
+        }
+        respond(exchange, HttpURLConnection.HTTP_OK, json.append('}').toString());
+    }
+
+    /**
+     * Answers an NCIP message.
+     *
+     * @param exchange the request
+     * @throws IOException if the request cannot be read
+     */
+    private void ncip(final HttpExchange exchange) throws IOException {
+        String message = readBody(exchange);
+        exchange.getResponseHeaders().add("Content-Type", "application/xml; charset=UTF-8");
+        String body;
+        if (errors.nextDouble() < errorRate) {
+            body = "<ns1:NCIPMessage xmlns:ns1=\"http://www.niso.org/2008/ncip\"><ns1:Problem><ns1:ProblemType>"
+                + "Simulated failure</ns1:ProblemType></ns1:Problem></ns1:NCIPMessage>";
+        } else {
+            body = "<ns1:NCIPMessage xmlns:ns1=\"http://www.niso.org/2008/ncip\"><ns1:Response>" + message.length()
+                + "</ns1:Response></ns1:NCIPMessage>";
+        }
+        respond(exchange, HttpURLConnection.HTTP_OK, body);
+    }
+
+    /**
+     * Answers a GET of patron data, or 304 if the client's copy is current.
+     *
+     * @param exchange the request
+     * @throws IOException if the response cannot be sent
+     */
+    private void patron(final HttpExchange exchange) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            respond(exchange, HttpURLConnection.HTTP_UNAUTHORIZED, "");
+            return;
+        }
+        String etag = "\"" + Integer.toHexString(exchange.getRequestURI().getPath().hashCode()) + "\"";
+        exchange.getResponseHeaders().add("ETag", etag);
+        exchange.getResponseHeaders().add("Cache-Control", "max-age=" + maxAgeSeconds);
+        if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+            respond(exchange, HttpURLConnection.HTTP_NOT_MODIFIED, (byte[]) null);
+            return;
+        }
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        respond(exchange, HttpURLConnection.HTTP_OK, "{\"path\":\"" + exchange.getRequestURI().getPath()
+            + "\",\"items\":[{\"id\":\"1\",\"title\":\"Stand-in item\",\"due\":\"2014-01-05\"}]}");
+    }
+
+    /**
+     * Issues a token for an authorization request.
+     *
+     * @param request the query parameters of the authorization request
+     * @return the parameters of the token
+     */
+    private Map<String, String> issueToken(final Map<String, String> request) {
+        HashMap<String, String> token = new HashMap<String, String>();
+        String scope = request.get("scope") == null ? "" : request.get("scope");
+        token.put("access_token", newToken("tk_", tokenSize));
+        token.put("token_type", "bearer");
+        token.put("expires_in", Integer.toString(EXPIRES_IN_SECONDS));
+        token.put("principalID", "principal-" + sequence.incrementAndGet());
+        token.put("principalIDNS", PRINCIPAL_ID_NS);
+        token.put("context_institution_id", String.valueOf(request.get("contextInstitutionId")));
+        token.put("scope", scope);
+        if (scope.contains("refresh_token")) {
+            token.put("refresh_token", newToken("rt_", tokenSize));
+        }
+        return token;
+    }
+
+    /**
+     * Sends a response once the latency has passed.
+     *
+     * @param exchange the request
+     * @param status the HTTP status
+     * @param body the response body, or null for none
+     */
+    private void respond(final HttpExchange exchange, final int status, final String body) {
+        try {
+            respond(exchange, status, body == null ? null : body.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Sends a response once the latency, and the time the body takes at the bandwidth, have passed.
+     *
+     * @param exchange the request
+     * @param status the HTTP status
+     * @param body the response body, or null for none
+     */
+    private void respond(final HttpExchange exchange, final int status, final byte[] body) {
+        requestCount.incrementAndGet();
+        Runnable response = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[] bytes = body == null ? new byte[0] : body;
+                    exchange.sendResponseHeaders(status, body == null ? -1 : bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                } catch (IOException e) {
+                    /*
+                     * The client has gone away; nothing to tell it.
+                     */
+                    return;
+                } finally {
+                    exchange.close();
+                }
+            }
+        };
+        long latency = latencyMillis;
+        int bandwidth = bandwidthKilobytes;
+        if (bandwidth > 0 && body != null) {
+            latency += (long) body.length * SECONDS_TO_MILLISECONDS / ((long) bandwidth * BYTES_PER_KILOBYTE);
+        }
+        if (latency > 0) {
+            responders.schedule(response, latency, TimeUnit.MILLISECONDS);
+        } else {
+            response.run();
+        }
+    }
+
+    /**
+     * @param exchange a request
+     * @return true if the request carries the cookie of a session that has not expired
+     */
+    private boolean hasSession(final HttpExchange exchange) {
+        String session = cookie(exchange);
+        Long startedAt = session == null ? null : sessions.get(session);
+        if (startedAt == null) {
+            return false;
+        }
+        long lifetime = sessionLifetimeMillis;
+        if (lifetime > 0 && System.currentTimeMillis() - startedAt >= lifetime) {
+            sessions.remove(session);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param exchange a request
+     * @return the value of its session cookie, or null if it has none
+     */
+    private static String cookie(final HttpExchange exchange) {
+        List<String> cookies = exchange.getRequestHeaders().get("Cookie");
+        if (cookies == null) {
+            return null;
+        }
+        for (String header : cookies) {
+            for (String cookie : header.split(";")) {
+                String trimmed = cookie.trim();
+                if (trimmed.startsWith(SESSION_COOKIE + "=")) {
+                    return trimmed.substring(SESSION_COOKIE.length() + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a random token.
+     *
+     * @param prefix the prefix of the token
+     * @param size the number of characters, including the prefix
+     * @return the token
+     */
+    private String newToken(final String prefix, final int size) {
+        StringBuilder token = new StringBuilder(prefix);
+        while (token.length() < size) {
+            token.append(TOKEN_CHARACTERS[tokens.nextInt(TOKEN_CHARACTERS.length)]);
+        }
+        return token.toString();
+    }
+
+    /**
+     * @param error the OAuth2 error code
+     * @param description the description, or null
+     * @return the error as a JSON object
+     */
+    private static String error(final String error, final String description) {
+        return "{\"error\":\"" + error + "\"" + (description == null ? "" : ",\"error_description\":\"" + description
+            + "\"") + "}";
+    }
+
+    /**
+     * @param verifier a PKCE code verifier, may be null
+     * @return its S256 code challenge, or null if there is no verifier
+     */
+    private static String s256(final String verifier) {
+        if (verifier == null) {
+            return null;
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(verifier.getBytes("US-ASCII"));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Joins parameters into a query string or fragment.
+     *
+     * @param parameters the parameters
+     * @return the percent-encoded parameters
+     */
+    private static String toQuery(final Map<String, String> parameters) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (query.length() > 0) {
+                query.append('&');
+            }
+            query.append(encode(parameter.getKey())).append('=').append(encode(parameter.getValue()));
+        }
+        return query.toString();
+    }
+
+    /**
+     * Splits a query string or form into its parameters.
+     *
+     * @param form the percent-encoded parameters, may be null
+     * @return the decoded parameters
+     */
+    private static Map<String, String> parseForm(final String form) {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        if (form == null) {
+            return parameters;
+        }
+        try {
+            for (String parameter : form.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return parameters;
+    }
+
+    /**
+     * Percent-encodes a value. Spaces become %20 rather than +, as the authentication server does.
+     *
+     * @param value the value
+     * @return the encoded value
+     */
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads a request body.
+     *
+     * @param exchange the request
+     * @return the body as UTF-8
+     * @throws IOException if the body cannot be read
+     */
+    private static String readBody(final HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        InputStream in = exchange.getRequestBody();
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                body.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return body.toString("UTF-8");
+    }
+
+    /**
+     * @param name the name of the threads
+     * @return a factory of daemon threads, so that the server never keeps the JVM alive
+     */
+    private static ThreadFactory daemonThreads(final String name) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                Thread thread = new Thread(runnable, "StandIn-" + name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
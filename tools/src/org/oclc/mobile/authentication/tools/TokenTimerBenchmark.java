@@ -0,0 +1,205 @@
+package org.oclc.mobile.authentication.tools;
+
+/*******************************************************************************
+ * Copyright (c) 2014 OCLC Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at http://www.apache.org/licenses/LICENSE-2.0 Unless required by
+ * applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS
+ * OF ANY KIND, either express or implied. See the License for the specific
+ * language governing permissions and limitations under the License.
+ *
+ ******************************************************************************/
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.oclc.mobile.authentication.core.AuthorizationResult;
+import org.oclc.mobile.authentication.core.TokenDeadlines;
+import org.oclc.mobile.authentication.core.TokenKey;
+
+/**
+ * Compares the {@link TokenDeadlines} wheel with a timer per token, for the refresh and expiry deadlines of many
+ * registered tokens. Each token gets a lifetime of a few seconds, is due for refresh after three quarters of it and
+ * then expires; the run ends when every token has expired.
+ * <p>
+ * The timer per token is a {@link ScheduledExecutorService} holding one task per deadline, the way
+ * TokenRefreshScheduler scheduled its refreshes, on a single thread, which is the cheapest form of it. Each side
+ * reports the cost of scheduling a token, how often its thread had to run and how late the expiries fired: the wheel
+ * counts its wakeups, the timer the tasks it ran, each of which needs the thread.
+ * <p>
+ * Options, as --name=value: tokens (10000), lifetime (4000, the shortest lifetime in milliseconds, the longest being
+ * twice that) and tick (100, the wheel's tick in milliseconds).
+ */
+public final class TokenTimerBenchmark {
+
+    /**
+     * Fraction of a token's lifetime after which it is due for refresh, as in MainActivity.
+     */
+    private static final double REFRESH_FRACTION = 0.75;
+
+    /**
+     * How long to wait for every token to expire, beyond the longest lifetime.
+     */
+    private static final long GRACE_MILLIS = 10000;
+
+    /**
+     * Not instantiable.
+     */
+    private TokenTimerBenchmark() {
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the options
+     * @throws Exception if the deadlines do not all fire
+     */
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = StandInAuthorizationServer.parseOptions(args);
+        int tokens = options.containsKey("tokens") ? Integer.parseInt(options.get("tokens")) : 10000;
+        long lifetime = options.containsKey("lifetime") ? Long.parseLong(options.get("lifetime")) : 4000;
+        long tick = options.containsKey("tick") ? Long.parseLong(options.get("tick")) : 100;
+
+        TokenKey[] keys = new TokenKey[tokens];
+        long[] lifetimes = new long[tokens];
+        Random random = new Random(1);
+        for (int i = 0; i < tokens; i++) {
+            keys[i] = new TokenKey("wskey", "128807", Integer.toString(100000 + i), "WMS_NCIP refresh_token");
+            lifetimes[i] = lifetime + (long) (random.nextDouble() * lifetime);
+        }
+
+        wheel(keys, lifetimes, lifetime, tick);
+        timerPerToken(keys, lifetimes, lifetime);
+    }
+
+    /**
+     * Tracks every token in one TokenDeadlines wheel.
+     *
+     * @param keys the tokens' keys
+     * @param lifetimes the tokens' lifetimes in milliseconds
+     * @param lifetime the shortest lifetime
+     * @param tick the wheel's tick in milliseconds
+     * @throws InterruptedException if interrupted
+     */
+    private static void wheel(final TokenKey[] keys, final long[] lifetimes, final long lifetime, final long tick)
+        throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(keys.length);
+        final AtomicLong refreshes = new AtomicLong();
+        final AtomicLong lateMillis = new AtomicLong();
+        TokenDeadlines deadlines = new TokenDeadlines(REFRESH_FRACTION, tick);
+        deadlines.setListener(new TokenDeadlines.Listener() {
+            @Override
+            public void refreshDue(final TokenKey key, final AuthorizationResult result) {
+                refreshes.incrementAndGet();
+            }
+
+            @Override
+            public void expired(final TokenKey key, final AuthorizationResult result) {
+                lateMillis.addAndGet(System.currentTimeMillis() - result.getExpiresAtMillis());
+                expired.countDown();
+            }
+        });
+
+        long now = System.currentTimeMillis();
+        long started = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            deadlines.track(keys[i], token(now + lifetimes[i]), now);
+        }
+        long scheduleNanos = System.nanoTime() - started;
+
+        await(expired, lifetime);
+        deadlines.shutdown();
+        report("wheel", keys.length, scheduleNanos, refreshes.get(), expired, lateMillis.get(), deadlines.getStats());
+    }
+
+    /**
+     * Schedules a task for each token's refresh, which schedules one for its expiry.
+     *
+     * @param keys the tokens' keys
+     * @param lifetimes the tokens' lifetimes in milliseconds
+     * @param lifetime the shortest lifetime
+     * @throws InterruptedException if interrupted
+     */
+    private static void timerPerToken(final TokenKey[] keys, final long[] lifetimes, final long lifetime)
+        throws InterruptedException {
+        final CountDownLatch expired = new CountDownLatch(keys.length);
+        final AtomicLong refreshes = new AtomicLong();
+        final AtomicLong lateMillis = new AtomicLong();
+        final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1);
+
+        long now = System.currentTimeMillis();
+        long started = System.nanoTime();
+        for (int i = 0; i < keys.length; i++) {
+            final AuthorizationResult result = token(now + lifetimes[i]);
+            long refreshDelay = (long) (lifetimes[i] * REFRESH_FRACTION);
+            timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    refreshes.incrementAndGet();
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            lateMillis.addAndGet(System.currentTimeMillis() - result.getExpiresAtMillis());
+                            expired.countDown();
+                        }
+                    }, result.getExpiresAtMillis() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                }
+            }, refreshDelay, TimeUnit.MILLISECONDS);
+        }
+        long scheduleNanos = System.nanoTime() - started;
+
+        await(expired, lifetime);
+        timer.shutdown();
+        report("timerPerToken", keys.length, scheduleNanos, refreshes.get(), expired, lateMillis.get(),
+            "tasksRun=" + timer.getCompletedTaskCount());
+    }
+
+    /**
+     * @param expiresAtMillis when the token expires
+     * @return a token with a refresh token
+     */
+    private static AuthorizationResult token(final long expiresAtMillis) {
+        return AuthorizationResult.expiringAt(Collections.singletonMap("refresh_token", "rt"), expiresAtMillis);
+    }
+
+    /**
+     * Waits for every token to expire.
+     *
+     * @param expired counts the tokens that have not expired
+     * @param lifetime the shortest lifetime
+     * @throws InterruptedException if interrupted
+     */
+    private static void await(final CountDownLatch expired, final long lifetime) throws InterruptedException {
+        if (!expired.await(2 * lifetime + GRACE_MILLIS, TimeUnit.MILLISECONDS)) {
+            throw new IllegalStateException(expired.getCount() + " tokens did not expire");
+        }
+    }
+
+    /**
+     * Prints one side's results as a line of JSON.
+     *
+     * @param name the side
+     * @param tokens the number of tokens
+     * @param scheduleNanos time taken to schedule every token
+     * @param refreshes the number of refresh deadlines fired
+     * @param expired counts the tokens that have not expired
+     * @param lateMillis total lateness of the expiries
+     * @param stats the side's own counters
+     */
+    private static void report(final String name, final int tokens, final long scheduleNanos, final long refreshes,
+        final CountDownLatch expired, final long lateMillis, final String stats) {
+        long expiries = tokens - expired.getCount();
+        System.out.println("{\"timer\":\"" + name + "\",\"tokens\":" + tokens + ",\"scheduleNsPerToken\":"
+            + scheduleNanos / tokens + ",\"refreshes\":" + refreshes + ",\"expiries\":" + expiries
+            + ",\"meanLateMillis\":" + String.format("%.1f", (double) lateMillis / Math.max(1, expiries))
+            + ",\"stats\":\"" + stats + "\"}");
+    }
+}